@@ -21,18 +21,38 @@ package ch.epfl.biop.ometiff;
  * #L%
  */
 
+import ch.epfl.biop.operetta.utils.ConcurrentPlaneReader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Field;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import loci.common.DataTools;
 import loci.common.Location;
@@ -44,7 +64,6 @@ import loci.formats.CoreMetadata;
 import loci.formats.CoreMetadataList;
 import loci.formats.FormatException;
 import loci.formats.FormatTools;
-import loci.formats.IFormatReader;
 import loci.formats.MetadataTools;
 import loci.formats.MissingLibraryException;
 import loci.formats.Modulo;
@@ -74,16 +93,35 @@ import ome.xml.model.primitives.Timestamp;
  * - Files are assumed valid until proven otherwise
  *
  * Use setTrustMetadata(true) to skip ALL validation (even during openBytes).
+ *
+ * Planes can also be read from several threads at the same time through
+ * {@link #openPlane(int, int, byte[], int, int, int, int)}: the TIFF readers are
+ * taken from a shared pool, and the series is given with each call.
  */
-public class LazyOMETiffReader extends OMETiffReader {
+public class LazyOMETiffReader extends OMETiffReader implements ConcurrentPlaneReader {
 
     // -- Fields --
 
-    /** Set of file paths that have been validated. */
-    private Set<String> validatedFiles = new HashSet<>();
+    /** Validation state of each file of the plane table, see {@link #FILE_UNCHECKED}. */
+    private AtomicIntegerArray fileStates;
+
+    /** File not validated yet. */
+    private static final int FILE_UNCHECKED = 0;
+
+    /** File that has been validated. */
+    private static final int FILE_VALID = 1;
 
-    /** Set of file paths known to be invalid/missing. */
-    private Set<String> invalidFiles = new HashSet<>();
+    /** File which is not a valid TIFF file. */
+    private static final int FILE_INVALID = 2;
+
+    /** File which does not exist. */
+    private static final int FILE_MISSING = 3;
+
+    /** Maximal number of unreadable files listed in a validation summary. */
+    private static final int MAX_OFFENDERS = 10;
+
+    /** Threads of the background validation, if any (transient - not serializable). */
+    private transient ExecutorService validationPool;
 
     /** Whether to skip file validation entirely (trust OME-XML completely). */
     private boolean trustMetadata = true;
@@ -97,26 +135,42 @@ public class LazyOMETiffReader extends OMETiffReader {
     /** Path to metadata file for binary-only datasets. */
     private String lazyMetadataFile;
 
-    /** Cached reflection access to OMETiffPlane fields (transient - not serializable). */
-    private transient Field planeIdField;
-    private transient Field planeReaderField;
-    private transient Field planeIfdField;
-    private transient Field planeExistsField;
-    private transient Field planeCertainField;
+    /** File and IFD of each plane, replaces the OMETiffPlane objects of the parent class. */
+    private TiffPlaneTable planeTable;
+
+    /** TIFF readers of the files last read (transient - not serializable). */
+    private transient TiffReaderPool readerPool;
 
-    /** Reflection access to parent's info field (transient - not serializable). */
-    private transient Field infoField;
+    /** Last plane read, for the lookup tables. */
+    private int lastPlane = 0;
+
+    /** Maximal number of TIFF files kept open. */
+    private static final int READER_POOL_SIZE = 16;
 
     // -- Constructor --
 
     // Suffix for lazy companion files
     public static final String LAZY_SUFFIX = "companion.ome.lazy";
 
+    /**
+     * Suffix of the plane table sidecar written next to companion files: a versioned binary file
+     * holding the core metadata of each series and the file and IFD of each plane, as int columns.
+     * The TIFF files are stored relative to the folder of the companion file, so that the sidecar stays
+     * valid when the dataset is moved or reached through another mount point.
+     * <p>
+     * The sidecar only replaces the walk over the TiffData elements and the reading of the first IFD. The OME-XML
+     * of the companion file is still read and parsed at each opening, as it is the metadata store of the reader.
+     * Reopening without any parsing is left to the Memoizer, whose memo file holds the whole reader.
+     */
+    public static final String PLANE_TABLE_SUFFIX = ".planes";
+
+    private static final int PLANE_TABLE_MAGIC = 0x4F505442; // "OPTB"
+    private static final int PLANE_TABLE_VERSION = 2;
+
     public LazyOMETiffReader() {
         super();
         suffixNecessary = true;
         suffixSufficient = true;
-        initReflection();
     }
 
     // -- IFormatReader API methods --
@@ -157,6 +211,50 @@ public class LazyOMETiffReader extends OMETiffReader {
         return trustMetadata;
     }
 
+    /**
+     * Check that all the files referenced by the dataset exist and are TIFF files, in background threads.
+     * Planes can still be read meanwhile: files are then validated either by openBytes or by the background
+     * threads, whichever comes first, and planes of files found to be unreadable are returned filled with the
+     * fill color, whatever {@link #setTrustMetadata(boolean)}. The validation is cancelled when the reader is closed.
+     *
+     * @param nThreads the number of files checked in parallel
+     * @return the summary of the validation, once all files are checked
+     */
+    public CompletableFuture<ValidationSummary> validateInBackground(int nThreads) {
+        FormatTools.assertId(currentId, true, 1);
+        cancelValidation();
+        final TiffPlaneTable table = planeTable;
+        final AtomicIntegerArray states = fileStates;
+        final ExecutorService pool = Executors.newFixedThreadPool(nThreads, runnable -> {
+            Thread thread = new Thread(runnable, "LazyOMETiffReader validation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        validationPool = pool;
+
+        // the workers share a cursor on the file table, so that a slow file does not hold up a whole chunk
+        AtomicInteger next = new AtomicInteger();
+        CompletableFuture<?>[] workers = new CompletableFuture<?>[nThreads];
+        for (int w = 0; w < nThreads; w++) {
+            workers[w] = CompletableFuture.runAsync(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < table.getFileCount() && !Thread.currentThread().isInterrupted()) {
+                    if (states.get(i) == FILE_UNCHECKED) {
+                        int state = validateFile(table.getFile(i));
+                        // an interrupted check says nothing about the file, it is checked again later
+                        if (state != FILE_UNCHECKED) states.compareAndSet(i, FILE_UNCHECKED, state);
+                    }
+                }
+            }, pool);
+        }
+        return CompletableFuture.allOf(workers)
+                .thenApply(done -> summarize(table, states))
+                .whenComplete((summary, error) -> {
+                    pool.shutdown();
+                    if (summary != null) LOGGER.info("{}", summary);
+                });
+    }
+
     // -- IFormatReader API methods --
 
     @Override
@@ -165,24 +263,86 @@ public class LazyOMETiffReader extends OMETiffReader {
     {
         FormatTools.checkPlaneParameters(this, no, buf.length, x, y, w, h);
 
-        // Get plane info via reflection since OMETiffPlane is private
-        Object plane = getInfoPlane(series, no);
-        String planeId = getPlaneId(plane);
-        IFormatReader planeReader = getPlaneReader(plane);
+        lastPlane = no;
+        return readPlane(series, no, buf, x, y, w, h);
+    }
 
-        // Validate file on first access if not already validated
-        if (planeId != null && !trustMetadata && !validatedFiles.contains(planeId)) {
-            validateFile(plane, planeId, planeReader);
+    @Override
+    public String[] getSeriesUsedFiles(boolean noPixels) {
+        FormatTools.assertId(currentId, true, 1);
+        if (noPixels) {
+            return lazyMetadataFile == null ? new String[0] : new String[] {lazyMetadataFile};
+        }
+        String[] seriesFiles = planeTable.getSeriesFiles(getSeries());
+        if (lazyMetadataFile == null) {
+            return seriesFiles;
         }
+        String[] files = new String[seriesFiles.length + 1];
+        files[0] = lazyMetadataFile;
+        System.arraycopy(seriesFiles, 0, files, 1, seriesFiles.length);
+        return files;
+    }
 
-        // Check if file is known to be invalid - return fill color
-        if (planeId != null && invalidFiles.contains(planeId)) {
-            Arrays.fill(buf, getFillColor());
-            return buf;
+    @Override
+    public byte[][] get8BitLookupTable() throws FormatException, IOException {
+        FormatTools.assertId(currentId, true, 1);
+        String file = getPlaneFile(series, lastPlane);
+        if (file == null) return null;
+        MinimalTiffReader reader = getReaderPool().acquire(file);
+        try {
+            return reader.get8BitLookupTable();
+        } finally {
+            getReaderPool().release(file, reader);
+        }
+    }
+
+    @Override
+    public short[][] get16BitLookupTable() throws FormatException, IOException {
+        FormatTools.assertId(currentId, true, 1);
+        String file = getPlaneFile(series, lastPlane);
+        if (file == null) return null;
+        MinimalTiffReader reader = getReaderPool().acquire(file);
+        try {
+            return reader.get16BitLookupTable();
+        } finally {
+            getReaderPool().release(file, reader);
+        }
+    }
+
+    // -- ConcurrentPlaneReader API methods --
+
+    @Override
+    public String getPlaneFile(int series, int no) {
+        int fileIndex = planeTable.getFileIndex(series, no);
+        return fileIndex == TiffPlaneTable.NO_FILE ? null : planeTable.getFile(fileIndex);
+    }
+
+    @Override
+    public byte[] openPlane(int series, int no, byte[] buf, int x, int y, int w, int h)
+            throws FormatException, IOException
+    {
+        FormatTools.assertId(currentId, true, 1);
+        CoreMetadata m = core.get(series, 0);
+        if (no < 0 || no >= m.imageCount) {
+            throw new FormatException("Invalid image number: " + no);
+        }
+        if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > m.sizeX || y + h > m.sizeY) {
+            throw new FormatException("Invalid tile: x=" + x + ", y=" + y + ", w=" + w + ", h=" + h);
+        }
+        int effSizeC = m.imageCount / (m.sizeZ * m.sizeT);
+        int rgbChannels = effSizeC == 0 ? m.sizeC : m.sizeC / effSizeC;
+        if (buf.length < (long) w * h * FormatTools.getBytesPerPixel(m.pixelType) * rgbChannels) {
+            throw new FormatException("Buffer too small for " + w + " x " + h + " pixels");
         }
+        return readPlane(series, no, buf, x, y, w, h);
+    }
 
-        // Delegate to parent implementation
-        return super.openBytes(no, buf, x, y, w, h);
+    @Override
+    public void reopenFile() throws IOException {
+        // TIFF readers are opened again when needed
+        if (readerPool != null) {
+            readerPool.close();
+        }
     }
 
     @Override
@@ -195,9 +355,16 @@ public class LazyOMETiffReader extends OMETiffReader {
     public void close(boolean fileOnly) throws IOException {
         super.close(fileOnly);
         if (!fileOnly) {
-            validatedFiles.clear();
-            invalidFiles.clear();
+            cancelValidation();
+        }
+        if (readerPool != null) {
+            readerPool.close();
+        }
+        if (!fileOnly) {
             lazyMetadataFile = null;
+            planeTable = null;
+            fileStates = null;
+            lastPlane = 0;
         }
     }
 
@@ -243,6 +410,7 @@ public class LazyOMETiffReader extends OMETiffReader {
         }
         String xml;
         IFD firstIFD = null;
+        String firstTIFF = null;
 
         boolean companion = false;
         if (isCompanionFile(fileName)) {
@@ -258,8 +426,8 @@ public class LazyOMETiffReader extends OMETiffReader {
         try {
             lazyMeta = lazyService.createOMEXMLMetadata(xml);
             if (companion) {
-                String firstTIFF = lazyMeta.getUUIDFileName(0, 0);
-                firstIFD = getFirstIFDLazy(new Location(dir, firstTIFF).getAbsolutePath());
+                // only read if the plane tables have to be built
+                firstTIFF = new Location(dir, lazyMeta.getUUIDFileName(0, 0)).getAbsolutePath();
                 lazyMetadataFile = fileName;
             }
         }
@@ -344,14 +512,67 @@ public class LazyOMETiffReader extends OMETiffReader {
 
         lazyService.convertMetadata(lazyMeta, metadataStore);
 
+        // the plane tables are read from the sidecar written at the previous opening, if it is still valid
+        if (lazyMetadataFile == null || !readPlaneTable(lazyMetadataFile, currentUUID)) {
+            buildPlaneTables(id, dir, currentUUID, firstIFD, firstTIFF);
+            if (lazyMetadataFile != null) {
+                writePlaneTable(lazyMetadataFile, currentUUID);
+            }
+        }
+
+        for (int i=0; i<core.size(); i++) {
+            LazyOMETiffCoreMetadata m = (LazyOMETiffCoreMetadata) core.get(i, 0);
+            Modulo z = lazyService.getModuloAlongZ(lazyMeta, i);
+            if (z != null) m.moduloZ = z;
+            Modulo c = lazyService.getModuloAlongC(lazyMeta, i);
+            if (c != null) m.moduloC = c;
+            Modulo t = lazyService.getModuloAlongT(lazyMeta, i);
+            if (t != null) m.moduloT = t;
+        }
+
+        MetadataTools.populatePixels(metadataStore, this, false, false);
+        for (int i=0; i<lazyMeta.getImageCount(); i++) {
+            for (int p=0; p<lazyMeta.getPlaneCount(i); p++) {
+                NonNegativeInteger zVal = lazyMeta.getPlaneTheZ(i, p);
+                NonNegativeInteger cVal = lazyMeta.getPlaneTheC(i, p);
+                NonNegativeInteger tVal = lazyMeta.getPlaneTheT(i, p);
+
+                if (zVal == null) {
+                    metadataStore.setPlaneTheZ(new NonNegativeInteger(0), i, p);
+                }
+                if (cVal == null) {
+                    metadataStore.setPlaneTheC(new NonNegativeInteger(0), i, p);
+                }
+                if (tVal == null) {
+                    metadataStore.setPlaneTheT(new NonNegativeInteger(0), i, p);
+                }
+            }
+        }
+        for (int i=0; i<acquiredDates.length; i++) {
+            if (acquiredDates[i] != null) {
+                metadataStore.setImageAcquisitionDate(new Timestamp(acquiredDates[i]), i);
+            }
+        }
+
+        LOGGER.info("Lazy initialization complete - {} series, {} total files", core.size(), used.length);
+    }
+
+    /**
+     * Build the core metadata and the plane tables from the TiffData elements of the OME-XML metadata
+     */
+    private void buildPlaneTables(String id, String dir, String currentUUID, IFD firstIFD, String firstTIFF)
+            throws FormatException, IOException
+    {
+        if (firstIFD == null) {
+            firstIFD = getFirstIFDLazy(firstTIFF);
+        }
+
         // determine series count from Image and Pixels elements
         int seriesCount = lazyMeta.getImageCount();
         core.clear();
         for (int i=0; i<seriesCount; i++) {
             core.add(new LazyOMETiffCoreMetadata());
         }
-        // Create properly typed array via reflection since OMETiffPlane is private
-        setInfo(createInfoArray(seriesCount));
 
         // compile list of file/UUID mappings
         Hashtable<String, String> files = new Hashtable<>();
@@ -424,8 +645,16 @@ public class LazyOMETiffReader extends OMETiffReader {
 
         LOGGER.info("Lazy mode: {} files referenced, skipping validation", used.length);
 
+        // interned file table: each file name is stored once, planes refer to it by index
+        List<String> fileTable = new ArrayList<>(Arrays.asList(used));
+        Map<String, Integer> fileIndices = new HashMap<>(2 * used.length);
+        for (int f=0; f<used.length; f++) {
+            fileIndices.put(used[f], f);
+        }
+        int[][] seriesFiles = new int[seriesCount][];
+        int[][] seriesIfds = new int[seriesCount][];
+
         // process TiffData elements
-        Hashtable<String, IFormatReader> readers = new Hashtable<>();
         boolean adjustedSamples = false;
 
         for (int i=0; i<seriesCount; i++) {
@@ -466,11 +695,12 @@ public class LazyOMETiffReader extends OMETiffReader {
             int sizeZ = lazyMeta.getPixelsSizeZ(i).getValue();
             int num = effSizeC * sizeT * sizeZ;
 
-            // Create plane info array using reflection to create OMETiffPlane instances
-            Object[] planes = createPlaneArray(num);
-            for (int no=0; no<num; no++) {
-                initPlane(planes[no]);
-            }
+            // file and IFD of each plane, in primitive arrays
+            int[] planeFiles = new int[num];
+            int[] planeIfds = new int[num];
+            boolean[] certain = new boolean[num];
+            Arrays.fill(planeFiles, TiffPlaneTable.NO_FILE);
+            Arrays.fill(planeIfds, -1);
 
             int tiffDataCount = lazyMeta.getTiffDataCount(i);
             Boolean zOneIndexed = null;
@@ -540,29 +770,27 @@ public class LazyOMETiffReader extends OMETiffReader {
                 else {
                     filename = normalizeFilename(dir, filename);
                 }
-                IFormatReader r = readers.get(filename);
-                if (r == null) {
-                    r = new MinimalTiffReader();
-                    readers.put(filename, r);
+                // TIFF readers are only created when planes are read, see readerPool
+                Integer fileIndex = fileIndices.get(filename);
+                if (fileIndex == null) {
+                    fileIndex = fileTable.size();
+                    fileTable.add(filename);
+                    fileIndices.put(filename, fileIndex);
                 }
 
                 // LAZY: Skip file existence check - assume exists
                 // populate plane index -> IFD mapping
                 for (int q=0; q<count; q++) {
                     int no = index + q;
-                    setPlaneReader(planes[no], r);
-                    setPlaneId(planes[no], filename);
-                    setPlaneIfd(planes[no], ifdIndex + q);
-                    setPlaneCertain(planes[no], true);
-                    setPlaneExists(planes[no], true); // Assume exists until proven otherwise
+                    planeFiles[no] = fileIndex;
+                    planeIfds[no] = ifdIndex + q;
+                    certain[no] = true;
                 }
                 if (numPlanes == null) {
                     for (int no=index+1; no<num; no++) {
-                        if (getPlaneCertain(planes[no])) break;
-                        setPlaneReader(planes[no], r);
-                        setPlaneId(planes[no], filename);
-                        setPlaneIfd(planes[no], getPlaneIfd(planes[no-1]) + 1);
-                        setPlaneExists(planes[no], true);
+                        if (certain[no]) break;
+                        planeFiles[no] = fileIndex;
+                        planeIfds[no] = planeIfds[no-1] + 1;
                     }
                 }
             }
@@ -572,7 +800,8 @@ public class LazyOMETiffReader extends OMETiffReader {
             // LAZY: Skip the entire validation loop (lines 1061-1092 in original)
             // This is the main performance gain - we don't validate 220K files
 
-            setInfoSeries(s, planes);
+            seriesFiles[s] = planeFiles;
+            seriesIfds[s] = planeIfds;
 
             // Populate core metadata from OME-XML (trust metadata, minimal file access)
             LazyOMETiffCoreMetadata m = (LazyOMETiffCoreMetadata) core.get(s, 0);
@@ -633,25 +862,22 @@ public class LazyOMETiffReader extends OMETiffReader {
 
         // Remove null CoreMetadata entries
         CoreMetadataList seriesList = new CoreMetadataList();
-        final List<Object[]> planeInfo = new ArrayList<>();
+        final List<int[]> keptFiles = new ArrayList<>();
+        final List<int[]> keptIfds = new ArrayList<>();
         int currentSeriesIdx = 0;
-        Object[][] currentInfo = getInfo();
         for (int i=0; i<core.size(); i++) {
             if (core.get(i, 0) == null) continue;
             seriesList.add();
-            planeInfo.add(currentInfo[i]);
+            keptFiles.add(seriesFiles[i]);
+            keptIfds.add(seriesIfds[i]);
             for (int j=0; j<core.size(i); j++) {
                 seriesList.add(currentSeriesIdx, core.get(i, j));
             }
             currentSeriesIdx++;
         }
         core = seriesList;
-        // Rebuild info array with proper type
-        Object[][] newInfo = createInfoArray(planeInfo.size());
-        for (int i = 0; i < planeInfo.size(); i++) {
-            newInfo[i] = planeInfo.get(i);
-        }
-        setInfo(newInfo);
+        used = fileTable.toArray(new String[0]);
+        setPlaneTable(new TiffPlaneTable(used, keptFiles.toArray(new int[0][]), keptIfds.toArray(new int[0][])));
 
         if (getImageCount() == 1) {
             LazyOMETiffCoreMetadata ms0 = (LazyOMETiffCoreMetadata) core.get(0, 0);
@@ -661,42 +887,6 @@ public class LazyOMETiffReader extends OMETiffReader {
             }
             ms0.sizeT = 1;
         }
-
-        for (int i=0; i<core.size(); i++) {
-            LazyOMETiffCoreMetadata m = (LazyOMETiffCoreMetadata) core.get(i, 0);
-            Modulo z = lazyService.getModuloAlongZ(lazyMeta, i);
-            if (z != null) m.moduloZ = z;
-            Modulo c = lazyService.getModuloAlongC(lazyMeta, i);
-            if (c != null) m.moduloC = c;
-            Modulo t = lazyService.getModuloAlongT(lazyMeta, i);
-            if (t != null) m.moduloT = t;
-        }
-
-        MetadataTools.populatePixels(metadataStore, this, false, false);
-        for (int i=0; i<lazyMeta.getImageCount(); i++) {
-            for (int p=0; p<lazyMeta.getPlaneCount(i); p++) {
-                NonNegativeInteger zVal = lazyMeta.getPlaneTheZ(i, p);
-                NonNegativeInteger cVal = lazyMeta.getPlaneTheC(i, p);
-                NonNegativeInteger tVal = lazyMeta.getPlaneTheT(i, p);
-
-                if (zVal == null) {
-                    metadataStore.setPlaneTheZ(new NonNegativeInteger(0), i, p);
-                }
-                if (cVal == null) {
-                    metadataStore.setPlaneTheC(new NonNegativeInteger(0), i, p);
-                }
-                if (tVal == null) {
-                    metadataStore.setPlaneTheT(new NonNegativeInteger(0), i, p);
-                }
-            }
-        }
-        for (int i=0; i<acquiredDates.length; i++) {
-            if (acquiredDates[i] != null) {
-                metadataStore.setImageAcquisitionDate(new Timestamp(acquiredDates[i]), i);
-            }
-        }
-
-        LOGGER.info("Lazy initialization complete - {} series, {} total files", core.size(), used.length);
     }
 
     /**
@@ -711,183 +901,250 @@ public class LazyOMETiffReader extends OMETiffReader {
         // Don't set metadataStore here - will be set to lazyMeta after OME-XML parsing
     }
 
-    // -- Reflection helpers --
+    // -- Plane table sidecar --
 
-    /** Ensure reflection fields are initialized (needed after deserialization). */
-    private void ensureReflectionInitialized() {
-        if (infoField == null) {
-            initReflection();
-        }
-    }
-
-    private void initReflection() {
-        try {
-            Class<?> planeClass = Class.forName("loci.formats.in.OMETiffReader$OMETiffPlane");
-            planeIdField = planeClass.getDeclaredField("id");
-            planeIdField.setAccessible(true);
-            planeReaderField = planeClass.getDeclaredField("reader");
-            planeReaderField.setAccessible(true);
-            planeIfdField = planeClass.getDeclaredField("ifd");
-            planeIfdField.setAccessible(true);
-            planeExistsField = planeClass.getDeclaredField("exists");
-            planeExistsField.setAccessible(true);
-            planeCertainField = planeClass.getDeclaredField("certain");
-            planeCertainField.setAccessible(true);
-
-            // Access to parent's info field
-            infoField = OMETiffReader.class.getDeclaredField("info");
-            infoField.setAccessible(true);
-        } catch (Exception e) {
-            LOGGER.error("Failed to initialize reflection for lazy validation", e);
-        }
-    }
-
-    @SuppressWarnings("unchecked")
-    private Object[][] createInfoArray(int seriesCount) {
+    /**
+     * Read the core metadata and the plane tables from the sidecar of a companion file
+     *
+     * @param companion the companion file
+     * @param uuid the UUID of the companion file, it has to match the one of the sidecar
+     * @return false if there is no sidecar, or if it does not match the companion file anymore
+     */
+    private boolean readPlaneTable(String companion, String uuid) {
+        File sidecar = new File(companion + PLANE_TABLE_SUFFIX);
+        if (!sidecar.exists()) return false;
+        File companionFile = new File(companion);
         try {
-            Class<?> planeClass = Class.forName("loci.formats.in.OMETiffReader$OMETiffPlane");
-            Class<?> planeArrayClass = java.lang.reflect.Array.newInstance(planeClass, 0).getClass();
-            return (Object[][]) java.lang.reflect.Array.newInstance(planeArrayClass, seriesCount);
-        } catch (Exception e) {
-            LOGGER.error("Failed to create info array", e);
-            return null;
-        }
-    }
+            // read in memory rather than mapped, a mapping would lock the file on Windows and prevent its replacement
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(sidecar.toPath()));
+            if (buffer.getInt() != PLANE_TABLE_MAGIC || buffer.getInt() != PLANE_TABLE_VERSION
+                    || buffer.getLong() != companionFile.length() || buffer.getLong() != companionFile.lastModified()
+                    || !getString(buffer).equals(uuid == null ? "" : uuid)) {
+                LOGGER.debug("Plane table {} is outdated", sidecar);
+                return false;
+            }
 
-    private void setInfo(Object[][] infoArray) {
-        ensureReflectionInitialized();
-        try {
-            infoField.set(this, infoArray);
-        } catch (Exception e) {
-            LOGGER.error("Failed to set info field", e);
-        }
-    }
+            Path folder = companionFile.getAbsoluteFile().toPath().getParent();
+            String[] files = new String[buffer.getInt()];
+            for (int i = 0; i < files.length; i++) {
+                files[i] = folder.resolve(getString(buffer)).normalize().toString();
+            }
 
-    private Object[][] getInfo() {
-        ensureReflectionInitialized();
-        try {
-            return (Object[][]) infoField.get(this);
-        } catch (Exception e) {
-            LOGGER.error("Failed to get info field", e);
-            return null;
-        }
-    }
+            int seriesCount = buffer.getInt();
+            core.clear();
+            int[][] seriesFiles = new int[seriesCount][];
+            int[][] seriesIfds = new int[seriesCount][];
+            for (int s = 0; s < seriesCount; s++) {
+                LazyOMETiffCoreMetadata m = new LazyOMETiffCoreMetadata();
+                m.sizeX = buffer.getInt();
+                m.sizeY = buffer.getInt();
+                m.sizeZ = buffer.getInt();
+                m.sizeC = buffer.getInt();
+                m.sizeT = buffer.getInt();
+                m.pixelType = buffer.getInt();
+                m.bitsPerPixel = buffer.getInt();
+                m.imageCount = buffer.getInt();
+                m.tileWidth = buffer.getInt();
+                m.tileHeight = buffer.getInt();
+                int flags = buffer.getInt();
+                m.orderCertain = (flags & 1) != 0;
+                m.rgb = (flags & 2) != 0;
+                m.littleEndian = (flags & 4) != 0;
+                m.indexed = (flags & 8) != 0;
+                m.falseColor = (flags & 16) != 0;
+                m.metadataComplete = (flags & 32) != 0;
+                m.interleaved = false;
+                m.dimensionOrder = getString(buffer);
+                core.add(m);
+                seriesFiles[s] = new int[m.imageCount];
+                seriesIfds[s] = new int[m.imageCount];
+                Arrays.fill(seriesFiles[s], TiffPlaneTable.NO_FILE);
+                Arrays.fill(seriesIfds[s], -1);
+            }
 
-    private void setInfoSeries(int s, Object[] planes) {
-        ensureReflectionInitialized();
-        try {
-            Object[][] currentInfo = (Object[][]) infoField.get(this);
-            currentInfo[s] = planes;
-        } catch (Exception e) {
-            LOGGER.error("Failed to set info series", e);
-        }
-    }
+            // one column after the other: series, plane index, file id, IFD
+            int nPlanes = buffer.getInt();
+            IntBuffer columns = buffer.slice().asIntBuffer();
+            int[] planeSeries = new int[nPlanes];
+            int[] planeIndex = new int[nPlanes];
+            int[] planeFile = new int[nPlanes];
+            int[] planeIfd = new int[nPlanes];
+            columns.get(planeSeries).get(planeIndex).get(planeFile).get(planeIfd);
+
+            for (int i = 0; i < nPlanes; i++) {
+                seriesFiles[planeSeries[i]][planeIndex[i]] = planeFile[i];
+                seriesIfds[planeSeries[i]][planeIndex[i]] = planeIfd[i];
+            }
 
-    private Object[] getInfoSeries(int s) {
-        ensureReflectionInitialized();
-        try {
-            Object[][] currentInfo = (Object[][]) infoField.get(this);
-            return currentInfo[s];
-        } catch (Exception e) {
-            LOGGER.error("Failed to get info series", e);
-            return null;
+            setPlaneTable(new TiffPlaneTable(files, seriesFiles, seriesIfds));
+            used = files;
+            LOGGER.info("Lazy mode: plane tables read from {}", sidecar);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Could not read plane table {}: {}", sidecar, e.getMessage());
+            return false;
         }
     }
 
-    private Object getInfoPlane(int s, int no) {
-        ensureReflectionInitialized();
-        try {
-            Object[][] currentInfo = (Object[][]) infoField.get(this);
-            return currentInfo[s][no];
-        } catch (Exception e) {
-            LOGGER.error("Failed to get info plane", e);
-            return null;
-        }
-    }
+    /**
+     * Write the core metadata and the plane tables next to the companion file, so that they do not have to be built
+     * again at the next opening. Nothing is written if the folder is read-only.
+     *
+     * @param companion the companion file
+     * @param uuid the UUID of the companion file
+     */
+    private void writePlaneTable(String companion, String uuid) {
+        File sidecar = new File(companion + PLANE_TABLE_SUFFIX);
+        File tmp = new File(sidecar.getPath() + ".tmp");
+        File companionFile = new File(companion);
 
-    private Object[] createPlaneArray(int size) {
         try {
-            Class<?> planeClass = Class.forName("loci.formats.in.OMETiffReader$OMETiffPlane");
-            Object[] array = (Object[]) java.lang.reflect.Array.newInstance(planeClass, size);
-            java.lang.reflect.Constructor<?> ctor = planeClass.getDeclaredConstructor(OMETiffReader.class);
-            ctor.setAccessible(true);
-            for (int i = 0; i < size; i++) {
-                array[i] = ctor.newInstance(this);
-            }
-            return array;
-        } catch (Exception e) {
-            LOGGER.error("Failed to create plane array", e);
-            return new Object[size];
-        }
-    }
-
-    private void initPlane(Object plane) {
-        // Planes are initialized with defaults, just ensure ifd is set
-        setPlaneIfd(plane, -1);
-    }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                out.writeInt(PLANE_TABLE_MAGIC);
+                out.writeInt(PLANE_TABLE_VERSION);
+                out.writeLong(companionFile.length());
+                out.writeLong(companionFile.lastModified());
+                putString(out, uuid == null ? "" : uuid);
+
+                Path folder = companionFile.getAbsoluteFile().toPath().getParent();
+                out.writeInt(planeTable.getFileCount());
+                for (int i = 0; i < planeTable.getFileCount(); i++) {
+                    putString(out, relativize(folder, planeTable.getFile(i)));
+                }
 
-    private String getPlaneId(Object plane) {
-        ensureReflectionInitialized();
-        try { return (String) planeIdField.get(plane); }
-        catch (Exception e) { return null; }
-    }
+                out.writeInt(core.size());
+                for (int s = 0; s < core.size(); s++) {
+                    LazyOMETiffCoreMetadata m = (LazyOMETiffCoreMetadata) core.get(s, 0);
+                    out.writeInt(m.sizeX);
+                    out.writeInt(m.sizeY);
+                    out.writeInt(m.sizeZ);
+                    out.writeInt(m.sizeC);
+                    out.writeInt(m.sizeT);
+                    out.writeInt(m.pixelType);
+                    out.writeInt(m.bitsPerPixel);
+                    out.writeInt(m.imageCount);
+                    out.writeInt(m.tileWidth);
+                    out.writeInt(m.tileHeight);
+                    out.writeInt((m.orderCertain ? 1 : 0) | (m.rgb ? 2 : 0) | (m.littleEndian ? 4 : 0)
+                            | (m.indexed ? 8 : 0) | (m.falseColor ? 16 : 0) | (m.metadataComplete ? 32 : 0));
+                    putString(out, m.dimensionOrder);
+                }
 
-    private void setPlaneId(Object plane, String id) {
-        ensureReflectionInitialized();
-        try { planeIdField.set(plane, id); }
-        catch (Exception e) { }
+                // planes which are not referenced by any TiffData are not stored
+                int nPlanes = 0;
+                for (int s = 0; s < planeTable.getSeriesCount(); s++) {
+                    for (int no = 0; no < planeTable.getPlaneCount(s); no++) {
+                        if (planeTable.getFileIndex(s, no) != TiffPlaneTable.NO_FILE) nPlanes++;
+                    }
+                }
+                out.writeInt(nPlanes);
+                for (int column = 0; column < 4; column++) {
+                    for (int s = 0; s < planeTable.getSeriesCount(); s++) {
+                        for (int no = 0; no < planeTable.getPlaneCount(s); no++) {
+                            int fileIndex = planeTable.getFileIndex(s, no);
+                            if (fileIndex == TiffPlaneTable.NO_FILE) continue;
+                            switch (column) {
+                                case 0: out.writeInt(s); break;
+                                case 1: out.writeInt(no); break;
+                                case 2: out.writeInt(fileIndex); break;
+                                default: out.writeInt(planeTable.getIfd(s, no));
+                            }
+                        }
+                    }
+                }
+            }
+            Files.move(tmp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.debug("Plane table written to {}", sidecar);
+        } catch (IOException e) {
+            if (sidecar.exists()) {
+                // an outdated sidecar stays in place, it would be checked again and again
+                LOGGER.warn("Could not replace plane table {}: {}", sidecar, e.getMessage());
+            } else {
+                LOGGER.debug("Could not write plane table {}: {}", sidecar, e.getMessage());
+            }
+            tmp.delete();
+        }
     }
 
-    private IFormatReader getPlaneReader(Object plane) {
-        ensureReflectionInitialized();
-        try { return (IFormatReader) planeReaderField.get(plane); }
-        catch (Exception e) { return null; }
+    /**
+     * @return the path of the file relative to the folder, with '/' separators, or its absolute path if it is on
+     * another drive
+     */
+    private static String relativize(Path folder, String file) {
+        Path path = Paths.get(file).toAbsolutePath().normalize();
+        try {
+            return folder.relativize(path).toString().replace(File.separatorChar, '/');
+        } catch (IllegalArgumentException e) {
+            return path.toString();
+        }
     }
 
-    private void setPlaneReader(Object plane, IFormatReader reader) {
-        ensureReflectionInitialized();
-        try { planeReaderField.set(plane, reader); }
-        catch (Exception e) { }
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 
-    private int getPlaneIfd(Object plane) {
-        ensureReflectionInitialized();
-        try { return planeIfdField.getInt(plane); }
-        catch (Exception e) { return -1; }
+    private static void putString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
     }
 
-    private void setPlaneIfd(Object plane, int ifd) {
-        ensureReflectionInitialized();
-        try { planeIfdField.setInt(plane, ifd); }
-        catch (Exception e) { }
-    }
+    // -- Helper methods --
 
-    private boolean getPlaneExists(Object plane) {
-        ensureReflectionInitialized();
-        try { return planeExistsField.getBoolean(plane); }
-        catch (Exception e) { return true; }
-    }
+    /**
+     * Read a region of a plane through a reader of the pool, without using the current series
+     */
+    private byte[] readPlane(int series, int no, byte[] buf, int x, int y, int w, int h)
+            throws FormatException, IOException
+    {
+        int fileIndex = planeTable.getFileIndex(series, no);
+        if (fileIndex == TiffPlaneTable.NO_FILE) {
+            Arrays.fill(buf, getFillColor());
+            return buf;
+        }
+        String planeId = planeTable.getFile(fileIndex);
+
+        // Validate file on first access if not already validated. Two threads may validate the same file,
+        // they reach the same result.
+        if (!trustMetadata && fileStates.get(fileIndex) == FILE_UNCHECKED) {
+            int state = validateFile(planeId);
+            if (state != FILE_UNCHECKED) fileStates.set(fileIndex, state);
+            if (state == FILE_MISSING) {
+                LOGGER.warn("File does not exist (lazy check): {}", planeId);
+            } else if (state == FILE_INVALID) {
+                LOGGER.warn("Invalid TIFF file (lazy check): {}", planeId);
+            }
+        }
 
-    private void setPlaneExists(Object plane, boolean exists) {
-        ensureReflectionInitialized();
-        try { planeExistsField.setBoolean(plane, exists); }
-        catch (Exception e) { }
-    }
+        // Check if file is known to be invalid, possibly by the background validation - return fill color
+        if (isUnreadable(fileStates.get(fileIndex))) {
+            Arrays.fill(buf, getFillColor());
+            return buf;
+        }
 
-    private boolean getPlaneCertain(Object plane) {
-        ensureReflectionInitialized();
-        try { return planeCertainField.getBoolean(plane); }
-        catch (Exception e) { return false; }
+        TiffReaderPool pool = getReaderPool();
+        MinimalTiffReader reader = pool.acquire(planeId);
+        try {
+            int ifd = planeTable.getIfd(series, no);
+            if (ifd < 0 || ifd >= reader.getImageCount()) {
+                LOGGER.warn("Error untangling IFDs; the OME-TIFF file may be malformed (IFD #{} requested from {})", ifd, planeId);
+                return buf;
+            }
+            return reader.openBytes(ifd, buf, x, y, w, h);
+        } finally {
+            pool.release(planeId, reader);
+        }
     }
 
-    private void setPlaneCertain(Object plane, boolean certain) {
-        ensureReflectionInitialized();
-        try { planeCertainField.setBoolean(plane, certain); }
-        catch (Exception e) { }
+    private synchronized TiffReaderPool getReaderPool() {
+        if (readerPool == null) {
+            readerPool = new TiffReaderPool(READER_POOL_SIZE);
+        }
+        return readerPool;
     }
 
-    // -- Helper methods --
-
     private String normalizeFilename(String dir, String name) {
         Location file = new Location(dir, name);
         // LAZY: Don't check existence, just return the path
@@ -926,42 +1183,77 @@ public class LazyOMETiffReader extends OMETiffReader {
         }
     }
 
+    private void setPlaneTable(TiffPlaneTable table) {
+        planeTable = table;
+        fileStates = new AtomicIntegerArray(table.getFileCount());
+    }
+
     /**
-     * Validate a file on first access.
+     * Validate a file, on first access or in the background.
+     * @return {@link #FILE_VALID} if the file exists and is a TIFF file, {@link #FILE_MISSING} or {@link #FILE_INVALID}
+     * if it is not, {@link #FILE_UNCHECKED} if it could not be checked: interrupted, typically by
+     * {@link #cancelValidation()}, or an I/O error other than a file too short for a TIFF header
      */
-    private void validateFile(Object plane, String filePath, IFormatReader reader) {
-        if (filePath == null || validatedFiles.contains(filePath) || invalidFiles.contains(filePath)) {
-            return;
-        }
-
+    private static int validateFile(String filePath) {
         try {
             // Quick existence check
             if (!new Location(filePath).exists()) {
-                LOGGER.warn("File does not exist (lazy check): {}", filePath);
-                invalidFiles.add(filePath);
-                setPlaneExists(plane, false);
-                return;
+                return FILE_MISSING;
             }
 
             // Validate it's a TIFF
-            if (reader != null) {
-                try (RandomAccessInputStream test = new RandomAccessInputStream(filePath, 16)) {
-                    if (!reader.isThisType(test)) {
-                        LOGGER.warn("Invalid TIFF file (lazy check): {}", filePath);
-                        invalidFiles.add(filePath);
-                        setPlaneExists(plane, false);
-                        return;
-                    }
+            try (RandomAccessInputStream test = new RandomAccessInputStream(filePath, 16)) {
+                if (!new TiffParser(test).isValidHeader()) {
+                    return FILE_INVALID;
                 }
             }
 
-            validatedFiles.add(filePath);
             LOGGER.debug("Validated file (lazy): {}", filePath);
+            return FILE_VALID;
 
+        } catch (EOFException e) {
+            // shorter than a TIFF header
+            return FILE_INVALID;
         } catch (IOException e) {
-            LOGGER.warn("Error validating file: {} - {}", filePath, e.getMessage());
-            invalidFiles.add(filePath);
-            setPlaneExists(plane, false);
+            if (Thread.currentThread().isInterrupted() || e instanceof InterruptedIOException
+                    || e instanceof ClosedByInterruptException) {
+                LOGGER.debug("Validation of {} interrupted", filePath);
+            } else {
+                LOGGER.debug("Error validating file: {} - {}", filePath, e.getMessage());
+            }
+            return FILE_UNCHECKED;
+        }
+    }
+
+    private static boolean isUnreadable(int state) {
+        return state == FILE_MISSING || state == FILE_INVALID;
+    }
+
+    /**
+     * Summary of the validation states of the files of the plane table
+     */
+    private static ValidationSummary summarize(TiffPlaneTable table, AtomicIntegerArray states) {
+        int unchecked = 0;
+        int missing = 0;
+        int invalid = 0;
+        List<String> offenders = new ArrayList<>();
+        for (int i = 0; i < states.length(); i++) {
+            int state = states.get(i);
+            if (state == FILE_UNCHECKED) {
+                unchecked++;
+            } else if (isUnreadable(state)) {
+                if (state == FILE_MISSING) missing++;
+                else invalid++;
+                if (offenders.size() < MAX_OFFENDERS) offenders.add(table.getFile(i));
+            }
+        }
+        return new ValidationSummary(states.length(), unchecked, missing, invalid, offenders);
+    }
+
+    private void cancelValidation() {
+        if (validationPool != null) {
+            validationPool.shutdownNow();
+            validationPool = null;
         }
     }
 
@@ -971,24 +1263,84 @@ public class LazyOMETiffReader extends OMETiffReader {
      * Get debug info about a specific plane (for diagnostics).
      * @param seriesIndex the series index
      * @param planeIndex the plane index within the series
-     * @return String with file path, IFD index, and exists flag
+     * @return String with file path, IFD index, and validation state of the file
      */
     public String getPlaneDebugInfo(int seriesIndex, int planeIndex) {
-        Object plane = getInfoPlane(seriesIndex, planeIndex);
-        if (plane == null) {
-            return "Plane is null";
+        if (planeTable == null) {
+            return "Plane table is null";
         }
-        String id = getPlaneId(plane);
-        int ifd = getPlaneIfd(plane);
-        boolean exists = getPlaneExists(plane);
-        boolean certain = getPlaneCertain(plane);
-        IFormatReader reader = getPlaneReader(plane);
-        return String.format("File: %s, IFD: %d, exists: %b, certain: %b, reader: %s",
-                id, ifd, exists, certain, reader != null ? reader.getClass().getSimpleName() : "null");
+        int fileIndex = planeTable.getFileIndex(seriesIndex, planeIndex);
+        if (fileIndex == TiffPlaneTable.NO_FILE) {
+            return "Plane is not stored in any file";
+        }
+        return String.format("File: %s, IFD: %d, validated: %b, invalid: %b",
+                planeTable.getFile(fileIndex), planeTable.getIfd(seriesIndex, planeIndex),
+                fileStates.get(fileIndex) == FILE_VALID, fileStates.get(fileIndex) == FILE_INVALID);
     }
 
     // -- Inner classes --
 
+    /**
+     * Result of {@link #validateInBackground(int)}
+     */
+    public static final class ValidationSummary {
+        private final int fileCount;
+        private final int uncheckedCount;
+        private final int missingCount;
+        private final int invalidCount;
+        private final List<String> firstOffenders;
+
+        ValidationSummary(int fileCount, int uncheckedCount, int missingCount, int invalidCount, List<String> firstOffenders) {
+            this.fileCount = fileCount;
+            this.uncheckedCount = uncheckedCount;
+            this.missingCount = missingCount;
+            this.invalidCount = invalidCount;
+            this.firstOffenders = Collections.unmodifiableList(firstOffenders);
+        }
+
+        /** @return the number of files referenced by the dataset */
+        public int getFileCount() {
+            return fileCount;
+        }
+
+        /** @return the number of files which were not checked, because the validation was cancelled */
+        public int getUncheckedCount() {
+            return uncheckedCount;
+        }
+
+        /** @return the number of files which do not exist */
+        public int getMissingCount() {
+            return missingCount;
+        }
+
+        /** @return the number of files which are not valid TIFF files */
+        public int getInvalidCount() {
+            return invalidCount;
+        }
+
+        /** @return the first missing or invalid files, at most 10 */
+        public List<String> getFirstOffenders() {
+            return firstOffenders;
+        }
+
+        /** @return true if all the files were checked and found valid */
+        public boolean isValid() {
+            return uncheckedCount == 0 && missingCount == 0 && invalidCount == 0;
+        }
+
+        @Override
+        public String toString() {
+            String summary = "Validation of " + fileCount + " files: " + missingCount + " missing, " + invalidCount + " invalid";
+            if (uncheckedCount > 0) {
+                summary += ", " + uncheckedCount + " not checked";
+            }
+            if (!firstOffenders.isEmpty()) {
+                summary += ", first unreadable files: " + String.join(", ", firstOffenders);
+            }
+            return summary;
+        }
+    }
+
     private class LazyOMETiffCoreMetadata extends CoreMetadata {
         int tileWidth;
         int tileHeight;
@@ -0,0 +1,118 @@
+package ch.epfl.biop.ometiff;
+/*
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Tiling shared by the pyramidal writers: the size of the resolution levels of an image, and the encoding
+ * of one tile of a plane. Used by {@link PyramidalOMETiffWriter} for TIFF tiles and by the OME-Zarr plate
+ * writer for chunks, which are laid out the same way.
+ */
+public final class PyramidTiles {
+
+    /**
+     * Compression level for tiles stored as raw bytes, any other value is a {@link Deflater} level
+     */
+    public static final int NO_COMPRESSION = 0;
+
+    private PyramidTiles() {
+    }
+
+    /**
+     * Work out the size of each resolution level, each one half of the previous one, until the largest
+     * dimension is below the minimal size
+     *
+     * @param sizeX             width of the full resolution
+     * @param sizeY             height of the full resolution
+     * @param minResolutionSize the size in pixels below which no level is added
+     * @return the width and height of each level, full resolution first
+     */
+    public static List<int[]> getLevelSizes(int sizeX, int sizeY, int minResolutionSize) {
+        List<int[]> levels = new ArrayList<>();
+        int w = sizeX;
+        int h = sizeY;
+        levels.add(new int[]{w, h});
+        while (Math.max(w, h) > minResolutionSize && w > 1 && h > 1) {
+            w = Math.max(1, w / 2);
+            h = Math.max(1, h / 2);
+            levels.add(new int[]{w, h});
+        }
+        return levels;
+    }
+
+    /**
+     * Copy one tile out of the plane, as little endian bytes, padding it with zeros on the edges,
+     * then compress it with Deflate (zlib)
+     *
+     * @param pixels           the pixels of the plane, byte[], short[] or float[]
+     * @param width            width of the plane
+     * @param height           height of the plane
+     * @param x0               left of the tile
+     * @param y0               top of the tile
+     * @param tileSize         size of the square tile
+     * @param bytesPerPixel    1, 2 or 4
+     * @param compressionLevel the Deflate level, or {@link #NO_COMPRESSION}
+     * @return the encoded tile
+     */
+    public static byte[] encodeTile(Object pixels, int width, int height, int x0, int y0, int tileSize,
+                                    int bytesPerPixel, int compressionLevel) {
+        ByteBuffer tile = ByteBuffer.allocate(tileSize * tileSize * bytesPerPixel).order(ByteOrder.LITTLE_ENDIAN);
+        int w = Math.min(tileSize, width - x0);
+        int h = Math.min(tileSize, height - y0);
+
+        for (int y = 0; y < h; y++) {
+            int src = (y0 + y) * width + x0;
+            tile.position(y * tileSize * bytesPerPixel);
+            if (pixels instanceof byte[]) {
+                tile.put((byte[]) pixels, src, w);
+            } else if (pixels instanceof short[]) {
+                tile.asShortBuffer().put((short[]) pixels, src, w);
+            } else {
+                tile.asFloatBuffer().put((float[]) pixels, src, w);
+            }
+        }
+
+        byte[] raw = tile.array();
+        if (compressionLevel == NO_COMPRESSION) return raw;
+
+        Deflater deflater = new Deflater(compressionLevel);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(raw.length / 2);
+            byte[] buffer = new byte[65536];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                bos.write(buffer, 0, n);
+            }
+            return bos.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,631 @@
+package ch.epfl.biop.ometiff;
+/*
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.services.OMEXMLService;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+import ome.units.quantity.Time;
+import ome.xml.model.primitives.NonNegativeInteger;
+import ome.xml.model.primitives.PositiveInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an ImagePlus as a tiled, pyramidal OME-TIFF file.
+ * <p>
+ * The full resolution planes are stored in the main IFD chain, and the lower resolutions of each plane
+ * are stored as SubIFDs of that plane, which is the layout expected by Bio-Formats, QuPath and OMERO.
+ * <p>
+ * Resolution levels are computed one plane at a time, each level being derived from the previous one
+ * (2x2 averaging) and written to disk right away. Planes can be given one by one through {@link #open},
+ * in which case only the pyramid of the plane being written is held in memory; the main IFDs, which only
+ * reference the tiles, are written when the file is closed.
+ */
+public class PyramidalOMETiffWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(PyramidalOMETiffWriter.class);
+
+    // TIFF tags
+    private static final int NEW_SUBFILE_TYPE = 254;
+    private static final int IMAGE_WIDTH = 256;
+    private static final int IMAGE_LENGTH = 257;
+    private static final int BITS_PER_SAMPLE = 258;
+    private static final int COMPRESSION = 259;
+    private static final int PHOTOMETRIC_INTERPRETATION = 262;
+    private static final int IMAGE_DESCRIPTION = 270;
+    private static final int SAMPLES_PER_PIXEL = 277;
+    private static final int PLANAR_CONFIGURATION = 284;
+    private static final int SOFTWARE = 305;
+    private static final int TILE_WIDTH = 322;
+    private static final int TILE_LENGTH = 323;
+    private static final int TILE_OFFSETS = 324;
+    private static final int TILE_BYTE_COUNTS = 325;
+    private static final int SUB_IFDS = 330;
+    private static final int SAMPLE_FORMAT = 339;
+
+    // TIFF field types
+    private static final int ASCII = 2;
+    private static final int SHORT = 3;
+    private static final int LONG = 4;
+    private static final int LONG8 = 16;
+
+    // Compression schemes
+    private static final int COMPRESSION_NONE = 1;
+    private static final int COMPRESSION_DEFLATE = 8;
+
+    // Classic TIFF uses 32-bit offsets, keep a safety margin for IFDs and metadata
+    private static final long CLASSIC_TIFF_LIMIT = 0xF0000000L;
+
+    private final int tileSize;
+    private final int minResolutionSize;
+    private final boolean compress;
+    private final String software;
+
+    private PyramidalOMETiffWriter(int tileSize, int minResolutionSize, boolean compress, String software) {
+        this.tileSize = tileSize;
+        this.minResolutionSize = minResolutionSize;
+        this.compress = compress;
+        this.software = software;
+    }
+
+    /**
+     * Write the given image as a pyramidal OME-TIFF file
+     *
+     * @param image the image to write, 8-bit, 16-bit or 32-bit, can be a hyperstack
+     * @param file  the destination file, should end with .ome.tiff
+     * @throws IOException if the file cannot be written
+     */
+    public void write(ImagePlus image, File file) throws IOException {
+        switch (image.getType()) {
+            case ImagePlus.GRAY8:
+            case ImagePlus.GRAY16:
+            case ImagePlus.GRAY32:
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported ImagePlus type " + image.getType() + " for image " + image.getTitle());
+        }
+
+        ImageStack stack = image.getStack();
+        try (PlaneWriter writer = open(file, image.getTitle(), image.getWidth(), image.getHeight(),
+                image.getNChannels(), image.getNSlices(), image.getNFrames(), image.getBitDepth(), image.getCalibration())) {
+            for (int no = 0; no < stack.getSize(); no++) {
+                writer.writePlane(stack.getProcessor(no + 1), stack.getSliceLabel(no + 1));
+            }
+        }
+    }
+
+    /**
+     * Start a pyramidal OME-TIFF file whose planes are given one at a time, so that the image
+     * never needs to be fully in memory
+     *
+     * @param file     the destination file, should end with .ome.tiff
+     * @param title    the name of the image in the OME-XML
+     * @param sizeX    width of the planes
+     * @param sizeY    height of the planes
+     * @param sizeC    number of channels
+     * @param sizeZ    number of slices
+     * @param sizeT    number of time points
+     * @param bitDepth 8, 16 or 32
+     * @param cal      the calibration of the image
+     * @return the writer, which expects the planes in XYCZT order and must be closed to finalize the file
+     * @throws IOException if the file cannot be created
+     */
+    public PlaneWriter open(File file, String title, int sizeX, int sizeY, int sizeC, int sizeZ, int sizeT,
+                            int bitDepth, Calibration cal) throws IOException {
+        return new PlaneWriter(file, title, sizeX, sizeY, sizeC, sizeZ, sizeT, bitDepth, cal);
+    }
+
+    /**
+     * Writes the planes of an image as they come. Tiles and lower resolutions of each plane are written right away,
+     * only the offsets of the tiles are kept until {@link #close()}, which writes the main IFDs and the OME-XML
+     * with the channel names taken from the plane labels
+     */
+    public class PlaneWriter implements Closeable {
+        private final File file;
+        private final String title;
+        private final int sizeX, sizeY, sizeC, sizeZ, sizeT;
+        private final int bytesPerPixel;
+        private final int pixelType;
+        private final Calibration cal;
+        private final List<int[]> levels;
+        private final TiffOutput out;
+        private final long firstIFDPointer;
+
+        private final long[][][] planeTiles;
+        private final long[][] planeSubIFDs;
+        private final String[] planeLabels;
+        private int nextPlane = 0;
+
+        private PlaneWriter(File file, String title, int sizeX, int sizeY, int sizeC, int sizeZ, int sizeT,
+                            int bitDepth, Calibration cal) throws IOException {
+            switch (bitDepth) {
+                case 8:
+                    bytesPerPixel = 1;
+                    pixelType = FormatTools.UINT8;
+                    break;
+                case 16:
+                    bytesPerPixel = 2;
+                    pixelType = FormatTools.UINT16;
+                    break;
+                case 32:
+                    bytesPerPixel = 4;
+                    pixelType = FormatTools.FLOAT;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported bit depth " + bitDepth + " for image " + title);
+            }
+            this.file = file;
+            this.title = title;
+            this.sizeX = sizeX;
+            this.sizeY = sizeY;
+            this.sizeC = sizeC;
+            this.sizeZ = sizeZ;
+            this.sizeT = sizeT;
+            this.cal = cal;
+
+            int nPlanes = sizeC * sizeZ * sizeT;
+            this.planeTiles = new long[nPlanes][][];
+            this.planeSubIFDs = new long[nPlanes][];
+            this.planeLabels = new String[nPlanes];
+            this.levels = PyramidTiles.getLevelSizes(sizeX, sizeY, minResolutionSize);
+
+            long estimatedBytes = (long) sizeX * sizeY * bytesPerPixel * nPlanes * 4 / 3;
+            boolean bigTiff = estimatedBytes > CLASSIC_TIFF_LIMIT;
+
+            log.debug("Writing {} with {} resolution levels, {} planes, BigTIFF: {}", file.getName(), levels.size(), nPlanes, bigTiff);
+
+            this.out = new TiffOutput(file, bigTiff);
+            this.firstIFDPointer = out.writeHeader();
+        }
+
+        /**
+         * Write the next plane, planes are expected in XYCZT order like ImageJ stacks
+         *
+         * @param ip    the plane, with the size and bit depth given when opening the writer
+         * @param label the label of the plane, the label of the first plane of each channel is used as channel name
+         * @throws IOException if the plane cannot be written
+         */
+        public void writePlane(ImageProcessor ip, String label) throws IOException {
+            if (nextPlane >= planeTiles.length) {
+                throw new IllegalStateException("All " + planeTiles.length + " planes of " + file.getName() + " are already written");
+            }
+            if (ip.getWidth() != sizeX || ip.getHeight() != sizeY || ip.getBitDepth() != bytesPerPixel * 8) {
+                throw new IllegalArgumentException("Plane " + nextPlane + " of " + file.getName() + " is " + ip.getWidth() + "x"
+                        + ip.getHeight() + " " + ip.getBitDepth() + "-bit, expected " + sizeX + "x" + sizeY + " " + (bytesPerPixel * 8) + "-bit");
+            }
+
+            planeTiles[nextPlane] = writeTiles(out, ip, bytesPerPixel);
+
+            // Derive each level from the previous one and write it as a SubIFD
+            long[] subIFDs = new long[levels.size() - 1];
+            ImageProcessor previous = ip;
+            for (int r = 1; r < levels.size(); r++) {
+                int[] size = levels.get(r);
+                ImageProcessor current = previous.resize(size[0], size[1], true);
+                long[][] tiles = writeTiles(out, current, bytesPerPixel);
+                subIFDs[r - 1] = out.writeIFD(createIFDEntries(current.getWidth(), current.getHeight(),
+                        bytesPerPixel, pixelType, tiles, true, null, null));
+                previous = current;
+            }
+            planeSubIFDs[nextPlane] = subIFDs;
+            planeLabels[nextPlane] = label;
+            nextPlane++;
+        }
+
+        /**
+         * Write the main IFDs, which makes the file readable, if all planes were given. Otherwise the file is left
+         * without IFDs and a warning is logged
+         *
+         * @throws IOException if the IFDs cannot be written
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (nextPlane < planeTiles.length) {
+                    log.warn("Only {} of {} planes were written to {}, the file is incomplete", nextPlane, planeTiles.length, file.getName());
+                    return;
+                }
+                String uuid = "urn:uuid:" + UUID.randomUUID();
+                String omeXml = createOMEXML(title, sizeX, sizeY, sizeC, sizeZ, sizeT, cal, planeLabels, file.getName(), uuid, pixelType);
+
+                // IFDs follow the plane indexes
+                long previousNextPointer = firstIFDPointer;
+                for (int no = 0; no < planeTiles.length; no++) {
+                    List<Entry> entries = createIFDEntries(sizeX, sizeY, bytesPerPixel, pixelType,
+                            planeTiles[no], false, no == 0 ? omeXml : null, planeSubIFDs[no]);
+                    long ifd = out.writeIFD(entries);
+                    out.writeOffset(previousNextPointer, ifd);
+                    previousNextPointer = out.getNextIFDPointer();
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Build the OME-XML that goes into the ImageDescription of the first IFD
+     */
+    private static String createOMEXML(String title, int sizeX, int sizeY, int sizeC, int sizeZ, int sizeT, Calibration cal,
+                                       String[] planeLabels, String fileName, String uuid, int pixelType) throws IOException {
+        try {
+            OMEXMLService service = new ServiceFactory().getInstance(OMEXMLService.class);
+            IMetadata meta = service.createOMEXMLMetadata();
+
+            MetadataTools.populateMetadata(meta, 0, title, true, "XYCZT",
+                    FormatTools.getPixelTypeString(pixelType),
+                    sizeX, sizeY, sizeZ, sizeC, sizeT, 1);
+
+            meta.setUUID(uuid);
+
+            if (cal.scaled()) {
+                meta.setPixelsPhysicalSizeX(new Length(cal.pixelWidth, UNITS.MICROMETER), 0);
+                meta.setPixelsPhysicalSizeY(new Length(cal.pixelHeight, UNITS.MICROMETER), 0);
+                if (sizeZ > 1) {
+                    meta.setPixelsPhysicalSizeZ(new Length(cal.pixelDepth, UNITS.MICROMETER), 0);
+                }
+            }
+            if (sizeT > 1 && cal.frameInterval > 0) {
+                meta.setPixelsTimeIncrement(new Time(cal.frameInterval, UNITS.SECOND), 0);
+            }
+
+            // In XYCZT order, the first plane of channel c is plane c
+            for (int c = 0; c < sizeC; c++) {
+                String label = planeLabels[c];
+                if (label != null && !label.isEmpty()) {
+                    meta.setChannelName(label, 0, c);
+                }
+            }
+
+            // One TiffData per plane, pointing to its IFD
+            int tiffData = 0;
+            for (int c = 0; c < sizeC; c++) {
+                for (int z = 0; z < sizeZ; z++) {
+                    for (int t = 0; t < sizeT; t++) {
+                        int no = c + z * sizeC + t * sizeC * sizeZ;
+                        meta.setTiffDataIFD(new NonNegativeInteger(no), 0, tiffData);
+                        meta.setTiffDataFirstC(new NonNegativeInteger(c), 0, tiffData);
+                        meta.setTiffDataFirstZ(new NonNegativeInteger(z), 0, tiffData);
+                        meta.setTiffDataFirstT(new NonNegativeInteger(t), 0, tiffData);
+                        meta.setTiffDataPlaneCount(new NonNegativeInteger(1), 0, tiffData);
+                        meta.setUUIDFileName(fileName, 0, tiffData);
+                        meta.setUUIDValue(uuid, 0, tiffData);
+                        tiffData++;
+                    }
+                }
+            }
+            meta.setPixelsSignificantBits(new PositiveInteger(FormatTools.getBytesPerPixel(pixelType) * 8), 0);
+
+            return service.getOMEXML(meta);
+        } catch (DependencyException | ServiceException e) {
+            throw new IOException("Could not create the OME-XML metadata for " + fileName, e);
+        }
+    }
+
+    /**
+     * Write all the tiles of the given plane and return their offsets and byte counts
+     */
+    private long[][] writeTiles(TiffOutput out, ImageProcessor ip, int bytesPerPixel) throws IOException {
+        final int width = ip.getWidth();
+        final int height = ip.getHeight();
+        final int nTilesX = (width + tileSize - 1) / tileSize;
+        final int nTilesY = (height + tileSize - 1) / tileSize;
+        final Object pixels = ip.getPixels();
+
+        // Encoding is the expensive part, do it in parallel and write sequentially afterwards
+        byte[][] encoded = IntStream.range(0, nTilesX * nTilesY)
+                .parallel()
+                .mapToObj(i -> PyramidTiles.encodeTile(pixels, width, height, (i % nTilesX) * tileSize, (i / nTilesX) * tileSize,
+                        tileSize, bytesPerPixel, compress ? Deflater.DEFAULT_COMPRESSION : PyramidTiles.NO_COMPRESSION))
+                .toArray(byte[][]::new);
+
+        long[] offsets = new long[encoded.length];
+        long[] byteCounts = new long[encoded.length];
+        for (int i = 0; i < encoded.length; i++) {
+            offsets[i] = out.write(ByteBuffer.wrap(encoded[i]));
+            byteCounts[i] = encoded[i].length;
+        }
+        return new long[][]{offsets, byteCounts};
+    }
+
+    private List<Entry> createIFDEntries(int width, int height, int bytesPerPixel, int pixelType, long[][] tiles,
+                                         boolean isReducedResolution, String description, long[] subIFDs) {
+        List<Entry> entries = new ArrayList<>();
+        entries.add(new Entry(NEW_SUBFILE_TYPE, LONG, new long[]{isReducedResolution ? 1 : 0}));
+        entries.add(new Entry(IMAGE_WIDTH, LONG, new long[]{width}));
+        entries.add(new Entry(IMAGE_LENGTH, LONG, new long[]{height}));
+        entries.add(new Entry(BITS_PER_SAMPLE, SHORT, new long[]{bytesPerPixel * 8}));
+        entries.add(new Entry(COMPRESSION, SHORT, new long[]{compress ? COMPRESSION_DEFLATE : COMPRESSION_NONE}));
+        entries.add(new Entry(PHOTOMETRIC_INTERPRETATION, SHORT, new long[]{1})); // BlackIsZero
+        if (description != null) {
+            entries.add(new Entry(IMAGE_DESCRIPTION, description));
+        }
+        entries.add(new Entry(SAMPLES_PER_PIXEL, SHORT, new long[]{1}));
+        entries.add(new Entry(PLANAR_CONFIGURATION, SHORT, new long[]{1}));
+        if (software != null && !isReducedResolution) {
+            entries.add(new Entry(SOFTWARE, software));
+        }
+        entries.add(new Entry(TILE_WIDTH, LONG, new long[]{tileSize}));
+        entries.add(new Entry(TILE_LENGTH, LONG, new long[]{tileSize}));
+        entries.add(new Entry(TILE_OFFSETS, Entry.OFFSET, tiles[0]));
+        entries.add(new Entry(TILE_BYTE_COUNTS, Entry.OFFSET, tiles[1]));
+        if (subIFDs != null && subIFDs.length > 0) {
+            entries.add(new Entry(SUB_IFDS, Entry.OFFSET, subIFDs));
+        }
+        entries.add(new Entry(SAMPLE_FORMAT, SHORT, new long[]{pixelType == FormatTools.FLOAT ? 3 : 1}));
+        return entries;
+    }
+
+    /**
+     * A single IFD entry. Offsets use the {@link #OFFSET} pseudo type which is resolved to LONG or LONG8
+     * depending on whether the file is a BigTIFF
+     */
+    private static class Entry {
+        static final int OFFSET = -1;
+
+        final int tag;
+        final int type;
+        final long[] values;
+        final byte[] ascii;
+
+        Entry(int tag, int type, long[] values) {
+            this.tag = tag;
+            this.type = type;
+            this.values = values;
+            this.ascii = null;
+        }
+
+        Entry(int tag, String text) {
+            this.tag = tag;
+            this.type = ASCII;
+            this.values = null;
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            this.ascii = new byte[bytes.length + 1]; // NUL terminated
+            System.arraycopy(bytes, 0, ascii, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Minimal little endian (Big)TIFF output, keeping track of the pointer to the next IFD
+     */
+    private static class TiffOutput implements Closeable {
+        private final FileChannel channel;
+        private final boolean bigTiff;
+        private long position = 0;
+        private long nextIFDPointer = -1;
+
+        TiffOutput(File file, boolean bigTiff) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            this.bigTiff = bigTiff;
+        }
+
+        /**
+         * @return the position of the pointer to the first IFD
+         */
+        long writeHeader() throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(bigTiff ? 16 : 8).order(ByteOrder.LITTLE_ENDIAN);
+            header.put((byte) 'I').put((byte) 'I');
+            if (bigTiff) {
+                header.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(0);
+            } else {
+                header.putShort((short) 42).putInt(0);
+            }
+            header.flip();
+            write(header);
+            return bigTiff ? 8 : 4;
+        }
+
+        /**
+         * Append the buffer at the end of the file, on a word boundary
+         *
+         * @return the offset at which the data was written
+         */
+        long write(ByteBuffer buffer) throws IOException {
+            if (position % 2 != 0) {
+                channel.write(ByteBuffer.wrap(new byte[1]), position);
+                position++;
+            }
+            long offset = position;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            return offset;
+        }
+
+        void writeOffset(long at, long value) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(bigTiff ? 8 : 4).order(ByteOrder.LITTLE_ENDIAN);
+            if (bigTiff) buffer.putLong(value);
+            else buffer.putInt((int) value);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                at += channel.write(buffer, at);
+            }
+        }
+
+        long getNextIFDPointer() {
+            return nextIFDPointer;
+        }
+
+        /**
+         * Write the IFD and the values which do not fit in its entries.
+         * The pointer to the next IFD is left to 0 and its position is kept in {@link #getNextIFDPointer()}
+         *
+         * @return the offset of the IFD
+         */
+        long writeIFD(List<Entry> entries) throws IOException {
+            entries.sort(Comparator.comparingInt(e -> e.tag));
+            int inlineSize = bigTiff ? 8 : 4;
+
+            // Write the values which do not fit inline first
+            long[] valueOffsets = new long[entries.size()];
+            byte[][] encoded = new byte[entries.size()][];
+            for (int i = 0; i < entries.size(); i++) {
+                encoded[i] = encode(entries.get(i));
+                if (encoded[i].length > inlineSize) {
+                    valueOffsets[i] = write(ByteBuffer.wrap(encoded[i]));
+                }
+            }
+
+            int entrySize = bigTiff ? 20 : 12;
+            ByteBuffer ifd = ByteBuffer.allocate((bigTiff ? 8 : 2) + entries.size() * entrySize + inlineSize)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (bigTiff) ifd.putLong(entries.size());
+            else ifd.putShort((short) entries.size());
+
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                int type = resolveType(entry.type);
+                long count = entry.ascii != null ? entry.ascii.length : entry.values.length;
+                ifd.putShort((short) entry.tag);
+                ifd.putShort((short) type);
+                if (bigTiff) ifd.putLong(count);
+                else ifd.putInt((int) count);
+
+                if (encoded[i].length > inlineSize) {
+                    if (bigTiff) ifd.putLong(valueOffsets[i]);
+                    else ifd.putInt((int) valueOffsets[i]);
+                } else {
+                    byte[] inline = new byte[inlineSize];
+                    System.arraycopy(encoded[i], 0, inline, 0, encoded[i].length);
+                    ifd.put(inline);
+                }
+            }
+            // Next IFD pointer, patched later if needed
+            if (bigTiff) ifd.putLong(0);
+            else ifd.putInt(0);
+            ifd.flip();
+
+            long ifdOffset = write(ifd);
+            nextIFDPointer = ifdOffset + (bigTiff ? 8 : 2) + (long) entries.size() * entrySize;
+            return ifdOffset;
+        }
+
+        private int resolveType(int type) {
+            if (type == Entry.OFFSET) return bigTiff ? LONG8 : LONG;
+            return type;
+        }
+
+        private byte[] encode(Entry entry) {
+            if (entry.ascii != null) return entry.ascii;
+            int type = resolveType(entry.type);
+            int size = type == SHORT ? 2 : type == LONG ? 4 : 8;
+            ByteBuffer buffer = ByteBuffer.allocate(entry.values.length * size).order(ByteOrder.LITTLE_ENDIAN);
+            for (long value : entry.values) {
+                if (type == SHORT) buffer.putShort((short) value);
+                else if (type == LONG) buffer.putInt((int) value);
+                else buffer.putLong(value);
+            }
+            return buffer.array();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Builder class for {@link PyramidalOMETiffWriter}
+     */
+    public static class Builder {
+        private int tileSize = 512;
+        private int minResolutionSize = 512;
+        private boolean compress = true;
+        private String software = "BIOP Operetta Importer";
+
+        /**
+         * Size of the square tiles, must be a multiple of 16
+         *
+         * @param tileSize the tile size in pixels, 512 by default
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setTileSize(int tileSize) {
+            if (tileSize <= 0 || tileSize % 16 != 0) {
+                throw new IllegalArgumentException("Tile size must be a positive multiple of 16, got " + tileSize);
+            }
+            this.tileSize = tileSize;
+            return this;
+        }
+
+        /**
+         * Resolution levels are added until the largest dimension of the smallest level is below this size
+         *
+         * @param minResolutionSize the size in pixels, 512 by default
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setMinResolutionSize(int minResolutionSize) {
+            this.minResolutionSize = Math.max(1, minResolutionSize);
+            return this;
+        }
+
+        /**
+         * Compress the tiles using Deflate (zlib)
+         *
+         * @param compress true by default
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder compress(boolean compress) {
+            this.compress = compress;
+            return this;
+        }
+
+        /**
+         * @param software the value of the Software TIFF tag, or null to omit it
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setSoftware(String software) {
+            this.software = software;
+            return this;
+        }
+
+        public PyramidalOMETiffWriter build() {
+            return new PyramidalOMETiffWriter(tileSize, minResolutionSize, compress, software);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package ch.epfl.biop.ometiff;
+/*
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * File and IFD of each plane of a multi-file TIFF dataset, kept in primitive arrays.
+ *
+ * Each file name is stored once, in a file table, and planes refer to it by index,
+ * so the memory needed is a few ints per plane whatever the number of files.
+ * Planes of all series are stored one after the other.
+ */
+public final class TiffPlaneTable {
+
+    /** File index of the planes which are not stored in any file */
+    public static final int NO_FILE = -1;
+
+    private final String[] files;
+    private final int[] seriesOffsets;
+    private final int[] planeFiles;
+    private final int[] planeIfds;
+
+    /**
+     * @param files the file table
+     * @param fileIndices for each series, the index in the file table of each plane, or {@link #NO_FILE}
+     * @param ifds for each series, the IFD of each plane in its file
+     */
+    public TiffPlaneTable(String[] files, int[][] fileIndices, int[][] ifds) {
+        this.files = files;
+        this.seriesOffsets = new int[fileIndices.length + 1];
+        for (int s = 0; s < fileIndices.length; s++) {
+            seriesOffsets[s + 1] = seriesOffsets[s] + fileIndices[s].length;
+        }
+        int nPlanes = seriesOffsets[fileIndices.length];
+        this.planeFiles = new int[nPlanes];
+        this.planeIfds = new int[nPlanes];
+        for (int s = 0; s < fileIndices.length; s++) {
+            System.arraycopy(fileIndices[s], 0, planeFiles, seriesOffsets[s], fileIndices[s].length);
+            System.arraycopy(ifds[s], 0, planeIfds, seriesOffsets[s], ifds[s].length);
+        }
+    }
+
+    public int getSeriesCount() {
+        return seriesOffsets.length - 1;
+    }
+
+    public int getPlaneCount(int series) {
+        return seriesOffsets[series + 1] - seriesOffsets[series];
+    }
+
+    public int getFileCount() {
+        return files.length;
+    }
+
+    /**
+     * @param fileIndex index in the file table
+     * @return the path of the file
+     */
+    public String getFile(int fileIndex) {
+        return files[fileIndex];
+    }
+
+    /**
+     * @return a copy of the file table
+     */
+    public String[] getFiles() {
+        return files.clone();
+    }
+
+    /**
+     * @param series the series index
+     * @param no the plane index in the series
+     * @return the index of the file of the plane in the file table, or {@link #NO_FILE}
+     */
+    public int getFileIndex(int series, int no) {
+        return planeFiles[seriesOffsets[series] + no];
+    }
+
+    /**
+     * @param series the series index
+     * @param no the plane index in the series
+     * @return the IFD of the plane in its file
+     */
+    public int getIfd(int series, int no) {
+        return planeIfds[seriesOffsets[series] + no];
+    }
+
+    /**
+     * @param series the series index
+     * @return the files of the planes of the series, in plane order, without duplicates
+     */
+    public String[] getSeriesFiles(int series) {
+        Set<String> seriesFiles = new LinkedHashSet<>();
+        for (int i = seriesOffsets[series]; i < seriesOffsets[series + 1]; i++) {
+            if (planeFiles[i] != NO_FILE) seriesFiles.add(files[planeFiles[i]]);
+        }
+        return seriesFiles.toArray(new String[0]);
+    }
+}
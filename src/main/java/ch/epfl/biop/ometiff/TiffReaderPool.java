@@ -0,0 +1,137 @@
+package ch.epfl.biop.ometiff;
+/*
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import loci.formats.FormatException;
+import loci.formats.in.MinimalTiffReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded set of open TIFF readers, which can be used from several threads.
+ *
+ * A reader is taken from the pool with {@link #acquire(String)}, used by a single thread, then given back with
+ * {@link #release(String, MinimalTiffReader)}. Idle readers are kept open for the next reads of the same file,
+ * the least recently released one being closed when more than the capacity of the pool are idle. Readers are thus
+ * created on demand, and only a few of them are open at a time whatever the number of files of the dataset.
+ */
+final class TiffReaderPool implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TiffReaderPool.class);
+
+    private final int capacity;
+
+    /** Idle readers of each file */
+    private final Map<String, Deque<MinimalTiffReader>> idle = new HashMap<>();
+
+    /** Idle readers, the least recently released first */
+    private final LinkedHashMap<MinimalTiffReader, String> released = new LinkedHashMap<>();
+
+    /**
+     * @param capacity the maximal number of idle readers kept open
+     */
+    TiffReaderPool(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param file the TIFF file
+     * @return an open reader for this file, for the exclusive use of the caller until it is released
+     * @throws FormatException if the file is not a valid TIFF file
+     * @throws IOException if the file cannot be read
+     */
+    MinimalTiffReader acquire(String file) throws FormatException, IOException {
+        synchronized (this) {
+            Deque<MinimalTiffReader> readers = idle.get(file);
+            if (readers != null) {
+                MinimalTiffReader reader = readers.pop();
+                if (readers.isEmpty()) {
+                    idle.remove(file);
+                }
+                released.remove(reader);
+                return reader;
+            }
+        }
+        // opened outside of the lock, other threads can use the pool meanwhile
+        MinimalTiffReader reader = new MinimalTiffReader();
+        try {
+            reader.setId(file);
+        } catch (FormatException | IOException e) {
+            closeQuietly(reader);
+            throw e;
+        }
+        return reader;
+    }
+
+    /**
+     * Give back a reader obtained from {@link #acquire(String)}
+     *
+     * @param file the file the reader was acquired for
+     * @param reader the reader
+     */
+    synchronized void release(String file, MinimalTiffReader reader) {
+        idle.computeIfAbsent(file, f -> new ArrayDeque<>()).push(reader);
+        released.put(reader, file);
+        Iterator<Map.Entry<MinimalTiffReader, String>> eldest = released.entrySet().iterator();
+        while (released.size() > capacity) {
+            Map.Entry<MinimalTiffReader, String> entry = eldest.next();
+            Deque<MinimalTiffReader> readers = idle.get(entry.getValue());
+            readers.remove(entry.getKey());
+            if (readers.isEmpty()) {
+                idle.remove(entry.getValue());
+            }
+            closeQuietly(entry.getKey());
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Close all idle readers, the pool can still be used afterwards. Readers in use are kept open until they are
+     * released.
+     */
+    @Override
+    public synchronized void close() {
+        for (MinimalTiffReader reader : released.keySet()) {
+            closeQuietly(reader);
+        }
+        released.clear();
+        idle.clear();
+    }
+
+    private static void closeQuietly(MinimalTiffReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            LOGGER.debug("Could not close {}", reader.getCurrentFile(), e);
+        }
+    }
+}
@@ -0,0 +1,628 @@
+package ch.epfl.biop.omezarr;
+/*
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import ch.epfl.biop.ometiff.PyramidTiles;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Writes images into an OME-Zarr (NGFF 0.4) plate, following the high content screening layout:
+ * <pre>
+ * plate.ome.zarr/
+ *     .zattrs            plate metadata: rows, columns and wells
+ *     A/                 row
+ *         1/             column, the well, with its list of fields in .zattrs
+ *             0/         field, a multiscale image
+ *                 0/     full resolution array (t, c, z, y, x)
+ *                 1/     first downsampled level
+ * </pre>
+ * Arrays are stored as Zarr v2 on the local filesystem with "/" as dimension separator, and chunks of one plane
+ * are compressed and written in parallel. Images are either given whole, or plane by plane between
+ * {@link #startImage} and {@link #finishImage}. The well and plate metadata are updated as soon as an image is
+ * complete, so that a partially written plate stays readable.
+ * <p>
+ * Instances are thread safe: several images can be written concurrently.
+ */
+public class OMEZarrPlateWriter implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(OMEZarrPlateWriter.class);
+
+    private static final String NGFF_VERSION = "0.4";
+
+    private final File root;
+    private final String plateName;
+    private final int nRows;
+    private final int nColumns;
+    private final int chunkSize;
+    private final int minResolutionSize;
+    private final int compressionLevel;
+    private final ForkJoinPool pool;
+
+    // well path -> fields written for that well
+    private final Map<String, SortedSet<Integer>> wells = new TreeMap<>();
+    private final Map<String, int[]> wellIndexes = new TreeMap<>();
+    // image folder -> images started but not finished yet
+    private final Map<String, OpenImage> openImages = new ConcurrentHashMap<>();
+
+    private OMEZarrPlateWriter(File root, String plateName, int nRows, int nColumns, int chunkSize,
+                               int minResolutionSize, int compressionLevel, int parallelism) throws IOException {
+        this.root = root;
+        this.plateName = plateName;
+        this.nRows = nRows;
+        this.nColumns = nColumns;
+        this.chunkSize = chunkSize;
+        this.minResolutionSize = minResolutionSize;
+        this.compressionLevel = compressionLevel;
+        this.pool = new ForkJoinPool(parallelism);
+
+        if (!root.exists() && !root.mkdirs()) {
+            throw new IOException("Could not create OME-Zarr folder " + root.getAbsolutePath());
+        }
+        writeGroup(root);
+        writePlateAttributes();
+    }
+
+    /**
+     * @return the root folder of the plate, ending with .ome.zarr
+     */
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * Write an image as one field of a well
+     *
+     * @param image  the image to write, 8-bit, 16-bit or 32-bit, can be a hyperstack
+     * @param row    0-based row of the well
+     * @param column 0-based column of the well
+     * @param field  0-based index of the field in the well
+     * @throws IOException if the image could not be written
+     */
+    public void writeImage(ImagePlus image, int row, int column, int field) throws IOException {
+        switch (image.getType()) {
+            case ImagePlus.GRAY8:
+            case ImagePlus.GRAY16:
+            case ImagePlus.GRAY32:
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported ImagePlus type " + image.getType() + " for image " + image.getTitle());
+        }
+
+        int sizeC = image.getNChannels();
+        int sizeZ = image.getNSlices();
+        int sizeT = image.getNFrames();
+
+        startImage(row, column, field, image.getTitle(), image.getWidth(), image.getHeight(), sizeC, sizeZ, sizeT,
+                image.getBitDepth(), image.getCalibration());
+
+        ImageStack stack = image.getStack();
+        for (int t = 0; t < sizeT; t++) {
+            for (int c = 0; c < sizeC; c++) {
+                for (int z = 0; z < sizeZ; z++) {
+                    writePlane(row, column, field, c, z, t, stack.getProcessor(image.getStackIndex(c + 1, z + 1, t + 1)));
+                }
+            }
+        }
+
+        finishImage(row, column, field);
+    }
+
+    /**
+     * Create the arrays of an image whose planes are then given one by one with {@link #writePlane}, in any order
+     * and from any thread, so that the image never needs to be fully in memory. Planes which are never written
+     * read as zeros. The image is listed in the well once {@link #finishImage} is called
+     *
+     * @param row      0-based row of the well
+     * @param column   0-based column of the well
+     * @param field    0-based index of the field in the well
+     * @param title    the name of the image
+     * @param sizeX    width of the planes
+     * @param sizeY    height of the planes
+     * @param sizeC    number of channels
+     * @param sizeZ    number of slices
+     * @param sizeT    number of time points
+     * @param bitDepth 8, 16 or 32
+     * @param cal      the calibration of the image
+     * @throws IOException if the folders or the array metadata could not be written
+     */
+    public void startImage(int row, int column, int field, String title, int sizeX, int sizeY, int sizeC, int sizeZ,
+                           int sizeT, int bitDepth, Calibration cal) throws IOException {
+        final String dtype;
+        final int bytesPerPixel;
+        switch (bitDepth) {
+            case 8:
+                dtype = "|u1";
+                bytesPerPixel = 1;
+                break;
+            case 16:
+                dtype = "<u2";
+                bytesPerPixel = 2;
+                break;
+            case 32:
+                dtype = "<f4";
+                bytesPerPixel = 4;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported bit depth " + bitDepth + " for image " + title);
+        }
+
+        File imageFolder = getImageFolder(row, column, field);
+        File wellFolder = imageFolder.getParentFile();
+        File rowFolder = wellFolder.getParentFile();
+
+        synchronized (this) {
+            if (!imageFolder.exists() && !imageFolder.mkdirs()) {
+                throw new IOException("Could not create folder " + imageFolder.getAbsolutePath());
+            }
+            writeGroup(rowFolder);
+            writeGroup(wellFolder);
+        }
+        writeGroup(imageFolder);
+
+        List<int[]> levels = PyramidTiles.getLevelSizes(sizeX, sizeY, minResolutionSize);
+
+        for (int r = 0; r < levels.size(); r++) {
+            File array = new File(imageFolder, String.valueOf(r));
+            if (!array.exists() && !array.mkdirs()) {
+                throw new IOException("Could not create folder " + array.getAbsolutePath());
+            }
+            int[] size = levels.get(r);
+            writeJson(new File(array, ".zarray"), arrayMetadata(new long[]{sizeT, sizeC, sizeZ, size[1], size[0]}, dtype));
+        }
+
+        openImages.put(imageFolder.getPath(), new OpenImage(imageFolder, title, cal, levels, bytesPerPixel));
+    }
+
+    /**
+     * Write one plane of an image started with {@link #startImage}, and its lower resolutions
+     *
+     * @param row    0-based row of the well
+     * @param column 0-based column of the well
+     * @param field  0-based index of the field in the well
+     * @param c      0-based channel of the plane
+     * @param z      0-based slice of the plane
+     * @param t      0-based time point of the plane
+     * @param ip     the plane, with the size and bit depth given when starting the image
+     * @throws IOException if the plane could not be written
+     */
+    public void writePlane(int row, int column, int field, int c, int z, int t, ImageProcessor ip) throws IOException {
+        OpenImage image = getOpenImage(row, column, field);
+        int[] fullSize = image.levels.get(0);
+        if (ip.getWidth() != fullSize[0] || ip.getHeight() != fullSize[1] || ip.getBitDepth() != image.bytesPerPixel * 8) {
+            throw new IllegalArgumentException("Plane (c:" + c + ", z:" + z + ", t:" + t + ") of " + image.title + " is "
+                    + ip.getWidth() + "x" + ip.getHeight() + " " + ip.getBitDepth() + "-bit, expected "
+                    + fullSize[0] + "x" + fullSize[1] + " " + (image.bytesPerPixel * 8) + "-bit");
+        }
+
+        String planePath = t + "/" + c + "/" + z;
+        // Each level is derived from the previous one, only one pyramid plane is kept at a time
+        for (int r = 0; r < image.levels.size(); r++) {
+            if (r > 0) {
+                int[] size = image.levels.get(r);
+                ip = ip.resize(size[0], size[1], true);
+            }
+            writeChunks(new File(image.folder, r + "/" + planePath), ip, image.bytesPerPixel);
+        }
+    }
+
+    /**
+     * Write the multiscales metadata of an image started with {@link #startImage} and list it in its well
+     *
+     * @param row    0-based row of the well
+     * @param column 0-based column of the well
+     * @param field  0-based index of the field in the well
+     * @throws IOException if the metadata could not be written
+     */
+    public void finishImage(int row, int column, int field) throws IOException {
+        OpenImage image = getOpenImage(row, column, field);
+
+        writeJson(new File(image.folder, ".zattrs"), imageAttributes(image.title, image.cal, image.levels.size()));
+        openImages.remove(image.folder.getPath());
+
+        addExistingImage(row, column, field);
+        log.debug("Wrote {} to {}", image.title, image.folder.getAbsolutePath());
+    }
+
+    private OpenImage getOpenImage(int row, int column, int field) {
+        OpenImage image = openImages.get(getImageFolder(row, column, field).getPath());
+        if (image == null) {
+            throw new IllegalStateException("Image " + getRowName(row) + "/" + getColumnName(column) + "/" + field + " was not started");
+        }
+        return image;
+    }
+
+    /**
+     * What is needed to write the planes and the metadata of an image being written
+     */
+    private static class OpenImage {
+        final File folder;
+        final String title;
+        final Calibration cal;
+        final List<int[]> levels;
+        final int bytesPerPixel;
+
+        OpenImage(File folder, String title, Calibration cal, List<int[]> levels, int bytesPerPixel) {
+            this.folder = folder;
+            this.title = title;
+            this.cal = cal;
+            this.levels = levels;
+            this.bytesPerPixel = bytesPerPixel;
+        }
+    }
+
+    /**
+     * @param row    0-based row of the well
+     * @param column 0-based column of the well
+     * @param field  0-based index of the field in the well
+     * @return the folder of the multiscale image of that field
+     */
+    public File getImageFolder(int row, int column, int field) {
+        return new File(new File(new File(root, getRowName(row)), getColumnName(column)), String.valueOf(field));
+    }
+
+    /**
+     * List an image which is already in the plate folder, typically written by a previous export which is resumed,
+     * in the well and plate metadata
+     *
+     * @param row    0-based row of the well
+     * @param column 0-based column of the well
+     * @param field  0-based index of the field in the well
+     * @throws IOException if the metadata could not be written
+     */
+    public synchronized void addExistingImage(int row, int column, int field) throws IOException {
+        String wellPath = getRowName(row) + "/" + getColumnName(column);
+        wells.computeIfAbsent(wellPath, k -> new TreeSet<>()).add(field);
+        wellIndexes.put(wellPath, new int[]{row, column});
+        writeJson(new File(getImageFolder(row, column, field).getParentFile(), ".zattrs"), wellAttributes(wells.get(wellPath)));
+        writePlateAttributes();
+    }
+
+    /**
+     * Compress and write all the chunks of a plane in parallel
+     */
+    private void writeChunks(File planeFolder, ImageProcessor ip, int bytesPerPixel) throws IOException {
+        final int width = ip.getWidth();
+        final int height = ip.getHeight();
+        final int nChunksX = (width + chunkSize - 1) / chunkSize;
+        final int nChunksY = (height + chunkSize - 1) / chunkSize;
+        final Object pixels = ip.getPixels();
+
+        for (int cy = 0; cy < nChunksY; cy++) {
+            File chunkRow = new File(planeFolder, String.valueOf(cy));
+            if (!chunkRow.exists() && !chunkRow.mkdirs()) {
+                throw new IOException("Could not create folder " + chunkRow.getAbsolutePath());
+            }
+        }
+
+        try {
+            pool.submit(() -> IntStream.range(0, nChunksX * nChunksY).parallel().forEach(i -> {
+                int cx = i % nChunksX;
+                int cy = i / nChunksX;
+                byte[] chunk = PyramidTiles.encodeTile(pixels, width, height, cx * chunkSize, cy * chunkSize, chunkSize,
+                        bytesPerPixel, compressionLevel > 0 ? compressionLevel : PyramidTiles.NO_COMPRESSION);
+                try {
+                    Files.write(new File(planeFolder, cy + "/" + cx).toPath(), chunk);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing " + planeFolder.getAbsolutePath(), e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not write chunks of " + planeFolder.getAbsolutePath(), e.getCause());
+        }
+    }
+
+    private String arrayMetadata(long[] shape, String dtype) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"zarr_format\": 2,\n");
+        json.append("  \"shape\": ").append(jsonArray(shape)).append(",\n");
+        json.append("  \"chunks\": [1, 1, 1, ").append(chunkSize).append(", ").append(chunkSize).append("],\n");
+        json.append("  \"dtype\": \"").append(dtype).append("\",\n");
+        if (compressionLevel > 0) {
+            json.append("  \"compressor\": {\"id\": \"zlib\", \"level\": ").append(compressionLevel).append("},\n");
+        } else {
+            json.append("  \"compressor\": null,\n");
+        }
+        json.append("  \"fill_value\": 0,\n");
+        json.append("  \"order\": \"C\",\n");
+        json.append("  \"filters\": null,\n");
+        json.append("  \"dimension_separator\": \"/\"\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    private String imageAttributes(String name, Calibration cal, int nLevels) {
+        double sx = cal.scaled() ? cal.pixelWidth : 1.0;
+        double sy = cal.scaled() ? cal.pixelHeight : 1.0;
+        double sz = cal.scaled() ? cal.pixelDepth : 1.0;
+        double st = cal.frameInterval > 0 ? cal.frameInterval : 1.0;
+        String spaceUnit = cal.scaled() ? ", \"unit\": \"micrometer\"" : "";
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"multiscales\": [{\n");
+        json.append("    \"version\": \"").append(NGFF_VERSION).append("\",\n");
+        json.append("    \"name\": ").append(jsonString(name)).append(",\n");
+        json.append("    \"axes\": [\n");
+        json.append("      {\"name\": \"t\", \"type\": \"time\"").append(cal.frameInterval > 0 ? ", \"unit\": \"second\"" : "").append("},\n");
+        json.append("      {\"name\": \"c\", \"type\": \"channel\"},\n");
+        json.append("      {\"name\": \"z\", \"type\": \"space\"").append(spaceUnit).append("},\n");
+        json.append("      {\"name\": \"y\", \"type\": \"space\"").append(spaceUnit).append("},\n");
+        json.append("      {\"name\": \"x\", \"type\": \"space\"").append(spaceUnit).append("}\n");
+        json.append("    ],\n");
+        json.append("    \"datasets\": [\n");
+        for (int r = 0; r < nLevels; r++) {
+            double factor = Math.pow(2, r);
+            json.append("      {\"path\": \"").append(r).append("\", \"coordinateTransformations\": [{\"type\": \"scale\", \"scale\": [")
+                    .append(st).append(", 1.0, ").append(sz).append(", ")
+                    .append(sy * factor).append(", ").append(sx * factor).append("]}]}");
+            json.append(r < nLevels - 1 ? ",\n" : "\n");
+        }
+        json.append("    ]\n");
+        json.append("  }]\n}\n");
+        return json.toString();
+    }
+
+    private String wellAttributes(SortedSet<Integer> fields) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"well\": {\n    \"images\": [\n");
+        int i = 0;
+        for (Integer field : fields) {
+            json.append("      {\"path\": \"").append(field).append("\"}");
+            json.append(++i < fields.size() ? ",\n" : "\n");
+        }
+        json.append("    ],\n    \"version\": \"").append(NGFF_VERSION).append("\"\n  }\n}\n");
+        return json.toString();
+    }
+
+    /**
+     * Must be called while holding the lock on this writer
+     */
+    private void writePlateAttributes() throws IOException {
+        int fieldCount = 0;
+        for (SortedSet<Integer> fields : wells.values()) {
+            fieldCount = Math.max(fieldCount, fields.size());
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"plate\": {\n");
+        json.append("    \"name\": ").append(jsonString(plateName)).append(",\n");
+        json.append("    \"version\": \"").append(NGFF_VERSION).append("\",\n");
+        json.append("    \"field_count\": ").append(fieldCount).append(",\n");
+        json.append("    \"acquisitions\": [{\"id\": 0}],\n");
+
+        json.append("    \"rows\": [");
+        for (int r = 0; r < nRows; r++) {
+            json.append(r > 0 ? ", " : "").append("{\"name\": \"").append(getRowName(r)).append("\"}");
+        }
+        json.append("],\n");
+
+        json.append("    \"columns\": [");
+        for (int c = 0; c < nColumns; c++) {
+            json.append(c > 0 ? ", " : "").append("{\"name\": \"").append(getColumnName(c)).append("\"}");
+        }
+        json.append("],\n");
+
+        json.append("    \"wells\": [\n");
+        int i = 0;
+        for (Map.Entry<String, int[]> well : wellIndexes.entrySet()) {
+            json.append("      {\"path\": \"").append(well.getKey())
+                    .append("\", \"rowIndex\": ").append(well.getValue()[0])
+                    .append(", \"columnIndex\": ").append(well.getValue()[1]).append("}");
+            json.append(++i < wellIndexes.size() ? ",\n" : "\n");
+        }
+        json.append("    ]\n  }\n}\n");
+
+        writeJson(new File(root, ".zattrs"), json.toString());
+    }
+
+    private static void writeGroup(File folder) throws IOException {
+        File group = new File(folder, ".zgroup");
+        if (!group.exists()) {
+            writeJson(group, "{\n  \"zarr_format\": 2\n}\n");
+        }
+    }
+
+    /**
+     * Metadata files are written next to their destination then moved, so readers never see half written json
+     */
+    private static void writeJson(File file, String json) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        Files.write(tmp.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String jsonArray(long[] values) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < values.length; i++) {
+            sb.append(i > 0 ? ", " : "").append(values[i]);
+        }
+        return sb.append("]").toString();
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char ch : value.toCharArray()) {
+            switch (ch) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (ch < 0x20) sb.append(String.format("\\u%04x", (int) ch));
+                    else sb.append(ch);
+            }
+        }
+        return sb.append("\"").toString();
+    }
+
+    /**
+     * Rows are named with letters, A to Z then AA, AB...
+     *
+     * @param row 0-based row index
+     * @return the name of the row
+     */
+    public static String getRowName(int row) {
+        StringBuilder name = new StringBuilder();
+        int r = row;
+        do {
+            name.insert(0, (char) ('A' + r % 26));
+            r = r / 26 - 1;
+        } while (r >= 0);
+        return name.toString();
+    }
+
+    /**
+     * Columns are named with their 1-based number
+     *
+     * @param column 0-based column index
+     * @return the name of the column
+     */
+    public static String getColumnName(int column) {
+        return String.valueOf(column + 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            writePlateAttributes();
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * Builder class for {@link OMEZarrPlateWriter}
+     */
+    public static class Builder {
+        private String plateName = "Plate";
+        private int nRows = 1;
+        private int nColumns = 1;
+        private int chunkSize = 512;
+        private int minResolutionSize = 512;
+        private int compressionLevel = 5;
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+
+        /**
+         * @param plateName the name of the plate, stored in the plate metadata
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setPlateName(String plateName) {
+            this.plateName = plateName;
+            return this;
+        }
+
+        /**
+         * All rows and columns of the plate are listed in the metadata, even the ones without wells
+         *
+         * @param nRows    number of rows of the plate
+         * @param nColumns number of columns of the plate
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setPlateSize(int nRows, int nColumns) {
+            this.nRows = nRows;
+            this.nColumns = nColumns;
+            return this;
+        }
+
+        /**
+         * @param chunkSize size in pixels of the square chunks in XY, 512 by default
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setChunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        /**
+         * Resolution levels are added until the largest dimension of the smallest level is below this size
+         *
+         * @param minResolutionSize the size in pixels, 512 by default
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setMinResolutionSize(int minResolutionSize) {
+            this.minResolutionSize = Math.max(1, minResolutionSize);
+            return this;
+        }
+
+        /**
+         * @param compressionLevel zlib compression level, 0 to store the chunks uncompressed
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setCompressionLevel(int compressionLevel) {
+            this.compressionLevel = compressionLevel;
+            return this;
+        }
+
+        /**
+         * @param parallelism the number of threads used to write the chunks
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setParallelism(int parallelism) {
+            this.parallelism = Math.max(1, parallelism);
+            return this;
+        }
+
+        /**
+         * Create the plate folder and its initial metadata
+         *
+         * @param root the plate folder, which should end with .ome.zarr
+         * @return the writer
+         * @throws IOException if the folder could not be created
+         */
+        public OMEZarrPlateWriter build(File root) throws IOException {
+            return new OMEZarrPlateWriter(root, plateName, nRows, nColumns, chunkSize, minResolutionSize,
+                    compressionLevel, parallelism);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*-
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.operetta;
+
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+import ome.xml.model.Well;
+import ome.xml.model.WellSample;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Positions of all the fields of a plate, converted once from the OME model into primitive arrays indexed by series:
+ * in micrometers, and in pixels (position divided by the pixel size and scaled by the correction factor, rounded).
+ * The bounding box of the fields of each imaged well is computed at the same time, so that layout queries on whole
+ * wells are array reads.
+ * <p>
+ * Fields without position have {@link #NO_POSITION} pixel coordinates and NaN micrometer coordinates, and are
+ * left out of the bounding boxes.
+ */
+final class FieldCoordinates {
+
+    /** Pixel coordinate of the fields without position */
+    static final long NO_POSITION = Long.MIN_VALUE;
+
+    private final long[] x_px;
+    private final long[] y_px;
+    private final double[] x_um;
+    private final double[] y_um;
+
+    /**
+     * Bounding boxes of the fields of each imaged well, keyed by the read-only field list of the {@link PlateIndex}:
+     * min X, min Y, max X, max Y of the field positions, in pixels and in micrometers
+     */
+    private final Map<List<WellSample>, long[]> well_bounds_px = new IdentityHashMap<>();
+    private final Map<List<WellSample>, double[]> well_bounds_um = new IdentityHashMap<>();
+
+    /**
+     * @param index             the wells and fields of the plate
+     * @param px_size           the pixel size
+     * @param correction_factor the factor applied to the pixel coordinates
+     */
+    FieldCoordinates(PlateIndex index, Length px_size, double correction_factor) {
+        int n = index.getSeriesCount();
+        x_px = new long[n];
+        y_px = new long[n];
+        x_um = new double[n];
+        y_um = new double[n];
+        Arrays.fill(x_px, NO_POSITION);
+        Arrays.fill(y_px, NO_POSITION);
+        Arrays.fill(x_um, Double.NaN);
+        Arrays.fill(y_um, Double.NaN);
+
+        double px_size_um = px_size.value(UNITS.MICROMETER).doubleValue();
+        for (int s = 0; s < n; s++) {
+            WellSample field = index.getField(s);
+            if (field == null) continue;
+            Length x = field.getPositionX();
+            Length y = field.getPositionY();
+            if (x != null && x.value() != null) {
+                x_um[s] = x.value(UNITS.MICROMETER).doubleValue();
+                x_px[s] = Math.round(x_um[s] / px_size_um * correction_factor);
+            }
+            if (y != null && y.value() != null) {
+                y_um[s] = y.value(UNITS.MICROMETER).doubleValue();
+                y_px[s] = Math.round(y_um[s] / px_size_um * correction_factor);
+            }
+        }
+
+        for (Well well : index.getWells()) {
+            List<WellSample> fields = index.getFields(well);
+            long[] bounds_px = computeBoundsPx(fields);
+            if (bounds_px != null) {
+                well_bounds_px.put(fields, bounds_px);
+                well_bounds_um.put(fields, computeBoundsUm(fields));
+            }
+        }
+    }
+
+    /**
+     * @param series the series index
+     * @return the X position of the field in pixels, or {@link #NO_POSITION}
+     */
+    long getXPx(int series) {
+        return series >= 0 && series < x_px.length ? x_px[series] : NO_POSITION;
+    }
+
+    /**
+     * @param series the series index
+     * @return the Y position of the field in pixels, or {@link #NO_POSITION}
+     */
+    long getYPx(int series) {
+        return series >= 0 && series < y_px.length ? y_px[series] : NO_POSITION;
+    }
+
+    /**
+     * @param series the series index
+     * @return the X position of the field in micrometers, or NaN
+     */
+    double getXUm(int series) {
+        return series >= 0 && series < x_um.length ? x_um[series] : Double.NaN;
+    }
+
+    /**
+     * @param series the series index
+     * @return the Y position of the field in micrometers, or NaN
+     */
+    double getYUm(int series) {
+        return series >= 0 && series < y_um.length ? y_um[series] : Double.NaN;
+    }
+
+    /**
+     * @param fields some fields, e.g. the fields of a well
+     * @return min X, min Y, max X and max Y of the positions of the fields in pixels, or null if none has a position.
+     * The array is shared for the whole field lists of the wells, and must not be modified
+     */
+    long[] getBoundsPx(List<WellSample> fields) {
+        long[] bounds = well_bounds_px.get(fields);
+        return bounds != null ? bounds : computeBoundsPx(fields);
+    }
+
+    /**
+     * @param fields some fields, e.g. the fields of a well
+     * @return min X, min Y, max X and max Y of the positions of the fields in micrometers, or null if none has
+     * a position. The array is shared for the whole field lists of the wells, and must not be modified
+     */
+    double[] getBoundsUm(List<WellSample> fields) {
+        double[] bounds = well_bounds_um.get(fields);
+        return bounds != null ? bounds : computeBoundsUm(fields);
+    }
+
+    private long[] computeBoundsPx(List<WellSample> fields) {
+        long[] bounds = null;
+        for (int i = 0; i < fields.size(); i++) {
+            int s = series(fields.get(i));
+            long x = getXPx(s);
+            long y = getYPx(s);
+            if (x == NO_POSITION || y == NO_POSITION) continue;
+            if (bounds == null) {
+                bounds = new long[]{x, y, x, y};
+            } else {
+                bounds[0] = Math.min(bounds[0], x);
+                bounds[1] = Math.min(bounds[1], y);
+                bounds[2] = Math.max(bounds[2], x);
+                bounds[3] = Math.max(bounds[3], y);
+            }
+        }
+        return bounds;
+    }
+
+    private double[] computeBoundsUm(List<WellSample> fields) {
+        double[] bounds = null;
+        for (int i = 0; i < fields.size(); i++) {
+            int s = series(fields.get(i));
+            double x = getXUm(s);
+            double y = getYUm(s);
+            if (Double.isNaN(x) || Double.isNaN(y)) continue;
+            if (bounds == null) {
+                bounds = new double[]{x, y, x, y};
+            } else {
+                bounds[0] = Math.min(bounds[0], x);
+                bounds[1] = Math.min(bounds[1], y);
+                bounds[2] = Math.max(bounds[2], x);
+                bounds[3] = Math.max(bounds[3], y);
+            }
+        }
+        return bounds;
+    }
+
+    private static int series(WellSample field) {
+        return field.getIndex() == null ? -1 : field.getIndex().getValue();
+    }
+}
@@ -0,0 +1,288 @@
+/*-
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.operetta;
+
+import ome.xml.model.Well;
+import ome.xml.model.WellSample;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uniform grid over the footprints of all the fields of a plate, to find the fields intersecting a region without
+ * testing every field.
+ * <p>
+ * Field positions are relative to their well, so the footprints are placed in plate coordinates: the wells are laid
+ * out on a regular grid of rows and columns, each one in a cell the size of the largest well, and in its cell each
+ * well has the same frame as the images returned by {@code getWellImage}: the top left field starts at the cell
+ * origin. Plate pixel coordinates are thus well pixel coordinates shifted by the well origin.
+ * <p>
+ * The cells of the grid are as large as the largest field, so each footprint lies in at most 2 x 2 cells. The
+ * series of each cell are stored in a single array, cell after cell.
+ */
+final class FieldGrid {
+
+    private final PlateIndex index;
+
+    /** Footprint of each series in plate pixel coordinates, width 0 for fields without position */
+    private final long[] x;
+    private final long[] y;
+    private final int[] width;
+    private final int[] height;
+
+    /** Size of the cell of each well, in pixels */
+    private final long well_width;
+    private final long well_height;
+
+    /** Origin of each imaged well, and top left field position in the well, keyed by well */
+    private final Map<Well, long[]> well_frames = new IdentityHashMap<>();
+
+    /** Maximal number of cells, the cells are made larger for sparse plates with small fields */
+    private static final long MAX_CELLS = 1 << 22;
+
+    /** Grid: cell size, number of cells, first series of each cell in cell_series */
+    private final long cell_size;
+    private final int nx;
+    private final int ny;
+    private final int[] cell_start;
+    private final int[] cell_series;
+
+    /**
+     * @param index       the wells and fields of the plate
+     * @param coordinates the positions of the fields
+     * @param widths      the width of each series, in pixels
+     * @param heights     the height of each series, in pixels
+     */
+    FieldGrid(PlateIndex index, FieldCoordinates coordinates, int[] widths, int[] heights) {
+        this.index = index;
+        int n = index.getSeriesCount();
+        x = new long[n];
+        y = new long[n];
+        width = new int[n];
+        height = new int[n];
+
+        // size of the cell of each well: the largest extent of the fields of a well
+        long max_well_width = 1;
+        long max_well_height = 1;
+        int max_field = 1;
+        for (Well well : index.getWells()) {
+            List<WellSample> fields = index.getFields(well);
+            long[] bounds = coordinates.getBoundsPx(fields);
+            if (bounds == null) continue;
+            long right = bounds[0];
+            long bottom = bounds[1];
+            for (WellSample field : fields) {
+                int s = series(field);
+                if (s < 0 || coordinates.getXPx(s) == FieldCoordinates.NO_POSITION
+                        || coordinates.getYPx(s) == FieldCoordinates.NO_POSITION) continue;
+                right = Math.max(right, coordinates.getXPx(s) + widths[s]);
+                bottom = Math.max(bottom, coordinates.getYPx(s) + heights[s]);
+                max_field = Math.max(max_field, Math.max(widths[s], heights[s]));
+            }
+            max_well_width = Math.max(max_well_width, right - bounds[0]);
+            max_well_height = Math.max(max_well_height, bottom - bounds[1]);
+        }
+        well_width = max_well_width;
+        well_height = max_well_height;
+
+        // footprints in plate coordinates
+        int max_row = 0;
+        int max_col = 0;
+        for (Well well : index.getWells()) {
+            List<WellSample> fields = index.getFields(well);
+            long[] bounds = coordinates.getBoundsPx(fields);
+            if (bounds == null) continue;
+            int row = well.getRow().getValue();
+            int col = well.getColumn().getValue();
+            max_row = Math.max(max_row, row);
+            max_col = Math.max(max_col, col);
+            long origin_x = col * well_width;
+            long origin_y = row * well_height;
+            well_frames.put(well, new long[]{origin_x, origin_y, bounds[0], bounds[1]});
+            for (WellSample field : fields) {
+                int s = series(field);
+                if (s < 0 || coordinates.getXPx(s) == FieldCoordinates.NO_POSITION
+                        || coordinates.getYPx(s) == FieldCoordinates.NO_POSITION) continue;
+                x[s] = origin_x + coordinates.getXPx(s) - bounds[0];
+                y[s] = origin_y + coordinates.getYPx(s) - bounds[1];
+                width[s] = widths[s];
+                height[s] = heights[s];
+            }
+        }
+
+        long plate_width = (max_col + 1) * well_width;
+        long plate_height = (max_row + 1) * well_height;
+        long size = max_field;
+        while (((plate_width + size - 1) / size) * ((plate_height + size - 1) / size) > MAX_CELLS) {
+            size *= 2;
+        }
+        cell_size = size;
+        nx = (int) Math.max(1, (plate_width + cell_size - 1) / cell_size);
+        ny = (int) Math.max(1, (plate_height + cell_size - 1) / cell_size);
+
+        // count the footprints of each cell, then fill them
+        cell_start = new int[nx * ny + 1];
+        for (int s = 0; s < n; s++) {
+            if (width[s] <= 0 || height[s] <= 0) continue;
+            for (int cy = cellY(y[s]); cy <= cellY(y[s] + height[s] - 1); cy++) {
+                for (int cx = cellX(x[s]); cx <= cellX(x[s] + width[s] - 1); cx++) {
+                    cell_start[cy * nx + cx + 1]++;
+                }
+            }
+        }
+        for (int c = 0; c < nx * ny; c++) {
+            cell_start[c + 1] += cell_start[c];
+        }
+        cell_series = new int[cell_start[nx * ny]];
+        int[] fill = Arrays.copyOf(cell_start, nx * ny);
+        for (int s = 0; s < n; s++) {
+            if (width[s] <= 0 || height[s] <= 0) continue;
+            for (int cy = cellY(y[s]); cy <= cellY(y[s] + height[s] - 1); cy++) {
+                for (int cx = cellX(x[s]); cx <= cellX(x[s] + width[s] - 1); cx++) {
+                    cell_series[fill[cy * nx + cx]++] = s;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the width of the cell of each well in plate coordinates, in pixels
+     */
+    long getWellWidth() {
+        return well_width;
+    }
+
+    /**
+     * @return the height of the cell of each well in plate coordinates, in pixels
+     */
+    long getWellHeight() {
+        return well_height;
+    }
+
+    /**
+     * @param well an imaged well
+     * @return the X and Y origin of the well in plate pixel coordinates, or null if none of its fields has a position
+     */
+    long[] getWellOrigin(Well well) {
+        long[] frame = well_frames.get(well);
+        return frame == null ? null : new long[]{frame[0], frame[1]};
+    }
+
+    /**
+     * Find the series whose footprint intersects a region, as {@link java.awt.Rectangle#intersects} would
+     *
+     * @return the series, in increasing order
+     */
+    int[] query(long qx, long qy, long qw, long qh) {
+        if (qw <= 0 || qh <= 0) return new int[0];
+        int[] found = new int[16];
+        int n = 0;
+        int cx0 = cellX(qx);
+        int cx1 = cellX(qx + qw - 1);
+        int cy0 = cellY(qy);
+        int cy1 = cellY(qy + qh - 1);
+        for (int cy = cy0; cy <= cy1; cy++) {
+            for (int cx = cx0; cx <= cx1; cx++) {
+                int cell = cy * nx + cx;
+                for (int i = cell_start[cell]; i < cell_start[cell + 1]; i++) {
+                    int s = cell_series[i];
+                    if (!intersects(s, qx, qy, qw, qh)) continue;
+                    // a footprint spans several cells: only keep it in the cell of the top left of the intersection
+                    if (cellX(Math.max(qx, x[s])) != cx || cellY(Math.max(qy, y[s])) != cy) continue;
+                    if (n == found.length) found = Arrays.copyOf(found, 2 * n);
+                    found[n++] = s;
+                }
+            }
+        }
+        int[] result = Arrays.copyOf(found, n);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * @return the fields intersecting the region, grouped by well, in the order of the wells and fields of the plate
+     */
+    Map<Well, List<WellSample>> queryByWell(long qx, long qy, long qw, long qh) {
+        int[] series = query(qx, qy, qw, qh);
+        Map<Well, List<WellSample>> fields = new LinkedHashMap<>();
+        for (Well well : index.getWells()) {
+            List<WellSample> selected = null;
+            for (WellSample field : index.getFields(well)) {
+                if (Arrays.binarySearch(series, series(field)) >= 0) {
+                    if (selected == null) selected = new ArrayList<>();
+                    selected.add(field);
+                }
+            }
+            if (selected != null) fields.put(well, selected);
+        }
+        return fields;
+    }
+
+    /**
+     * Same as {@code getIntersectingFields}: the region is relative to the top left of the given fields, which
+     * have to belong to a single imaged well
+     *
+     * @param well   the well of the fields
+     * @param fields fields of the well
+     * @param top_left the top left position of the fields, in well pixel coordinates
+     * @return the fields intersecting the region, in the order of the list
+     */
+    List<WellSample> queryInWell(Well well, List<WellSample> fields, long[] top_left, long qx, long qy, long qw, long qh) {
+        long[] frame = well_frames.get(well);
+        // region in plate coordinates: shift by the well origin, and by the top left of the fields in the well
+        int[] series = query(frame[0] + top_left[0] - frame[2] + qx, frame[1] + top_left[1] - frame[3] + qy, qw, qh);
+        List<WellSample> selected = new ArrayList<>(series.length);
+        for (WellSample field : fields) {
+            if (Arrays.binarySearch(series, series(field)) >= 0) {
+                selected.add(field);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @return true if the well is in the grid, so that {@link #queryInWell} can be used for its fields
+     */
+    boolean contains(Well well) {
+        return well_frames.containsKey(well);
+    }
+
+    private boolean intersects(int s, long qx, long qy, long qw, long qh) {
+        return qx < x[s] + width[s] && x[s] < qx + qw && qy < y[s] + height[s] && y[s] < qy + qh;
+    }
+
+    private int cellX(long px) {
+        return (int) Math.min(nx - 1, Math.max(0, Math.floorDiv(px, cell_size)));
+    }
+
+    private int cellY(long py) {
+        return (int) Math.min(ny - 1, Math.max(0, Math.floorDiv(py, cell_size)));
+    }
+
+    private static int series(WellSample field) {
+        return field.getIndex() == null ? -1 : field.getIndex().getValue();
+    }
+}
@@ -21,13 +21,24 @@
  */
 package ch.epfl.biop.operetta;
 
-import ch.epfl.biop.kheops.command.KheopsExportImagePlusCommand;
 import ch.epfl.biop.ometiff.LazyOMETiffReader;
+import ch.epfl.biop.ometiff.PyramidalOMETiffWriter;
+import ch.epfl.biop.omezarr.OMEZarrPlateWriter;
+import ch.epfl.biop.operetta.archive.HarmonyArchiveReader;
+import ch.epfl.biop.operetta.index.HarmonyIndexReader;
 import ch.epfl.biop.operetta.companion.CompanionFileGenerator;
 import ch.epfl.biop.operetta.companion.ImageCompanion;
 import ch.epfl.biop.operetta.companion.PlateCompanion;
 import ch.epfl.biop.operetta.companion.WellCompanion;
+import ch.epfl.biop.operetta.utils.ConcurrentPlaneReader;
+import ch.epfl.biop.operetta.utils.DatasetFilter;
+import ch.epfl.biop.operetta.utils.ExportManifest;
+import ch.epfl.biop.operetta.utils.FilenameToCZTProvider;
 import ch.epfl.biop.operetta.utils.HyperRange;
+import ch.epfl.biop.operetta.utils.MemoCache;
+import ch.epfl.biop.operetta.utils.OpeningListener;
+import ch.epfl.biop.operetta.utils.ProgressiveReader;
+import ch.epfl.biop.operetta.utils.SubsetReader;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -40,6 +51,7 @@ import loci.formats.*;
 import loci.formats.in.MinimalTiffReader;
 import loci.formats.in.OMETiffReader;
 import loci.formats.in.OMEXMLReader;
+import loci.formats.in.OperettaReader;
 import loci.formats.meta.IMetadata;
 import mpicbg.models.InvertibleBoundable;
 import mpicbg.models.TranslationModel2D;
@@ -71,26 +83,35 @@ import ome.xml.model.primitives.Timestamp;
 import org.apache.commons.io.FilenameUtils;
 import org.perf4j.StopWatch;
 import org.scijava.Context;
-import org.scijava.command.CommandService;
 import org.scijava.task.Task;
 import org.scijava.task.TaskService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.awt.Rectangle;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
@@ -104,9 +125,19 @@ import java.util.stream.IntStream;
  */
 public class OperettaManager {
     private static final Logger log = LoggerFactory.getLogger(OperettaManager.class);
+    private static final int VALIDATION_THREADS = 8;
     private final File id;
     private final IFormatReader main_reader;
     private final IMetadata metadata;
+
+    /** Wells and fields of the plate, built on first use and again after {@link #refreshArchive()} */
+    private volatile PlateIndex plate_index;
+
+    /** Positions of the fields, built on first use and again after {@link #refreshArchive()} */
+    private volatile FieldCoordinates field_coordinates;
+
+    /** Spatial index of the fields in plate coordinates, built on first use and again after {@link #refreshArchive()} */
+    private volatile FieldGrid field_grid;
     private final HyperRange range;
     private final double norm_min;
     private final double norm_max;
@@ -121,6 +152,10 @@ public class OperettaManager {
     private final boolean fuse_fields;
     private final boolean use_stitcher;
     private final boolean save_as_ome_tiff;
+    private final boolean save_as_ome_zarr;
+    private final boolean resume;
+    private final boolean verify_resume;
+    private final CompletableFuture<LazyOMETiffReader.ValidationSummary> file_validation;
     private StitchingParameters stitching_parameters;
     private final Utilities utils;
     private final TaskService taskService; // Task monitoring and cancellation
@@ -133,7 +168,8 @@ public class OperettaManager {
     private enum XMLFILE {
         V5("Index.idx.xml", "PerkinElmer Harmony V5"),
         V5FLEX("Index.flex.xml", "PerkinElmer Harmony V5 Flatfield data"),
-        V6("Index.xml", "PerkinElmer Harmony V6");
+        V6("Index.xml", "PerkinElmer Harmony V6"),
+        ARCHIVE(HarmonyArchiveReader.INDEX_FILE_NAME, "PerkinElmer Harmony 4.9 Archive");
 
         private final String description;
         private final String indexFileName;
@@ -181,6 +217,10 @@ public class OperettaManager {
                             boolean fuse_fields,
                             boolean use_stitcher,
                             boolean save_as_ome_tiff,
+                            boolean save_as_ome_zarr,
+                            boolean resume,
+                            boolean verify_resume,
+                            boolean validate_files,
                             StitchingParameters stitching_parameters,
                             Context ctx) {
 
@@ -203,14 +243,18 @@ public class OperettaManager {
         this.fuse_fields = fuse_fields;
         this.use_stitcher = use_stitcher;
         this.save_as_ome_tiff = save_as_ome_tiff;
+        this.save_as_ome_zarr = save_as_ome_zarr;
+        this.resume = resume;
+        this.verify_resume = verify_resume;
         this.stitching_parameters = stitching_parameters;
+
+        // Check the files of the dataset while the export is being prepared
+        LazyOMETiffReader lazy_reader = validate_files ? unwrapReader(reader, LazyOMETiffReader.class) : null;
+        this.file_validation = lazy_reader == null ? null : lazy_reader.validateInBackground(VALIDATION_THREADS);
+
         this.px_size = metadata.getPixelsPhysicalSizeX(0);
         this.utils = new Utilities();
 
-        if (save_as_ome_tiff && ctx ==  null) {
-            throw new RuntimeException("Scijava context not set, cannot save as ome tiff");
-        }
-
         this.ctx = ctx;
         this.taskService = ctx == null ? null : ctx.getService(TaskService.class);
     }
@@ -243,26 +287,110 @@ public class OperettaManager {
     }
 
 
+    /**
+     * Waits for the background validation of the files, if it was requested with {@link Builder#validateFiles(boolean)},
+     * and logs its summary, so that missing files are known before a long export starts
+     */
+    private void reportFileValidation() {
+        if (file_validation == null) return;
+        try {
+            LazyOMETiffReader.ValidationSummary summary = file_validation.get();
+            if (summary.isValid()) {
+                IJ.log(summary.toString());
+            } else {
+                IJ.log("WARNING: " + summary + ". The planes of these files will be empty.");
+                log.warn("{}", summary);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("Validation of the files failed", e);
+        }
+    }
+
     public Plate getPlate(){
         OMEXMLMetadataRoot r = (OMEXMLMetadataRoot) metadata.getRoot();
         return r.getPlate(0);
     }
 
+    /**
+     * For Harmony archives which are still being written: add the wells, fields and planes written since
+     * the archive was opened, see {@link HarmonyArchiveReader#refresh()}. The wells already imaged
+     * can thus be processed while the plate is still being acquired or exported.
+     * The C Z T range is not modified.
+     *
+     * @return the number of planes added, 0 if the archive did not change or if this is not an archive
+     * @throws IOException     an error while reading the data
+     * @throws FormatException an error regarding the data's format
+     */
+    public int refreshArchive() throws IOException, FormatException {
+        HarmonyArchiveReader archiveReader = unwrapReader(main_reader, HarmonyArchiveReader.class);
+        if (archiveReader == null || !archiveReader.isStale()) {
+            return 0;
+        }
+        int added = archiveReader.refresh();
+        if (added > 0) {
+            plate_index = null;
+            field_coordinates = null;
+            field_grid = null;
+        }
+        return added;
+    }
+
+    /**
+     * @return the index of the wells and fields of the plate, built on first use
+     */
+    private PlateIndex getPlateIndex() {
+        PlateIndex index = plate_index;
+        if (index == null) {
+            index = new PlateIndex(getPlate(), metadata.getImageCount());
+            plate_index = index;
+        }
+        return index;
+    }
+
+    /**
+     * @return the positions of the fields of the plate, computed on first use
+     */
+    private FieldCoordinates getFieldCoordinates() {
+        FieldCoordinates coordinates = field_coordinates;
+        if (coordinates == null) {
+            coordinates = new FieldCoordinates(getPlateIndex(), px_size, correction_factor);
+            field_coordinates = coordinates;
+        }
+        return coordinates;
+    }
+
+    /**
+     * @return the spatial index of the fields of the plate, built on first use
+     */
+    private FieldGrid getFieldGrid() {
+        FieldGrid grid = field_grid;
+        if (grid == null) {
+            int n = metadata.getImageCount();
+            int[] widths = new int[n];
+            int[] heights = new int[n];
+            for (int s = 0; s < n; s++) {
+                if (metadata.getPixelsSizeX(s) != null) widths[s] = metadata.getPixelsSizeX(s).getValue();
+                if (metadata.getPixelsSizeY(s) != null) heights[s] = metadata.getPixelsSizeY(s).getValue();
+            }
+            grid = new FieldGrid(getPlateIndex(), getFieldCoordinates(), widths, heights);
+            field_grid = grid;
+        }
+        return grid;
+    }
+
     /**
      * Returns the list of all Wells in the Experiment
      * This is currently configured to work only with one plate, but this method could be extended to work with
      * Experiments containing multiple plates.
      *
-     * @return a List of wells
+     * Wells which contain no fields, i.e. which were not imaged, are left out.
+     *
+     * @return a read-only List of wells
      */
     public List<Well> getWells() {
-        OMEXMLMetadataRoot r = (OMEXMLMetadataRoot) metadata.getRoot();
-        // Filters out wells which contain no fields -> not imaged
-        return r.getPlate(0)
-                .copyWellList()
-                .stream()
-                .filter(well -> well.copyWellSampleList().get(0).getPositionX() != null) // a weird way to check that the well was indeed imaged, see https://forum.image.sc/t/operetta-reader-bug-positions-not-parsed-found/61818
-                .collect(Collectors.toList());
+        return getPlateIndex().getWells();
     }
 
     /**
@@ -273,12 +401,11 @@ public class OperettaManager {
      * @return the well that matches the provided Row, Column indexes
      */
     public Well getWell(int row, int column) {
-        Optional<Well> maybeWell = getWells().stream().filter(w -> w.getRow().getValue() == row - 1 && w.getColumn().getValue() == column - 1).findFirst();
-
-        if (maybeWell.isPresent())
-            return maybeWell.get();
-        log.info("Well at R{}-C{} is not found", row, column);
-        return null;
+        Well well = getPlateIndex().getWell(row - 1, column - 1);
+        if (well == null) {
+            log.info("Well at R{}-C{} is not found", row, column);
+        }
+        return well;
     }
 
     /**
@@ -299,10 +426,10 @@ public class OperettaManager {
      * For a given well, what are all the fields {@link WellSample} contained within
      *
      * @param well the selected well
-     * @return a list of Fields (WellSamples)
+     * @return a read-only list of Fields (WellSamples)
      */
     public List<WellSample> getFields(Well well) {
-        return well.copyWellSampleList();
+        return getPlateIndex().getFields(well);
     }
 
     /**
@@ -313,12 +440,11 @@ public class OperettaManager {
      * @return the field corresponding to the ID
      */
     public WellSample getField(Well well, int field_id) {
-        Optional<WellSample> wellSampleOptional = getFields(well).stream().filter(s -> s.getIndex().getValue() == field_id).findFirst();
-        if (wellSampleOptional.isPresent())
-            return wellSampleOptional.get();
-        log.warn("Field Id " + field_id + "was not found");
-        return null;
-
+        WellSample field = getPlateIndex().getField(well, field_id);
+        if (field == null) {
+            log.warn("Field Id " + field_id + "was not found");
+        }
+        return field;
     }
 
     /**
@@ -491,41 +617,17 @@ public class OperettaManager {
         }
 
         // Get the positions for each field (called a sample by BioFormats) in this well
-        if (fields == null) fields = well.copyWellSampleList();
+        if (fields == null) fields = getFields(well);
         // Out of these coordinates, keep only those that are intersecting with the bounds
         final List<WellSample> adjusted_fields = getIntersectingFields(fields, bounds);
         // Problem with ROI bounds is that they are typically given relative to the fused image
 
         if (adjusted_fields.isEmpty()) return null;
 
-        int a_field_id = fields.get(0).getIndex().getValue();
-
-        // We need to know the width and height of a single image
-        int sample_width = metadata.getPixelsSizeX(a_field_id).getValue();
-        int sample_height = metadata.getPixelsSizeY(a_field_id).getValue();
-
         // Get extents for the final image
         Point topLeftCoordinates = utils.getTopLeftCoordinates(fields);
-        Point bottomRightCoordinates = utils.getBottomRightCoordinates(fields);
-
-        // If we can't find the coordinates, we have no way of knowing the size of the final image
-        if (topLeftCoordinates == null || bottomRightCoordinates == null) {
-            log.error("Could not find coordinates for well " + well);
-            return null;
-        }
-
-        long well_width = bottomRightCoordinates.getLongPosition(0) - topLeftCoordinates.getLongPosition(0) + sample_width;
-        long well_height = bottomRightCoordinates.getLongPosition(1) - topLeftCoordinates.getLongPosition(1) + sample_height;
-
-        // If there is a region, then the final width and height will be the same
-        if (bounds != null) {
-            well_width = bounds.getBounds().width;
-            well_height = bounds.getBounds().height;
-        }
-
-        // Finally, correct for downscaling
-        well_width /= this.downsample;
-        well_height /= this.downsample;
+        int[] well_size = getWellSize(well, fields, bounds, topLeftCoordinates);
+        if (well_size == null) return null;
 
         // Confirm the range based on the available metadata
         final HyperRange range2 = range.confirmRange(metadata);
@@ -533,7 +635,7 @@ public class OperettaManager {
         final int n = range2.getTotalPlanes();
 
         // TODO: Bit depth is hard coded here, but it could be made variable
-        final ImageStack wellStack = ImageStack.create((int) well_width, (int) well_height, n, 16);
+        final ImageStack wellStack = ImageStack.create(well_size[0], well_size[1], n, 16);
 
         AtomicInteger ai = new AtomicInteger(0);
 
@@ -575,16 +677,7 @@ public class OperettaManager {
         if ((czt[0] + czt[1] + czt[2]) > 3)
             result = HyperStackConverter.toHyperStack(result, czt[0], czt[1], czt[2]);
 
-        Calibration cal = new Calibration(result);
-        Calibration meta = utils.getCalibration();
-        cal.pixelWidth = meta.pixelWidth;
-        cal.pixelHeight = meta.pixelHeight;
-        cal.pixelDepth = meta.pixelDepth;
-        cal.frameInterval = meta.frameInterval;
-        cal.setXUnit(meta.getXUnit());
-        cal.setYUnit(meta.getYUnit());
-        cal.setZUnit(meta.getZUnit());
-        cal.setTimeUnit(meta.getTimeUnit());
+        Calibration cal = getExportCalibration(result, fields);
 
         // Do the projection if needed
         if ((this.is_projection) && (result.getNSlices() > 1)) {
@@ -597,15 +690,320 @@ public class OperettaManager {
             }
             result = zp.getProjection();
         }
+        result.setCalibration(cal);
+
+        return result;
+    }
+
+    /**
+     * Writes the fused well plane by plane, as a pyramidal OME-TIFF file and/or into an OME-Zarr plate, instead
+     * of building it with {@link #getWellImage(Well, List, Roi)} first. For each plane, the matching plane of every
+     * field is read and copied into a plane of the well, which is given to the writers then dropped. Only one plane
+     * of the well is in memory at a time, or its slices for one channel and time point when doing a Z projection.
+     *
+     * @param well          the well to export
+     * @param fields        the fields that we want to use for this well
+     * @param bounds        a ROI describing the subregion we want to export (pixel coordinates)
+     * @param ome_tiff_file the destination file, or null to skip the OME-TIFF
+     * @param zarr_writer   the plate to write the well in as its only field, or null to skip the OME-Zarr
+     * @return the dimensions of the written image, or null if there was nothing to write
+     * @throws IOException if the image could not be written
+     */
+    private ExportedImage writeWellImage(Well well, List<WellSample> fields, final Roi bounds, File ome_tiff_file,
+                                         OMEZarrPlateWriter zarr_writer) throws IOException {
+
+        // Get the positions for each field (called a sample by BioFormats) in this well
+        if (fields == null) fields = getFields(well);
+        // Out of these coordinates, keep only those that are intersecting with the bounds
+        final List<WellSample> adjusted_fields = getIntersectingFields(fields, bounds);
+
+        if (adjusted_fields.isEmpty()) return null;
+
+        // Get extents for the final image
+        Point topLeftCoordinates = utils.getTopLeftCoordinates(fields);
+        int[] well_size = getWellSize(well, fields, bounds, topLeftCoordinates);
+        if (well_size == null) return null;
+
+        // Confirm the range based on the available metadata
+        final HyperRange range2 = range.confirmRange(metadata);
+        final int[] czt = range2.getCZTDimensions();
+        final boolean do_projection = this.is_projection && czt[1] > 1;
+        final int n_slices = do_projection ? 1 : czt[1];
+
+        // Find where each plane of each field is beforehand, as the series can only be selected from this thread
+        final List<FieldPlanes> field_planes = new ArrayList<>();
+        final List<Roi> subregions = new ArrayList<>();
+        final List<Point> positions = new ArrayList<>();
+        for (int i = 0; i < adjusted_fields.size(); i++) {
+            WellSample field = adjusted_fields.get(i);
+            // sample subregion should give the ROI coordinates for the current sample that we want to read
+            Roi subregion = getFieldSubregion(field, bounds, topLeftCoordinates);
+            if (subregion != null) {
+                Point pos = utils.getFieldAdjustedCoordinates(field, bounds, subregion, topLeftCoordinates);
+                log.info(String.format("Sample Position: %d, %d", pos.getLongPosition(0), pos.getLongPosition(1)));
+                field_planes.add(getFieldPlanes(field, range2));
+                subregions.add(subregion);
+                positions.add(pos);
+            } else {
+                log.warn(String.format("Field %d of %d not found.", i + 1, adjusted_fields.size()));
+            }
+        }
+
+        final int row = well.getRow().getValue();
+        final int column = well.getColumn().getValue();
+        String imageName = getWellImageName(well);
+        Calibration cal = getExportCalibration(null, fields);
+        int bit_depth = 16;
+        boolean started = false;
+
+        StopWatch sw = new StopWatch();
+        sw.start();
+
+        ForkJoinPool planeWorkerPool = new ForkJoinPool(10);
+        PyramidalOMETiffWriter.PlaneWriter writer = null;
+        try {
+            // The writer expects the planes in XYCZT order
+            for (int t = 0; t < czt[2]; t++) {
+                for (int z = 0; z < n_slices; z++) {
+                    for (int c = 0; c < czt[0]; c++) {
+                        ImageProcessor well_plane;
+                        String label = null;
+                        if (do_projection) {
+                            ImageStack slices = new ImageStack(well_size[0], well_size[1]);
+                            for (int s = 0; s < czt[1]; s++) {
+                                int index = 1 + c + s * czt[0] + t * czt[0] * czt[1];
+                                slices.addSlice(fuseWellPlane(planeWorkerPool, field_planes, subregions, positions, index, well_size));
+                            }
+                            ZProjector zp = new ZProjector(new ImagePlus(imageName, slices));
+                            zp.setMethod(this.projection_type);
+                            zp.doProjection();
+                            well_plane = zp.getProjection().getProcessor();
+                        } else {
+                            int index = 1 + c + z * czt[0] + t * czt[0] * czt[1];
+                            well_plane = fuseWellPlane(planeWorkerPool, field_planes, subregions, positions, index, well_size);
+                            // Like the stack of the fused well, which keeps the label of the last field copied
+                            for (FieldPlanes planes : field_planes) {
+                                if (planes.labels[index] != null) label = planes.labels[index];
+                            }
+                        }
+
+                        // The projection decides of the bit depth, so the outputs are created with the first plane
+                        if (!started) {
+                            bit_depth = well_plane.getBitDepth();
+                            if (ome_tiff_file != null) {
+                                writer = new PyramidalOMETiffWriter.Builder()
+                                        .setTileSize(512)
+                                        .compress(true)
+                                        .build()
+                                        .open(ome_tiff_file, imageName, well_size[0], well_size[1], czt[0], n_slices, czt[2], bit_depth, cal);
+                            }
+                            if (zarr_writer != null) {
+                                zarr_writer.startImage(row, column, 0, imageName, well_size[0], well_size[1], czt[0], n_slices, czt[2], bit_depth, cal);
+                            }
+                            started = true;
+                        }
+                        if (writer != null) {
+                            writer.writePlane(well_plane, label);
+                        }
+                        if (zarr_writer != null) {
+                            zarr_writer.writePlane(row, column, 0, c, z, t, well_plane);
+                        }
+                    }
+                }
+            }
+            if (started && zarr_writer != null) {
+                zarr_writer.finishImage(row, column, 0);
+            }
+        } finally {
+            planeWorkerPool.shutdown();
+            if (writer != null) writer.close();
+        }
+
+        sw.stop();
+        log.info("Well " + well.getID() + " written plane by plane in " + ((double) sw.getElapsedTime() / 1000.0) + " seconds");
+
+        if (!started) return null;
+        return new ExportedImage(well_size[0], well_size[1], n_slices, czt[0], czt[2], bit_depth, cal);
+    }
+
+    /**
+     * Reads the plane at the given index of all fields in parallel and copies them into a plane of the well,
+     * in the order of the fields so that overlaps are resolved like in {@link #getWellImage(Well, List, Roi)}
+     *
+     * @param pool         the pool to read the fields with
+     * @param field_planes the planes of each field
+     * @param subregions   the region to read from each field
+     * @param positions    the position of each field in the well
+     * @param index        the stack index of the plane in the exported range
+     * @param well_size    the width and height of the well
+     * @return the plane of the well
+     * @throws IOException if reading was interrupted
+     */
+    private ImageProcessor fuseWellPlane(ForkJoinPool pool, List<FieldPlanes> field_planes, List<Roi> subregions,
+                                         List<Point> positions, int index, int[] well_size) throws IOException {
+        ImageProcessor[] planes;
+        try {
+            planes = pool.submit(() -> IntStream.range(0, field_planes.size())
+                    .parallel()
+                    .mapToObj(i -> readFieldPlane(field_planes.get(i), index, subregions.get(i)))
+                    .toArray(ImageProcessor[]::new)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Reading plane " + index + " of the fields interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Reading plane " + index + " of the fields failed", e.getCause());
+        }
+
+        // TODO: Bit depth is hard coded here, but it could be made variable
+        ImageProcessor well_plane = new ShortProcessor(well_size[0], well_size[1]);
+        for (int i = 0; i < planes.length; i++) {
+            if (planes[i] != null) {
+                Point pos = positions.get(i);
+                well_plane.copyBits(planes[i], (int) pos.getLongPosition(0), (int) pos.getLongPosition(1), Blitter.COPY);
+            }
+        }
+        return well_plane;
+    }
+
+    /**
+     * Writes a field into an OME-Zarr plate as its planes are read, instead of building it with
+     * {@link #getFieldImage(WellSample, Roi)} first. When doing a Z projection, the field is built then projected
+     *
+     * @param field       the field to export
+     * @param zarr_writer the plate to write the field in
+     * @param field_index the 0-based index of the field in its well
+     * @return the dimensions of the written image, or null if there was nothing to write
+     * @throws IOException if the image could not be written
+     */
+    private ExportedImage writeFieldImage(WellSample field, OMEZarrPlateWriter zarr_writer, int field_index) throws IOException {
+        final int row = field.getWell().getRow().getValue();
+        final int column = field.getWell().getColumn().getValue();
+
+        final HyperRange range2 = range.confirmRange(metadata);
+        final int[] czt = range2.getCZTDimensions();
+
+        if (this.is_projection && czt[1] > 1) {
+            ImagePlus field_image = getFieldImage(field, null);
+            if (field_image == null) return null;
+            zarr_writer.writeImage(field_image, row, column, field_index);
+            return new ExportedImage(field_image);
+        }
+
+        final FieldPlanes planes = getFieldPlanes(field, range2);
+
+        // Account for downscaling
+        final int width = planes.width / this.downsample;
+        final int height = planes.height / this.downsample;
+
+        // Leave in case the final image ended up too small
+        if (height <= 1 || width <= 1) return null;
+
+        // Planes are always normalized to 16 bits when read
+        Calibration cal = getExportCalibration(null, Collections.singletonList(field));
+        zarr_writer.startImage(row, column, field_index, getFieldImageName(field), width, height, czt[0], czt[1], czt[2], 16, cal);
+
+        StopWatch sw = new StopWatch();
+        sw.start();
+
+        ForkJoinPool planeWorkerPool = new ForkJoinPool(10);
+        try {
+            planeWorkerPool.submit(() -> IntStream.rangeClosed(1, range2.getTotalPlanes())
+                    .parallel()
+                    .forEach(i -> {
+                        ImageProcessor ip = readFieldPlane(planes, i, null);
+                        if (ip != null) {
+                            // Stack indexes are in XYCZT order
+                            int c = (i - 1) % czt[0];
+                            int z = (i - 1) / czt[0] % czt[1];
+                            int t = (i - 1) / (czt[0] * czt[1]);
+                            try {
+                                zarr_writer.writePlane(row, column, field_index, c, z, t, ip);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }
+                    })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Writing stack " + planes.series_id + " interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Writing stack " + planes.series_id + " failed", e.getCause());
+        } finally {
+            planeWorkerPool.shutdown();
+        }
+
+        zarr_writer.finishImage(row, column, field_index);
+
+        sw.stop();
+        log.info("Field " + field.getID() + " stack " + planes.series_id + " written plane by plane in " + ((double) sw.getElapsedTime() / 1000.0) + " seconds");
+        return new ExportedImage(width, height, czt[1], czt[0], czt[2], 16, cal);
+    }
+
+    /**
+     * Size of the fused image of a well, which covers all its fields or the given bounds, after downsampling
+     *
+     * @param well               the well, for logging
+     * @param fields             all the fields of the well
+     * @param bounds             an optional subregion of the well (pixel coordinates)
+     * @param topLeftCoordinates the coordinates of the top left field
+     * @return the width and height of the fused image, or null if the field coordinates are unknown
+     */
+    private int[] getWellSize(Well well, List<WellSample> fields, Roi bounds, Point topLeftCoordinates) {
+        int a_field_id = fields.get(0).getIndex().getValue();
+
+        // We need to know the width and height of a single image
+        int sample_width = metadata.getPixelsSizeX(a_field_id).getValue();
+        int sample_height = metadata.getPixelsSizeY(a_field_id).getValue();
+
+        Point bottomRightCoordinates = utils.getBottomRightCoordinates(fields);
+
+        // If we can't find the coordinates, we have no way of knowing the size of the final image
+        if (topLeftCoordinates == null || bottomRightCoordinates == null) {
+            log.error("Could not find coordinates for well " + well);
+            return null;
+        }
+
+        long well_width = bottomRightCoordinates.getLongPosition(0) - topLeftCoordinates.getLongPosition(0) + sample_width;
+        long well_height = bottomRightCoordinates.getLongPosition(1) - topLeftCoordinates.getLongPosition(1) + sample_height;
+
+        // If there is a region, then the final width and height will be the same
+        if (bounds != null) {
+            well_width = bounds.getBounds().width;
+            well_height = bounds.getBounds().height;
+        }
+
+        // Finally, correct for downscaling
+        well_width /= this.downsample;
+        well_height /= this.downsample;
+
+        return new int[]{(int) well_width, (int) well_height};
+    }
+
+    /**
+     * Calibration of an exported image, from the metadata, with its origin at the top left of the given fields
+     *
+     * @param image  the exported image, or null if it is written without being built
+     * @param fields the fields the image is made of
+     * @return the calibration
+     */
+    private Calibration getExportCalibration(ImagePlus image, List<WellSample> fields) {
+        Calibration cal = image != null ? new Calibration(image) : new Calibration();
+        Calibration meta = utils.getCalibration();
+        cal.pixelWidth = meta.pixelWidth;
+        cal.pixelHeight = meta.pixelHeight;
+        cal.pixelDepth = meta.pixelDepth;
+        cal.frameInterval = meta.frameInterval;
+        cal.setXUnit(meta.getXUnit());
+        cal.setYUnit(meta.getYUnit());
+        cal.setZUnit(meta.getZUnit());
+        cal.setTimeUnit(meta.getTimeUnit());
+
         // Do the calibration for the origin
         Point point = utils.getTopLeftCoordinatesUm(fields);
 
         cal.xOrigin = point.getDoublePosition(0) / cal.pixelWidth; // That's supposed to be in pixels
         cal.yOrigin = point.getDoublePosition(1) / cal.pixelHeight;
-
-        result.setCalibration(cal);
-
-        return result;
+        return cal;
     }
 
     /**
@@ -629,25 +1027,15 @@ public class OperettaManager {
 
         final int series_id = field.getIndex().getValue(); // This is the series ID
 
-        final int row = field.getWell().getRow().getValue();
-        final int column = field.getWell().getColumn().getValue();
-        main_reader.setSeries(series_id);
-
         final HyperRange range2 = range.confirmRange(metadata);
         final int n = range2.getTotalPlanes();
 
-        // Build filename-to-CZT lookup map from metadata for archive files with UUID names
-        Map<String, int[]> filenameToCZT = buildFilenameToCZTMap(series_id);
-        if (!filenameToCZT.isEmpty()) {
-            range2.setFilenameToCZTMap(filenameToCZT);
-        }
-
-        boolean do_norm = main_reader.getBitsPerPixel() != 16;
+        final FieldPlanes planes = getFieldPlanes(field, range2);
 
         // Get Stack width and height and modify in case there is a subregion
 
-        int stack_width = main_reader.getSizeX();
-        int stack_height = main_reader.getSizeY();
+        int stack_width = planes.width;
+        int stack_height = planes.height;
 
         if (subregion != null) {
             stack_width = subregion.getBounds().width;
@@ -665,62 +1053,26 @@ public class OperettaManager {
         final ImageStack stack = ImageStack.create(stack_width, stack_height, n, 16);
 
 
-        List<String> files = Arrays.stream(main_reader.getSeriesUsedFiles(false))
-                .filter(f -> f.endsWith(".tiff"))
-                .collect(Collectors.toList());
         StopWatch sw = new StopWatch();
         sw.start();
 
         ForkJoinPool planeWorkerPool = new ForkJoinPool(10);
         try {
-            planeWorkerPool.submit(() -> IntStream.range(0, files.size())
+            planeWorkerPool.submit(() -> IntStream.rangeClosed(1, n)
                     .parallel()
                     .forEach(i -> {
-                        // Check that we want to open it
-                        // Infer C Z T from filename
-
-                        Map<String, Integer> plane_indexes = range2.getIndexes(files.get(i));
-                        if (range2.includes(files.get(i))) {
-                            //IJ.log("files.get( "+i+" )+"+files.get( i ));
-                            ImageProcessor ip = openTiffFileAsImageProcessor(files.get(i));
-
-                            if (ip == null) {
-                                log.error("Could not open {}", files.get(i));
-                            } else {
-
-                                if (flip_horizontal) {
-                                    ip.flipHorizontal();
-                                }
-
-                                if (flip_vertical) {
-                                    ip.flipVertical();
-                                }
-
-                                if (do_norm) {
-                                    ip.setMinAndMax(norm_min, norm_max);
-                                    ip = ip.convertToShort(true);
-                                }
-
-                                if (subregion != null) {
-                                    ip.setRoi(subregion);
-                                    ip = ip.crop();
-                                }
-
-                                // Add option to downsample with averaging
-                                ip = ip.resize(ip.getWidth() / this.downsample, ip.getHeight() / this.downsample, this.use_averaging);
-
-                                // logger.info("File {}", files.get( i ));
-                                String label = String.format("R%d-C%d - (c:%d, z:%d, t:%d) - %s", row, column, plane_indexes.get("C"), plane_indexes.get("Z"), plane_indexes.get("T"), new File(files.get(i)).getName());
-                                //IJ.log("plane_indexes.get( \"I\" ): " +plane_indexes.get( "I" ));
-                                stack.setProcessor(ip, plane_indexes.get("I"));
-                                stack.setSliceLabel(label, plane_indexes.get("I"));
-                            }
+                        ImageProcessor ip = readFieldPlane(planes, i, subregion);
+                        if (ip != null) {
+                            stack.setProcessor(ip, i);
+                            stack.setSliceLabel(planes.labels[i], i);
                         }
                     })).get();
         } catch (InterruptedException e) {
             log.error("Reading Stack " + series_id + " interrupted:", e);
         } catch (ExecutionException e) {
             log.error("Reading Stack " + series_id + " error:", e);
+        } finally {
+            planeWorkerPool.shutdown();
         }
 
 
@@ -734,16 +1086,7 @@ public class OperettaManager {
         if ((czt[0] + czt[1] + czt[2]) > 3)
             result = HyperStackConverter.toHyperStack(result, czt[0], czt[1], czt[2]);
 
-        Calibration cal = new Calibration(result);
-        Calibration meta = utils.getCalibration();
-        cal.pixelWidth = meta.pixelWidth;
-        cal.pixelHeight = meta.pixelHeight;
-        cal.pixelDepth = meta.pixelDepth;
-        cal.frameInterval = meta.frameInterval;
-        cal.setXUnit(meta.getXUnit());
-        cal.setYUnit(meta.getYUnit());
-        cal.setZUnit(meta.getZUnit());
-        cal.setTimeUnit(meta.getTimeUnit());
+        Calibration cal = getExportCalibration(result, Collections.singletonList(field));
 
         // Do the projection if needed
         if ((this.is_projection) && (result.getNSlices() > 1)) {
@@ -756,12 +1099,6 @@ public class OperettaManager {
             }
             result = zp.getProjection();
         }
-        // Do the calibration for the origin
-        Point point = utils.getTopLeftCoordinatesUm(Collections.singletonList(field));
-
-        cal.xOrigin = point.getDoublePosition(0) / cal.pixelWidth; // That's supposed to be in pixels
-        cal.yOrigin = point.getDoublePosition(1) / cal.pixelHeight;
-
         result.setCalibration(cal);
 
         sw.stop();
@@ -769,6 +1106,141 @@ public class OperettaManager {
         return result;
     }
 
+    /**
+     * Where to read each exported plane of a field. Built once per field, because selecting the series is not
+     * thread safe, after which single planes can be read from any thread with {@link #readFieldPlane}
+     */
+    private static class FieldPlanes {
+        final int series_id;
+        final int width;
+        final int height;
+        final int pixel_type;
+        final boolean little_endian;
+        final boolean do_norm;
+        // Readers which support it are read in parallel through the same instance, the others one TIFF file at a time
+        final ConcurrentPlaneReader plane_reader;
+        // By stack index (1-based) in the exported range, null or -1 when the plane is missing
+        final String[] files;
+        final int[] plane_numbers;
+        final String[] labels;
+
+        FieldPlanes(int series_id, IFormatReader reader, ConcurrentPlaneReader plane_reader, int n) {
+            this.series_id = series_id;
+            this.width = reader.getSizeX();
+            this.height = reader.getSizeY();
+            this.pixel_type = reader.getPixelType();
+            this.little_endian = reader.isLittleEndian();
+            this.do_norm = reader.getBitsPerPixel() != 16;
+            this.plane_reader = plane_reader;
+            this.files = new String[n + 1];
+            this.plane_numbers = new int[n + 1];
+            this.labels = new String[n + 1];
+            Arrays.fill(plane_numbers, -1);
+        }
+    }
+
+    /**
+     * Find the file, and plane number for readers which support concurrent reads, of each plane of the field
+     * which is in the exported range
+     *
+     * @param field  the field to read
+     * @param range2 the confirmed range of the export
+     * @return the planes of the field, by stack index
+     */
+    private FieldPlanes getFieldPlanes(WellSample field, HyperRange range2) {
+        final int series_id = field.getIndex().getValue(); // This is the series ID
+
+        final int row = field.getWell().getRow().getValue();
+        final int column = field.getWell().getColumn().getValue();
+        main_reader.setSeries(series_id);
+
+        // Build filename-to-CZT lookup map from metadata for archive files with UUID names
+        Map<String, int[]> filenameToCZT = buildFilenameToCZTMap(series_id);
+        if (!filenameToCZT.isEmpty()) {
+            range2.setFilenameToCZTMap(filenameToCZT);
+        }
+
+        FieldPlanes planes = new FieldPlanes(series_id, main_reader,
+                unwrapReader(main_reader, ConcurrentPlaneReader.class), range2.getTotalPlanes());
+
+        List<String> files = new ArrayList<>();
+        if (planes.plane_reader != null) {
+            for (int no = 0; no < main_reader.getImageCount(); no++) {
+                files.add(planes.plane_reader.getPlaneFile(series_id, no));
+            }
+        } else {
+            files = Arrays.stream(main_reader.getSeriesUsedFiles(false))
+                    .filter(f -> f.endsWith(".tiff"))
+                    .collect(Collectors.toList());
+        }
+
+        for (int i = 0; i < files.size(); i++) {
+            String file = files.get(i);
+            // Check that we want to open it, infer C Z T from filename
+            if (file != null && range2.includes(file)) {
+                Map<String, Integer> plane_indexes = range2.getIndexes(file);
+                int index = plane_indexes.get("I");
+                planes.files[index] = file;
+                if (planes.plane_reader != null) planes.plane_numbers[index] = i;
+                planes.labels[index] = String.format("R%d-C%d - (c:%d, z:%d, t:%d) - %s", row, column,
+                        plane_indexes.get("C"), plane_indexes.get("Z"), plane_indexes.get("T"), new File(file).getName());
+            }
+        }
+        return planes;
+    }
+
+    /**
+     * Reads a plane of a field, then flips, normalizes, crops and downsamples it
+     *
+     * @param planes    the planes of the field
+     * @param index     the stack index of the plane in the exported range
+     * @param subregion an optional region to crop
+     * @return the plane, or null if it is missing or could not be read
+     */
+    private ImageProcessor readFieldPlane(FieldPlanes planes, int index, Roi subregion) {
+        String file = planes.files[index];
+        if (file == null) return null;
+
+        ImageProcessor ip = null;
+        if (planes.plane_reader != null) {
+            try {
+                byte[] bytes = new byte[planes.width * planes.height * FormatTools.getBytesPerPixel(planes.pixel_type)];
+                planes.plane_reader.openPlane(planes.series_id, planes.plane_numbers[index], bytes, 0, 0, planes.width, planes.height);
+                ip = toImageProcessor(bytes, planes.width, planes.height, planes.pixel_type, planes.little_endian, file);
+            } catch (IOException | FormatException e) {
+                log.error(e.getMessage());
+            }
+        } else {
+            ip = openTiffFileAsImageProcessor(file);
+        }
+
+        if (ip == null) {
+            log.error("Could not open {}", file);
+            return null;
+        }
+
+        if (flip_horizontal) {
+            ip.flipHorizontal();
+        }
+
+        if (flip_vertical) {
+            ip.flipVertical();
+        }
+
+        if (planes.do_norm) {
+            ip.setMinAndMax(norm_min, norm_max);
+            ip = ip.convertToShort(true);
+        }
+
+        if (subregion != null) {
+            ip.setRoi(subregion);
+            ip = ip.crop();
+        }
+
+        // Add option to downsample with averaging
+        return ip.resize(ip.getWidth() / this.downsample, ip.getHeight() / this.downsample, this.use_averaging);
+    }
+
     public List<Channel> getChannels(int fieldIndex, List<Integer> channels){
         List<Channel> chList = new ArrayList<>();
         List<Channel> originalChannels = ((OMEXMLMetadataRoot) metadata.getRoot())
@@ -805,6 +1277,12 @@ public class OperettaManager {
      * @return Map from filename to int[]{c, z, t} (1-based indices)
      */
     private Map<String, int[]> buildFilenameToCZTMap(int imageIndex) {
+        // Readers like HarmonyArchiveReader know it without TiffData elements
+        FilenameToCZTProvider provider = unwrapReader(main_reader, FilenameToCZTProvider.class);
+        if (provider != null) {
+            return provider.getFilenameToCZTMap(imageIndex);
+        }
+
         Map<String, int[]> map = new HashMap<>();
 
         try {
@@ -846,6 +1324,33 @@ public class OperettaManager {
         return map;
     }
 
+    /**
+     * Look for a reader of the given type behind the wrappers (Memoizer, ImageReader) of a reader
+     *
+     * @param reader the reader, as given to the Builder
+     * @param type   the class or interface to look for
+     * @param <T>    the type to look for
+     * @return the actual reader, or null if it is not of the given type
+     */
+    private static <T> T unwrapReader(IFormatReader reader, Class<T> type) {
+        try {
+            while (reader != null) {
+                if (type.isInstance(reader)) {
+                    return type.cast(reader);
+                } else if (reader instanceof ReaderWrapper) {
+                    reader = ((ReaderWrapper) reader).getReader();
+                } else if (reader instanceof ImageReader) {
+                    reader = ((ImageReader) reader).getReader();
+                } else {
+                    return null;
+                }
+            }
+        } catch (FormatException | IOException e) {
+            log.debug("Could not get the actual reader: {}", e.getMessage());
+        }
+        return null;
+    }
+
     /**
      * Internal single tiff plane reader. We assume all tiff images are single
      * plane images that can be 8, 16 or 32 bits.
@@ -860,46 +1365,56 @@ public class OperettaManager {
             // These images have a single plane, so it's always going to be series 0, plane 0
             reader.setSeries(0);
 
-            int width = reader.getSizeX();
-            int height = reader.getSizeY();
             byte[] bytes = reader.openBytes(0);
+            return toImageProcessor(bytes, reader.getSizeX(), reader.getSizeY(), reader.getPixelType(), reader.isLittleEndian(), id);
 
-            // Some amusing operations to get the right ImageProcessor
-            ByteOrder byteOrder = reader.isLittleEndian() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        } catch (IOException | FormatException e) {
+            log.error(e.getMessage());
+            return null;
+        }
+    }
 
-            switch (reader.getPixelType()) {
-                case FormatTools.UINT8:
-                    return new ByteProcessor(width, height, bytes, null);
+    /**
+     * @param bytes        the pixels of a plane, as read by Bio-Formats
+     * @param width        the width of the plane
+     * @param height       the height of the plane
+     * @param pixelType    the Bio-Formats pixel type, 8, 16 or 32 bits
+     * @param littleEndian the byte order of the pixels
+     * @param id           the file of the plane, for error messages
+     * @return an ImageProcessor class corresponding ot he bit depth of the image plane
+     */
+    private static ImageProcessor toImageProcessor(byte[] bytes, int width, int height, int pixelType, boolean littleEndian, String id) {
+        // Some amusing operations to get the right ImageProcessor
+        ByteOrder byteOrder = littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
 
-                case FormatTools.UINT16:
-                    ByteBuffer buffer = ByteBuffer.allocate(width * height * 2);
-                    buffer.put(bytes);
+        switch (pixelType) {
+            case FormatTools.UINT8:
+                return new ByteProcessor(width, height, bytes, null);
 
-                    short[] shorts = new short[width * height];
-                    buffer.flip();
-                    buffer.order(byteOrder).asShortBuffer().get(shorts);
+            case FormatTools.UINT16:
+                ByteBuffer buffer = ByteBuffer.allocate(width * height * 2);
+                buffer.put(bytes);
 
-                    return new ShortProcessor(width, height, shorts, null);
+                short[] shorts = new short[width * height];
+                buffer.flip();
+                buffer.order(byteOrder).asShortBuffer().get(shorts);
 
-                case FormatTools.FLOAT:
-                    ByteBuffer forFloatBuffer = ByteBuffer.allocate(width * height * 4);
-                    forFloatBuffer.put(bytes);
+                return new ShortProcessor(width, height, shorts, null);
 
-                    float[] floats = new float[width * height];
-                    forFloatBuffer.flip();
-                    forFloatBuffer.order(byteOrder).asFloatBuffer().get(floats);
+            case FormatTools.FLOAT:
+                ByteBuffer forFloatBuffer = ByteBuffer.allocate(width * height * 4);
+                forFloatBuffer.put(bytes);
 
-                    return new FloatProcessor(width, height, floats, null);
+                float[] floats = new float[width * height];
+                forFloatBuffer.flip();
+                forFloatBuffer.order(byteOrder).asFloatBuffer().get(floats);
 
-                default:
-                    // DEATH
-                    log.error("No idea what the data type is for image " + id + " : " + reader.getPixelType());
-                    return null;
-            }
+                return new FloatProcessor(width, height, floats, null);
 
-        } catch (IOException | FormatException e) {
-            log.error(e.getMessage());
-            return null;
+            default:
+                // DEATH
+                log.error("No idea what the data type is for image " + id + " : " + pixelType);
+                return null;
         }
     }
 
@@ -955,14 +1470,21 @@ public class OperettaManager {
 
         double percentageCompleteness;
 
+        reportFileValidation();
+
+        OMEZarrPlateWriter zarrWriter = null;
+        CompanionFileGenerator companionFileGenerator = null;
         try {
-            CompanionFileGenerator companionFileGenerator = null;
+            // Keep track of what is exported, so that an interrupted export can be resumed
+            ExportManifest manifest = ExportManifest.open(new File(save_folder, getPlateName() + ".manifest.tsv"), resume, verify_resume);
+            String parametersHash = getExportParametersHash(fields, region);
+
             Map<String, String> globalMetadataMap = new HashMap<>();
             String plateAcquisitionId = "";
 
             if(this.save_as_ome_tiff) {
                 // create the companion generator
-                companionFileGenerator = new CompanionFileGenerator();
+                companionFileGenerator = new CompanionFileGenerator(wells.size());
 
                 // get the global metadata, those which are displayed under the OriginalMetadata tab on OMERO
                 globalMetadataMap = this.main_reader.getGlobalMetadata()
@@ -984,6 +1506,17 @@ public class OperettaManager {
                 // create the plate acquisition object
                 // only one is created, as it is the default working way with Operetta dataset
                 plateAcquisitionId = companionFileGenerator.createPlateAcquisition(null);
+
+                // write the companion file as the wells are exported, instead of keeping all of them in memory
+                companionFileGenerator.startJournal(save_folder.getAbsolutePath(), getPlateName());
+            }
+
+            if (this.save_as_ome_zarr) {
+                Plate plate = getPlate();
+                zarrWriter = new OMEZarrPlateWriter.Builder()
+                        .setPlateName(getPlateName())
+                        .setPlateSize(plate.getRows().getValue(), plate.getColumns().getValue())
+                        .build(new File(save_folder, getPlateName() + ".ome.zarr"));
             }
 
             for (Well well : wells) {
@@ -1002,7 +1535,7 @@ public class OperettaManager {
                     well_fields = fields.stream().map(well::getWellSample).collect(Collectors.toList());
                 } else {
                     // Get the samples associates with the current well, by index
-                    well_fields = well.copyWellSampleList();
+                    well_fields = getFields(well);
                 }
 
                 // Work on each field independently
@@ -1029,10 +1562,33 @@ public class OperettaManager {
                             }
                             iField.incrementAndGet();
                             IJ.log("\t - Field " + field.getID() + " (" + iField + "/" + well_fields.size() + ")");//);
-                            ImagePlus field_image = getFieldImage(field, null);
                             String name = getFieldImageName(field);
-                            if (field_image != null)
-                                IJ.saveAsTiff(field_image, new File(save_folder, name + ".tif").getAbsolutePath());
+                            int fieldIndex = getPlateIndex().getPositionInWell(field);
+                            File output = zarrWriter != null
+                                    ? zarrWriter.getImageFolder(well.getRow().getValue(), well.getColumn().getValue(), fieldIndex)
+                                    : new File(save_folder, name + ".tif");
+
+                            if (resume && manifest.isValid(output, parametersHash)) {
+                                IJ.log("\t   Already exported, skipped");
+                                if (zarrWriter != null) {
+                                    zarrWriter.addExistingImage(well.getRow().getValue(), well.getColumn().getValue(), fieldIndex);
+                                }
+                            } else {
+                                ExportedImage exported_image = null;
+                                if (zarrWriter != null) {
+                                    // The field is written plane by plane, without building it in memory
+                                    exported_image = writeFieldImage(field, zarrWriter, fieldIndex);
+                                } else {
+                                    ImagePlus field_image = getFieldImage(field, null);
+                                    if (field_image != null) {
+                                        IJ.saveAsTiff(field_image, output.getAbsolutePath());
+                                        exported_image = new ExportedImage(field_image);
+                                    }
+                                }
+                                if (exported_image != null) {
+                                    manifest.add(createManifestRecord(manifest, output, parametersHash, well, field.getIndex().getValue(), exported_image));
+                                }
+                            }
                             percentageCompleteness = (iWell.get() / (double) wells.size() + iField.get() / (double) (well_fields.size() * wells.size())) * 100;
                             utils.printTimingMessage(global_start, percentageCompleteness);
                             if (taskField != null) taskField.setProgressValue(iField.get());
@@ -1051,72 +1607,82 @@ public class OperettaManager {
                         }
                     }
                 } else {
-                    // Need to give all the fields, otherwise we will get the origin wrong
-                    ImagePlus well_image = this.getWellImage(well, well_fields, region);
                     String name = FilenameUtils.removeExtension(getWellImageName(well));
+                    int serieId = well_fields.get(0).getIndex().getValue();
 
-                    if (well_image != null) {
-                        if(this.save_as_ome_tiff) {
-                            // save the fused image as ome-tiff pyramidal file
-                            saveAsOMETIFF(well_image, save_folder.getAbsolutePath());
-
-                            // load the calibration and other pixel/imagePlus information necessary to build the companion
-                            PixelType pixelType;
-                            switch (well_image.getType()) {
-                                case (ImagePlus.COLOR_RGB):
-                                case (ImagePlus.COLOR_256):
-                                case (ImagePlus.GRAY8):
-                                    pixelType = PixelType.UINT8;
-                                    break;
-                                case (ImagePlus.GRAY16):
-                                    pixelType = PixelType.UINT16;
-                                    break;
-                                case (ImagePlus.GRAY32):
-                                    pixelType = PixelType.FLOAT;
-                                    break;
-                                default:
-                                    throw new IllegalArgumentException("Unknown ImagePlus type " + well_image.getType());
-                            }
+                    // The outputs of this well, depending on the selected formats
+                    List<File> outputs = new ArrayList<>();
+                    if (zarrWriter != null) {
+                        outputs.add(zarrWriter.getImageFolder(well.getRow().getValue(), well.getColumn().getValue(), 0));
+                    }
+                    File omeTiffFile = new File(save_folder, name + ".ome.tiff");
+                    if (this.save_as_ome_tiff) {
+                        outputs.add(omeTiffFile);
+                    } else if (zarrWriter == null) {
+                        outputs.add(new File(save_folder, name + ".tif"));
+                    }
+
+                    boolean exported = resume;
+                    for (File output : outputs) {
+                        exported = exported && manifest.isValid(output, parametersHash);
+                    }
 
-                            Calibration cal = well_image.getCalibration();
-
-                            // create the well object
-                            WellCompanion wellCompanion = new WellCompanion.Builder()
-                                    .setRow(well.getRow().getValue())
-                                    .setColumn(well.getColumn().getValue())
-                                    .build();
-                            String wellId = companionFileGenerator.addWell(wellCompanion);
-
-                            // get and set the current instrument
-                            Instrument instrument = getInstrument(0);
-                            String instrumentId = companionFileGenerator.setInstrument(instrument);
-
-                            // create the image object
-                            int serieId = well_fields.get(0).getIndex().getValue();
-                            ImageCompanion imageCompanion = new ImageCompanion.Builder()
-                                    .setName(name + ".ome.tiff")
-                                    .addGlobalMetadata(globalMetadataMap)
-                                    .setPixelSizeX(new Length(cal.pixelWidth, UNITS.MICROMETER))
-                                    .setPixelSizeY(new Length(cal.pixelHeight, UNITS.MICROMETER))
-                                    .setDimensionOrder(getDimensionOrder(serieId))
-                                    .setPixelType(pixelType)
-                                    .setSizeC(well_image.getNChannels())
-                                    .addChannels(getChannels(serieId, this.range.getRangeC()))
-                                    .setSizeT(well_image.getNFrames())
-                                    .setSizeZ(well_image.getNSlices())
-                                    .setSizeY(well_image.getHeight())
-                                    .setSizeX(well_image.getWidth())
-                                    .setObjectiveSettings(getObjectiveSettings(serieId))
-                                    .setInstrument(instrument)
-                                    .setAcquisitionDate(getAcquisitionDate(serieId))
-                                    .build();
-                            companionFileGenerator.addImage(imageCompanion, wellId, plateAcquisitionId);
+                    if (exported) {
+                        IJ.log("\t Already exported, skipped");
+                        if (zarrWriter != null) {
+                            zarrWriter.addExistingImage(well.getRow().getValue(), well.getColumn().getValue(), 0);
+                        }
+                        if (this.save_as_ome_tiff) {
+                            // The companion file must still describe this well
+                            ExportManifest.Record record = manifest.get(omeTiffFile);
+                            addToCompanion(companionFileGenerator, plateAcquisitionId, globalMetadataMap, well, serieId,
+                                    omeTiffFile.getName(), PixelType.fromString(record.getPixelType()),
+                                    record.getPixelWidth(), record.getPixelHeight(),
+                                    record.getSizeX(), record.getSizeY(), record.getSizeZ(), record.getSizeC(), record.getSizeT());
                         }
-                        else {
-                            IJ.saveAsTiff(well_image, new File(save_folder, name + ".tif").getAbsolutePath());
+                    } else {
+                        ExportedImage exported_image = null;
+                        if ((this.save_as_ome_tiff || zarrWriter != null) && !this.use_stitcher) {
+                            // The fused well is written plane by plane, without building it in memory
+                            exported_image = writeWellImage(well, well_fields, region,
+                                    this.save_as_ome_tiff ? omeTiffFile : null, zarrWriter);
+                        } else {
+                            // Need to give all the fields, otherwise we will get the origin wrong
+                            ImagePlus well_image = this.getWellImage(well, well_fields, region);
+
+                            if (well_image != null) {
+                                if (zarrWriter != null) {
+                                    zarrWriter.writeImage(well_image, well.getRow().getValue(), well.getColumn().getValue(), 0);
+                                }
+                                if (this.save_as_ome_tiff) {
+                                    // save the fused image as ome-tiff pyramidal file
+                                    saveAsOMETIFF(well_image, omeTiffFile);
+                                } else if (zarrWriter == null) {
+                                    IJ.saveAsTiff(well_image, outputs.get(0).getAbsolutePath());
+                                }
+                                exported_image = new ExportedImage(well_image);
+                            }
+                        }
+
+                        if (exported_image != null) {
+                            for (File output : outputs) {
+                                manifest.add(createManifestRecord(manifest, output, parametersHash, well, serieId, exported_image));
+                            }
+
+                            if (this.save_as_ome_tiff) {
+                                // the calibration and other pixel information necessary to build the companion
+                                addToCompanion(companionFileGenerator, plateAcquisitionId, globalMetadataMap, well, serieId,
+                                        omeTiffFile.getName(), getPixelType(exported_image.bit_depth),
+                                        exported_image.cal.pixelWidth, exported_image.cal.pixelHeight,
+                                        exported_image.width, exported_image.height, exported_image.n_slices,
+                                        exported_image.n_channels, exported_image.n_frames);
+                            }
                         }
                     }
                 }
+                if (companionFileGenerator != null) {
+                    companionFileGenerator.flush();
+                }
                 Instant ends = Instant.now();
                 IJ.log(" - Well processed in " + Duration.between(well_start, ends).getSeconds() + " s.");
                 iWell.incrementAndGet();
@@ -1135,6 +1701,21 @@ public class OperettaManager {
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            if (companionFileGenerator != null) {
+                // a cancelled or failed export still gets the companion file of the wells that were exported
+                try {
+                    companionFileGenerator.closeJournal();
+                } catch (IOException e) {
+                    log.error("Could not finalize the companion file", e);
+                }
+            }
+            if (zarrWriter != null) {
+                try {
+                    zarrWriter.close();
+                } catch (IOException e) {
+                    log.error("Could not finalize the OME-Zarr plate", e);
+                }
+            }
             if (taskWell != null) {
                 taskWell.finish();
             }
@@ -1145,31 +1726,150 @@ public class OperettaManager {
     }
 
     /**
-     * convert the ImagePlus into OME-TIFF with kheops
+     * Write the ImagePlus as a pyramidal OME-TIFF file.
+     * The file name is given explicitly so that it matches the one referenced in the companion file,
+     * whatever the title of the image is (Z projections are renamed by ImageJ).
+     * Only used for stitched wells, which are built in memory anyway, otherwise see {@link #writeWellImage}
      *
      * @param wellImage the imagePlus to convert
-     * @param savingPath destination folder path
+     * @param file destination file
+     */
+    private void saveAsOMETIFF(ImagePlus wellImage, File file) {
+        try {
+            new PyramidalOMETiffWriter.Builder()
+                    .setTileSize(512)
+                    .compress(true)
+                    .build()
+                    .write(wellImage, file);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Describe an exported fused well in the companion file
      */
-    private void saveAsOMETIFF(ImagePlus wellImage, String savingPath){
+    private void addToCompanion(CompanionFileGenerator companionFileGenerator, String plateAcquisitionId,
+                                Map<String, String> globalMetadataMap, Well well, int serieId, String fileName,
+                                PixelType pixelType, double pixelWidth, double pixelHeight,
+                                int sizeX, int sizeY, int sizeZ, int sizeC, int sizeT) {
+        // create the well object
+        WellCompanion wellCompanion = new WellCompanion.Builder()
+                .setRow(well.getRow().getValue())
+                .setColumn(well.getColumn().getValue())
+                .build();
+        String wellId = companionFileGenerator.addWell(wellCompanion);
+
+        // get and set the current instrument
+        Instrument instrument = getInstrument(0);
+        companionFileGenerator.setInstrument(instrument);
+
+        // create the image object
+        ImageCompanion imageCompanion = new ImageCompanion.Builder()
+                .setName(fileName)
+                .addGlobalMetadata(globalMetadataMap)
+                .setPixelSizeX(new Length(pixelWidth, UNITS.MICROMETER))
+                .setPixelSizeY(new Length(pixelHeight, UNITS.MICROMETER))
+                .setDimensionOrder(getDimensionOrder(serieId))
+                .setPixelType(pixelType)
+                .setSizeC(sizeC)
+                .addChannels(getChannels(serieId, this.range.getRangeC()))
+                .setSizeT(sizeT)
+                .setSizeZ(sizeZ)
+                .setSizeY(sizeY)
+                .setSizeX(sizeX)
+                .setObjectiveSettings(getObjectiveSettings(serieId))
+                .setInstrument(instrument)
+                .setAcquisitionDate(getAcquisitionDate(serieId))
+                .build();
+        companionFileGenerator.addImage(imageCompanion, wellId, plateAcquisitionId);
+    }
+
+    private static PixelType getPixelType(int bitDepth) {
+        switch (bitDepth) {
+            case 8:
+            case 24:
+                return PixelType.UINT8;
+            case 16:
+                return PixelType.UINT16;
+            case 32:
+                return PixelType.FLOAT;
+            default:
+                throw new IllegalArgumentException("Unknown bit depth " + bitDepth);
+        }
+    }
+
+    private ExportManifest.Record createManifestRecord(ExportManifest manifest, File output, String parametersHash,
+                                                       Well well, int serieId, ExportedImage image) throws IOException {
+        return new ExportManifest.Record.Builder(output, parametersHash)
+                .setWell(well.getRow().getValue(), well.getColumn().getValue())
+                .setSeries(serieId)
+                .setDimensions(image.width, image.height, image.n_slices, image.n_channels, image.n_frames)
+                .setPixelType(getPixelType(image.bit_depth).getValue())
+                .setPixelSize(image.cal.pixelWidth, image.cal.pixelHeight)
+                .build(manifest);
+    }
 
-       if (ctx ==  null){
-           throw new RuntimeException("Scijava context not set, cannot save as ome tiff");
-       }
+    /**
+     * Dimensions of an exported image, for the manifest and the companion file, whether the image
+     * was built in memory or written plane by plane
+     */
+    private static class ExportedImage {
+        final int width;
+        final int height;
+        final int n_slices;
+        final int n_channels;
+        final int n_frames;
+        final int bit_depth;
+        final Calibration cal;
+
+        ExportedImage(int width, int height, int n_slices, int n_channels, int n_frames, int bit_depth, Calibration cal) {
+            this.width = width;
+            this.height = height;
+            this.n_slices = n_slices;
+            this.n_channels = n_channels;
+            this.n_frames = n_frames;
+            this.bit_depth = bit_depth;
+            this.cal = cal;
+        }
 
-       CommandService cs = ctx.getService(CommandService.class);
+        ExportedImage(ImagePlus image) {
+            this(image.getWidth(), image.getHeight(), image.getNSlices(), image.getNChannels(), image.getNFrames(),
+                    image.getBitDepth(), image.getCalibration());
+        }
+    }
 
+    /**
+     * Summarizes all the parameters that change the exported images, so that outputs of a previous export
+     * are only reused when they were produced with the same settings
+     *
+     * @param fields the selected field ids, or null for all of them
+     * @param region the exported region, or null
+     * @return a hash of the export parameters
+     */
+    private String getExportParametersHash(List<Integer> fields, Roi region) {
+        // the selected fields make up the fused wells, in any order
+        String field_selection = "all";
+        if (fields != null) {
+            List<Integer> sorted_fields = new ArrayList<>(fields);
+            Collections.sort(sorted_fields);
+            field_selection = sorted_fields.toString();
+        }
+        String parameters = String.format(Locale.US,
+                "downsample=%d;averaging=%b;C=%s;Z=%s;T=%s;norm=%f,%f;flip=%b,%b;projection=%b,%d;correction=%f;fuse=%b;stitcher=%b;ometiff=%b;omezarr=%b;region=%s;fields=%s",
+                downsample, use_averaging, range.getRangeC(), range.getRangeZ(), range.getRangeT(),
+                norm_min, norm_max, flip_horizontal, flip_vertical, is_projection, projection_type, correction_factor,
+                fuse_fields, use_stitcher, save_as_ome_tiff, save_as_ome_zarr,
+                region == null ? "none" : region.getBounds().toString(), field_selection);
         try {
-            cs.run(KheopsExportImagePlusCommand.class, true,
-                    "image", wellImage,
-                    "output_dir", savingPath,
-                    "compression", "LZW",
-                    "subset_channels","",
-                    "subset_slices","",
-                    "subset_frames","",
-                    "message","",
-                    "compress_temp_files",false).get();
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException(e);
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(parameters.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(parameters.hashCode());
         }
     }
 
@@ -1195,6 +1895,7 @@ public class OperettaManager {
         dataInfo += String.format("\t- Use averaging when downsampling: %b\n", use_averaging);
 
         dataInfo += String.format("- Fusing fields: %b\n- Use Grid/Collection Stitching for fusion: %b\n\n", this.fuse_fields, this.use_stitcher);
+        dataInfo += String.format("- Save as OME-TIFF: %b\n- Save as OME-Zarr plate: %b\n- Resume previous export: %b\n\n", this.save_as_ome_tiff, this.save_as_ome_zarr, this.resume);
         dataInfo += String.format("- Tile position correction factor: %.2f\n\t- Horizontal camera flip: %b\n\t- Vertical camera flip: %b\n\t", this.correction_factor, this.flip_horizontal, this.flip_vertical);
         dataInfo += String.format("- 32-bit Digital Phase Contrast image normalization\n\t\t- Min: %.2f\n\t\t- Max: %.2f\n\n", this.norm_min, this.norm_max);
 
@@ -1261,39 +1962,111 @@ public class OperettaManager {
         if (bounds == null) return fields;
         log.info("Looking for samples intersecting with {}, ", bounds);
 
-        Point topLeftCoordinates = utils.getTopLeftCoordinates(fields);
+        long[] top_left = getFieldCoordinates().getBoundsPx(fields);
 
-        if (topLeftCoordinates == null) {
+        if (top_left == null) {
             log.error("No coordinates found for fields " + fields.toString() + " -> returning all fields.");
             return fields;
         }
 
-        List<WellSample> selected = fields.stream().filter(s -> {
+        Rectangle region = bounds.getBounds();
+        List<WellSample> selected;
+        Well well = getCommonWell(fields);
+        if (well != null) {
+            // Fields of a single well: spatial index
+            selected = getFieldGrid().queryInWell(well, fields, top_left, region.x, region.y, region.width, region.height);
+        } else {
+            selected = fields.stream().filter(s -> {
 
-            int sample_id = s.getIndex().getValue();
+                int sample_id = s.getIndex().getValue();
 
-            Long pX = utils.getUncalibratedPositionX(s);
-            if (pX == null) return false;
+                Long pX = utils.getUncalibratedPositionX(s);
+                if (pX == null) return false;
 
-            Long pY = utils.getUncalibratedPositionY(s);
-            if (pY == null) return false;
+                Long pY = utils.getUncalibratedPositionY(s);
+                if (pY == null) return false;
 
-            long x = pX - topLeftCoordinates.getLongPosition(0);
-            long y = pY - topLeftCoordinates.getLongPosition(1);
-            int w = metadata.getPixelsSizeX(sample_id).getValue();
-            int h = metadata.getPixelsSizeY(sample_id).getValue();
+                long x = pX - top_left[0];
+                long y = pY - top_left[1];
+                int w = metadata.getPixelsSizeX(sample_id).getValue();
+                int h = metadata.getPixelsSizeY(sample_id).getValue();
 
-            Roi other = new Roi(x, y, w, h);
+                Roi other = new Roi(x, y, w, h);
 
-            return utils.isOverlapping(bounds, other);
+                return utils.isOverlapping(bounds, other);
 
-        }).collect(Collectors.toList());
+            }).collect(Collectors.toList());
+        }
         //imp.show();
         // Sort through them
         IJ.log("Selected Samples: " + selected);
         return selected;
     }
 
+    /**
+     * @return the well of all the fields if they belong to a single well of the spatial index, otherwise null
+     */
+    private Well getCommonWell(List<WellSample> fields) {
+        if (fields.isEmpty()) return null;
+        PlateIndex index = getPlateIndex();
+        Well well = null;
+        for (WellSample field : fields) {
+            if (field.getIndex() == null || index.getField(field.getIndex().getValue()) != field) return null;
+            Well field_well = index.getSeriesWell(field.getIndex().getValue());
+            if (well == null) {
+                well = field_well;
+            } else if (field_well != well) {
+                return null;
+            }
+        }
+        return well != null && getFieldGrid().contains(well) ? well : null;
+    }
+
+    /**
+     * Finds the fields of all the wells which intersect a region of the plate. Field positions are relative to their
+     * well, so in plate coordinates the wells are laid out on a regular grid: the well at row r and column c starts at
+     * (c * W, r * H), W and H being the size of the largest well, and within it the fields are placed as in the image
+     * returned by {@link #getWellImage(Well)}, see {@link #getWellPlateOrigin(Well)}.
+     *
+     * @param region the region, in plate pixel coordinates
+     * @return the intersecting fields of each well, for the wells with at least one such field, in plate order
+     */
+    public Map<Well, List<WellSample>> getFieldsInPlateRegion(Roi region) {
+        Rectangle r = region.getBounds();
+        return getFieldGrid().queryByWell(r.x, r.y, r.width, r.height);
+    }
+
+    /**
+     * Same as {@link #getFieldsInPlateRegion(Roi)}, with a region in plate micrometer coordinates
+     *
+     * @param x      the left of the region, in micrometers
+     * @param y      the top of the region, in micrometers
+     * @param width  the width of the region, in micrometers
+     * @param height the height of the region, in micrometers
+     * @return the intersecting fields of each well, for the wells with at least one such field, in plate order
+     */
+    public Map<Well, List<WellSample>> getFieldsInPlateRegionUm(double x, double y, double width, double height) {
+        // same conversion as the field positions
+        double scale = correction_factor / px_size.value(UNITS.MICROMETER).doubleValue();
+        long px = (long) Math.floor(x * scale);
+        long py = (long) Math.floor(y * scale);
+        long pw = (long) Math.ceil((x + width) * scale) - px;
+        long ph = (long) Math.ceil((y + height) * scale) - py;
+        return getFieldGrid().queryByWell(px, py, pw, ph);
+    }
+
+    /**
+     * Position of a well in the plate coordinates of {@link #getFieldsInPlateRegion(Roi)}: a region of the well image
+     * returned by {@link #getWellImage(Well)} is at this origin plus its position in the well image
+     *
+     * @param well the well
+     * @return the top left corner of the well in plate pixel coordinates, or null if its fields have no position
+     */
+    public Point getWellPlateOrigin(Well well) {
+        long[] origin = getFieldGrid().getWellOrigin(well);
+        return origin == null ? null : new Point(origin[0], origin[1]);
+    }
+
     /**
      * This determines the bounds of an ROI for a single field, for the export
      *
@@ -1375,6 +2148,7 @@ public class OperettaManager {
         private File save_folder = new File(System.getProperty("user.home"));
 
         private IFormatReader reader = null;
+        private MemoCache memo_cache = null;
 
         private boolean flip_horizontal = false;
         private boolean flip_vertical = false;
@@ -1384,6 +2158,13 @@ public class OperettaManager {
         private boolean is_fuse_fields = false;
         private boolean is_use_stitcher = false;
         private boolean save_as_ome_tiff = false;
+        private boolean save_as_ome_zarr = false;
+        private boolean resume = false;
+        private boolean verify_resume = false;
+        private boolean validate_files = false;
+        private boolean use_index_reader = false;
+        private DatasetFilter dataset_filter = null;
+        private OpeningListener opening_listener = null;
         private StitchingParameters stitching_parameters = null;
         private boolean use_averaging = false;
 
@@ -1418,6 +2199,84 @@ public class OperettaManager {
             return this;
         }
 
+        /**
+         * Export the wells and fields into a single OME-Zarr plate (NGFF high content screening layout)
+         * named after the plate, in the save folder, instead of individual TIFF files.
+         * Works with or without fusing the fields.
+         *
+         * @param save_as_ome_zarr true to write an OME-Zarr plate
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder saveAsOMEZarr(boolean save_as_ome_zarr) {
+            this.save_as_ome_zarr = save_as_ome_zarr;
+            return this;
+        }
+
+        /**
+         * Resume a previous export into the same save folder. Every export keeps a manifest of the images
+         * it completed in the save folder, the images which are listed there, were exported with the same parameters
+         * and were not modified since, are skipped. The companion file still describes all the wells.
+         *
+         * @param resume true to skip the images already exported
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder resume(boolean resume) {
+            this.resume = resume;
+            return this;
+        }
+
+        /**
+         * When resuming, read the images of the previous export back to compare their checksums with the manifest.
+         * By default, only their size and modification time are compared, which does not read them.
+         *
+         * @param verify_resume true to verify the checksums of the images already exported
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder verifyResumedImages(boolean verify_resume) {
+            this.verify_resume = verify_resume;
+            return this;
+        }
+
+        /**
+         * Check that all the files of the dataset exist and are valid TIFF files, in background threads started
+         * right after the reader is opened. The data can be browsed meanwhile, and the summary of the validation
+         * is logged before an export starts. Only applies to datasets opened through a companion file.
+         *
+         * @param validate_files true to validate the files in the background
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder validateFiles(boolean validate_files) {
+            this.validate_files = validate_files;
+            return this;
+        }
+
+        /**
+         * Open Index.idx.xml and Index.xml files with the {@link HarmonyIndexReader}, which reads the index in a
+         * single streaming pass, instead of the Bio-Formats OperettaReader. Much faster for large plates and long
+         * time-lapses. Only used when the reader is created from the id.
+         *
+         * @param use_index_reader true to use the streaming index reader
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder useStreamingIndexReader(boolean use_index_reader) {
+            this.use_index_reader = use_index_reader;
+            return this;
+        }
+
+        /**
+         * Open only some wells, fields or time points of the dataset. The other images are skipped while the index
+         * is read, so the metadata and the memo file only cover the subset, which has its own memo file.
+         * Index files are then opened with the {@link HarmonyIndexReader}, archives with the HarmonyArchiveReader.
+         * Only used when the reader is created from the id.
+         *
+         * @param dataset_filter the subset to open, or null to open the whole dataset
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setDatasetFilter(DatasetFilter dataset_filter) {
+            this.dataset_filter = dataset_filter;
+            return this;
+        }
+
         /**
          * Flip the individual tiles Horizontally.
          * This information is encoded by PerkinElmer in a transformation matrix
@@ -1504,6 +2363,20 @@ public class OperettaManager {
             return this;
         }
 
+        /**
+         * Keep the memo file of the dataset in a shared cache directory instead of next to the dataset,
+         * which is needed when the dataset is on a read-only share. Only used when the reader is created
+         * from the id.
+         *
+         * @param memo_cache the memo cache, or null to write the memo file next to the dataset
+         * @return a Builder object, to continue building parameters
+         * @see MemoCache
+         */
+        public Builder setMemoCache(MemoCache memo_cache) {
+            this.memo_cache = memo_cache;
+            return this;
+        }
+
         /**
          * Can provide a range (Channels, Slices and Time points) to use for export. If none are provided, will
          * export the full range of the data
@@ -1605,7 +2478,8 @@ public class OperettaManager {
                 try {
                     // Create the reader
                     if (reader == null) {
-                        reader = createReader(id.getAbsolutePath());
+                        reader = createReader(id.getAbsolutePath(), memo_cache,
+                                use_index_reader || dataset_filter != null, dataset_filter, opening_listener);
                     }
                 } catch (Exception e) {
                     log.error("Issue when creating reader for file {}", id);
@@ -1644,39 +2518,252 @@ public class OperettaManager {
                         this.is_fuse_fields,
                         this.is_use_stitcher,
                         this.save_as_ome_tiff,
+                        this.save_as_ome_zarr,
+                        this.resume,
+                        this.verify_resume,
+                        this.validate_files,
                         this.stitching_parameters,
                         this.ctx);
         }
 
+        /**
+         * Build the OperettaManager in a background thread, so that the caller can show the plate while the index
+         * is read. The listener gets the plate layout, then each well as soon as its images are read, when the
+         * dataset is opened with a {@link ProgressiveReader} (the {@link HarmonyIndexReader} or the
+         * HarmonyArchiveReader); other readers only complete the future.
+         *
+         * @param listener notified while the index is read, or null
+         * @return the OperettaManager, once the whole dataset is opened. Completed exceptionally if it could not be
+         * opened
+         */
+        public CompletableFuture<OperettaManager> buildAsync(OpeningListener listener) {
+            this.opening_listener = listener;
+            return runInBackground(() -> {
+                OperettaManager manager = build();
+                if (manager == null) {
+                    throw new IOException("Could not open the Operetta dataset " + id);
+                }
+                return manager;
+            });
+        }
+
+        /**
+         * Same as {@link #createReader(String, MemoCache, boolean, DatasetFilter, OpeningListener)}, in a background
+         * thread
+         *
+         * @return the reader, once the whole dataset is opened
+         */
+        public static CompletableFuture<IFormatReader> createReaderAsync(final String id, final MemoCache memo_cache,
+                                                                         final boolean use_index_reader,
+                                                                         final DatasetFilter dataset_filter,
+                                                                         final OpeningListener listener) {
+            return runInBackground(() -> createReader(id, memo_cache, use_index_reader, dataset_filter, listener));
+        }
+
+        private static <T> CompletableFuture<T> runInBackground(Callable<T> task) {
+            ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Operetta dataset opening");
+                thread.setDaemon(true);
+                return thread;
+            });
+            CompletableFuture<T> future = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return task.call();
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+            future.whenComplete((result, error) -> executor.shutdown());
+            return future;
+        }
+
         /**
          * Initializes the reader for this series and makes sure to use Memoization
          *
-         * @param id the String path to the xml file
+         * @param id the String path to the xml file, companion file or IMAGES.sqlite file of an archive
          * @return a BioFormats Reader with memoization
          * @throws IOException     an error while reading the data
          * @throws FormatException and error regarding the data's format
          */
         public static IFormatReader createReader(final String id) throws IOException, FormatException {
+            return createReader(id, null);
+        }
+
+        /**
+         * Initializes the reader for this series and makes sure to use Memoization
+         *
+         * @param id         the String path to the xml file, companion file or IMAGES.sqlite file of an archive
+         * @param memo_cache the shared directory where the memo file is kept, or null to keep it next to the dataset
+         * @return a BioFormats Reader with memoization
+         * @throws IOException     an error while reading the data
+         * @throws FormatException and error regarding the data's format
+         */
+        public static IFormatReader createReader(final String id, final MemoCache memo_cache) throws IOException, FormatException {
+            return createReader(id, memo_cache, false);
+        }
+
+        /**
+         * Initializes the reader for this series and makes sure to use Memoization
+         *
+         * @param id               the String path to the xml file, companion file or IMAGES.sqlite file of an archive
+         * @param memo_cache       the shared directory where the memo file is kept, or null to keep it next to the dataset
+         * @param use_index_reader true to open Operetta index files with the {@link HarmonyIndexReader}
+         * @return a BioFormats Reader with memoization
+         * @throws IOException     an error while reading the data
+         * @throws FormatException and error regarding the data's format
+         */
+        public static IFormatReader createReader(final String id, final MemoCache memo_cache, final boolean use_index_reader) throws IOException, FormatException {
+            return createReader(id, memo_cache, use_index_reader, null);
+        }
+
+        /**
+         * Initializes the reader for this series and makes sure to use Memoization
+         *
+         * @param id               the String path to the xml file, companion file or IMAGES.sqlite file of an archive
+         * @param memo_cache       the shared directory where the memo file is kept, or null to keep it next to the dataset
+         * @param use_index_reader true to open Operetta index files with the {@link HarmonyIndexReader}
+         * @param dataset_filter   the subset of the dataset to open, or null to open all of it. Only readers
+         *                         implementing {@link SubsetReader} can open a subset, the others open everything
+         * @return a BioFormats Reader with memoization
+         * @throws IOException     an error while reading the data
+         * @throws FormatException and error regarding the data's format
+         */
+        public static IFormatReader createReader(final String id, final MemoCache memo_cache, final boolean use_index_reader,
+                                                 final DatasetFilter dataset_filter) throws IOException, FormatException {
+            return createReader(id, memo_cache, use_index_reader, dataset_filter, null);
+        }
+
+        /**
+         * Initializes the reader for this series and makes sure to use Memoization
+         *
+         * @param id               the String path to the xml file, companion file or IMAGES.sqlite file of an archive
+         * @param memo_cache       the shared directory where the memo file is kept, or null to keep it next to the dataset
+         * @param use_index_reader true to open Operetta index files with the {@link HarmonyIndexReader}
+         * @param dataset_filter   the subset of the dataset to open, or null to open all of it
+         * @param listener         notified of the plate layout and of the wells while the index is read, by readers
+         *                         implementing {@link ProgressiveReader}, or null
+         * @return a BioFormats Reader with memoization
+         * @throws IOException     an error while reading the data
+         * @throws FormatException and error regarding the data's format
+         */
+        public static IFormatReader createReader(final String id, final MemoCache memo_cache, final boolean use_index_reader,
+                                                 final DatasetFilter dataset_filter, final OpeningListener listener)
+                throws IOException, FormatException {
             log.debug("Getting new reader for " + id);
-            ClassList<IFormatReader> readers =
-                    ImageReader.getDefaultReaderClasses();
-            readers.addClass(LazyOMETiffReader.class);
-            readers.removeClass(OMETiffReader.class);
-            readers.removeClass(OMEXMLReader.class);
-            IFormatReader reader = new ImageReader(readers);
+            ImageReader reader = new ImageReader(getReaderClasses(id, use_index_reader));
             reader.setFlattenedResolutions(false); // For compatibility with bdv-playground
-            Memoizer memo = new Memoizer(reader);
+            if (listener != null) {
+                for (IFormatReader r : reader.getReaders()) {
+                    if (r instanceof ProgressiveReader) {
+                        ((ProgressiveReader) r).setOpeningListener(listener);
+                    }
+                }
+            }
+            String variant = null;
+            if (dataset_filter != null) {
+                for (IFormatReader r : reader.getReaders()) {
+                    if (r instanceof SubsetReader) {
+                        ((SubsetReader) r).setDatasetFilter(dataset_filter);
+                    }
+                }
+                variant = dataset_filter.getKey();
+                log.info("Opening the subset of " + id + ": " + dataset_filter);
+            }
+            Memoizer memo;
+            if (memo_cache != null) {
+                memo = memo_cache.wrap(reader, variant);
+            } else if (variant != null) {
+                memo = new SubsetMemoizer(reader, variant);
+            } else {
+                memo = new Memoizer(reader);
+            }
             IMetadata omeMetaIdxOmeXml = MetadataTools.createOMEXMLMetadata();
             memo.setMetadataStore(omeMetaIdxOmeXml);
             log.debug("setId for reader " + id);
             org.apache.commons.lang.time.StopWatch watch = new org.apache.commons.lang.time.StopWatch();
             watch.start();
             memo.setId(id);
+            if (memo_cache != null) {
+                memo_cache.update(id, variant);
+            }
+            if (dataset_filter != null && unwrapReader(memo, SubsetReader.class) == null) {
+                log.warn("The reader of " + id + " cannot open a subset, the whole dataset was opened");
+            }
             watch.stop();
             log.debug("id set in " + (int) (watch.getTime() / 1000L) + " s");
             return memo;
         }
 
+        /**
+         * Readers to try for a file. Operetta index files, lazy companion files and archive databases are recognized
+         * from their name and only get their own reader, so that the type checks of the ~150 other readers are skipped.
+         *
+         * @param id the String path to the file to open
+         * @return the readers to give to the ImageReader
+         */
+        static ClassList<IFormatReader> getReaderClasses(final String id) {
+            return getReaderClasses(id, false);
+        }
+
+        /**
+         * Readers to try for a file, see {@link #getReaderClasses(String)}
+         *
+         * @param id               the String path to the file to open
+         * @param use_index_reader true to open Index.idx.xml and Index.xml files with the {@link HarmonyIndexReader}
+         * @return the readers to give to the ImageReader
+         */
+        static ClassList<IFormatReader> getReaderClasses(final String id, final boolean use_index_reader) {
+            IFormatReader fast_reader = null;
+            String name = new File(id).getName();
+            if (use_index_reader && (name.equals(XMLFILE.V5.getIndexFileName())
+                    || name.equals(XMLFILE.V6.getIndexFileName()))) {
+                fast_reader = new HarmonyIndexReader();
+            } else if (name.equals(XMLFILE.V5.getIndexFileName()) || name.equals(XMLFILE.V5FLEX.getIndexFileName())
+                    || name.equals(XMLFILE.V6.getIndexFileName())) {
+                fast_reader = new OperettaReader();
+            } else if (name.endsWith(LazyOMETiffReader.LAZY_SUFFIX)) {
+                fast_reader = new LazyOMETiffReader();
+            } else if (name.equals(XMLFILE.ARCHIVE.getIndexFileName())) {
+                fast_reader = new HarmonyArchiveReader();
+            }
+
+            // The reader still has to accept the file, otherwise all readers are tried as usual
+            if (fast_reader != null && fast_reader.isThisType(id, false)) {
+                ClassList<IFormatReader> readers = new ClassList<>(IFormatReader.class);
+                readers.addClass(fast_reader.getClass());
+                return readers;
+            }
+
+            ClassList<IFormatReader> readers = ImageReader.getDefaultReaderClasses();
+            readers.addClass(LazyOMETiffReader.class);
+            readers.addClass(HarmonyArchiveReader.class);
+            readers.removeClass(OMETiffReader.class);
+            readers.removeClass(OMEXMLReader.class);
+            return readers;
+        }
+
+        /**
+         * Memoizer of a subset of a dataset: the key of the subset is added to the name of the memo file, next to
+         * the dataset, so that each subset and the whole dataset have their own memo file
+         */
+        private static class SubsetMemoizer extends Memoizer {
+            private final String variant;
+
+            SubsetMemoizer(IFormatReader reader, String variant) {
+                super(reader);
+                this.variant = variant;
+            }
+
+            @Override
+            public File getMemoFile(String id) {
+                File memo = super.getMemoFile(id);
+                if (memo == null) return null;
+                String name = memo.getName();
+                int dot = name.lastIndexOf('.');
+                return new File(memo.getParentFile(), name.substring(0, dot) + "-" + variant + name.substring(dot));
+            }
+        }
+
     }
 
     public class Utilities {
@@ -1775,13 +2862,15 @@ public class OperettaManager {
          * @return the X position of the field
          */
         private Long getUncalibratedPositionX(WellSample field) {
-            Length px = field.getPositionX();
-
-            if (px == null) return null;
-
-            double px_m = px.value(UNITS.MICROMETER).doubleValue();
-
-            return Math.round(px_m / px_size.value(UNITS.MICROMETER).doubleValue() * correction_factor);
+            if (field.getIndex() == null) {
+                // not in the cached coordinates, which are per series
+                Length px = field.getPositionX();
+                if (px == null) return null;
+                double px_m = px.value(UNITS.MICROMETER).doubleValue();
+                return Math.round(px_m / px_size.value(UNITS.MICROMETER).doubleValue() * correction_factor);
+            }
+            long x = getFieldCoordinates().getXPx(field.getIndex().getValue());
+            return x == FieldCoordinates.NO_POSITION ? null : x;
         }
 
         /**
@@ -1791,13 +2880,15 @@ public class OperettaManager {
          * @return the Y position of the field
          */
         private Long getUncalibratedPositionY(WellSample field) {
-            Length px = field.getPositionY();
-
-            if (px == null) return null;
-
-            double px_m = px.value(UNITS.MICROMETER).doubleValue();
-
-            return Math.round(px_m / px_size.value(UNITS.MICROMETER).doubleValue() * correction_factor);
+            if (field.getIndex() == null) {
+                // not in the cached coordinates, which are per series
+                Length py = field.getPositionY();
+                if (py == null) return null;
+                double py_m = py.value(UNITS.MICROMETER).doubleValue();
+                return Math.round(py_m / px_size.value(UNITS.MICROMETER).doubleValue() * correction_factor);
+            }
+            long y = getFieldCoordinates().getYPx(field.getIndex().getValue());
+            return y == FieldCoordinates.NO_POSITION ? null : y;
         }
 
         /**
@@ -1855,24 +2946,13 @@ public class OperettaManager {
          * @return a point with the xy pixel coordinates
          */
         public Point getTopLeftCoordinates(java.util.List<WellSample> fields) {
-            fields = fields.stream().filter(sample -> sample.getPositionX() != null).collect(Collectors.toList());
+            long[] bounds = getFieldCoordinates().getBoundsPx(fields);
 
-            if (fields.isEmpty()) {
+            if (bounds == null) {
                 System.err.println("Cannot find coordinates");
                 return null;
             }
-
-            Optional<WellSample> minx = fields.stream().min(Comparator.comparing(WellSample::getPositionX));
-            Optional<WellSample> miny = fields.stream().min(Comparator.comparing(WellSample::getPositionY));
-
-            if (!minx.isPresent() || !miny.isPresent()) {
-                log.info("Could not find top left coordinates for fields");
-                return null;
-            }
-
-            Long px = getUncalibratedPositionX(minx.get());
-            Long py = getUncalibratedPositionY(miny.get());
-            return new Point(px, py);
+            return new Point(bounds[0], bounds[1]);
         }
 
         /**
@@ -1882,23 +2962,13 @@ public class OperettaManager {
          * @return a point with the xy pixel coordinates
          */
         public Point getTopLeftCoordinatesUm(java.util.List<WellSample> fields) {
-            fields = fields.stream()
-                    .filter(sample -> sample.getPositionX() != null)
-                    .filter(sample -> sample.getPositionX().value() != null)
-                    .collect(Collectors.toList());
-
-            Optional<WellSample> minx = fields.stream().min(Comparator.comparing(WellSample::getPositionX));
-            Optional<WellSample> miny = fields.stream().min(Comparator.comparing(WellSample::getPositionY));
+            double[] bounds = getFieldCoordinates().getBoundsUm(fields);
 
-            if (!minx.isPresent() || !miny.isPresent()) {
+            if (bounds == null) {
                 log.info("Could not find top left coordinates for fields");
                 return new Point(0, 0);
             }
-
-            Long px = minx.get().getPositionX().value(UNITS.MICROMETER).longValue();
-            Long py = miny.get().getPositionY().value(UNITS.MICROMETER).longValue();
-
-            return new Point(px, py);
+            return new Point((long) bounds[0], (long) bounds[1]);
         }
 
         /**
@@ -1908,29 +2978,13 @@ public class OperettaManager {
          * @return a point with the xy pixel coordinates
          */
         public Point getBottomRightCoordinates(List<WellSample> fields) {
-            fields = fields.stream().filter(sample -> sample.getPositionY() != null).collect(Collectors.toList());
-
-            if (!fields.isEmpty()) {
-                Optional<WellSample> maxX = fields.stream().max(Comparator.comparing(WellSample::getPositionX));
-                Optional<WellSample> maxY = fields.stream().max(Comparator.comparing(WellSample::getPositionY));
+            long[] bounds = getFieldCoordinates().getBoundsPx(fields);
 
-                if (!maxX.isPresent() || !maxY.isPresent()) {
-                    log.info("Could not find top left coordinates for fields");
-                    return null;
-                }
-
-                Long px = getUncalibratedPositionX(maxX.get());
-                Long py = getUncalibratedPositionY(maxY.get());
-
-                if (px != null && py != null) {
-                    return new Point(px, py);
-                } else {
-                    return null;
-                }
-            } else {
+            if (bounds == null) {
                 System.err.println("All fields are uncalibrated!");
                 return null;
             }
+            return new Point(bounds[2], bounds[3]);
         }
 
         /**
@@ -0,0 +1,164 @@
+/*-
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.operetta;
+
+import ome.xml.model.Plate;
+import ome.xml.model.Well;
+import ome.xml.model.WellSample;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable index of the wells and fields of a plate, built once from the OME model so that wells and fields are
+ * found without copying and scanning the well and well sample lists.
+ * <p>
+ * Wells are found by their 0-based row and column, fields by their series index, which is the Index of their
+ * {@link WellSample}, and the fields of a well are kept in a read-only list in the order of the OME model.
+ */
+final class PlateIndex {
+
+    /** Imaged wells, in the order of the plate */
+    private final List<Well> wells;
+
+    /** Imaged wells, by row and column packed as row << 16 | column */
+    private final Map<Integer, Well> wells_by_position;
+
+    /** Fields of each well */
+    private final Map<Well, List<WellSample>> well_fields;
+
+    /** Field, well and position of the field in its well, of each series, null or -1 for series without field */
+    private final WellSample[] series_fields;
+    private final Well[] series_wells;
+    private final int[] series_positions;
+
+    /**
+     * @param plate        the plate
+     * @param series_count the number of series of the dataset
+     */
+    PlateIndex(Plate plate, int series_count) {
+        List<Well> imaged = new ArrayList<>();
+        wells_by_position = new HashMap<>();
+        well_fields = new IdentityHashMap<>();
+        series_fields = new WellSample[series_count];
+        series_wells = new Well[series_count];
+        series_positions = new int[series_count];
+
+        for (Well well : plate.copyWellList()) {
+            List<WellSample> fields = Collections.unmodifiableList(well.copyWellSampleList());
+            well_fields.put(well, fields);
+            for (int i = 0; i < fields.size(); i++) {
+                WellSample field = fields.get(i);
+                if (field.getIndex() == null) continue;
+                int series = field.getIndex().getValue();
+                if (series >= 0 && series < series_count) {
+                    series_fields[series] = field;
+                    series_wells[series] = well;
+                    series_positions[series] = i;
+                }
+            }
+            // a weird way to check that the well was indeed imaged, see https://forum.image.sc/t/operetta-reader-bug-positions-not-parsed-found/61818
+            if (!fields.isEmpty() && fields.get(0).getPositionX() != null) {
+                imaged.add(well);
+                wells_by_position.put(pack(well.getRow().getValue(), well.getColumn().getValue()), well);
+            }
+        }
+        wells = Collections.unmodifiableList(imaged);
+    }
+
+    /**
+     * @return the number of series of the dataset
+     */
+    int getSeriesCount() {
+        return series_fields.length;
+    }
+
+    /**
+     * @return the imaged wells, read-only
+     */
+    List<Well> getWells() {
+        return wells;
+    }
+
+    /**
+     * @param row    the 0-based row
+     * @param column the 0-based column
+     * @return the imaged well at this position, or null
+     */
+    Well getWell(int row, int column) {
+        return wells_by_position.get(pack(row, column));
+    }
+
+    /**
+     * @param well a well of the plate
+     * @return its fields, read-only
+     */
+    List<WellSample> getFields(Well well) {
+        List<WellSample> fields = well_fields.get(well);
+        // wells which are not from this plate, e.g. built by a script
+        return fields != null ? fields : Collections.unmodifiableList(well.copyWellSampleList());
+    }
+
+    /**
+     * @param series the series index
+     * @return the field of this series, or null
+     */
+    WellSample getField(int series) {
+        return series >= 0 && series < series_fields.length ? series_fields[series] : null;
+    }
+
+    /**
+     * @param well   a well of the plate
+     * @param series the series index of the field
+     * @return the field of this series if it belongs to the well, otherwise null
+     */
+    WellSample getField(Well well, int series) {
+        WellSample field = getField(series);
+        return field != null && series_wells[series] == well ? field : null;
+    }
+
+    /**
+     * @param series the series index
+     * @return the well of this series, or null
+     */
+    Well getSeriesWell(int series) {
+        return series >= 0 && series < series_wells.length ? series_wells[series] : null;
+    }
+
+    /**
+     * @param field a field of the plate
+     * @return the position of the field in the list of fields of its well, or -1 if it is not part of the plate
+     */
+    int getPositionInWell(WellSample field) {
+        if (field.getIndex() == null) return -1;
+        int series = field.getIndex().getValue();
+        return getField(series) == field ? series_positions[series] : -1;
+    }
+
+    private static int pack(int row, int column) {
+        return (row << 16) | (column & 0xFFFF);
+    }
+}
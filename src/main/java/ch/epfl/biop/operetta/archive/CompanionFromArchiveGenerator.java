@@ -21,29 +21,23 @@
  */
 package ch.epfl.biop.operetta.archive;
 
-import loci.common.services.ServiceFactory;
+import ch.epfl.biop.operetta.companion.CompanionXmlWriter;
 import loci.formats.ImageReader;
 import loci.formats.MetadataTools;
 import loci.formats.meta.IMetadata;
-import loci.formats.services.OMEXMLService;
-import ome.xml.model.enums.DimensionOrder;
-import ome.xml.model.enums.PixelType;
-import ome.xml.model.primitives.NonNegativeInteger;
-import ome.xml.model.primitives.PositiveInteger;
 import ome.units.UNITS;
 import ome.units.quantity.Length;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.*;
 
@@ -72,8 +66,10 @@ public class CompanionFromArchiveGenerator {
     private Double pixelSize;
     private boolean flipY = false;
     private boolean swapXY = false;
+    private boolean copyToTempDirectory = false;
+    private File outputDirectory = null;
 
-    private Map<Integer, Position> fieldPositions;
+    private HarmonyMeasurementSummary measurement;
     private double magnification = 1.0;
     private int binningX = 1;
     private int binningY = 1;
@@ -93,6 +89,9 @@ public class CompanionFromArchiveGenerator {
         System.out.println("  --pixel-size <um>    Physical pixel size in micrometers (alternative to --tiff-path)");
         System.out.println("  --flip-y             Flip Y coordinates (multiply by -1)");
         System.out.println("  --swap-xy            Swap X and Y coordinates");
+        System.out.println("  --output-dir <path>  Folder of the companion file (default: folder of the SQLite file)");
+        System.out.println("  --copy-to-temp       Copy the input files to a temp folder before reading them");
+        System.out.println("                       (by default, they are read in place, read-only)");
         System.out.println();
         System.out.println("Example:");
         System.out.println("  java -jar harmony-ome-converter.jar IMAGES.sqlite \\");
@@ -140,10 +139,38 @@ public class CompanionFromArchiveGenerator {
                 case "--swap-xy":
                     swapXY = true;
                     break;
+                case "--output-dir":
+                    if (i + 1 < args.length) {
+                        outputDirectory = new File(args[++i]);
+                    }
+                    break;
+                case "--copy-to-temp":
+                    copyToTempDirectory = true;
+                    break;
             }
         }
     }
 
+    /**
+     * By default the input files are read in place, and the SQLite database is opened read-only,
+     * so that nothing is copied and only the rows needed are read from the archive.
+     * Copying the files to a temp directory first is kept as a fallback, for file systems on which
+     * SQLite cannot open the database in place.
+     *
+     * @param copyToTempDirectory true to copy the SQLite, XML and TIFF files to a temp directory before reading them
+     */
+    public void setCopyToTempDirectory(boolean copyToTempDirectory) {
+        this.copyToTempDirectory = copyToTempDirectory;
+    }
+
+    /**
+     * @param outputDirectory the folder where the companion file is written, null for the folder of the SQLite file.
+     *                        The image files are then referenced relatively to this folder.
+     */
+    public void setOutputDirectory(File outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
     public void run() {
         File tempDir = null;
         try {
@@ -158,46 +185,51 @@ public class CompanionFromArchiveGenerator {
                 throw new RuntimeException("TIFF file does not exist: " + tiffPath);
             }
 
-            // Store original paths for final output location
-            String originalSqlitePath = sqlitePath;
-
-            // Create temp directory and copy all files there
-            tempDir = java.nio.file.Files.createTempDirectory("operetta_companion").toFile();
-            System.out.println("Using temp directory: " + tempDir.getAbsolutePath());
-
-            // Copy SQLite file
-            File tempSqlite = new File(tempDir, new File(sqlitePath).getName());
-            java.nio.file.Files.copy(new File(sqlitePath).toPath(), tempSqlite.toPath());
-            String tempSqlitePath = tempSqlite.getAbsolutePath();
-
-            // Copy XML file if provided
-            String tempXmlPath = null;
-            if (xmlPath != null) {
-                File tempXml = new File(tempDir, new File(xmlPath).getName());
-                java.nio.file.Files.copy(new File(xmlPath).toPath(), tempXml.toPath());
-                tempXmlPath = tempXml.getAbsolutePath();
-            }
+            // The images are referenced relatively to the folder of the SQLite file
+            File imagesDir = new File(sqlitePath).getAbsoluteFile().getParentFile();
+            File outputDir = outputDirectory != null ? outputDirectory.getAbsoluteFile() : imagesDir;
+            java.nio.file.Files.createDirectories(outputDir.toPath());
+
+            String tempSqlitePath = sqlitePath;
+            String tempXmlPath = xmlPath;
+            String tempTiffPath = tiffPath;
+
+            if (copyToTempDirectory) {
+                // Create temp directory and copy all files there
+                tempDir = java.nio.file.Files.createTempDirectory("operetta_companion").toFile();
+                System.out.println("Using temp directory: " + tempDir.getAbsolutePath());
+
+                // Copy SQLite file
+                File tempSqlite = new File(tempDir, new File(sqlitePath).getName());
+                java.nio.file.Files.copy(new File(sqlitePath).toPath(), tempSqlite.toPath());
+                tempSqlitePath = tempSqlite.getAbsolutePath();
+
+                // Copy XML file if provided
+                if (xmlPath != null) {
+                    File tempXml = new File(tempDir, new File(xmlPath).getName());
+                    java.nio.file.Files.copy(new File(xmlPath).toPath(), tempXml.toPath());
+                    tempXmlPath = tempXml.getAbsolutePath();
+                }
 
-            // Copy TIFF file if provided
-            String tempTiffPath = null;
-            if (tiffPath != null) {
-                File tempTiff = new File(tempDir, new File(tiffPath).getName());
-                java.nio.file.Files.copy(new File(tiffPath).toPath(), tempTiff.toPath());
-                tempTiffPath = tempTiff.getAbsolutePath();
+                // Copy TIFF file if provided
+                if (tiffPath != null) {
+                    File tempTiff = new File(tempDir, new File(tiffPath).getName());
+                    java.nio.file.Files.copy(new File(tiffPath).toPath(), tempTiff.toPath());
+                    tempTiffPath = tempTiff.getAbsolutePath();
+                }
             }
 
             // Parse XML for positions and metadata
             if (tempXmlPath != null) {
                 System.out.println("Loading field positions from: " + xmlPath);
-                fieldPositions = parseFieldPositions(tempXmlPath);
-                System.out.println("Loaded " + fieldPositions.size() + " field positions");
+                measurement = parseMeasurement(tempXmlPath);
+                System.out.println("Loaded " + measurement.getFieldPositionCount() + " field positions");
 
-                magnification = getObjectiveMagnification(tempXmlPath);
+                magnification = measurement.getEffectiveMagnification();
                 System.out.println("Objective magnification: " + magnification + "x");
 
-                int[] binning = getCameraBinning(tempXmlPath);
-                binningX = binning[0];
-                binningY = binning[1];
+                binningX = measurement.getBinningX();
+                binningY = measurement.getBinningY();
                 if (binningX != 1 || binningY != 1) {
                     System.out.println("Camera binning: " + binningX + "x" + binningY);
                 }
@@ -248,17 +280,10 @@ public class CompanionFromArchiveGenerator {
                 System.out.println("Warning: No TIFF file or pixel size provided, physical size metadata will not be included");
             }
 
-            // Read database and generate companion file in temp directory
+            // Read database and generate companion file in the output directory
             System.out.println("Reading database: " + sqlitePath);
-            String tempCompanionPath = generateCompanionFile(tempSqlitePath);
-
-            // Copy companion file back to original location
-            File originalDir = new File(originalSqlitePath).getParentFile();
-            File tempCompanionFile = new File(tempCompanionPath);
-            File finalCompanionFile = new File(originalDir, tempCompanionFile.getName()+suffix);
-            java.nio.file.Files.copy(tempCompanionFile.toPath(), finalCompanionFile.toPath(),
-                    java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-            System.out.println("Companion file written to: " + finalCompanionFile.getAbsolutePath());
+            String companionPath = generateCompanionFile(tempSqlitePath, !copyToTempDirectory, outputDir, imagesDir);
+            System.out.println("Companion file written to: " + companionPath);
 
         } catch (Exception e) {
             System.err.println("Error: " + e.getMessage());
@@ -275,160 +300,43 @@ public class CompanionFromArchiveGenerator {
         }
     }
 
-    private Map<Integer, Position> parseFieldPositions(String xmlPath) throws Exception {
-        Map<Integer, Position> positions = new HashMap<>();
-
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setNamespaceAware(true);
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        Document doc = builder.parse(new File(xmlPath));
-
-        // Find Sublayout/Field elements
-        NodeList fieldNodes = doc.getElementsByTagNameNS("http://www.perkinelmer.com/PEHH/HarmonyV5", "Field");
-
-        for (int i = 0; i < fieldNodes.getLength(); i++) {
-            Element field = (Element) fieldNodes.item(i);
-            NodeList xNodes = field.getElementsByTagNameNS("http://www.perkinelmer.com/PEHH/HarmonyV5", "X");
-            NodeList yNodes = field.getElementsByTagNameNS("http://www.perkinelmer.com/PEHH/HarmonyV5", "Y");
-
-            if (xNodes.getLength() > 0 && yNodes.getLength() > 0) {
-                double xM = Double.parseDouble(xNodes.item(0).getTextContent());
-                double yM = Double.parseDouble(yNodes.item(0).getTextContent());
-                // Convert to mm
-                positions.put(i + 1, new Position(xM * 1000, yM * 1000));
-            }
-        }
+    /**
+     * Reads field positions, objective magnification, camera binning and plate name
+     * from the measurement XML file, in a single pass
+     *
+     * @param xmlPath path to the XML file
+     * @return the summary of the measurement
+     */
+    private HarmonyMeasurementSummary parseMeasurement(String xmlPath) throws Exception {
+        HarmonyMeasurementSummary summary = HarmonyMeasurementSummary.parse(new File(xmlPath));
 
-        if (positions.isEmpty()) {
+        if (summary.getFieldPositionCount() == 0) {
             throw new RuntimeException("Could not find Field positions in XML file");
         }
 
-        return positions;
-    }
-
-    private double getObjectiveMagnification(String xmlPath) throws Exception {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setNamespaceAware(true);
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        Document doc = builder.parse(new File(xmlPath));
-
-        // Get the nominal objective magnification from InstrumentDescription/Objectives/Objective/Magnification
-        double nominalMagnification = 1.0;
-        NodeList instrDescNodes = doc.getElementsByTagNameNS("http://www.perkinelmer.com/PEHH/HarmonyV5", "InstrumentDescription");
-        if (instrDescNodes.getLength() > 0) {
-            Element instrDesc = (Element) instrDescNodes.item(0);
-            NodeList objectivesNodes = instrDesc.getElementsByTagNameNS("http://www.perkinelmer.com/PEHH/HarmonyV5", "Objectives");
-            if (objectivesNodes.getLength() > 0) {
-                Element objectives = (Element) objectivesNodes.item(0);
-                NodeList objectiveNodes = objectives.getElementsByTagNameNS("http://www.perkinelmer.com/PEHH/HarmonyV5", "Objective");
-                if (objectiveNodes.getLength() > 0) {
-                    Element objective = (Element) objectiveNodes.item(0);
-                    NodeList magNodes = objective.getElementsByTagNameNS("http://www.perkinelmer.com/PEHH/HarmonyV5", "Magnification");
-                    if (magNodes.getLength() > 0) {
-                        nominalMagnification = Double.parseDouble(magNodes.item(0).getTextContent());
-                    }
-                }
-            }
-        }
-
-        // Get all Magnification elements to find the correction factor
-        NodeList allMagNodes = doc.getElementsByTagNameNS("http://www.perkinelmer.com/PEHH/HarmonyV5", "Magnification");
-        double correctionFactor = 1.0;
-
-        // Look for additional magnification factors (there should be exactly 2 if there's a correction)
-        if (allMagNodes.getLength() > 1) {
-            // Find the one that's NOT the objective magnification
-            for (int i = 0; i < allMagNodes.getLength(); i++) {
-                double mag = Double.parseDouble(allMagNodes.item(i).getTextContent());
-                if (Math.abs(mag - nominalMagnification) > 0.01) {
-                    // This is likely the correction factor
-                    correctionFactor = mag;
-                    System.out.println("Found magnification correction factor: " + correctionFactor + "x");
-                    break;
-                }
-            }
-        }
-
-        if (nominalMagnification <= 0) {
+        if (summary.getNominalMagnification() <= 0) {
             throw new RuntimeException("Could not find objective magnification in XML file");
         }
 
-        // Calculate effective magnification: nominal × correction
-        double effectiveMagnification = nominalMagnification * correctionFactor;
-
-        if (correctionFactor != 1.0) {
-            System.out.println("Nominal objective: " + nominalMagnification + "x, correction: " +
-                    correctionFactor + "x, effective: " +
-                    String.format("%.4f", effectiveMagnification) + "x");
+        if (summary.getMagnificationCorrection() != 1.0) {
+            System.out.println("Found magnification correction factor: " + summary.getMagnificationCorrection() + "x");
+            System.out.println("Nominal objective: " + summary.getNominalMagnification() + "x, correction: " +
+                    summary.getMagnificationCorrection() + "x, effective: " +
+                    String.format("%.4f", summary.getEffectiveMagnification()) + "x");
         }
 
-        return effectiveMagnification;
-    }
-
-    private int[] getCameraBinning(String xmlPath) throws Exception {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setNamespaceAware(true);
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        Document doc = builder.parse(new File(xmlPath));
-
-        NodeList binningXNodes = doc.getElementsByTagNameNS("http://www.perkinelmer.com/PEHH/HarmonyV5", "BinningX");
-        NodeList binningYNodes = doc.getElementsByTagNameNS("http://www.perkinelmer.com/PEHH/HarmonyV5", "BinningY");
-
-        if (binningXNodes.getLength() > 0 && binningYNodes.getLength() > 0) {
-            int binX = Integer.parseInt(binningXNodes.item(0).getTextContent());
-            int binY = Integer.parseInt(binningYNodes.item(0).getTextContent());
-
-            // Check if all channels have the same binning
-            Set<Integer> allBinX = new HashSet<>();
-            Set<Integer> allBinY = new HashSet<>();
-            for (int i = 0; i < binningXNodes.getLength(); i++) {
-                allBinX.add(Integer.parseInt(binningXNodes.item(i).getTextContent()));
-                allBinY.add(Integer.parseInt(binningYNodes.item(i).getTextContent()));
-            }
-
-            if (allBinX.size() > 1 || allBinY.size() > 1) {
-                System.out.println("Warning: Different binning values found across channels. Using first values: " +
-                        binX + "x" + binY);
-            }
-
-            return new int[]{binX, binY};
+        if (!summary.isBinningUniform()) {
+            System.out.println("Warning: Different binning values found across channels. Using first values: " +
+                    summary.getBinningX() + "x" + summary.getBinningY());
         }
 
-        // No binning found, assume 1x1
-        return new int[]{1, 1};
-    }
-
-    /**
-     * Extracts the plate name from the XML file.
-     * Looks for the PlateName element in the Harmony V5 namespace.
-     *
-     * @param xmlPath path to the XML file
-     * @return the plate name, or null if not found
-     */
-    private String getPlateName(String xmlPath) {
-        try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(new File(xmlPath));
-
-            NodeList plateNameNodes = doc.getElementsByTagNameNS(
-                    "http://www.perkinelmer.com/PEHH/HarmonyV5", "PlateName");
-            if (plateNameNodes.getLength() > 0) {
-                String plateName = plateNameNodes.item(0).getTextContent();
-                if (plateName != null && !plateName.trim().isEmpty()) {
-                    return plateName.trim();
-                }
-            }
-        } catch (Exception e) {
-            System.err.println("Warning: Could not extract PlateName from XML: " + e.getMessage());
-        }
-        return null;
+        return summary;
     }
 
     private double getPixelSizeFromTiff(String tiffPathToUse) throws Exception {
-        // tiffPathToUse is already in an isolated temp folder, so Bio-Formats won't group other files
+        // The file may be next to all the others of the archive, Bio-Formats should not group them
         ImageReader reader = new ImageReader();
+        reader.setGroupFiles(false);
         IMetadata omeMetaIdxOmeXml = MetadataTools.createOMEXMLMetadata();
         reader.setMetadataStore(omeMetaIdxOmeXml);
         try {
@@ -458,6 +366,20 @@ public class CompanionFromArchiveGenerator {
     }
 
     private Position calculateAbsolutePosition(int row, int col, int fieldIndex) {
+        return calculateAbsolutePosition(measurement, row, col, fieldIndex, flipY, swapXY);
+    }
+
+    /**
+     * @param measurement the field positions, null to place all fields at the well center
+     * @param row the row of the well, as stored in the database
+     * @param col the column of the well, as stored in the database
+     * @param fieldIndex the 1-based field index
+     * @param flipY true to multiply the Y offset of the field by -1
+     * @param swapXY true to swap the X and Y offsets of the field
+     * @return the absolute position of the field, in mm
+     */
+    static Position calculateAbsolutePosition(HarmonyMeasurementSummary measurement, int row, int col, int fieldIndex,
+                                              boolean flipY, boolean swapXY) {
         // Well center position
         double wellX = PLATE_OFFSET_X_MM + (col * WELL_SPACING_MM);
         double wellY = PLATE_OFFSET_Y_MM + (row * WELL_SPACING_MM);
@@ -465,10 +387,9 @@ public class CompanionFromArchiveGenerator {
         // Field offset within well
         double fieldOffsetX = 0;
         double fieldOffsetY = 0;
-        if (fieldPositions != null && fieldPositions.containsKey(fieldIndex)) {
-            Position fieldPos = fieldPositions.get(fieldIndex);
-            fieldOffsetX = fieldPos.x;
-            fieldOffsetY = fieldPos.y;
+        if (measurement != null && measurement.hasFieldPosition(fieldIndex)) {
+            fieldOffsetX = measurement.getFieldPositionX(fieldIndex);
+            fieldOffsetY = measurement.getFieldPositionY(fieldIndex);
         }
 
         // Apply transformations
@@ -488,14 +409,55 @@ public class CompanionFromArchiveGenerator {
         return new Position(absX, absY);
     }
 
-    private String generateCompanionFile(String sqlitePathToUse) throws Exception {
-        Connection conn = DriverManager.getConnection("jdbc:sqlite:" + sqlitePathToUse);
+    /**
+     * Open the SQLite database of the archive
+     *
+     * @param sqlitePathToUse path to the database
+     * @param inPlace true to open the database of the archive itself, read-only. If the database cannot be
+     *                written, it is also opened as immutable: SQLite then neither locks it nor looks for a journal,
+     *                which is what read-only shares require
+     * @return the connection to the database
+     */
+    static Connection openDatabase(String sqlitePathToUse, boolean inPlace) throws SQLException {
+        if (!inPlace) {
+            return DriverManager.getConnection("jdbc:sqlite:" + sqlitePathToUse);
+        }
+        File sqliteFile = new File(sqlitePathToUse).getAbsoluteFile();
+        boolean writable = sqliteFile.canWrite() && sqliteFile.getParentFile().canWrite();
+        Properties properties = new Properties();
+        // SQLITE_OPEN_READONLY | SQLITE_OPEN_URI
+        properties.setProperty("open_mode", Integer.toString(0x01 | 0x40));
+        String uri = sqliteFile.toURI() + (writable ? "?mode=ro" : "?immutable=1");
+        System.out.println("Opening database in place, " + (writable ? "read-only" : "immutable"));
+        return DriverManager.getConnection("jdbc:sqlite:" + uri, properties);
+    }
+
+    /**
+     * @param outputDir folder of the companion file
+     * @param imagesDir folder of the SQLite file, the image urls are relative to it
+     * @param url the url of an image in the database
+     * @return the path of the image, as referenced from the companion file
+     */
+    private static String getImageReference(File outputDir, File imagesDir, String url) {
+        if (outputDir.equals(imagesDir)) {
+            return url;
+        }
+        try {
+            return outputDir.toPath().relativize(imagesDir.toPath().resolve(url)).toString().replace(File.separatorChar, '/');
+        } catch (IllegalArgumentException e) {
+            // not on the same root
+            return new File(imagesDir, url).getAbsolutePath();
+        }
+    }
+
+    private String generateCompanionFile(String sqlitePathToUse, boolean inPlace, File outputDir, File imagesDir) throws Exception {
+        Connection conn = openDatabase(sqlitePathToUse, inPlace);
         Statement stmt = conn.createStatement();
 
         // Get plate name - prefer XML PlateName, fallback to SQLite Measurement (UUID)
         String plateName = null;
-        if (xmlPath != null) {
-            plateName = getPlateName(xmlPath);
+        if (measurement != null) {
+            plateName = measurement.getPlateName();
             if (plateName != null) {
                 System.out.println("Using plate name from XML: " + plateName);
             }
@@ -507,215 +469,86 @@ public class CompanionFromArchiveGenerator {
             System.out.println("Using plate name from SQLite (Measurement ID): " + plateName);
         }
 
-        // Get all images
-        ResultSet rs = stmt.executeQuery("SELECT * FROM Image");
-
-        // Collect all data
-        List<ImageData> imageDataList = new ArrayList<>();
-        Set<Integer> rows = new HashSet<>();
-        Set<Integer> cols = new HashSet<>();
-        Set<Integer> fields = new HashSet<>();
-        Set<Integer> zPlanes = new HashSet<>();
-        Set<Integer> timepoints = new HashSet<>();
-        Set<Integer> channels = new HashSet<>();
-
-        while (rs.next()) {
-            ImageData data = new ImageData();
-            data.row = rs.getInt("Row");
-            data.col = rs.getInt("Col");
-            data.field = rs.getInt("Field");
-            data.plane = rs.getInt("Plane");
-            data.channel = rs.getInt("Channel");
-            data.timepoint = rs.getInt("SlowKin");
-            data.url = rs.getString("Url");
-
-            imageDataList.add(data);
-
-            rows.add(data.row);
-            cols.add(data.col);
-            fields.add(data.field);
-            zPlanes.add(data.plane);
-            timepoints.add(data.timepoint);
-            channels.add(data.channel);
-        }
-        rs.close();
-
-        int nRows = rows.size();
-        int nCols = cols.size();
-        int nFields = fields.size();
-        int nZ = zPlanes.size();
-        int nT = timepoints.size();
-        int nC = channels.size();
-
-        System.out.println("Found " + imageDataList.size() + " images in database");
+        // Count the images and the distinct values of each dimension, without reading the rows
+        ResultSet rsCount = stmt.executeQuery("SELECT COUNT(*), COUNT(DISTINCT Row), COUNT(DISTINCT Col), " +
+                "COUNT(DISTINCT Field), COUNT(DISTINCT Plane), COUNT(DISTINCT SlowKin), COUNT(DISTINCT Channel) FROM Image");
+        long nImages = rsCount.getLong(1);
+        int nRows = rsCount.getInt(2);
+        int nCols = rsCount.getInt(3);
+        int nFields = rsCount.getInt(4);
+        int nZ = rsCount.getInt(5);
+        int nT = rsCount.getInt(6);
+        int nC = rsCount.getInt(7);
+        rsCount.close();
+
+        System.out.println("Found " + nImages + " images in database");
         System.out.println("Plate dimensions: " + nRows + " rows × " + nCols + " cols, " + nFields + " fields/well");
         System.out.println("Image dimensions: Z=" + nZ + ", C=" + nC + ", T=" + nT);
 
-        // Group images by well and field
-        System.out.println("Assembling plate structure...");
-        Map<String, List<ImageData>> imageGroups = new HashMap<>();
-        for (ImageData data : imageDataList) {
-            String key = data.row + "|" + data.col + "|" + data.field;
-            imageGroups.computeIfAbsent(key, k -> new ArrayList<>()).add(data);
-        }
-
-        // Create OME-XML metadata
-        ServiceFactory factory = new ServiceFactory();
-        OMEXMLService service = factory.getInstance(OMEXMLService.class);
-        IMetadata metadata = service.createOMEXMLMetadata();
-
-        // Set plate metadata
-        metadata.setPlateID("Plate:0", 0);
-        metadata.setPlateName(plateName, 0);
-        metadata.setPlateRows(new PositiveInteger(nRows), 0);
-        metadata.setPlateColumns(new PositiveInteger(nCols), 0);
-
-        int imageIndex = 0;
-        int wellIndex = 0;
-        Map<String, Integer> wellIndexMap = new HashMap<>();
-        Map<String, Integer> wellSampleCountMap = new HashMap<>(); // Track well sample count per well
-
-        // Sort keys to ensure consistent ordering
-        List<String> sortedKeys = new ArrayList<>(imageGroups.keySet());
-        Collections.sort(sortedKeys, (a, b) -> {
-            // Parse and sort numerically: row, then col, then field
-            String[] partsA = a.split("\\|");
-            String[] partsB = b.split("\\|");
-            int rowA = Integer.parseInt(partsA[0]);
-            int rowB = Integer.parseInt(partsB[0]);
-            if (rowA != rowB) return Integer.compare(rowA, rowB);
-            int colA = Integer.parseInt(partsA[1]);
-            int colB = Integer.parseInt(partsB[1]);
-            if (colA != colB) return Integer.compare(colA, colB);
-            int fieldA = Integer.parseInt(partsA[2]);
-            int fieldB = Integer.parseInt(partsB[2]);
-            return Integer.compare(fieldA, fieldB);
-        });
-
-        for (String key : sortedKeys) {
-            String[] parts = key.split("\\|");
-            int row = Integer.parseInt(parts[0]);
-            int col = Integer.parseInt(parts[1]);
-            int field = Integer.parseInt(parts[2]);
-
-            String wellKey = row + "|" + col;
-            int currentWellIndex;
-
-            if (!wellIndexMap.containsKey(wellKey)) {
-                currentWellIndex = wellIndex++;
-                wellIndexMap.put(wellKey, currentWellIndex);
-
-                // Set well metadata
-                metadata.setWellID("Well:" + currentWellIndex, 0, currentWellIndex);
-                metadata.setWellRow(new NonNegativeInteger(row), 0, currentWellIndex);
-                metadata.setWellColumn(new NonNegativeInteger(col), 0, currentWellIndex);
-            } else {
-                currentWellIndex = wellIndexMap.get(wellKey);
-            }
-
-            // Set image metadata
-            metadata.setImageID("Image:" + imageIndex, imageIndex);
-            metadata.setImageName(key, imageIndex);
-            metadata.setPixelsID("Pixels:" + imageIndex, imageIndex);
-            metadata.setPixelsDimensionOrder(DimensionOrder.XYCZT, imageIndex);
-            metadata.setPixelsType(PixelType.UINT16, imageIndex);
-            metadata.setPixelsSizeX(new PositiveInteger(IMG_X), imageIndex);
-            metadata.setPixelsSizeY(new PositiveInteger(IMG_Y), imageIndex);
-            metadata.setPixelsSizeZ(new PositiveInteger(nZ), imageIndex);
-            metadata.setPixelsSizeC(new PositiveInteger(nC), imageIndex);
-            metadata.setPixelsSizeT(new PositiveInteger(nT), imageIndex);
-
-            // Set physical pixel size if available
-            if (physicalPixelSizeUm != null) {
-                Length physSize = new Length(physicalPixelSizeUm, UNITS.MICROMETER);
-                metadata.setPixelsPhysicalSizeX(physSize, imageIndex);
-                metadata.setPixelsPhysicalSizeY(physSize, imageIndex);
-            }
-
-            // Set channels
-            for (int c = 0; c < nC; c++) {
-                metadata.setChannelID("Channel:" + imageIndex + ":" + c, imageIndex, c);
-                metadata.setChannelSamplesPerPixel(new PositiveInteger(1), imageIndex, c);
-            }
-
-            // Link well sample - use sequential index for each well for the API,
-            // but set WellSampleIndex to global imageIndex for OperettaManager compatibility
-            int wellSampleIndex = wellSampleCountMap.getOrDefault(wellKey, 0);
-            wellSampleCountMap.put(wellKey, wellSampleIndex + 1);
-            metadata.setWellSampleID("WellSample:" + currentWellIndex + ":" + wellSampleIndex, 0, currentWellIndex, wellSampleIndex);
-            metadata.setWellSampleIndex(new NonNegativeInteger(imageIndex), 0, currentWellIndex, wellSampleIndex); // Use global imageIndex
-            metadata.setWellSampleImageRef("Image:" + imageIndex, 0, currentWellIndex, wellSampleIndex);
+        // Write companion file
+        String companionFileName = plateName + ".companion.ome" + suffix;
+        File companionFile = new File(outputDir, companionFileName);
+        String companionPath = companionFile.getPath();
+        File tmpFile = new File(outputDir, companionFileName + ".tmp");
 
-            // Set WellSample position (required for OperettaManager.getWells() filtering)
-            if (fieldPositions != null) {
-                Position absPos = calculateAbsolutePosition(row, col, field);
-                Length posX = new Length(absPos.x / 1000.0, UNITS.METER);
-                Length posY = new Length(absPos.y / 1000.0, UNITS.METER);
-                metadata.setWellSamplePositionX(posX, 0, currentWellIndex, wellSampleIndex);
-                metadata.setWellSamplePositionY(posY, 0, currentWellIndex, wellSampleIndex);
+        // The document is written element by element while the database is read, in two passes:
+        // the plate and its wells reference the images, which come after them in the OME schema
+        System.out.println("Writing companion file: " + companionPath);
+        try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16);
+             CompanionXmlWriter writer = new CompanionXmlWriter(outputStream)) {
+            writer.startDocument(UUID.nameUUIDFromBytes(companionFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8)).toString());
+            PlateWriter plateWriter = new PlateWriter(writer, nZ, nC, nT, outputDir, imagesDir);
+
+            System.out.println("Assembling plate structure...");
+            writer.startElement("Plate");
+            writer.attribute("ID", "Plate:0");
+            writer.attribute("Name", plateName);
+            writer.attribute("Rows", nRows);
+            writer.attribute("Columns", nCols);
+            ResultSet rsFields = stmt.executeQuery("SELECT DISTINCT Row, Col, Field FROM Image ORDER BY Row, Col, Field");
+            while (rsFields.next()) {
+                plateWriter.addWellSample(rsFields.getInt(1), rsFields.getInt(2), rsFields.getInt(3));
             }
-
-            // Add TiffData and Plane elements
-            List<ImageData> imageGroup = imageGroups.get(key);
-            int tiffDataIndex = 0;
-            for (ImageData data : imageGroup) {
-                int z = data.plane - 1; // Convert to 0-indexed
-                int c = data.channel;
-                int t = data.timepoint;
-
-                // Set plane metadata with position if available
-                if (fieldPositions != null) {
-                    Position absPos = calculateAbsolutePosition(row, col, field);
-                    // Convert to meters for OME-XML
-                    Length posX = new Length(absPos.x / 1000.0, UNITS.METER);
-                    Length posY = new Length(absPos.y / 1000.0, UNITS.METER);
-                    metadata.setPlanePositionX(posX, imageIndex, tiffDataIndex);
-                    metadata.setPlanePositionY(posY, imageIndex, tiffDataIndex);
+            rsFields.close();
+            plateWriter.endWells();
+            writer.endElement();
+
+            // Stream the images sorted by well and field: a field group is complete as soon as the next one starts,
+            // so only the planes of one field are held, in primitive arrays
+            ResultSet rs = stmt.executeQuery(
+                    "SELECT Row, Col, Field, Plane, Channel, SlowKin, Url FROM Image ORDER BY Row, Col, Field");
+            FieldGroup group = new FieldGroup();
+            while (rs.next()) {
+                int row = rs.getInt(1);
+                int col = rs.getInt(2);
+                int field = rs.getInt(3);
+                long key = FieldGroup.pack(row, col, field);
+                if (key != group.key) {
+                    if (group.size > 0) {
+                        plateWriter.addImage(group);
+                    }
+                    group.start(key, row, col, field);
                 }
-
-                metadata.setPlaneTheC(new NonNegativeInteger(c), imageIndex, tiffDataIndex);
-                metadata.setPlaneTheZ(new NonNegativeInteger(z), imageIndex, tiffDataIndex);
-                metadata.setPlaneTheT(new NonNegativeInteger(t), imageIndex, tiffDataIndex);
-
-                // Set TiffData
-                metadata.setTiffDataFirstC(new NonNegativeInteger(c), imageIndex, tiffDataIndex);
-                metadata.setTiffDataFirstZ(new NonNegativeInteger(z), imageIndex, tiffDataIndex);
-                metadata.setTiffDataFirstT(new NonNegativeInteger(t), imageIndex, tiffDataIndex);
-                metadata.setTiffDataPlaneCount(new NonNegativeInteger(1), imageIndex, tiffDataIndex);
-
-                // Set UUID for file reference
-                String uuid = "urn:uuid:" + UUID.randomUUID().toString();
-                metadata.setUUIDFileName(data.url, imageIndex, tiffDataIndex);
-                metadata.setUUIDValue(uuid, imageIndex, tiffDataIndex);
-
-                tiffDataIndex++;
+                group.add(rs.getInt(4), rs.getInt(5), rs.getInt(6), rs.getString(7));
             }
+            if (group.size > 0) {
+                plateWriter.addImage(group);
+            }
+            rs.close();
 
-            imageIndex++;
-        }
-
-        conn.close();
-
-        // Write companion file
-        File sqliteFile = new File(sqlitePathToUse);
-        String parentDir = sqliteFile.getParent();
-        String companionFileName = plateName + ".companion.ome";
-        String companionPath = parentDir != null ?
-                new File(parentDir, companionFileName).getPath() : companionFileName;
-
-        System.out.println("Writing companion file: " + companionPath);
-        String omeXml = service.getOMEXML(metadata);
-
-        try (FileWriter writer = new FileWriter(companionPath)) {
-            writer.write(omeXml);
+            writer.endDocument();
+        } finally {
+            conn.close();
         }
+        java.nio.file.Files.move(tmpFile.toPath(), companionFile.toPath(),
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING);
 
         System.out.println("Done! Companion file created: " + companionPath);
         if (physicalPixelSizeUm != null) {
             System.out.println("  - Physical pixel size: " + String.format("%.4f", physicalPixelSizeUm) + " µm/pixel");
         }
-        if (fieldPositions != null) {
-            System.out.println("  - X/Y positions included for " + fieldPositions.size() + " fields");
+        if (measurement != null) {
+            System.out.println("  - X/Y positions included for " + measurement.getFieldPositionCount() + " fields");
         }
         if (flipY || swapXY) {
             System.out.println("  - Coordinate transformations applied");
@@ -725,7 +558,7 @@ public class CompanionFromArchiveGenerator {
     }
 
     // Helper classes
-    private static class Position {
+    static class Position {
         double x;
         double y;
 
@@ -735,13 +568,178 @@ public class CompanionFromArchiveGenerator {
         }
     }
 
-    private static class ImageData {
+    /**
+     * The planes of one field of one well, in primitive columns reused from one field to the next
+     */
+    private static class FieldGroup {
+        long key = -1;
         int row;
         int col;
         int field;
-        int plane;
-        int channel;
-        int timepoint;
-        String url;
+        int size = 0;
+        int[] planes = new int[64];
+        int[] channels = new int[64];
+        int[] timepoints = new int[64];
+        String[] urls = new String[64];
+
+        /**
+         * @return a key identifying a field, the well is identified by key >>> 21
+         */
+        static long pack(int row, int col, int field) {
+            return ((long) row << 42) | ((long) (col & 0x1FFFFF) << 21) | (field & 0x1FFFFF);
+        }
+
+        void start(long key, int row, int col, int field) {
+            this.key = key;
+            this.row = row;
+            this.col = col;
+            this.field = field;
+            Arrays.fill(urls, 0, size, null);
+            size = 0;
+        }
+
+        void add(int plane, int channel, int timepoint, String url) {
+            if (size == planes.length) {
+                planes = Arrays.copyOf(planes, 2 * size);
+                channels = Arrays.copyOf(channels, 2 * size);
+                timepoints = Arrays.copyOf(timepoints, 2 * size);
+                urls = Arrays.copyOf(urls, 2 * size);
+            }
+            planes[size] = plane;
+            channels[size] = channel;
+            timepoints[size] = timepoint;
+            urls[size] = url;
+            size++;
+        }
+    }
+
+    /**
+     * Writes the wells and images of the plate, in order. Well samples and images are numbered the same way,
+     * by well and field, so that each well sample references the image written for the same field afterwards.
+     */
+    private class PlateWriter {
+        final CompanionXmlWriter writer;
+        final int nZ;
+        final int nC;
+        final int nT;
+        final File outputDir;
+        final File imagesDir;
+
+        int wellSampleImageIndex = 0;
+        int wellIndex = -1;
+        int wellSampleIndex = 0;
+        long wellKey = -1;
+
+        int imageIndex = 0;
+
+        PlateWriter(CompanionXmlWriter writer, int nZ, int nC, int nT, File outputDir, File imagesDir) {
+            this.writer = writer;
+            this.nZ = nZ;
+            this.nC = nC;
+            this.nT = nT;
+            this.outputDir = outputDir;
+            this.imagesDir = imagesDir;
+        }
+
+        void addWellSample(int row, int col, int field) throws XMLStreamException {
+            long key = FieldGroup.pack(row, col, field) >>> 21;
+            if (key != wellKey) {
+                endWells();
+                wellKey = key;
+                wellIndex++;
+                wellSampleIndex = 0;
+                writer.startElement("Well");
+                writer.attribute("ID", "Well:" + wellIndex);
+                writer.attribute("Column", col);
+                writer.attribute("Row", row);
+            }
+
+            // Use sequential index for each well for the ID,
+            // but set WellSampleIndex to global imageIndex for OperettaManager compatibility
+            writer.startElement("WellSample");
+            writer.attribute("ID", "WellSample:" + wellIndex + ":" + wellSampleIndex);
+            writer.attribute("Index", wellSampleImageIndex);
+            // Set WellSample position (required for OperettaManager.getWells() filtering)
+            if (measurement != null) {
+                Position absPos = calculateAbsolutePosition(row, col, field);
+                writer.attribute("PositionX", absPos.x / 1000.0);
+                writer.attribute("PositionXUnit", UNITS.METER.getSymbol());
+                writer.attribute("PositionY", absPos.y / 1000.0);
+                writer.attribute("PositionYUnit", UNITS.METER.getSymbol());
+            }
+            writer.emptyElement("ImageRef", "ID", "Image:" + wellSampleImageIndex);
+            writer.endElement();
+
+            wellSampleIndex++;
+            wellSampleImageIndex++;
+        }
+
+        void endWells() throws XMLStreamException {
+            if (wellKey != -1) {
+                writer.endElement();
+                wellKey = -1;
+            }
+        }
+
+        void addImage(FieldGroup group) throws XMLStreamException {
+            writer.startElement("Image");
+            writer.attribute("ID", "Image:" + imageIndex);
+            writer.attribute("Name", group.row + "|" + group.col + "|" + group.field);
+
+            writer.startElement("Pixels");
+            writer.attribute("ID", "Pixels:" + imageIndex);
+            writer.attribute("DimensionOrder", DIMENSION_ORDER);
+            writer.attribute("Type", "uint16");
+            writer.attribute("SizeX", IMG_X);
+            writer.attribute("SizeY", IMG_Y);
+            writer.attribute("SizeZ", nZ);
+            writer.attribute("SizeC", nC);
+            writer.attribute("SizeT", nT);
+            // Set physical pixel size if available
+            if (physicalPixelSizeUm != null) {
+                writer.attribute("PhysicalSizeX", physicalPixelSizeUm);
+                writer.attribute("PhysicalSizeXUnit", UNITS.MICROMETER.getSymbol());
+                writer.attribute("PhysicalSizeY", physicalPixelSizeUm);
+                writer.attribute("PhysicalSizeYUnit", UNITS.MICROMETER.getSymbol());
+            }
+
+            // Set channels
+            for (int c = 0; c < nC; c++) {
+                writer.emptyElement("Channel", "ID", "Channel:" + imageIndex + ":" + c, "SamplesPerPixel", 1);
+            }
+
+            // Add TiffData elements, the file references get a UUID derived from their name
+            for (int i = 0; i < group.size; i++) {
+                String fileName = getImageReference(outputDir, imagesDir, group.urls[i]);
+                writer.startElement("TiffData");
+                writer.attribute("FirstC", group.channels[i]);
+                writer.attribute("FirstT", group.timepoints[i]);
+                writer.attribute("FirstZ", group.planes[i] - 1); // Convert to 0-indexed
+                writer.attribute("PlaneCount", 1);
+                writer.startElement("UUID");
+                writer.attribute("FileName", fileName);
+                writer.text("urn:uuid:" + UUID.nameUUIDFromBytes(fileName.getBytes(StandardCharsets.UTF_8)));
+                writer.endElement();
+                writer.endElement();
+            }
+
+            // Add Plane elements, with position if available
+            Position absPos = measurement != null ? calculateAbsolutePosition(group.row, group.col, group.field) : null;
+            for (int i = 0; i < group.size; i++) {
+                if (absPos != null) {
+                    writer.emptyElement("Plane",
+                            "TheC", group.channels[i], "TheT", group.timepoints[i], "TheZ", group.planes[i] - 1,
+                            "PositionX", absPos.x / 1000.0, "PositionXUnit", UNITS.METER.getSymbol(),
+                            "PositionY", absPos.y / 1000.0, "PositionYUnit", UNITS.METER.getSymbol());
+                } else {
+                    writer.emptyElement("Plane",
+                            "TheC", group.channels[i], "TheT", group.timepoints[i], "TheZ", group.planes[i] - 1);
+                }
+            }
+
+            writer.endElement();
+            writer.endElement();
+            imageIndex++;
+        }
     }
 }
@@ -0,0 +1,825 @@
+/*-
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.operetta.archive;
+
+import ch.epfl.biop.operetta.utils.ConcurrentPlaneReader;
+import ch.epfl.biop.operetta.utils.DatasetFilter;
+import ch.epfl.biop.operetta.utils.FilenameToCZTProvider;
+import ch.epfl.biop.operetta.utils.OpeningListener;
+import ch.epfl.biop.operetta.utils.ProgressiveReader;
+import ch.epfl.biop.operetta.utils.SubsetReader;
+import loci.common.Location;
+import loci.common.RandomAccessInputStream;
+import loci.formats.CoreMetadata;
+import loci.formats.CoreMetadataList;
+import loci.formats.FormatException;
+import loci.formats.FormatReader;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.meta.MetadataStore;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffParser;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+import ome.xml.model.primitives.NonNegativeInteger;
+import ome.xml.model.primitives.PositiveInteger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bio-Formats reader for Harmony 4.9 archives, opened through their IMAGES.sqlite file.
+ * <p>
+ * The core metadata, the plate layout and the table of the file of each plane are built directly from the
+ * database and from the measurement XML file, so no companion file has to be generated and parsed again.
+ * Each field of each well is a series, numbered by row, column and field like in the companion files written by
+ * {@link CompanionFromArchiveGenerator}. Planes are read from their single plane TIFF file when requested.
+ * <p>
+ * Expected layout:
+ * <pre>
+ *   Harmony-Archive/IMAGES/&lt;uuid&gt;/IMAGES.sqlite
+ *   Harmony-Archive/XML/MEASUREMENT/&lt;uuid&gt;.xml
+ * </pre>
+ * A {@link DatasetFilter} set before opening the archive restricts it to some wells, fields and time points,
+ * and an {@link OpeningListener} is notified of the plate layout and of each well while the database is read.
+ */
+public class HarmonyArchiveReader extends FormatReader
+        implements FilenameToCZTProvider, ConcurrentPlaneReader, SubsetReader, ProgressiveReader {
+
+    /** Name of the SQLite index of an archived measurement */
+    public static final String INDEX_FILE_NAME = "IMAGES.sqlite";
+
+    private static final String DIMENSION_ORDER = "XYCZT";
+
+    // -- Fields --
+
+    /** Folder of the SQLite file, the image urls are relative to it */
+    private String imagesDir;
+
+    /** Measurement XML file, null if it was not found */
+    private String measurementFile;
+
+    private String plateName;
+
+    /** Physical pixel size in micrometers, NaN if unknown */
+    private double pixelSizeUm = Double.NaN;
+
+    /**
+     * Plane table published for reading: replaced as a whole when the archive is refreshed, so that planes read
+     * concurrently always see a consistent table
+     */
+    private volatile PlaneTable table;
+
+    // The fields below are the plane table being built, only used by the thread opening or refreshing the archive.
+    // A refresh works on copies of the arrays, as the published table shares them.
+
+    /** Url of each plane, series after series, null for planes missing from the database */
+    private String[] planeUrls;
+
+    /** Number of planes of each series */
+    private int planesPerSeries;
+
+    private int sizeZ;
+    private int sizeC;
+    private int sizeT;
+
+    /** Values of Plane, Channel and SlowKin in the database for the first Z, C and T */
+    private int firstZ;
+    private int firstC;
+    private int firstT;
+
+    /** Row, column and field of each series, packed in a single key */
+    private long[] seriesKeys;
+    private int seriesCount;
+    private Map<Long, Integer> seriesIndex;
+
+    /** Last row of the Image table read so far, -1 if the table has no rowid */
+    private long lastRowId = -1;
+
+    /** Modification time of the database when it was last read */
+    private long databaseModified;
+
+    /** Subset to open, only used when reading the database, null for the whole archive */
+    private transient DatasetFilter filter;
+
+    /** Notified while the database is read, null if none */
+    private transient OpeningListener listener;
+
+    /** Copy of the database, when it cannot be opened in place */
+    private transient File tempCopy;
+
+    // -- Constructor --
+
+    public HarmonyArchiveReader() {
+        super("PerkinElmer Harmony Archive", "sqlite");
+        domains = new String[] {FormatTools.HCS_DOMAIN};
+        suffixSufficient = false;
+        hasCompanionFiles = true;
+        datasetDescription = "IMAGES.sqlite file in Harmony-Archive/IMAGES/<uuid>/, " +
+                "with the TIFF files next to it and the measurement XML in Harmony-Archive/XML/MEASUREMENT/";
+    }
+
+    // -- IFormatReader API methods --
+
+    @Override
+    public boolean isThisType(String name, boolean open) {
+        return new Location(name).getName().equalsIgnoreCase(INDEX_FILE_NAME);
+    }
+
+    @Override
+    public boolean isThisType(RandomAccessInputStream stream) throws IOException {
+        return false;
+    }
+
+    @Override
+    public boolean isSingleFile(String id) {
+        return false;
+    }
+
+    @Override
+    public int fileGroupOption(String id) {
+        return FormatTools.MUST_GROUP;
+    }
+
+    @Override
+    public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
+            throws FormatException, IOException
+    {
+        FormatTools.checkPlaneParameters(this, no, buf.length, x, y, w, h);
+        return readPlane(table, getSeries(), no, buf, x, y, w, h);
+    }
+
+    @Override
+    public String[] getSeriesUsedFiles(boolean noPixels) {
+        FormatTools.assertId(currentId, true, 1);
+        List<String> files = new ArrayList<>();
+        files.add(currentId);
+        if (measurementFile != null) {
+            files.add(measurementFile);
+        }
+        if (!noPixels) {
+            PlaneTable t = table;
+            for (int no = 0; no < t.planesPerSeries; no++) {
+                String file = t.getPlaneFile(getSeries(), no);
+                if (file != null) {
+                    files.add(file);
+                }
+            }
+        }
+        return files.toArray(new String[0]);
+    }
+
+    @Override
+    public void close(boolean fileOnly) throws IOException {
+        super.close(fileOnly);
+        if (!fileOnly) {
+            imagesDir = null;
+            measurementFile = null;
+            plateName = null;
+            pixelSizeUm = Double.NaN;
+            table = null;
+            planeUrls = null;
+            planesPerSeries = 0;
+            seriesKeys = null;
+            seriesCount = 0;
+            seriesIndex = null;
+            lastRowId = -1;
+            databaseModified = 0;
+        }
+    }
+
+    // -- SubsetReader API --
+
+    @Override
+    public void setDatasetFilter(DatasetFilter filter) {
+        FormatTools.assertId(currentId, false, 1);
+        this.filter = filter;
+    }
+
+    @Override
+    public DatasetFilter getDatasetFilter() {
+        return filter;
+    }
+
+    // -- ProgressiveReader API --
+
+    @Override
+    public void setOpeningListener(OpeningListener listener) {
+        FormatTools.assertId(currentId, false, 1);
+        this.listener = listener;
+    }
+
+    // -- ConcurrentPlaneReader API --
+
+    @Override
+    public String getPlaneFile(int series, int no) {
+        return table.getPlaneFile(series, no);
+    }
+
+    /**
+     * Each call opens its own stream on the plane file, so planes can be read concurrently, also while
+     * the archive is refreshed: each call reads from a single version of the plane table
+     */
+    @Override
+    public byte[] openPlane(int series, int no, byte[] buf, int x, int y, int w, int h)
+            throws FormatException, IOException
+    {
+        FormatTools.assertId(currentId, true, 1);
+        PlaneTable t = table;
+        if (series < 0 || series >= t.seriesCount) {
+            throw new FormatException("Invalid series: " + series);
+        }
+        if (no < 0 || no >= t.planesPerSeries) {
+            throw new FormatException("Invalid image number: " + no);
+        }
+        if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > t.sizeX || y + h > t.sizeY) {
+            throw new FormatException("Invalid tile: x=" + x + ", y=" + y + ", w=" + w + ", h=" + h);
+        }
+        if (buf.length < (long) w * h * FormatTools.getBytesPerPixel(t.pixelType)) {
+            throw new FormatException("Buffer too small for " + w + " x " + h + " pixels");
+        }
+        return readPlane(t, series, no, buf, x, y, w, h);
+    }
+
+    private byte[] readPlane(PlaneTable t, int series, int no, byte[] buf, int x, int y, int w, int h)
+            throws FormatException, IOException
+    {
+        String path = t.getPlaneFile(series, no);
+        if (path == null) {
+            Arrays.fill(buf, getFillColor());
+            return buf;
+        }
+        if (!new File(path).exists()) {
+            LOGGER.warn("Missing plane file {}", path);
+            Arrays.fill(buf, getFillColor());
+            return buf;
+        }
+        try (RandomAccessInputStream in = new RandomAccessInputStream(path)) {
+            TiffParser parser = new TiffParser(in);
+            IFD ifd = parser.getFirstIFD();
+            parser.getSamples(ifd, buf, x, y, w, h);
+        }
+        return buf;
+    }
+
+    // -- FilenameToCZTProvider API --
+
+    @Override
+    public Map<String, int[]> getFilenameToCZTMap(int series) {
+        FormatTools.assertId(currentId, true, 1);
+        PlaneTable t = table;
+        Map<String, int[]> map = new HashMap<>(2 * t.planesPerSeries);
+        for (int no = 0; no < t.planesPerSeries; no++) {
+            String file = t.getPlaneFile(series, no);
+            if (file == null) continue;
+            int[] zct = FormatTools.getZCTCoords(DIMENSION_ORDER, t.sizeZ, t.sizeC, t.sizeT, t.planesPerSeries, no);
+            map.put(file, new int[]{zct[1] + 1, zct[0] + 1, zct[2] + 1});
+        }
+        return map;
+    }
+
+    // -- HarmonyArchiveReader API --
+
+    /**
+     * @return true if the database was modified since it was last read, typically because Harmony is still
+     * writing the archive
+     */
+    public boolean isStale() {
+        FormatTools.assertId(currentId, true, 1);
+        return getDatabaseModified() != databaseModified;
+    }
+
+    /**
+     * Read the images added to the database since it was last read, without reading the others again.
+     * <p>
+     * New fields are added as new series, after the existing ones, so the indices of the series already opened
+     * do not change. New time points extend all series. Images outside of the Z and C dimensions found when the
+     * archive was opened are skipped: the archive has to be opened again to get them.
+     *
+     * @return the number of planes added
+     * @throws FormatException if the database or the measurement file cannot be read
+     * @throws IOException if the database cannot be copied, when it cannot be opened in place
+     */
+    public int refresh() throws FormatException, IOException {
+        FormatTools.assertId(currentId, true, 1);
+        if (lastRowId < 0) {
+            throw new FormatException("The Image table of " + currentId + " has no rowid, it cannot be refreshed");
+        }
+        HarmonyMeasurementSummary measurement = readMeasurement();
+        long modified = getDatabaseModified();
+        Connection conn = openDatabase();
+        int added = 0;
+        int previousSeriesCount = seriesCount;
+        int previousSizeT = sizeT;
+        // The published table shares the arrays, new planes go into copies
+        planeUrls = planeUrls.clone();
+        seriesKeys = seriesKeys.clone();
+        seriesIndex = new HashMap<>(seriesIndex);
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT rowid, Row, Col, Field, Plane, Channel, SlowKin, Url " +
+                "FROM Image WHERE rowid > ? ORDER BY rowid")) {
+            stmt.setLong(1, lastRowId);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                lastRowId = rs.getLong(1);
+                if (addPlane(rs.getInt(2), rs.getInt(3), rs.getInt(4), rs.getInt(5), rs.getInt(6), rs.getInt(7),
+                        rs.getString(8))) {
+                    added++;
+                }
+            }
+            rs.close();
+        } catch (SQLException e) {
+            throw new FormatException("Could not read " + currentId, e);
+        } finally {
+            closeDatabase(conn);
+        }
+        databaseModified = modified;
+
+        if (seriesCount != previousSeriesCount || sizeT != previousSizeT) {
+            updateCoreMetadata();
+        }
+        publishTable();
+        if (added > 0) {
+            populateMetadata(measurement);
+        }
+        LOGGER.info("Harmony archive refreshed: {} new planes, {} new series", added, seriesCount - previousSeriesCount);
+        return added;
+    }
+
+    // -- Internal FormatReader API methods --
+
+    @Override
+    protected void initFile(String id) throws FormatException, IOException {
+        super.initFile(id);
+        File sqliteFile = new File(id).getAbsoluteFile();
+        imagesDir = sqliteFile.getParent();
+        File xmlFile = findMeasurementFile(sqliteFile);
+        if (xmlFile != null) {
+            measurementFile = xmlFile.getAbsolutePath();
+        } else {
+            LOGGER.warn("No measurement XML found for {}, positions will not be set", id);
+        }
+        HarmonyMeasurementSummary measurement = readMeasurement();
+
+        databaseModified = getDatabaseModified();
+        Connection conn = openDatabase();
+        try {
+            readDatabase(conn, measurement);
+        } catch (SQLException e) {
+            throw new FormatException("Could not read " + id, e);
+        } finally {
+            closeDatabase(conn);
+        }
+    }
+
+    private void readDatabase(Connection conn, HarmonyMeasurementSummary measurement)
+            throws SQLException, FormatException, IOException
+    {
+        Statement stmt = conn.createStatement();
+
+        plateName = measurement != null ? measurement.getPlateName() : null;
+        if (plateName == null) {
+            ResultSet rsConfig = stmt.executeQuery("SELECT Value FROM Config WHERE Name='Measurement'");
+            plateName = rsConfig.getString(1);
+            rsConfig.close();
+        }
+
+        // Sizes and first index of each dimension, without reading the rows
+        ResultSet rsCount = stmt.executeQuery("SELECT COUNT(DISTINCT Plane), COUNT(DISTINCT Channel), " +
+                "COUNT(DISTINCT SlowKin), MIN(Plane), MIN(Channel), MIN(SlowKin), COUNT(*) FROM Image");
+        sizeZ = Math.max(1, rsCount.getInt(1));
+        sizeC = Math.max(1, rsCount.getInt(2));
+        sizeT = Math.max(1, rsCount.getInt(3));
+        firstZ = rsCount.getInt(4);
+        firstC = rsCount.getInt(5);
+        firstT = rsCount.getInt(6);
+        long imageCount = rsCount.getLong(7);
+        rsCount.close();
+        if (filter != null) {
+            // time points before the range are skipped, the first one kept becomes T=0
+            firstT += filter.getFirstTimepoint() - 1;
+            sizeT = Math.max(1, Math.min(sizeT - filter.getFirstTimepoint() + 1,
+                    filter.getLastTimepoint() - filter.getFirstTimepoint() + 1));
+        }
+
+        ResultSet rsSeries = stmt.executeQuery("SELECT COUNT(*) FROM (SELECT DISTINCT Row, Col, Field FROM Image)");
+        int expectedSeries = rsSeries.getInt(1);
+        rsSeries.close();
+        if (expectedSeries == 0) {
+            throw new FormatException("No image found in " + currentId);
+        }
+        if (listener != null) {
+            reportPlateLayout(stmt);
+        }
+
+        // Read before the images, so that rows added in between are read again by refresh() rather than missed
+        try {
+            ResultSet rsRowId = stmt.executeQuery("SELECT MAX(rowid) FROM Image");
+            lastRowId = rsRowId.getLong(1);
+            rsRowId.close();
+        } catch (SQLException e) {
+            LOGGER.debug("No rowid in the Image table, refresh() is not available", e);
+            lastRowId = -1;
+        }
+
+        planesPerSeries = sizeZ * sizeC * sizeT;
+        planeUrls = new String[expectedSeries * planesPerSeries];
+        seriesKeys = new long[expectedSeries];
+        seriesIndex = new HashMap<>(2 * expectedSeries);
+        seriesCount = 0;
+
+        // Fill the plane table in a single pass over the images, sorted by well and field like the series
+        ResultSet rs = stmt.executeQuery(
+                "SELECT Row, Col, Field, Plane, Channel, SlowKin, Url FROM Image ORDER BY Row, Col, Field");
+        String firstUrl = null;
+        long lastWell = -1;
+        long nRead = 0;
+        int percent = 0;
+        while (rs.next()) {
+            String url = rs.getString(7);
+            if (addPlane(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4), rs.getInt(5), rs.getInt(6), url)) {
+                if (firstUrl == null) firstUrl = url;
+                long well = pack(rs.getInt(1), rs.getInt(2), 0);
+                if (listener != null && well != lastWell) {
+                    if (lastWell >= 0) listener.wellRead(getRow(lastWell) + 1, getCol(lastWell) + 1);
+                    lastWell = well;
+                }
+            }
+            nRead++;
+            if (listener != null && imageCount > 0 && nRead * 100 / imageCount > percent) {
+                percent = (int) (nRead * 100 / imageCount);
+                listener.progress(percent / 100.0);
+            }
+        }
+        rs.close();
+        if (listener != null && lastWell >= 0) {
+            listener.wellRead(getRow(lastWell) + 1, getCol(lastWell) + 1);
+        }
+        stmt.close();
+        if (firstUrl == null) {
+            throw new FormatException("No plane within the dimensions in " + currentId);
+        }
+
+        // All planes are assumed to have the size and type of the first one
+        IFD firstIFD;
+        try (RandomAccessInputStream in = new RandomAccessInputStream(getPlanePath(firstUrl), 16)) {
+            firstIFD = new TiffParser(in).getFirstIFD();
+        }
+        if (firstIFD == null) {
+            throw new FormatException("Could not read " + getPlanePath(firstUrl));
+        }
+
+        CoreMetadata template = new CoreMetadata();
+        template.sizeX = (int) firstIFD.getImageWidth();
+        template.sizeY = (int) firstIFD.getImageLength();
+        template.dimensionOrder = DIMENSION_ORDER;
+        template.orderCertain = true;
+        template.pixelType = firstIFD.getPixelType();
+        template.bitsPerPixel = firstIFD.getBitsPerSample()[0];
+        template.littleEndian = firstIFD.isLittleEndian();
+        template.rgb = false;
+        template.interleaved = false;
+        template.indexed = false;
+        template.falseColor = true;
+        template.metadataComplete = true;
+        core.clear();
+        core.add(template);
+        updateCoreMetadata();
+        publishTable();
+
+        // Same pixel size as the companion files: camera pixel size, corrected for binning and magnification
+        double cameraPixelSizeUm = firstIFD.getXResolution();
+        if (cameraPixelSizeUm > 0) {
+            pixelSizeUm = cameraPixelSizeUm;
+            if (measurement != null) {
+                pixelSizeUm *= measurement.getBinningX();
+                if (measurement.getEffectiveMagnification() > 0) {
+                    pixelSizeUm /= measurement.getEffectiveMagnification();
+                }
+            }
+        }
+
+        populateMetadata(measurement);
+
+        LOGGER.info("Harmony archive: {} series, {} planes each", seriesCount, planesPerSeries);
+    }
+
+    /**
+     * Notify the listener of the wells of the database, rows and columns are 0-based in the database
+     */
+    private void reportPlateLayout(Statement stmt) throws SQLException {
+        List<int[]> wells = new ArrayList<>();
+        int rows = 0;
+        int columns = 0;
+        ResultSet rsWells = stmt.executeQuery("SELECT DISTINCT Row, Col FROM Image ORDER BY Row, Col");
+        while (rsWells.next()) {
+            int row = rsWells.getInt(1) + 1;
+            int col = rsWells.getInt(2) + 1;
+            rows = Math.max(rows, row);
+            columns = Math.max(columns, col);
+            if (filter == null || filter.acceptsWell(row, col)) {
+                wells.add(new int[]{row, col});
+            }
+        }
+        rsWells.close();
+        listener.plateLayoutRead(plateName, rows, columns, wells.toArray(new int[0][]));
+    }
+
+    /**
+     * Add an image of the database to the plane table, creating its series if needed
+     *
+     * @return false if the image is outside of the Z and C dimensions or rejected by the filter, and was skipped
+     */
+    private boolean addPlane(int row, int col, int field, int plane, int channel, int slowKin, String url) {
+        int z = plane - firstZ;
+        int c = channel - firstC;
+        int t = slowKin - firstT;
+        // rows and columns are 0-based in the database, time points are counted from the first one of the range
+        if (filter != null && !filter.accepts(row + 1, col + 1, field, t + filter.getFirstTimepoint())) {
+            return false;
+        }
+        if (z < 0 || z >= sizeZ || c < 0 || c >= sizeC || t < 0) {
+            LOGGER.warn("Skipping image outside of the dimensions: Z={}, C={}, T={}", z, c, t);
+            return false;
+        }
+        if (t >= sizeT) {
+            resizeT(t + 1);
+        }
+
+        long key = pack(row, col, field);
+        Integer s = seriesIndex.get(key);
+        if (s == null) {
+            s = seriesCount++;
+            if (s == seriesKeys.length) {
+                seriesKeys = Arrays.copyOf(seriesKeys, 2 * s);
+            }
+            if ((long) seriesCount * planesPerSeries > planeUrls.length) {
+                planeUrls = Arrays.copyOf(planeUrls, 2 * seriesCount * planesPerSeries);
+            }
+            seriesKeys[s] = key;
+            seriesIndex.put(key, s);
+        }
+        planeUrls[s * planesPerSeries + FormatTools.getIndex(DIMENSION_ORDER, sizeZ, sizeC, sizeT, planesPerSeries, z, c, t)] = url;
+        return true;
+    }
+
+    /**
+     * Extend all series to a new number of time points. T is the slowest dimension, so the planes of each series
+     * keep their index, only the series start moves.
+     */
+    private void resizeT(int newSizeT) {
+        int newPlanesPerSeries = sizeZ * sizeC * newSizeT;
+        String[] newPlaneUrls = new String[Math.max(seriesKeys.length, seriesCount + 1) * newPlanesPerSeries];
+        for (int s = 0; s < seriesCount; s++) {
+            System.arraycopy(planeUrls, s * planesPerSeries, newPlaneUrls, s * newPlanesPerSeries, planesPerSeries);
+        }
+        planeUrls = newPlaneUrls;
+        planesPerSeries = newPlanesPerSeries;
+        sizeT = newSizeT;
+    }
+
+    /**
+     * Make the core metadata match the series and dimensions of the plane table. The list is replaced rather than
+     * modified, so that the core metadata already handed out does not change under its users
+     */
+    private void updateCoreMetadata() {
+        CoreMetadata template = core.get(0, 0);
+        CoreMetadataList updated = new CoreMetadataList();
+        for (int s = 0; s < seriesCount; s++) {
+            CoreMetadata m = new CoreMetadata(template);
+            m.sizeZ = sizeZ;
+            m.sizeC = sizeC;
+            m.sizeT = sizeT;
+            m.imageCount = planesPerSeries;
+            updated.add(m);
+        }
+        core = updated;
+    }
+
+    /**
+     * Make the plane table built so far visible to {@link #openPlane} and {@link #getPlaneFile}
+     */
+    private void publishTable() {
+        CoreMetadata template = core.get(0, 0);
+        table = new PlaneTable(imagesDir, planeUrls, planesPerSeries, seriesCount, sizeZ, sizeC, sizeT,
+                template.sizeX, template.sizeY, template.pixelType);
+    }
+
+    /**
+     * An immutable version of the plane table, with what is needed to read the planes. The arrays it shares
+     * with the reader are never modified once published
+     */
+    private static final class PlaneTable {
+        final String imagesDir;
+        final String[] planeUrls;
+        final int planesPerSeries;
+        final int seriesCount;
+        final int sizeZ;
+        final int sizeC;
+        final int sizeT;
+        final int sizeX;
+        final int sizeY;
+        final int pixelType;
+
+        PlaneTable(String imagesDir, String[] planeUrls, int planesPerSeries, int seriesCount,
+                   int sizeZ, int sizeC, int sizeT, int sizeX, int sizeY, int pixelType) {
+            this.imagesDir = imagesDir;
+            this.planeUrls = planeUrls;
+            this.planesPerSeries = planesPerSeries;
+            this.seriesCount = seriesCount;
+            this.sizeZ = sizeZ;
+            this.sizeC = sizeC;
+            this.sizeT = sizeT;
+            this.sizeX = sizeX;
+            this.sizeY = sizeY;
+            this.pixelType = pixelType;
+        }
+
+        /**
+         * @return the absolute path of the file of the plane, null if it is missing from the database
+         */
+        String getPlaneFile(int series, int no) {
+            String url = planeUrls[series * planesPerSeries + no];
+            return url == null ? null : new File(imagesDir, url).getAbsolutePath();
+        }
+    }
+
+    /**
+     * Fill the metadata store from the plate layout: one well per row and column, one well sample and image
+     * per series
+     */
+    private void populateMetadata(HarmonyMeasurementSummary measurement) {
+        MetadataStore store = makeFilterMetadata();
+        MetadataTools.populatePixels(store, this, measurement != null, false);
+
+        // series of each well, wells in the order they were found
+        Map<Long, List<Integer>> wells = new LinkedHashMap<>();
+        // the plate spans up to the last row and column imaged, even if the first ones are not
+        int rows = 0;
+        int cols = 0;
+        for (int s = 0; s < seriesCount; s++) {
+            List<Integer> samples = wells.get(seriesKeys[s] >>> 21);
+            if (samples == null) {
+                samples = new ArrayList<>();
+                wells.put(seriesKeys[s] >>> 21, samples);
+            }
+            samples.add(s);
+            rows = Math.max(rows, getRow(seriesKeys[s]) + 1);
+            cols = Math.max(cols, getCol(seriesKeys[s]) + 1);
+        }
+
+        store.setPlateID(MetadataTools.createLSID("Plate", 0), 0);
+        store.setPlateName(plateName, 0);
+        store.setPlateRows(new PositiveInteger(Math.max(1, rows)), 0);
+        store.setPlateColumns(new PositiveInteger(Math.max(1, cols)), 0);
+
+        Length physicalSize = Double.isNaN(pixelSizeUm) ? null : FormatTools.getPhysicalSizeX(pixelSizeUm);
+        int wellIndex = 0;
+        for (List<Integer> samples : wells.values()) {
+            long wellKey = seriesKeys[samples.get(0)];
+            store.setWellID(MetadataTools.createLSID("Well", 0, wellIndex), 0, wellIndex);
+            store.setWellRow(new NonNegativeInteger(getRow(wellKey)), 0, wellIndex);
+            store.setWellColumn(new NonNegativeInteger(getCol(wellKey)), 0, wellIndex);
+
+            for (int wellSampleIndex = 0; wellSampleIndex < samples.size(); wellSampleIndex++) {
+                int s = samples.get(wellSampleIndex);
+                int row = getRow(seriesKeys[s]);
+                int col = getCol(seriesKeys[s]);
+                int field = (int) (seriesKeys[s] & 0x1FFFFF);
+
+                String imageID = MetadataTools.createLSID("Image", s);
+                store.setWellSampleID(MetadataTools.createLSID("WellSample", 0, wellIndex, wellSampleIndex), 0, wellIndex, wellSampleIndex);
+                store.setWellSampleIndex(new NonNegativeInteger(s), 0, wellIndex, wellSampleIndex);
+                store.setWellSampleImageRef(imageID, 0, wellIndex, wellSampleIndex);
+
+                store.setImageName(row + "|" + col + "|" + field, s);
+                if (physicalSize != null) {
+                    store.setPixelsPhysicalSizeX(physicalSize, s);
+                    store.setPixelsPhysicalSizeY(physicalSize, s);
+                }
+
+                if (measurement != null) {
+                    CompanionFromArchiveGenerator.Position position = CompanionFromArchiveGenerator.calculateAbsolutePosition(
+                            measurement, row, col, field, false, false);
+                    Length positionX = new Length(position.x / 1000.0, UNITS.METER);
+                    Length positionY = new Length(position.y / 1000.0, UNITS.METER);
+                    store.setWellSamplePositionX(positionX, 0, wellIndex, wellSampleIndex);
+                    store.setWellSamplePositionY(positionY, 0, wellIndex, wellSampleIndex);
+                    for (int p = 0; p < planesPerSeries; p++) {
+                        store.setPlanePositionX(positionX, s, p);
+                        store.setPlanePositionY(positionY, s, p);
+                    }
+                }
+            }
+            wellIndex++;
+        }
+    }
+
+    // -- Helper methods --
+
+    private static long pack(int row, int col, int field) {
+        return ((long) row << 42) | ((long) (col & 0x1FFFFF) << 21) | (field & 0x1FFFFF);
+    }
+
+    private static int getRow(long key) {
+        return (int) (key >>> 42);
+    }
+
+    private static int getCol(long key) {
+        return (int) ((key >>> 21) & 0x1FFFFF);
+    }
+
+    private String getPlanePath(String url) {
+        return new File(imagesDir, url).getAbsolutePath();
+    }
+
+    private HarmonyMeasurementSummary readMeasurement() throws FormatException {
+        if (measurementFile == null) return null;
+        try {
+            return HarmonyMeasurementSummary.parse(new File(measurementFile));
+        } catch (Exception e) {
+            throw new FormatException("Could not read measurement file " + measurementFile, e);
+        }
+    }
+
+    /**
+     * @return the last modification time of the database or of its write-ahead log
+     */
+    private long getDatabaseModified() {
+        return Math.max(new File(currentId).lastModified(), new File(currentId + "-wal").lastModified());
+    }
+
+    private Connection openDatabase() throws FormatException, IOException {
+        try {
+            return CompanionFromArchiveGenerator.openDatabase(currentId, true);
+        } catch (SQLException e) {
+            // fallback for file systems on which SQLite cannot open the database in place
+            LOGGER.warn("Could not open {} in place ({}), reading a temporary copy", currentId, e.getMessage());
+            tempCopy = File.createTempFile("harmony_archive", ".sqlite");
+            Files.copy(new File(currentId).toPath(), tempCopy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            try {
+                return CompanionFromArchiveGenerator.openDatabase(tempCopy.getAbsolutePath(), false);
+            } catch (SQLException e2) {
+                tempCopy.delete();
+                tempCopy = null;
+                throw new FormatException("Could not open " + currentId, e2);
+            }
+        }
+    }
+
+    private void closeDatabase(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            LOGGER.debug("Could not close {}", currentId, e);
+        }
+        if (tempCopy != null) {
+            tempCopy.delete();
+            tempCopy = null;
+        }
+    }
+
+    /**
+     * @param sqliteFile the IMAGES.sqlite file, in Harmony-Archive/IMAGES/&lt;uuid&gt;/
+     * @return the measurement file Harmony-Archive/XML/MEASUREMENT/&lt;uuid&gt;.xml, or null if it does not exist
+     */
+    public static File findMeasurementFile(File sqliteFile) {
+        File imagesFolder = sqliteFile.getAbsoluteFile().getParentFile();
+        if (imagesFolder == null || imagesFolder.getParentFile() == null) return null;
+        File harmonyArchive = imagesFolder.getParentFile().getParentFile();
+        if (harmonyArchive == null) return null;
+        File xmlFile = new File(new File(new File(harmonyArchive, "XML"), "MEASUREMENT"), imagesFolder.getName() + ".xml");
+        return xmlFile.exists() ? xmlFile : null;
+    }
+}
@@ -0,0 +1,365 @@
+/*-
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.operetta.archive;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * What the archive import needs from a Harmony measurement XML file: field positions, objective magnification,
+ * camera binning and plate name.
+ * <p>
+ * The file is read once, as a stream, so the memory needed does not depend on its size, which reaches hundreds
+ * of MB for long kinetic runs. Once parsed, a summary cannot be modified.
+ */
+public final class HarmonyMeasurementSummary {
+
+    /** Namespace of the Harmony measurement XML elements */
+    public static final String HARMONY_NS = "http://www.perkinelmer.com/PEHH/HarmonyV5";
+
+    private static final double MAGNIFICATION_TOLERANCE = 0.01;
+
+    // field positions in mm, indexed by field - 1, NaN when the field has no position
+    private final double[] fieldX;
+    private final double[] fieldY;
+    private final int nPositions;
+
+    private final double nominalMagnification;
+    private final double magnificationCorrection;
+
+    private final int binningX;
+    private final int binningY;
+    private final boolean uniformBinning;
+
+    private final String plateName;
+
+    private HarmonyMeasurementSummary(double[] fieldX, double[] fieldY, int nPositions,
+                                      double nominalMagnification, double magnificationCorrection,
+                                      int binningX, int binningY, boolean uniformBinning, String plateName) {
+        this.fieldX = fieldX;
+        this.fieldY = fieldY;
+        this.nPositions = nPositions;
+        this.nominalMagnification = nominalMagnification;
+        this.magnificationCorrection = magnificationCorrection;
+        this.binningX = binningX;
+        this.binningY = binningY;
+        this.uniformBinning = uniformBinning;
+        this.plateName = plateName;
+    }
+
+    /**
+     * @return the number of Field elements found, with or without position
+     */
+    public int getFieldCount() {
+        return fieldX.length;
+    }
+
+    /**
+     * @return the number of fields with a position
+     */
+    public int getFieldPositionCount() {
+        return nPositions;
+    }
+
+    /**
+     * @param field the 1-based index of the field, in the order of the file
+     * @return true if the field has an X and Y position
+     */
+    public boolean hasFieldPosition(int field) {
+        return field >= 1 && field <= fieldX.length && !Double.isNaN(fieldX[field - 1]) && !Double.isNaN(fieldY[field - 1]);
+    }
+
+    /**
+     * @param field the 1-based index of the field, in the order of the file
+     * @return the X position of the field, in mm
+     */
+    public double getFieldPositionX(int field) {
+        return fieldX[field - 1];
+    }
+
+    /**
+     * @param field the 1-based index of the field, in the order of the file
+     * @return the Y position of the field, in mm
+     */
+    public double getFieldPositionY(int field) {
+        return fieldY[field - 1];
+    }
+
+    /**
+     * @return the magnification of the first objective of the instrument description, 1 if there is none
+     */
+    public double getNominalMagnification() {
+        return nominalMagnification;
+    }
+
+    /**
+     * @return the first magnification of the file that differs from the nominal one, 1 if there is none
+     */
+    public double getMagnificationCorrection() {
+        return magnificationCorrection;
+    }
+
+    /**
+     * @return the nominal magnification times its correction
+     */
+    public double getEffectiveMagnification() {
+        return nominalMagnification * magnificationCorrection;
+    }
+
+    /**
+     * @return the horizontal binning of the first channel, 1 if there is none
+     */
+    public int getBinningX() {
+        return binningX;
+    }
+
+    /**
+     * @return the vertical binning of the first channel, 1 if there is none
+     */
+    public int getBinningY() {
+        return binningY;
+    }
+
+    /**
+     * @return false if the channels do not all have the same binning
+     */
+    public boolean isBinningUniform() {
+        return uniformBinning;
+    }
+
+    /**
+     * @return the trimmed content of the first PlateName element, or null if it is missing or empty
+     */
+    public String getPlateName() {
+        return plateName;
+    }
+
+    /**
+     * Read a Harmony measurement XML file in a single pass
+     *
+     * @param xmlFile the measurement file
+     * @return the summary of the measurement
+     * @throws IOException if the file cannot be read
+     * @throws XMLStreamException if the file is not valid XML
+     */
+    public static HarmonyMeasurementSummary parse(File xmlFile) throws IOException, XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(xmlFile), 1 << 16)) {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                return new Parser().parse(reader);
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Streaming state, reproducing what successive DOM lookups by tag name would find
+     */
+    private static class Parser {
+        int depth = 0;
+
+        double[] fieldX = new double[64];
+        double[] fieldY = new double[64];
+        int nFields = 0;
+        // Fields currently open, an X or Y element belongs to all of them
+        final List<Integer> openFields = new ArrayList<>();
+        final List<Integer> openFieldDepths = new ArrayList<>();
+
+        // depth of the first InstrumentDescription, of its first Objectives and of the first Objective in there
+        int instrumentDescriptionDepth = -1;
+        int objectivesDepth = -1;
+        int objectiveDepth = -1;
+        boolean instrumentDescriptionDone = false;
+        boolean objectivesDone = false;
+        boolean objectiveDone = false;
+        Double nominalMagnification = null;
+        int nMagnifications = 0;
+        final Set<Double> magnifications = new LinkedHashSet<>();
+
+        final List<Integer> binningX = new ArrayList<>();
+        final List<Integer> binningY = new ArrayList<>();
+
+        boolean plateNameDone = false;
+        String plateName = null;
+
+        HarmonyMeasurementSummary parse(XMLStreamReader reader) throws XMLStreamException {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    if (HARMONY_NS.equals(reader.getNamespaceURI())) {
+                        startElement(reader);
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    endElement();
+                }
+            }
+            return build();
+        }
+
+        private void startElement(XMLStreamReader reader) throws XMLStreamException {
+            switch (reader.getLocalName()) {
+                case "Field":
+                    if (nFields == fieldX.length) {
+                        fieldX = Arrays.copyOf(fieldX, 2 * nFields);
+                        fieldY = Arrays.copyOf(fieldY, 2 * nFields);
+                    }
+                    fieldX[nFields] = Double.NaN;
+                    fieldY[nFields] = Double.NaN;
+                    openFields.add(nFields++);
+                    openFieldDepths.add(depth);
+                    break;
+                case "X":
+                case "Y":
+                    double[] positions = reader.getLocalName().equals("X") ? fieldX : fieldY;
+                    boolean needed = false;
+                    for (int field : openFields) {
+                        needed = needed || Double.isNaN(positions[field]);
+                    }
+                    if (needed) {
+                        // the first X and Y of a field are its position, in m
+                        double value = Double.parseDouble(readText(reader)) * 1000;
+                        for (int field : openFields) {
+                            if (Double.isNaN(positions[field])) positions[field] = value;
+                        }
+                    }
+                    break;
+                case "InstrumentDescription":
+                    if (!instrumentDescriptionDone && instrumentDescriptionDepth < 0) {
+                        instrumentDescriptionDepth = depth;
+                    }
+                    break;
+                case "Objectives":
+                    if (instrumentDescriptionDepth >= 0 && !objectivesDone && objectivesDepth < 0) {
+                        objectivesDepth = depth;
+                    }
+                    break;
+                case "Objective":
+                    if (objectivesDepth >= 0 && !objectiveDone && objectiveDepth < 0) {
+                        objectiveDepth = depth;
+                    }
+                    break;
+                case "Magnification":
+                    double magnification = Double.parseDouble(readText(reader));
+                    nMagnifications++;
+                    magnifications.add(magnification);
+                    if (objectiveDepth >= 0 && nominalMagnification == null) {
+                        nominalMagnification = magnification;
+                    }
+                    break;
+                case "BinningX":
+                    binningX.add(Integer.parseInt(readText(reader).trim()));
+                    break;
+                case "BinningY":
+                    binningY.add(Integer.parseInt(readText(reader).trim()));
+                    break;
+                case "PlateName":
+                    if (!plateNameDone) {
+                        plateNameDone = true;
+                        String name = readText(reader);
+                        if (name != null && !name.trim().isEmpty()) {
+                            plateName = name.trim();
+                        }
+                    }
+                    break;
+            }
+        }
+
+        /**
+         * Read the text of the current element, the reader is then on its end tag
+         */
+        private String readText(XMLStreamReader reader) throws XMLStreamException {
+            String text = reader.getElementText();
+            endElement();
+            return text;
+        }
+
+        private void endElement() {
+            int last = openFieldDepths.size() - 1;
+            if (last >= 0 && openFieldDepths.get(last) == depth) {
+                openFields.remove(last);
+                openFieldDepths.remove(last);
+            }
+            if (depth == objectiveDepth) {
+                objectiveDepth = -1;
+                objectiveDone = true;
+            }
+            if (depth == objectivesDepth) {
+                objectivesDepth = -1;
+                objectivesDone = true;
+            }
+            if (depth == instrumentDescriptionDepth) {
+                instrumentDescriptionDepth = -1;
+                instrumentDescriptionDone = true;
+            }
+            depth--;
+        }
+
+        private HarmonyMeasurementSummary build() {
+            int nPositions = 0;
+            for (int i = 0; i < nFields; i++) {
+                if (!Double.isNaN(fieldX[i]) && !Double.isNaN(fieldY[i])) nPositions++;
+            }
+
+            double nominal = nominalMagnification != null ? nominalMagnification : 1.0;
+            double correction = 1.0;
+            // Look for additional magnification factors (there should be exactly 2 if there's a correction)
+            if (nMagnifications > 1) {
+                for (double magnification : magnifications) {
+                    if (Math.abs(magnification - nominal) > MAGNIFICATION_TOLERANCE) {
+                        correction = magnification;
+                        break;
+                    }
+                }
+            }
+
+            int binX = 1;
+            int binY = 1;
+            boolean uniform = true;
+            if (!binningX.isEmpty() && !binningY.isEmpty()) {
+                binX = binningX.get(0);
+                binY = binningY.get(0);
+                uniform = new LinkedHashSet<>(binningX).size() == 1 && new LinkedHashSet<>(binningY).size() == 1;
+            }
+
+            return new HarmonyMeasurementSummary(Arrays.copyOf(fieldX, nFields), Arrays.copyOf(fieldY, nFields),
+                    nPositions, nominal, correction, binX, binY, uniform, plateName);
+        }
+    }
+}
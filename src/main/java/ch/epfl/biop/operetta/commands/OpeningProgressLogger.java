@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.operetta.commands;
+
+import ch.epfl.biop.operetta.utils.OpeningListener;
+import ij.IJ;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Shows the opening of a dataset in ImageJ: the plate layout in the log as soon as it is read, then the wells read
+ * so far in the status bar and the progress bar. Shared by the importer commands, and kept by
+ * {@link OperettaImporterInteractive} to offer the wells of the plate while the rest of the index is read.
+ */
+class OpeningProgressLogger implements OpeningListener {
+
+    private volatile List<String> well_names = null;
+    private volatile int n_wells = 0;
+    private volatile int wells_read = 0;
+
+    @Override
+    public void plateLayoutRead(String plateName, int rows, int columns, int[][] wells) {
+        List<String> names = new ArrayList<>(wells.length);
+        for (int[] well : wells) {
+            names.add("R" + well[0] + "-C" + well[1]);
+        }
+        well_names = names;
+        n_wells = wells.length;
+        IJ.log("- Plate " + (plateName == null ? "" : plateName + " ") + "(" + rows + " x " + columns + "): "
+                + wells.length + " wells");
+    }
+
+    @Override
+    public void wellRead(int row, int column) {
+        wells_read++;
+        IJ.showStatus("Operetta: well R" + row + "-C" + column + " read (" + wells_read + "/" + n_wells + ")");
+    }
+
+    /**
+     * @return the wells of the plate layout, formatted as R#-C#, or null if the layout is not read yet
+     */
+    List<String> getWellNames() {
+        return well_names;
+    }
+
+    /**
+     * @return a short description of the opening so far, for the dialog
+     */
+    String getSummary() {
+        if (well_names == null) {
+            return "reading the plate layout";
+        }
+        return wells_read + "/" + n_wells + " wells read";
+    }
+
+    /**
+     * Log the end of the opening, whenever it happens, without waiting for it
+     *
+     * @param opening the future result of the opening
+     * @param <T>     the result type
+     * @return the same future
+     */
+    static <T> CompletableFuture<T> logCompletion(CompletableFuture<T> opening) {
+        long start = System.currentTimeMillis();
+        opening.whenComplete((result, error) -> {
+            IJ.showProgress(1.0);
+            if (error != null) {
+                Throwable cause = error.getCause() != null ? error.getCause() : error;
+                IJ.log("Error during the opening: " + cause.getMessage());
+                cause.printStackTrace();
+            } else if (result == null) {
+                IJ.log("Error during reader creation, please retry or post your issue in forum.image.sc.");
+            } else {
+                IJ.log("Done! Opening the dataset took " + (System.currentTimeMillis() - start) / 1000 + " s.");
+            }
+        });
+        return opening;
+    }
+
+    @Override
+    public void progress(double fraction) {
+        IJ.showProgress(fraction);
+    }
+
+    /**
+     * Wait for the opening to complete, logging the waiting time every 20 seconds. The end of the opening itself
+     * is logged by {@link #logCompletion(CompletableFuture)}
+     *
+     * @param opening the future result of the opening
+     * @param <T>     the result type
+     * @return the result, or null if the opening failed or was interrupted
+     */
+    static <T> T waitFor(CompletableFuture<T> opening) {
+        long start = System.currentTimeMillis();
+        try {
+            while (true) {
+                try {
+                    return opening.get(20, TimeUnit.SECONDS);
+                } catch (TimeoutException e) {
+                    IJ.log("- Waiting for the dataset, t = " + (System.currentTimeMillis() - start) / 1000 + " s");
+                }
+            }
+        } catch (InterruptedException e) {
+            IJ.log("Operetta dataset opening interrupted!");
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // already logged by logCompletion
+        }
+        return null;
+    }
+}
@@ -22,9 +22,7 @@
 package ch.epfl.biop.operetta.commands;
 
 import ch.epfl.biop.operetta.OperettaManager;
-import ch.epfl.biop.operetta.archive.CompanionFromArchiveGenerator;
 import ij.IJ;
-import loci.formats.FormatException;
 import loci.formats.IFormatReader;
 import org.scijava.ItemVisibility;
 import org.scijava.command.Command;
@@ -33,11 +31,12 @@ import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import java.io.File;
-import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Entry point for importing Operetta Archive (Harmony 4.9) data.
- * This command generates a companion file from the archive and then
+ * This command opens the archive through its IMAGES.sqlite file with
+ * {@link ch.epfl.biop.operetta.archive.HarmonyArchiveReader}, and then
  * launches {@link OperettaImporterInteractive} for further processing.
  */
 @Plugin(type = Command.class, menuPath = "Plugins>BIOP > Operetta Importer > Operetta Archive Importer...")
@@ -75,103 +74,22 @@ public class OperettaArchiveImporter implements Command {
             return;
         }
 
-        // Find a TIFF file for pixel size extraction
-        File tiffFile = findTiffFile(imagesFolder);
-        if (tiffFile == null) {
-            IJ.log("Error: No TIFF files found in " + imagesFolder.getAbsolutePath());
-            return;
-        }
-
         IJ.log("=== Operetta Archive Importer ===");
         IJ.log("XML file: " + xmlFile.getAbsolutePath());
         IJ.log("SQLite file: " + sqliteFile.getAbsolutePath());
-        IJ.log("Sample TIFF: " + tiffFile.getAbsolutePath());
-
-        // Step 1: Check if companion file already exists, otherwise generate it
-        File companionFile = findCompanionFile(imagesFolder);
-        if (companionFile != null && companionFile.exists()) {
-            IJ.log("Companion file already exists: " + companionFile.getAbsolutePath());
-        } else {
-            IJ.log("Generating companion file...");
-            CompanionFromArchiveGenerator generator = new CompanionFromArchiveGenerator(
-                    sqliteFile.getAbsolutePath(),
-                    xmlFile.getAbsolutePath(),
-                    tiffFile.getAbsolutePath(),
-                    false,
-                    false,
-                    ".lazy"
-            );
-
-            generator.run();
-
-            // Find the generated companion file
-            companionFile = findCompanionFile(imagesFolder);
-            if (companionFile == null) {
-                IJ.log("Error: Companion file was not generated");
-                return;
-            }
-
-            IJ.log("Companion file created: " + companionFile.getAbsolutePath());
-        }
-
-        // Step 2: Open companion file with Bio-Formats (append .lazy for lazy loader)
-        String companionPathLazy = companionFile.getAbsolutePath();
-        IJ.log("Opening companion file with Bio-Formats: " + companionPathLazy);
-        final IFormatReader[] reader = new IFormatReader[1];
-
-        Thread t = new Thread(() -> {
-            try {
-                reader[0] = OperettaManager.Builder.createReader(companionPathLazy);
-            } catch (IOException | FormatException e) {
-                IJ.log("Error creating reader: " + e.getMessage());
-                e.printStackTrace();
-            }
-        });
-
-        t.start();
-        int countSeconds = 0;
-        while (t.isAlive()) {
-            try {
-                Thread.sleep(1000);
-                countSeconds++;
-            } catch (InterruptedException e) {
-                IJ.log("Opening interrupted!");
-                return;
-            }
-            if ((countSeconds % 20) == 0) {
-                IJ.log("- t = " + countSeconds + " s");
-            }
-        }
-
-        if (reader[0] == null) {
-            IJ.log("Error: Failed to create reader from companion file. Please retry or post your issue in forum.image.sc.");
-            return;
-        }
 
-        IJ.log("Done! Opening took " + countSeconds + " s.");
-
-        // Step 3: Launch interactive command
-        OperettaManager.Builder opmBuilder = new OperettaManager.Builder()
-                .reader(reader[0]);
-
-        cs.run(OperettaImporterInteractive.class, true, "opm_builder", opmBuilder);
-    }
-
-    private File findTiffFile(File folder) {
-        File[] files = folder.listFiles((dir, name) ->
-                name.toLowerCase().endsWith(".tiff") || name.toLowerCase().endsWith(".tif"));
-        if (files != null && files.length > 0) {
-            return files[0];
-        }
-        return null;
-    }
-
-    private File findCompanionFile(File folder) {
-        File[] files = folder.listFiles((dir, name) -> name.endsWith(".companion.ome.lazy"));
-        if (files != null && files.length > 0) {
-            return files[0];
-        }
-        return null;
+        // Step 1: Open the archive with Bio-Formats, directly from its SQLite index
+        String sqlitePath = sqliteFile.getAbsolutePath();
+        IJ.log("Opening archive with Bio-Formats: " + sqlitePath);
+        // The interactive command is shown right away and gets the reader once the archive is read
+        OpeningProgressLogger progress = new OpeningProgressLogger();
+        CompletableFuture<IFormatReader> opening = OpeningProgressLogger.logCompletion(
+                OperettaManager.Builder.createReaderAsync(sqlitePath, OperettaImporterHiddenSettings.getMemoCache(),
+                        false, null, progress));
+
+        // Step 2: Launch interactive command
+        cs.run(OperettaImporterInteractive.class, true, "opm_builder", new OperettaManager.Builder(),
+                "opening", opening, "opening_progress", progress);
     }
 
     /**
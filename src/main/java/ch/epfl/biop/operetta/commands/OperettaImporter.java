@@ -22,8 +22,9 @@
 package ch.epfl.biop.operetta.commands;
 
 import ch.epfl.biop.operetta.OperettaManager;
+import ch.epfl.biop.operetta.utils.DatasetFilter;
+import ch.epfl.biop.operetta.utils.MemoCache;
 import ij.IJ;
-import loci.formats.FormatException;
 import loci.formats.IFormatReader;
 import org.apache.commons.io.FileUtils;
 import org.scijava.ItemVisibility;
@@ -33,12 +34,16 @@ import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import java.io.File;
-import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Entry point to command {@link OperettaImporterInteractive}.
- * Because the initial parsing can take a while, it is better for the user to have an estimation
- * of the time it will take to open the Operetta dataset, before launching the interactive command
+ * Because the initial parsing can take a while, the user gets an estimation of the time it will take
+ * to open the Operetta dataset. The interactive command is launched right away, while the dataset is
+ * opened in the background: its settings can be filled in, and the wells chosen from the plate layout,
+ * before the whole index is read
  */
 @Plugin(type = Command.class, menuPath = "Plugins>BIOP > Operetta Importer > Operetta Importer...")
 public class OperettaImporter implements Command {
@@ -50,6 +55,15 @@ public class OperettaImporter implements Command {
     @Parameter(label = "Select the 'Images' folder of your Operetta dataset", style = "directory")
     File folder;
 
+    @Parameter(label = "Wells to open, e.g. 'A1, B3' (empty: all wells)", required = false)
+    String wells = "";
+
+    @Parameter(label = "Save as OME-Zarr plate", required = false)
+    boolean save_as_ome_zarr = false;
+
+    @Parameter(label = "Resume previous export in the save directory", required = false)
+    boolean resume = false;
+
     @Parameter
     CommandService cs;
 
@@ -78,7 +92,20 @@ public class OperettaImporter implements Command {
         int sizeInMb = (int) ((double) FileUtils.sizeOf(f) / (double) (1024 * 1024));
         IJ.log("- Opening Operetta dataset " + f.getAbsolutePath() + " (" + sizeInMb + " Mb)");
 
-        File fmemo = new File(folder, "." + file.getIndexFileName() + ".bfmemo");
+        MemoCache memo_cache = OperettaImporterHiddenSettings.getMemoCache();
+        boolean use_index_reader = OperettaImporterHiddenSettings.useStreamingIndexReader();
+        DatasetFilter dataset_filter = null;
+        if (wells != null && !wells.trim().isEmpty()) {
+            try {
+                dataset_filter = new DatasetFilter.Builder().addWells(wells).build();
+            } catch (IllegalArgumentException e) {
+                IJ.log("Error, " + e.getMessage());
+                return;
+            }
+            IJ.log("- Opening only the wells " + wells.trim());
+        }
+        File fmemo = memo_cache == null ? new File(folder, "." + file.getIndexFileName() + ".bfmemo")
+                : memo_cache.getMemoFile(f.getAbsolutePath());
         int estimatedOpeningTimeInMin;
         if (!fmemo.exists()) {
             estimatedOpeningTimeInMin = sizeInMb / 30; // 30 Mb per minute
@@ -94,41 +121,20 @@ public class OperettaImporter implements Command {
             IJ.log("- Estimated opening time = " + estimatedOpeningTimeInMin + " min.");
         }
 
-        final IFormatReader[] reader = new IFormatReader[1];
-        //File finalF = f;
-        Thread t = new Thread(() -> {
-            try {
-                reader[0] = OperettaManager.Builder.createReader(f.getAbsolutePath());
-            } catch (IOException | FormatException e) {
-                e.printStackTrace();
-            }
-        });
-
-        t.start();
-        int countSeconds = 0;
-        while (t.isAlive()) {
-            try {
-                Thread.sleep(1000);
-                countSeconds++;
-            } catch (InterruptedException e) {
-                IJ.log("Operetta dataset opening interrupted!");
-                return;
-            }
-            if ((countSeconds % 20) == 0) {
-                IJ.log("- t = " + countSeconds + " s");
-            }
-        }
-
-        if (reader[0] == null) {
-            IJ.log("Error during reader creation, please retry or post your issue in forum.image.sc.");
-        } else {
-            IJ.log("Done! Opening the dataset took " + countSeconds + " s.");
-
-            OperettaManager.Builder opmBuilder = new OperettaManager.Builder()
-                    .reader(reader[0]);
-
-            cs.run(OperettaImporterInteractive.class, true, "opm_builder", opmBuilder);
-        }
+        // The interactive command is shown right away and gets the reader once the index is read
+        OpeningProgressLogger progress = new OpeningProgressLogger();
+        CompletableFuture<IFormatReader> opening = OpeningProgressLogger.logCompletion(
+                OperettaManager.Builder.createReaderAsync(f.getAbsolutePath(), memo_cache,
+                        use_index_reader || dataset_filter != null, dataset_filter, progress));
+
+        Map<String, Object> inputs = new HashMap<>();
+        inputs.put("opm_builder", new OperettaManager.Builder());
+        inputs.put("opening", opening);
+        inputs.put("opening_progress", progress);
+        // the export options given here, typically by a script, are fixed in the interactive command
+        if (save_as_ome_zarr) inputs.put("save_as_ome_zarr", true);
+        if (resume) inputs.put("resume", true);
+        cs.run(OperettaImporterInteractive.class, true, inputs);
 
     }
 
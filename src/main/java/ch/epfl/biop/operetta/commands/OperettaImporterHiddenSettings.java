@@ -21,17 +21,24 @@
  */
 package ch.epfl.biop.operetta.commands;
 
+import ch.epfl.biop.operetta.utils.MemoCache;
 import ij.IJ;
 import ij.Prefs;
 import org.scijava.command.Command;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
+import java.io.File;
+
 /**
  * Settings for the Operetta Importer
  * This factor slightly shrinks the coordinates of the images to ensure that they overlap ever so slightly.
  * The default value was tested for our Operetta and seems to work for most people
  * But it was requested to have it as a parameter.
+ * The memo cache directory is a shared folder where the memo files of datasets on read-only shares are kept,
+ * leave it empty to write memo files next to the datasets.
+ * The streaming index reader opens Index.idx.xml and Index.xml files much faster than the Bio-Formats
+ * OperettaReader on large plates.
  */
 @Plugin(type = Command.class, menuPath = "Plugins>BIOP > Operetta Importer > Operetta Importer Settings...")
 public class OperettaImporterHiddenSettings implements Command{
@@ -40,16 +47,59 @@ public class OperettaImporterHiddenSettings implements Command{
      */
     protected static final String correction_factor_key = "ch.epfl.biop.operetta.correctionFactor";
 
+    /**
+     * Memo cache directory and size keys for storage in ImageJ prefs
+     */
+    protected static final String memo_directory_key = "ch.epfl.biop.operetta.memoDirectory";
+    protected static final String memo_cache_size_key = "ch.epfl.biop.operetta.memoCacheSizeGb";
+
+    /**
+     * Streaming index reader key for storage in ImageJ prefs
+     */
+    protected static final String use_index_reader_key = "ch.epfl.biop.operetta.useStreamingIndexReader";
+
     // Parameter for generating a GUI
     @Parameter(label = "XY coordinates correction factor (default is 0.995)", persist = false)
     Double correction_factor = Prefs.get(correction_factor_key, 0.995);
 
+    @Parameter(label = "Memo cache directory (empty: next to the dataset)", style = "directory", required = false, persist = false)
+    File memo_directory = Prefs.get(memo_directory_key, "").isEmpty() ? null : new File(Prefs.get(memo_directory_key, ""));
+
+    @Parameter(label = "Memo cache size (GB)", persist = false)
+    Double memo_cache_size_gb = Prefs.get(memo_cache_size_key, 10.0);
+
+    @Parameter(label = "Use the streaming index reader (faster for large plates)", persist = false)
+    Boolean use_index_reader = Prefs.get(use_index_reader_key, false);
+
     /**
-     * All this class does is set the correction factor in the IJ prefs, so we can use it.
+     * All this class does is set the correction factor and the memo cache in the IJ prefs, so we can use them.
      */
     @Override
     public void run() {
         Prefs.set(correction_factor_key, correction_factor);
         IJ.log("XY coordinates correction factor set to " + correction_factor);
+        Prefs.set(memo_directory_key, memo_directory == null ? "" : memo_directory.getAbsolutePath());
+        Prefs.set(memo_cache_size_key, memo_cache_size_gb);
+        Prefs.set(use_index_reader_key, use_index_reader);
+        if (memo_directory != null) {
+            IJ.log("Memo files kept in " + memo_directory.getAbsolutePath() + ", up to " + memo_cache_size_gb + " GB");
+        }
+    }
+
+    /**
+     * @return the memo cache set in the IJ prefs, or null if memo files are written next to the datasets
+     */
+    static MemoCache getMemoCache() {
+        String directory = Prefs.get(memo_directory_key, "");
+        if (directory.isEmpty()) return null;
+        long max_size = (long) (Prefs.get(memo_cache_size_key, 10.0) * 1024 * 1024 * 1024);
+        return new MemoCache(new File(directory), max_size);
+    }
+
+    /**
+     * @return true if Operetta index files should be opened with the streaming index reader
+     */
+    static boolean useStreamingIndexReader() {
+        return Prefs.get(use_index_reader_key, false);
     }
 }
@@ -26,6 +26,7 @@ import ch.epfl.biop.operetta.utils.HyperRange;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.Prefs;
+import loci.formats.IFormatReader;
 import net.imagej.ImageJ;
 import ome.xml.model.Well;
 import ome.xml.model.WellSample;
@@ -48,6 +49,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -63,6 +65,14 @@ public class OperettaImporterInteractive extends InteractiveCommand implements I
     @Parameter(required = false)
     OperettaManager.Builder opm_builder;
 
+    // The dataset reader, while it is still opened in the background. The dialog can be filled in meanwhile,
+    // and the reader is given to opm_builder as soon as an action needs it
+    @Parameter(required = false)
+    CompletableFuture<IFormatReader> opening;
+
+    @Parameter(required = false)
+    OpeningProgressLogger opening_progress;
+
     OperettaManager opm;
     List<String> selected_wells_string = new ArrayList<>();
     List<String> selected_fields_string = new ArrayList<>();
@@ -172,6 +182,12 @@ public class OperettaImporterInteractive extends InteractiveCommand implements I
     @Parameter(label = "Save OME-TIFF fused fields & companion.ome", callback = "updateMessage", persist = false, required = false)
     private boolean save_as_ome_tiff = false;
 
+    @Parameter(label = "Save as OME-Zarr plate", callback = "updateMessage", persist = false, required = false)
+    private boolean save_as_ome_zarr = false;
+
+    @Parameter(label = "Resume previous export in this directory", callback = "updateMessage", persist = false, required = false)
+    private boolean resume = false;
+
 
     @Parameter(visibility = ItemVisibility.MESSAGE, persist = false, style = "message")
     String task_summary = "Summary";
@@ -237,8 +253,38 @@ public class OperettaImporterInteractive extends InteractiveCommand implements I
         return message;
     }
 
+    /**
+     * @return true if the dataset is opened, false if it is still read in the background
+     */
+    private boolean isOpened() {
+        if (opening == null) return true;
+        if (!opening.isDone()) return false;
+        waitForOpening();
+        return true;
+    }
+
+    /**
+     * Wait for the dataset opened in the background, if any, and give its reader to the builder
+     */
+    private void waitForOpening() {
+        if (opening == null) return;
+        IFormatReader reader = OpeningProgressLogger.waitFor(opening);
+        opening = null;
+        if (reader == null) {
+            throw new IllegalStateException("The Operetta dataset could not be opened");
+        }
+        opm_builder.reader(reader);
+    }
+
     private void updateMessage() {
         try {
+            if (!isOpened()) {
+                task_summary = "<html>Opening the dataset: "
+                        + (opening_progress == null ? "in progress" : opening_progress.getSummary()) + "<br/>"
+                        + "The summary is computed once the dataset is opened.</html>";
+                return;
+            }
+
             HyperRange range = new HyperRange.Builder()
                     .setRangeC(this.selected_channels_str)
                     .setRangeZ(this.selected_slices_str)
@@ -274,6 +320,7 @@ public class OperettaImporterInteractive extends InteractiveCommand implements I
                     .flipHorizontal(flip_mode.flipH)
                     .flipVertical(flip_mode.flipV)
                     .saveAsOMETIFF(save_as_ome_tiff)
+                    .saveAsOMEZarr(save_as_ome_zarr)
                     .setProjectionMethod(this.z_projection_method)
                     .setNormalization(norm_min, norm_max)
                     .coordinatesCorrectionFactor(correctionFactor)
@@ -349,14 +396,21 @@ public class OperettaImporterInteractive extends InteractiveCommand implements I
 
 
     private void wellChooser() {
-        opm = opm_builder.build();
-        ListChooser.create("Wells", getAvailableWellsString( opm ), selected_wells_string);
+        // the wells are known from the plate layout before the dataset is completely opened
+        List<String> wells = opening_progress == null || isOpened() ? null : opening_progress.getWellNames();
+        if (wells == null) {
+            waitForOpening();
+            opm = opm_builder.build();
+            wells = getAvailableWellsString( opm );
+        }
+        ListChooser.create("Wells", wells, selected_wells_string);
         selected_wells_str = selected_wells_string.toString();
         if (selected_wells_str.equals("[]")) selected_wells_str = "";
         updateMessage();
     }
 
     private void fieldChooser() {
+        waitForOpening();
         opm = opm_builder.build();
         ListChooser.create("Fields", getAvailableFieldsString( opm ), selected_fields_string);
         selected_fields_str = selected_fields_string.toString();
@@ -371,6 +425,7 @@ public class OperettaImporterInteractive extends InteractiveCommand implements I
     }
 
     private void previewWell() {
+        waitForOpening();
 
         opm = opm_builder
                 .setProjectionMethod(z_projection_method)
@@ -459,6 +514,8 @@ public class OperettaImporterInteractive extends InteractiveCommand implements I
             return;
         }
 
+        waitForOpening();
+
         HyperRange range = new HyperRange.Builder()
                 .setRangeC(this.selected_channels_str)
                 .setRangeZ(this.selected_slices_str)
@@ -474,6 +531,8 @@ public class OperettaImporterInteractive extends InteractiveCommand implements I
                 .setProjectionMethod(this.z_projection_method)
                 .setSaveFolder(this.save_directory)
                 .saveAsOMETIFF(this.save_as_ome_tiff)
+                .saveAsOMEZarr(this.save_as_ome_zarr)
+                .resume(this.resume)
                 .setNormalization(norm_min, norm_max)
                 .coordinatesCorrectionFactor(correctionFactor)
                 .fuseFields(fuse_mode.fuse_fields)
@@ -64,37 +64,30 @@ package ch.epfl.biop.operetta.companion;
  */
 
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Result;
-import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.stream.XMLStreamException;
 
 import ome.xml.model.Instrument;
 import ome.xml.model.MapAnnotation;
 import ome.xml.model.PlateAcquisition;
 import ome.xml.model.TagAnnotation;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 
 import ome.xml.model.Image;
-import ome.xml.model.OME;
 import ome.xml.model.Plate;
 import ome.xml.model.StructuredAnnotations;
 import ome.xml.model.Well;
@@ -111,37 +104,59 @@ public class CompanionFileGenerator {
 
     private StructuredAnnotations annotations;
 
-    /** OME-XML Metadata */
-    private OME ome;
-
-    /** XML namespace. */
-    private static final String XML_NS = "http://www.openmicroscopy.org/Schemas/OME/2010-06";
-
-    /** XSI namespace. */
-    private static final String XSI_NS = "http://www.w3.org/2001/XMLSchema-instance";
-
-    /** XML schema location. */
-    private static final String SCHEMA_LOCATION = "http://www.openmicroscopy.org/Schemas/OME/2010-06/ome.xsd";
-
     Plate finalPlate = null;
     Map<String, PlateAcquisition> plateAcquisitionMap = new LinkedHashMap<>();
-    Map<String, Well> wellMap = new LinkedHashMap<>();
-    Map<String, Image> imageMap = new LinkedHashMap<>();
+    Map<String, Well> wellMap;
+    Map<String, Image> imageMap;
     Instrument instrument =null;
-    Map<String, String> imagePlateAcquisitionMap = new LinkedHashMap<>();
-    Map<String, String> imageWellMap = new LinkedHashMap<>();
-    Map<String, List<MapAnnotation>> imageKVPsMap = new LinkedHashMap<>();
-    Map<String, List<TagAnnotation>> imageTagsMap = new LinkedHashMap<>();
-    Map<String, List<String>> plateWellMap = new LinkedHashMap<>();
+    Map<String, String> imagePlateAcquisitionMap;
+    Map<String, String> imageWellMap;
+    Map<String, List<MapAnnotation>> imageKVPsMap;
+    Map<String, List<TagAnnotation>> imageTagsMap;
+    Map<String, Set<String>> plateWellMap = new LinkedHashMap<>();
     int plateIndex = 0;
     int wellIndex = 0;
     int plateAcquisitionIndex = 0;
     int wellSampleIndex = 0;
     int imageIndex = 0;
     int instrumentIndex = 0;
+    int tagAnnotationIndex = 0;
+    int mapAnnotationIndex = 0;
+
+    // index of the well samples of each plate acquisition
+    Map<String, List<Integer>> plateAcquisitionSamples = new LinkedHashMap<>();
+    private final String documentUUID = java.util.UUID.randomUUID().toString();
+
+    /** Minimal time between two assemblies of the companion file in incremental mode */
+    public static final long ASSEMBLY_INTERVAL_MS = 10_000;
+
+    // incremental mode, see startJournal()
+    private File journalFolder = null;
+    private File journalCompanion = null;
+    private JournalFile wellJournal;
+    private JournalFile imageJournal;
+    private JournalFile annotationJournal;
+    private final Set<String> flushedWells = new HashSet<>();
+    private long lastAssembly = 0;
 
     public CompanionFileGenerator(){
+        this(16);
+    }
 
+    /**
+     * Create a generator whose maps are sized for the expected number of images,
+     * so that they are not rehashed again and again while a large plate is added
+     *
+     * @param expectedImages the number of images that will be added, an estimate is enough
+     */
+    public CompanionFileGenerator(int expectedImages){
+        int capacity = Math.max(16, (int) (expectedImages / 0.75f) + 1);
+        wellMap = new LinkedHashMap<>(capacity);
+        imageMap = new LinkedHashMap<>(capacity);
+        imagePlateAcquisitionMap = new LinkedHashMap<>(capacity);
+        imageWellMap = new LinkedHashMap<>(capacity);
+        imageKVPsMap = new LinkedHashMap<>(capacity);
+        imageTagsMap = new LinkedHashMap<>(capacity);
     }
 
     /**
@@ -207,6 +222,9 @@ public class CompanionFileGenerator {
      * @return the image ID
      */
     public String addImage(ImageCompanion imageCompanion, String wellId, String plateAcquisitionId){
+        if(flushedWells.contains(wellId)) {
+            throw new IllegalStateException("The well "+wellId+" is already written to the journal");
+        }
         String id = "Image:"+imageIndex++;
         Image image = imageCompanion.createImage();
         image.setID(id);
@@ -227,20 +245,114 @@ public class CompanionFileGenerator {
     }
 
     /**
-     * Set the instrument object related to the acquisition
+     * Set the instrument object related to the acquisition.
+     * Setting the same instrument again keeps its ID, so that the images already added still refer to it.
      *
      * @param instrument
      * @return the instrument ID
      */
     public String setInstrument(Instrument instrument){
+        if(this.instrument == instrument) {
+            return instrument.getID();
+        }
         String id = "Instrument:"+instrumentIndex++;
         instrument.setID(id);
         this.instrument = instrument;
         return id;
     }
 
+    /**
+     * Switch to the incremental mode. Instead of keeping every image in memory until the end, the wells, images
+     * and annotations added so far are appended to a journal on disk each time {@link #flush()} is called,
+     * and the companion file is assembled from that journal. The companion file of the destination folder thus
+     * always describes the wells that are already flushed, even if the export does not complete.
+     * It is completed by {@link #buildCompanionFromImageFolder(String, String)}, or by {@link #closeJournal()}
+     * if the export stops before.
+     * <p>
+     * In this mode, all the images of a well need to be added before the well is flushed.
+     * The plate has to be set before calling this method.
+     *
+     * @param parentPath path to the destination folder
+     * @param filename name of the companion.ome file
+     * @throws IOException if the journal could not be created
+     */
+    public void startJournal(String parentPath, String filename) throws IOException {
+        if(finalPlate == null) {
+            throw new RuntimeException("You first need to set the plate by calling setPlate() method");
+        }
+        if(journalFolder != null) {
+            throw new IllegalStateException("The journal of this companion file is already started");
+        }
+        journalFolder = new File(parentPath, filename + ".companion.journal");
+        Files.createDirectories(journalFolder.toPath());
+        journalCompanion = new File(parentPath, filename + ".companion.ome");
+        wellJournal = new JournalFile(new File(journalFolder, "wells.xml"), 2);
+        imageJournal = new JournalFile(new File(journalFolder, "images.xml"), 1);
+        annotationJournal = new JournalFile(new File(journalFolder, "annotations.xml"), 2);
+        annotations = new StructuredAnnotations();
+    }
+
+    /**
+     * In incremental mode, append the images added since the last call, their wells and annotations to the journal,
+     * and release them. The companion file is assembled again if the previous one is older than
+     * {@link #ASSEMBLY_INTERVAL_MS} milliseconds, rewriting it after every well would cost more than exporting
+     * the wells of large plates.
+     *
+     * @throws IOException if the journal or the companion file could not be written
+     */
+    public void flush() throws IOException {
+        if(journalFolder == null) {
+            throw new IllegalStateException("The journal is not started, call startJournal() first");
+        }
+        Set<String> wellIds = new LinkedHashSet<>();
+        try {
+            for (String imageId : imageMap.keySet()) {
+                String wellId = imageWellMap.get(imageId);
+                wellIds.add(wellId);
+                makeWellSample(imageId, wellMap.get(wellId));
+                makeImage(imageMap.get(imageId), instrument,
+                        imageKVPsMap.getOrDefault(imageId, Collections.emptyList()),
+                        imageTagsMap.getOrDefault(imageId, Collections.emptyList()));
+            }
+            for (String wellId : wellIds) {
+                wellJournal.writer.writeObject(wellMap.remove(wellId));
+                flushedWells.add(wellId);
+            }
+            for (Image image : imageMap.values()) {
+                imageJournal.writer.writeObject(image);
+            }
+            for (int i = 0; i < annotations.sizeOfMapAnnotationList(); i++) {
+                annotationJournal.writer.writeObject(annotations.getMapAnnotation(i));
+            }
+            for (int i = 0; i < annotations.sizeOfTagAnnotationList(); i++) {
+                annotationJournal.writer.writeObject(annotations.getTagAnnotation(i));
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+        wellJournal.commit();
+        imageJournal.commit();
+        annotationJournal.commit();
+
+        imageMap.clear();
+        imageWellMap.clear();
+        imagePlateAcquisitionMap.clear();
+        imageKVPsMap.clear();
+        imageTagsMap.clear();
+        annotations = new StructuredAnnotations();
+
+        if(System.currentTimeMillis() - lastAssembly >= ASSEMBLY_INTERVAL_MS) {
+            assemble();
+        }
+    }
+
     /**
      * read images and metadata, build a companion.ome file and save in the image folder.
+     * The file is streamed to disk element by element, so the memory needed to write it
+     * does not depend on the size of the plate.
+     * <p>
+     * In incremental mode, the remaining images are flushed, the companion file given to
+     * {@link #startJournal(String, String)} is assembled a last time and the journal is deleted.
      *
      * @param parentPath path to the destination folder
      * @param filename name of the companion.ome file
@@ -249,65 +361,195 @@ public class CompanionFileGenerator {
      */
     public void buildCompanionFromImageFolder(String parentPath, String filename) throws Exception {
 
-        // generate OME-XML metadata file
-        build();
+        if(journalFolder != null) {
+            flush();
+            closeJournal();
+            return;
+        }
 
-        // create xml document
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder parser = factory.newDocumentBuilder();
-        Document document = parser.newDocument();
+        // link plate, wells, images and annotations together
+        build();
 
-        // Produce a valid OME DOM element hierarchy
-        Element root = this.ome.asXMLElement(document);
-        CompanionFileGenerator.postProcess(root, document);
+        File companion = new File(parentPath, filename + ".companion.ome");
+        try(OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(companion), 1 << 16);
+            CompanionXmlWriter writer = new CompanionXmlWriter(outputStream)){
+            write(writer);
+        }
+    }
 
-        // Produce string XML
-        try(OutputStream outputStream = new FileOutputStream(parentPath + File.separator + filename + ".companion.ome")){
-            outputStream.write(CompanionFileGenerator.asString(document).getBytes());
-        } catch(Exception e){
-            e.printStackTrace();
+    /**
+     * In incremental mode, assemble the companion file a last time from the wells that are already flushed,
+     * whatever the time of the previous assembly, then close and delete the journal. The images added since the
+     * last {@link #flush()} are left out, as their well may be incomplete.
+     * <p>
+     * Call it when an export is cancelled or fails, so that the companion file describes every exported well
+     * and no journal is left in the destination folder. Does nothing if the journal is not started or already closed.
+     *
+     * @throws IOException if the companion file could not be written
+     */
+    public void closeJournal() throws IOException {
+        if(journalFolder == null) {
+            return;
+        }
+        try {
+            assemble();
+        } finally {
+            for (JournalFile journalFile : new JournalFile[]{wellJournal, imageJournal, annotationJournal}) {
+                journalFile.writer.close();
+                Files.deleteIfExists(journalFile.file.toPath());
+            }
+            Files.deleteIfExists(new File(journalFolder, "companion.ome.tmp").toPath());
+            Files.deleteIfExists(journalFolder.toPath());
+            journalFolder = null;
         }
     }
 
     /**
-     * create the full XML metadata (plate, images, channels, annotations....)
+     * link the plate, wells, images, channels and annotations together
      */
     private void build() {
-        // create a new OME-XML metadata instance
-        ome = new OME();
-
         // create a new structured annotation node (for key-values, tags...)
         annotations = new StructuredAnnotations();
 
-        if(instrument != null) {
-            ome.addInstrument(instrument);
-        }
-
         // create Plate node
         if(finalPlate == null) {
             throw new RuntimeException("You first need to set the plate by calling setPlate() method");
         }
-        ome.addPlate(makePlate(finalPlate, finalPlate.getID()));
+        makePlate(finalPlate, finalPlate.getID());
 
         for (String imageId : imageMap.keySet()) {
             Image image = imageMap.get(imageId);
 
-            List<MapAnnotation> kvps = new ArrayList<>();
-            if(imageKVPsMap.containsKey(imageId)) {
-                kvps = imageKVPsMap.get(imageId);
+            List<MapAnnotation> kvps = imageKVPsMap.getOrDefault(imageId, Collections.emptyList());
+            List<TagAnnotation> tags = imageTagsMap.getOrDefault(imageId, Collections.emptyList());
+
+            // link the Image node to its annotations and instrument
+            makeImage(image, instrument, kvps, tags);
+        }
+    }
+
+    /**
+     * write the full XML metadata (plate, images, channels, annotations....), in the order of the OME schema
+     *
+     * @param writer the writer of the companion file
+     * @throws XMLStreamException if the companion could not be written
+     */
+    private void write(CompanionXmlWriter writer) throws XMLStreamException {
+        writer.startDocument(documentUUID);
+
+        writePlateStart(writer, finalPlate);
+        for (int i = 0; i < finalPlate.sizeOfWellList(); i++) {
+            writer.writeObject(finalPlate.getWell(i));
+        }
+        writePlateEnd(writer, finalPlate);
+
+        if(instrument != null) {
+            writer.writeObject(instrument);
+        }
+
+        for (Image image : imageMap.values()) {
+            writer.writeObject(image);
+        }
+
+        if(annotations.sizeOfTagAnnotationList() > 0 || annotations.sizeOfMapAnnotationList() > 0) {
+            writer.startElement("StructuredAnnotations");
+            for (int i = 0; i < annotations.sizeOfMapAnnotationList(); i++) {
+                writer.writeObject(annotations.getMapAnnotation(i));
+            }
+            for (int i = 0; i < annotations.sizeOfTagAnnotationList(); i++) {
+                writer.writeObject(annotations.getTagAnnotation(i));
             }
+            writer.endElement();
+        }
+
+        writer.endDocument();
+    }
+
+    /**
+     * write the companion file of the incremental mode: the same document as {@link #write(CompanionXmlWriter)},
+     * with the wells, images and annotations copied from the journal. The file is written next to the journal,
+     * then moved in place, so that the companion file is always complete.
+     *
+     * @throws IOException if the companion could not be written
+     */
+    private void assemble() throws IOException {
+        File tmp = new File(journalFolder, "companion.ome.tmp");
+        try(OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16);
+            CompanionXmlWriter writer = new CompanionXmlWriter(outputStream)){
+            writer.startDocument(documentUUID);
+
+            writePlateStart(writer, finalPlate);
+            writer.copy(wellJournal.file, wellJournal.length);
+            writePlateEnd(writer, finalPlate);
+
+            if(instrument != null) {
+                writer.writeObject(instrument);
+            }
+
+            writer.copy(imageJournal.file, imageJournal.length);
 
-            List<TagAnnotation> tags = new ArrayList<>();
-            if(imageTagsMap.containsKey(imageId)) {
-                tags = imageTagsMap.get(imageId);
+            if(annotationJournal.length > 0) {
+                writer.startElement("StructuredAnnotations");
+                writer.copy(annotationJournal.file, annotationJournal.length);
+                writer.endElement();
             }
 
-            // create an Image node in the ome-xml
-            ome.addImage(makeImage(image, instrument, kvps, tags));
+            writer.endDocument();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
         }
+        Files.move(tmp.toPath(), journalCompanion.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lastAssembly = System.currentTimeMillis();
+    }
 
-        // add annotation nodes
-        ome.setStructuredAnnotations(annotations);
+    /**
+     * open the Plate element and write its attributes, the wells are written one by one afterwards
+     *
+     * @param writer the writer of the companion file
+     * @param plate the Plate to write
+     * @throws XMLStreamException if the plate could not be written
+     */
+    private static void writePlateStart(CompanionXmlWriter writer, Plate plate) throws XMLStreamException {
+        writer.startElement("Plate");
+        writer.attribute("ID", plate.getID());
+        writer.attribute("Name", plate.getName());
+        writer.attribute("Status", plate.getStatus());
+        writer.attribute("ExternalIdentifier", plate.getExternalIdentifier());
+        if(plate.getColumnNamingConvention() != null) {
+            writer.attribute("ColumnNamingConvention", plate.getColumnNamingConvention().getValue());
+        }
+        if(plate.getRowNamingConvention() != null) {
+            writer.attribute("RowNamingConvention", plate.getRowNamingConvention().getValue());
+        }
+        writer.attribute("Rows", plate.getRows());
+        writer.attribute("Columns", plate.getColumns());
+        writer.attribute("FieldIndex", plate.getFieldIndex());
+        writer.textElement("Description", plate.getDescription());
+    }
+
+    /**
+     * write the annotation references and plate acquisitions of the Plate, and close it
+     *
+     * @param writer the writer of the companion file
+     * @param plate the Plate to write
+     * @throws XMLStreamException if the plate could not be written
+     */
+    private void writePlateEnd(CompanionXmlWriter writer, Plate plate) throws XMLStreamException {
+        for (int i = 0; i < plate.sizeOfLinkedAnnotationList(); i++) {
+            writer.emptyElement("AnnotationRef", "ID", plate.getLinkedAnnotation(i).getID());
+        }
+        for (int i = 0; i < plate.sizeOfPlateAcquisitionList(); i++) {
+            PlateAcquisition plateAcquisition = plate.getPlateAcquisition(i);
+            writer.startElement("PlateAcquisition");
+            writer.attribute("ID", plateAcquisition.getID());
+            writer.attribute("Name", plateAcquisition.getName());
+            writer.textElement("Description", plateAcquisition.getDescription());
+            for (int index : plateAcquisitionSamples.getOrDefault(plateAcquisition.getID(), Collections.emptyList())) {
+                writer.emptyElement("WellSampleRef", "ID", "WellSample:" + index);
+            }
+            writer.endElement();
+        }
+        writer.endElement();
     }
 
     /**
@@ -320,16 +562,14 @@ public class CompanionFileGenerator {
      * @return Image xml-element
      */
     private Image makeImage(Image image, Instrument instrument, List<MapAnnotation> keyValues, List<TagAnnotation> tags) {
-        int currentSize = annotations.sizeOfTagAnnotationList();
         for(TagAnnotation tagAnnotation: tags) {
-            tagAnnotation.setID("TagAnnotation:"+currentSize++);
+            tagAnnotation.setID("TagAnnotation:"+tagAnnotationIndex++);
             annotations.addTagAnnotation(tagAnnotation);
             image.linkAnnotation(tagAnnotation);
         }
 
-        currentSize = annotations.sizeOfMapAnnotationList();
         for(MapAnnotation mapAnnotation: keyValues) {
-            mapAnnotation.setID("MapAnnotation:"+currentSize++);
+            mapAnnotation.setID("MapAnnotation:"+mapAnnotationIndex++);
             annotations.addMapAnnotation(mapAnnotation); // add the KeyValues to the general structured annotation element
             image.linkAnnotation(mapAnnotation);
         }
@@ -351,84 +591,71 @@ public class CompanionFileGenerator {
      */
     private Plate makePlate(Plate plate, String plateId) {
 
-        // for each image (one image per well)
-        for (String imageId : imageMap.keySet()) {
-            String plateAcquisitionId = imagePlateAcquisitionMap.get(imageId);
+        // hashed membership, so that adding the wells stays linear in the number of images
+        Set<String> plateWells = plateWellMap.computeIfAbsent(plateId, k -> new HashSet<>(2 * wellMap.size()));
 
-            PlateAcquisition plateAcquisition = plateAcquisitionMap.get(plateAcquisitionId);
+        // the well samples of each plate acquisition, sized for all the images
+        for (String plateAcquisitionId : plateAcquisitionMap.keySet()) {
+            plateAcquisitionSamples.computeIfAbsent(plateAcquisitionId, k -> new ArrayList<>(imageMap.size()));
+        }
 
+        // for each image
+        for (String imageId : imageMap.keySet()) {
             String wellId = imageWellMap.get(imageId);
             Well well = wellMap.get(wellId);
 
-            if(!plateWellMap.containsKey(plateId)){
-                List<String> wellList = new ArrayList<>();
-                wellList.add(wellId);
-                plateWellMap.put(plateId, wellList);
+            if(plateWells.add(wellId)){
                 plate.addWell(well);
-            }else{
-                List<String> wellList = plateWellMap.get(plateId);
-                if(!wellList.contains(wellId)){
-                    wellList.add(wellId);
-                    plateWellMap.put(plateId, wellList);
-                    plate.addWell(well);
-                }
             }
 
-            // Create <WellSample/>
-            WellSample sample = new WellSample();
-            sample.setID("WellSample:" + wellSampleIndex++);
-            sample.setIndex(new NonNegativeInteger(wellSampleIndex));
-
-            // link the wellSample to the current image
-            sample.linkImage(imageMap.get(imageId));
-            imageMap.get(imageId).linkWellSample(sample);
-
-            // link the well sample to the plate acquisition
-            sample.linkPlateAcquisition(plateAcquisition);
-            plateAcquisition.linkWellSample(sample);
-
-            // Put <WellSample/> under <Well/>
-            well.addWellSample(sample);
+            makeWellSample(imageId, well);
         }
         return plate;
     }
 
     /**
-     * convert the XML metadata document into string
+     * create the WellSample of an image under its well
      *
-     * @param document
-     * @return
-     *
-     * @throws TransformerException
-     * @throws UnsupportedEncodingException
+     * @param imageId the image id
+     * @param well the Well of the image
      */
-    private static String asString(Document document) throws TransformerException, UnsupportedEncodingException {
-        TransformerFactory transformerFactory = TransformerFactory.newInstance();
-        Transformer transformer = transformerFactory.newTransformer();
+    private void makeWellSample(String imageId, Well well) {
+        // Create <WellSample/>
+        int sampleIndex = wellSampleIndex++;
+        WellSample sample = new WellSample();
+        sample.setID("WellSample:" + sampleIndex);
+        sample.setIndex(new NonNegativeInteger(wellSampleIndex));
 
-        //Setup indenting to "pretty print"
-        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-        transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
+        // link the wellSample to the current image
+        sample.linkImage(imageMap.get(imageId));
 
-        Source source = new DOMSource(document);
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        Result result = new StreamResult(new OutputStreamWriter(os, "utf-8"));
-        transformer.transform(source, result);
+        // the plate acquisition only needs the index of its well samples, to reference them
+        plateAcquisitionSamples.computeIfAbsent(imagePlateAcquisitionMap.get(imageId), k -> new ArrayList<>()).add(sampleIndex);
 
-        return os.toString();
+        // Put <WellSample/> under <Well/>
+        well.addWellSample(sample);
     }
 
     /**
-     * add document header
-     *
-     * @param root
-     * @param document
+     * one fragment file of the journal, with the length that was completely written
      */
-    private static void postProcess(Element root, Document document) {
-        root.setAttribute("xmlns", XML_NS);
-        root.setAttribute("xmlns:xsi", XSI_NS);
-        root.setAttribute("xsi:schemaLocation", XML_NS + " " + SCHEMA_LOCATION);
-        root.setAttribute("UUID", java.util.UUID.randomUUID().toString());
-        document.appendChild(root);
+    private static class JournalFile {
+        final File file;
+        final CompanionXmlWriter writer;
+        long length = 0;
+
+        JournalFile(File file, int depth) throws IOException {
+            this.file = file;
+            try {
+                this.writer = new CompanionXmlWriter(new FileOutputStream(file), depth);
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+
+        void commit() throws IOException {
+            writer.flush();
+            length = file.length();
+        }
     }
 }
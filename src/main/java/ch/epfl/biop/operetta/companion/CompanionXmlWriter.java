@@ -0,0 +1,326 @@
+/*-
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.operetta.companion;
+
+import ome.xml.model.OMEModelObject;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming writer for companion.ome files.
+ * <p>
+ * Elements are written one after the other to the output stream, so the whole document never exists in memory:
+ * only the object being written (one well, one image, one annotation) is converted to a small DOM fragment,
+ * which is then streamed and discarded. The output is indented with 4 spaces, like the files
+ * previously produced through a {@link javax.xml.transform.Transformer}.
+ */
+public class CompanionXmlWriter implements AutoCloseable {
+
+    /** XML namespace. */
+    public static final String XML_NS = "http://www.openmicroscopy.org/Schemas/OME/2016-06";
+
+    /** XSI namespace. */
+    public static final String XSI_NS = "http://www.w3.org/2001/XMLSchema-instance";
+
+    /** XML schema location. */
+    public static final String SCHEMA_LOCATION = "http://www.openmicroscopy.org/Schemas/OME/2016-06/ome.xsd";
+
+    private static final String INDENT = "    ";
+
+    private final OutputStream stream;
+    private final Writer out;
+    private final XMLStreamWriter writer;
+    private final Document scratch;
+
+    private int depth = 0;
+    // true as long as the current element has no child element, so that its end tag stays on the same line
+    private boolean leaf = false;
+
+    /**
+     * @param outputStream the stream to write to, it is closed when this writer is closed
+     * @throws XMLStreamException if the XML writer could not be created
+     */
+    public CompanionXmlWriter(OutputStream outputStream) throws XMLStreamException {
+        this(outputStream, 0);
+    }
+
+    /**
+     * Writer of a document fragment, whose elements are indented as if they were nested in other elements
+     *
+     * @param outputStream the stream to write to, it is closed when this writer is closed
+     * @param depth the nesting level of the first elements
+     * @throws XMLStreamException if the XML writer could not be created
+     */
+    CompanionXmlWriter(OutputStream outputStream, int depth) throws XMLStreamException {
+        this.depth = depth;
+        this.stream = outputStream;
+        this.out = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), 1 << 16);
+        this.writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out);
+        try {
+            this.scratch = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        } catch (ParserConfigurationException e) {
+            throw new XMLStreamException(e);
+        }
+    }
+
+    /**
+     * Write the XML declaration and open the root OME element
+     *
+     * @param uuid the UUID of the document, without the "urn:uuid:" prefix
+     * @throws XMLStreamException if the element could not be written
+     */
+    public void startDocument(String uuid) throws XMLStreamException {
+        writer.writeStartDocument("UTF-8", "1.0");
+        startElement("OME");
+        writer.writeDefaultNamespace(XML_NS);
+        writer.writeNamespace("xsi", XSI_NS);
+        writer.writeAttribute("xsi", XSI_NS, "schemaLocation", XML_NS + " " + SCHEMA_LOCATION);
+        writer.writeAttribute("UUID", "urn:uuid:" + uuid);
+    }
+
+    /**
+     * Open an element, on its own indented line
+     *
+     * @param name the element name
+     * @throws XMLStreamException if the element could not be written
+     */
+    public void startElement(String name) throws XMLStreamException {
+        newLine(depth++);
+        writer.writeStartElement(name);
+        leaf = true;
+    }
+
+    /**
+     * Add an attribute to the element that was just opened. Null values are skipped.
+     *
+     * @param name  the attribute name
+     * @param value the attribute value
+     * @throws XMLStreamException if the attribute could not be written
+     */
+    public void attribute(String name, Object value) throws XMLStreamException {
+        if (value != null) {
+            writer.writeAttribute(name, value.toString());
+        }
+    }
+
+    /**
+     * Write the text content of the element that was just opened
+     *
+     * @param text the element content
+     * @throws XMLStreamException if the text could not be written
+     */
+    public void text(String text) throws XMLStreamException {
+        writer.writeCharacters(text);
+    }
+
+    /**
+     * Write an element containing only text. Null values are skipped.
+     *
+     * @param name the element name
+     * @param text the element content
+     * @throws XMLStreamException if the element could not be written
+     */
+    public void textElement(String name, String text) throws XMLStreamException {
+        if (text == null) return;
+        startElement(name);
+        writer.writeCharacters(text);
+        endElement();
+    }
+
+    /**
+     * Write an element without content
+     *
+     * @param name       the element name
+     * @param attributes alternating attribute names and values
+     * @throws XMLStreamException if the element could not be written
+     */
+    public void emptyElement(String name, Object... attributes) throws XMLStreamException {
+        newLine(depth);
+        writer.writeEmptyElement(name);
+        for (int i = 0; i + 1 < attributes.length; i += 2) {
+            attribute(attributes[i].toString(), attributes[i + 1]);
+        }
+        leaf = false;
+    }
+
+    /**
+     * Close the last opened element
+     *
+     * @throws XMLStreamException if the element could not be written
+     */
+    public void endElement() throws XMLStreamException {
+        depth--;
+        if (!leaf) {
+            newLine(depth);
+        }
+        writer.writeEndElement();
+        leaf = false;
+    }
+
+    /**
+     * Write a complete OME model object (a Well with its WellSamples, an Image with its Pixels...).
+     * References to other objects are written as references, like in the full OME document.
+     *
+     * @param object the object to write
+     * @throws XMLStreamException if the object could not be written
+     */
+    public void writeObject(OMEModelObject object) throws XMLStreamException {
+        writeElement(object.asXMLElement(scratch));
+    }
+
+    private void writeElement(Element element) throws XMLStreamException {
+        String name = element.getLocalName() != null ? element.getLocalName() : element.getTagName();
+        NodeList children = element.getChildNodes();
+        boolean hasChildElement = false;
+        for (int i = 0; i < children.getLength() && !hasChildElement; i++) {
+            hasChildElement = children.item(i).getNodeType() == Node.ELEMENT_NODE;
+        }
+        String text = hasChildElement ? "" : element.getTextContent();
+
+        if (!hasChildElement && (text == null || text.isEmpty())) {
+            newLine(depth);
+            writer.writeEmptyElement(name);
+            writeAttributes(element);
+            leaf = false;
+            return;
+        }
+
+        startElement(name);
+        writeAttributes(element);
+        if (hasChildElement) {
+            for (int i = 0; i < children.getLength(); i++) {
+                Node child = children.item(i);
+                if (child.getNodeType() == Node.ELEMENT_NODE) {
+                    writeElement((Element) child);
+                }
+            }
+        } else {
+            writer.writeCharacters(text);
+        }
+        endElement();
+    }
+
+    private void writeAttributes(Element element) throws XMLStreamException {
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            String name = attribute.getName();
+            // namespaces are declared once, on the root element
+            if (name.equals("xmlns") || name.startsWith("xmlns:")) continue;
+            writer.writeAttribute(name, attribute.getValue());
+        }
+    }
+
+    private void newLine(int level) throws XMLStreamException {
+        writer.writeCharacters("\n");
+        for (int i = 0; i < level; i++) {
+            writer.writeCharacters(INDENT);
+        }
+    }
+
+    /**
+     * Insert the beginning of a fragment written by another writer, as is
+     *
+     * @param fragment the file of the fragment
+     * @param length the number of bytes to copy
+     * @throws XMLStreamException if the document could not be written
+     * @throws IOException if the fragment could not be read
+     */
+    void copy(File fragment, long length) throws XMLStreamException, IOException {
+        // writing anything closes the start tag of the current element
+        writer.writeCharacters("");
+        flush();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(fragment)) {
+            long remaining = length;
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    throw new IOException("Fragment " + fragment + " is shorter than " + length + " bytes");
+                }
+                stream.write(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+        if (length > 0) {
+            leaf = false;
+        }
+    }
+
+    /**
+     * Close the root element and flush the document to the underlying stream
+     *
+     * @throws XMLStreamException if the document could not be written
+     */
+    public void endDocument() throws XMLStreamException {
+        while (depth > 0) {
+            endElement();
+        }
+        writer.writeCharacters("\n");
+        writer.writeEndDocument();
+        writer.flush();
+    }
+
+    /**
+     * Flush the written elements to the underlying stream
+     *
+     * @throws IOException if the stream could not be flushed
+     */
+    public void flush() throws IOException {
+        try {
+            writer.flush();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,1073 @@
+/*-
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.operetta.index;
+
+import ch.epfl.biop.operetta.utils.ConcurrentPlaneReader;
+import ch.epfl.biop.operetta.utils.DatasetFilter;
+import ch.epfl.biop.operetta.utils.FilenameToCZTProvider;
+import ch.epfl.biop.operetta.utils.OpeningListener;
+import ch.epfl.biop.operetta.utils.ProgressiveReader;
+import ch.epfl.biop.operetta.utils.SubsetReader;
+import loci.common.Location;
+import loci.common.RandomAccessInputStream;
+import loci.formats.CoreMetadata;
+import loci.formats.FormatException;
+import loci.formats.FormatReader;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.meta.MetadataStore;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffParser;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+import ome.units.quantity.Time;
+import ome.xml.model.primitives.NonNegativeInteger;
+import ome.xml.model.primitives.PositiveInteger;
+import ome.xml.model.primitives.Timestamp;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Bio-Formats reader for the Index.idx.xml (Harmony V5) and Index.xml (Harmony V6) files of Operetta datasets,
+ * an alternative to the Bio-Formats OperettaReader for large plates.
+ * <p>
+ * The index file is read in a single streaming pass: each Image entry is stored in primitive columns (row, column,
+ * field, plane, time point, channel, positions), and only the file name of each plane is kept as a String. The plate
+ * layout, the table of the file of each plane and the metadata store are then built from these columns, without
+ * any intermediate object per image. Series are numbered by row, column and field, like with the OperettaReader.
+ * Planes are read from their single plane TIFF file when requested.
+ * <p>
+ * Well rows and columns are 0-based, positions are in meters, and Y positions are negated like in the OperettaReader,
+ * so that they increase downwards as in the images.
+ * <p>
+ * A {@link DatasetFilter} set before opening the index restricts it to some wells, fields and time points: the other
+ * Image entries are dropped as soon as they are read.
+ * <p>
+ * An {@link OpeningListener} gets the plate layout from the Wells section, then each well once its images are read,
+ * so the plate can be shown while the rest of the index is read.
+ */
+public class HarmonyIndexReader extends FormatReader
+        implements FilenameToCZTProvider, ConcurrentPlaneReader, SubsetReader, ProgressiveReader {
+
+    /** Names of the index files read by this reader */
+    public static final String[] INDEX_FILE_NAMES = {"Index.idx.xml", "Index.xml"};
+
+    private static final String DIMENSION_ORDER = "XYCZT";
+
+    // -- Fields --
+
+    /** Folder of the index file, the image urls are relative to it */
+    private String imagesDir;
+
+    /** Url of each plane, series after series, null for planes missing from the index */
+    private String[] planeUrls;
+
+    /** Number of planes of each series */
+    private int planesPerSeries;
+
+    /** Row, column and field of each series, packed in a single key, in increasing order */
+    private long[] seriesKeys;
+
+    /** Subset to open, only used when reading the index, null for the whole dataset */
+    private transient DatasetFilter filter;
+
+    /** Notified while the index is read, null if none */
+    private transient OpeningListener listener;
+
+    // -- Constructor --
+
+    public HarmonyIndexReader() {
+        super("PerkinElmer Harmony Index", "xml");
+        domains = new String[] {FormatTools.HCS_DOMAIN};
+        suffixSufficient = false;
+        hasCompanionFiles = true;
+        datasetDescription = "Index.idx.xml or Index.xml file, with the TIFF files next to it";
+    }
+
+    // -- IFormatReader API methods --
+
+    @Override
+    public boolean isThisType(String name, boolean open) {
+        String fileName = new Location(name).getName();
+        for (String indexFileName : INDEX_FILE_NAMES) {
+            if (fileName.equalsIgnoreCase(indexFileName)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isThisType(RandomAccessInputStream stream) throws IOException {
+        return false;
+    }
+
+    @Override
+    public boolean isSingleFile(String id) {
+        return false;
+    }
+
+    @Override
+    public int fileGroupOption(String id) {
+        return FormatTools.MUST_GROUP;
+    }
+
+    @Override
+    public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
+            throws FormatException, IOException
+    {
+        FormatTools.checkPlaneParameters(this, no, buf.length, x, y, w, h);
+        return readPlane(getSeries(), no, buf, x, y, w, h);
+    }
+
+    @Override
+    public String[] getSeriesUsedFiles(boolean noPixels) {
+        FormatTools.assertId(currentId, true, 1);
+        List<String> files = new ArrayList<>();
+        files.add(currentId);
+        if (!noPixels) {
+            int offset = getSeries() * planesPerSeries;
+            for (int no = 0; no < planesPerSeries; no++) {
+                String url = planeUrls[offset + no];
+                if (url != null) {
+                    files.add(getPlanePath(url));
+                }
+            }
+        }
+        return files.toArray(new String[0]);
+    }
+
+    @Override
+    public void close(boolean fileOnly) throws IOException {
+        super.close(fileOnly);
+        if (!fileOnly) {
+            imagesDir = null;
+            planeUrls = null;
+            planesPerSeries = 0;
+            seriesKeys = null;
+        }
+    }
+
+    // -- SubsetReader API --
+
+    @Override
+    public void setDatasetFilter(DatasetFilter filter) {
+        FormatTools.assertId(currentId, false, 1);
+        this.filter = filter;
+    }
+
+    @Override
+    public DatasetFilter getDatasetFilter() {
+        return filter;
+    }
+
+    // -- ProgressiveReader API --
+
+    @Override
+    public void setOpeningListener(OpeningListener listener) {
+        FormatTools.assertId(currentId, false, 1);
+        this.listener = listener;
+    }
+
+    // -- ConcurrentPlaneReader API --
+
+    @Override
+    public String getPlaneFile(int series, int no) {
+        String url = planeUrls[series * planesPerSeries + no];
+        return url == null ? null : getPlanePath(url);
+    }
+
+    /**
+     * Each call opens its own stream on the plane file, so planes can be read concurrently
+     */
+    @Override
+    public byte[] openPlane(int series, int no, byte[] buf, int x, int y, int w, int h)
+            throws FormatException, IOException
+    {
+        FormatTools.assertId(currentId, true, 1);
+        CoreMetadata m = core.get(series, 0);
+        if (no < 0 || no >= m.imageCount) {
+            throw new FormatException("Invalid image number: " + no);
+        }
+        if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > m.sizeX || y + h > m.sizeY) {
+            throw new FormatException("Invalid tile: x=" + x + ", y=" + y + ", w=" + w + ", h=" + h);
+        }
+        if (buf.length < (long) w * h * FormatTools.getBytesPerPixel(m.pixelType)) {
+            throw new FormatException("Buffer too small for " + w + " x " + h + " pixels");
+        }
+        return readPlane(series, no, buf, x, y, w, h);
+    }
+
+    private byte[] readPlane(int series, int no, byte[] buf, int x, int y, int w, int h)
+            throws FormatException, IOException
+    {
+        String path = getPlaneFile(series, no);
+        if (path == null) {
+            Arrays.fill(buf, getFillColor());
+            return buf;
+        }
+        if (!new File(path).exists()) {
+            LOGGER.warn("Missing plane file {}", path);
+            Arrays.fill(buf, getFillColor());
+            return buf;
+        }
+        try (RandomAccessInputStream in = new RandomAccessInputStream(path)) {
+            TiffParser parser = new TiffParser(in);
+            IFD ifd = parser.getFirstIFD();
+            parser.getSamples(ifd, buf, x, y, w, h);
+        }
+        return buf;
+    }
+
+    // -- FilenameToCZTProvider API --
+
+    @Override
+    public Map<String, int[]> getFilenameToCZTMap(int series) {
+        FormatTools.assertId(currentId, true, 1);
+        CoreMetadata m = core.get(series, 0);
+        Map<String, int[]> map = new HashMap<>(2 * planesPerSeries);
+        int offset = series * planesPerSeries;
+        for (int no = 0; no < planesPerSeries; no++) {
+            String url = planeUrls[offset + no];
+            if (url == null) continue;
+            int[] zct = FormatTools.getZCTCoords(DIMENSION_ORDER, m.sizeZ, m.sizeC, m.sizeT, m.imageCount, no);
+            map.put(getPlanePath(url), new int[]{zct[1] + 1, zct[0] + 1, zct[2] + 1});
+        }
+        return map;
+    }
+
+    // -- Internal FormatReader API methods --
+
+    @Override
+    protected void initFile(String id) throws FormatException, IOException {
+        super.initFile(id);
+        imagesDir = new File(id).getAbsoluteFile().getParent();
+
+        IndexParser index = new IndexParser(filter, listener);
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        CountingInputStream counter = new CountingInputStream(new FileInputStream(id));
+        try (InputStream in = new BufferedInputStream(counter, 1 << 16)) {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                index.parse(reader, counter, new File(id).length());
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new FormatException("Could not read " + id, e);
+        }
+        if (index.nImages == 0) {
+            throw new FormatException(filter == null ? "No image found in " + id
+                    : "No image of " + id + " matches the filter " + filter);
+        }
+        LOGGER.info("Harmony index: {} images read", index.nImages);
+
+        buildPlaneTable(index);
+    }
+
+    /**
+     * Build the series, the plane table, the core metadata and the metadata store from the images of the index
+     */
+    private void buildPlaneTable(IndexParser index) throws FormatException, IOException {
+        int n = index.nImages;
+
+        // Z, C and T of each image: rank of its plane, channel and time point ids, which may not start at 0 or 1
+        int[] zRanks = ranks(index.plane, n);
+        int[] cRanks = ranks(index.channel, n);
+        int[] tRanks = ranks(index.time, n);
+        int sizeZ = max(zRanks, n) + 1;
+        int sizeC = max(cRanks, n) + 1;
+        int sizeT = max(tRanks, n) + 1;
+        planesPerSeries = sizeZ * sizeC * sizeT;
+
+        // Series: distinct row, column and field, in increasing order
+        long[] imageKeys = new long[n];
+        for (int i = 0; i < n; i++) {
+            imageKeys[i] = pack(index.row[i], index.col[i], index.field[i]);
+        }
+        long[] sortedKeys = imageKeys.clone();
+        Arrays.sort(sortedKeys);
+        int seriesCount = 0;
+        for (int i = 0; i < n; i++) {
+            if (seriesCount == 0 || sortedKeys[i] != sortedKeys[seriesCount - 1]) {
+                sortedKeys[seriesCount++] = sortedKeys[i];
+            }
+        }
+        seriesKeys = Arrays.copyOf(sortedKeys, seriesCount);
+
+        planeUrls = new String[seriesCount * planesPerSeries];
+        double[] deltaT = new double[seriesCount * planesPerSeries];
+        double[] positionZ = new double[seriesCount * planesPerSeries];
+        Arrays.fill(deltaT, Double.NaN);
+        Arrays.fill(positionZ, Double.NaN);
+        // position of each series: the one of its first image
+        int[] firstImage = new int[seriesCount];
+        Arrays.fill(firstImage, -1);
+        // Z position of each plane, from the first image found at that plane
+        double[] planeZ = new double[sizeZ];
+        Arrays.fill(planeZ, Double.NaN);
+
+        for (int i = 0; i < n; i++) {
+            int s = Arrays.binarySearch(seriesKeys, imageKeys[i]);
+            int no = s * planesPerSeries + FormatTools.getIndex(DIMENSION_ORDER, sizeZ, sizeC, sizeT, planesPerSeries,
+                    zRanks[i], cRanks[i], tRanks[i]);
+            planeUrls[no] = index.urls[i];
+            deltaT[no] = index.timeOffset[i];
+            positionZ[no] = index.positionZ[i];
+            if (firstImage[s] < 0) firstImage[s] = i;
+            if (Double.isNaN(planeZ[zRanks[i]])) planeZ[zRanks[i]] = index.positionZ[i];
+        }
+
+        String firstUrl = null;
+        for (int no = 0; no < planesPerSeries && firstUrl == null; no++) {
+            firstUrl = planeUrls[no];
+        }
+        if (firstUrl == null) {
+            throw new FormatException("No plane in the first series of " + currentId);
+        }
+
+        // All planes are assumed to have the size and type of the first one
+        IFD firstIFD;
+        try (RandomAccessInputStream in = new RandomAccessInputStream(getPlanePath(firstUrl), 16)) {
+            firstIFD = new TiffParser(in).getFirstIFD();
+        }
+        if (firstIFD == null) {
+            throw new FormatException("Could not read " + getPlanePath(firstUrl));
+        }
+
+        core.clear();
+        for (int s = 0; s < seriesCount; s++) {
+            CoreMetadata m = new CoreMetadata();
+            m.sizeX = (int) firstIFD.getImageWidth();
+            m.sizeY = (int) firstIFD.getImageLength();
+            m.sizeZ = sizeZ;
+            m.sizeC = sizeC;
+            m.sizeT = sizeT;
+            m.imageCount = planesPerSeries;
+            m.dimensionOrder = DIMENSION_ORDER;
+            m.orderCertain = true;
+            m.pixelType = firstIFD.getPixelType();
+            m.bitsPerPixel = firstIFD.getBitsPerSample()[0];
+            m.littleEndian = firstIFD.isLittleEndian();
+            m.rgb = false;
+            m.interleaved = false;
+            m.indexed = false;
+            m.falseColor = true;
+            m.metadataComplete = true;
+            core.add(m);
+        }
+
+        populateMetadata(index, cRanks, firstImage, deltaT, positionZ, planeZ);
+
+        LOGGER.info("Harmony index: {} series, {} planes each", seriesCount, planesPerSeries);
+    }
+
+    /**
+     * Fill the metadata store: plate, one well per row and column, one well sample and image per series,
+     * channels, objective, and the time and position of each plane
+     */
+    private void populateMetadata(IndexParser index, int[] cRanks, int[] firstImage, double[] deltaT,
+                                  double[] positionZ, double[] planeZ) {
+        MetadataStore store = makeFilterMetadata();
+        MetadataTools.populatePixels(store, this, true, false);
+
+        int seriesCount = seriesKeys.length;
+        int maxRow = 0;
+        int maxCol = 0;
+        for (long key : seriesKeys) {
+            maxRow = Math.max(maxRow, getRow(key));
+            maxCol = Math.max(maxCol, getCol(key));
+        }
+
+        store.setPlateID(MetadataTools.createLSID("Plate", 0), 0);
+        store.setPlateName(index.plateName, 0);
+        store.setPlateRows(new PositiveInteger(index.plateRows > 0 ? index.plateRows : maxRow + 1), 0);
+        store.setPlateColumns(new PositiveInteger(index.plateColumns > 0 ? index.plateColumns : maxCol + 1), 0);
+
+        // Channels, from the first image of each channel, completed by the Maps section
+        ChannelInfo[] channels = new ChannelInfo[core.get(0, 0).sizeC];
+        for (int i = 0; i < index.nImages; i++) {
+            if (channels[cRanks[i]] == null) {
+                ChannelInfo channel = index.channels.get(index.channel[i]);
+                channels[cRanks[i]] = channel != null ? channel : new ChannelInfo();
+            }
+        }
+
+        String instrumentID = MetadataTools.createLSID("Instrument", 0);
+        String objectiveID = MetadataTools.createLSID("Objective", 0, 0);
+        store.setInstrumentID(instrumentID, 0);
+        store.setObjectiveID(objectiveID, 0, 0);
+        if (channels[0].magnification != null) {
+            store.setObjectiveNominalMagnification(channels[0].magnification, 0, 0);
+        }
+        if (channels[0].numericalAperture != null) {
+            store.setObjectiveLensNA(channels[0].numericalAperture, 0, 0);
+        }
+
+        Length physicalSize = null;
+        if (channels[0].resolution != null) {
+            physicalSize = FormatTools.getPhysicalSizeX(channels[0].resolution * 1e6);
+        }
+        Length physicalSizeZ = null;
+        if (planeZ.length > 1 && !Double.isNaN(planeZ[0]) && !Double.isNaN(planeZ[planeZ.length - 1])) {
+            physicalSizeZ = FormatTools.getPhysicalSizeZ(
+                    Math.abs(planeZ[planeZ.length - 1] - planeZ[0]) * 1e6 / (planeZ.length - 1));
+        }
+
+        int wellIndex = -1;
+        int wellSampleIndex = 0;
+        long previousWell = -1;
+        for (int s = 0; s < seriesCount; s++) {
+            long key = seriesKeys[s];
+            int row = getRow(key);
+            int col = getCol(key);
+            int field = (int) (key & 0x1FFFFF);
+            if (key >>> 21 != previousWell) {
+                previousWell = key >>> 21;
+                wellIndex++;
+                wellSampleIndex = 0;
+                store.setWellID(MetadataTools.createLSID("Well", 0, wellIndex), 0, wellIndex);
+                store.setWellRow(new NonNegativeInteger(row), 0, wellIndex);
+                store.setWellColumn(new NonNegativeInteger(col), 0, wellIndex);
+            }
+
+            String imageID = MetadataTools.createLSID("Image", s);
+            store.setWellSampleID(MetadataTools.createLSID("WellSample", 0, wellIndex, wellSampleIndex), 0, wellIndex, wellSampleIndex);
+            store.setWellSampleIndex(new NonNegativeInteger(s), 0, wellIndex, wellSampleIndex);
+            store.setWellSampleImageRef(imageID, 0, wellIndex, wellSampleIndex);
+
+            store.setImageName(row + "|" + col + "|" + field, s);
+            store.setImageInstrumentRef(instrumentID, s);
+            store.setObjectiveSettingsID(objectiveID, s);
+            String acquisitionTime = index.acquisitionTimes.get(key);
+            if (acquisitionTime != null) {
+                Timestamp timestamp = Timestamp.valueOf(acquisitionTime);
+                if (timestamp != null) store.setImageAcquisitionDate(timestamp, s);
+            }
+            if (physicalSize != null) {
+                store.setPixelsPhysicalSizeX(physicalSize, s);
+                store.setPixelsPhysicalSizeY(physicalSize, s);
+            }
+            if (physicalSizeZ != null) {
+                store.setPixelsPhysicalSizeZ(physicalSizeZ, s);
+            }
+
+            for (int c = 0; c < channels.length; c++) {
+                ChannelInfo channel = channels[c];
+                if (channel.name != null) store.setChannelName(channel.name, s, c);
+                if (channel.excitation != null && channel.excitation > 0) {
+                    store.setChannelExcitationWavelength(FormatTools.getExcitationWavelength(channel.excitation), s, c);
+                }
+                if (channel.emission != null && channel.emission > 0) {
+                    store.setChannelEmissionWavelength(FormatTools.getEmissionWavelength(channel.emission), s, c);
+                }
+            }
+
+            int image = firstImage[s];
+            Length positionX = null;
+            Length positionY = null;
+            if (!Double.isNaN(index.positionX[image]) && !Double.isNaN(index.positionY[image])) {
+                positionX = new Length(index.positionX[image], UNITS.METER);
+                positionY = new Length(-index.positionY[image], UNITS.METER);
+                store.setWellSamplePositionX(positionX, 0, wellIndex, wellSampleIndex);
+                store.setWellSamplePositionY(positionY, 0, wellIndex, wellSampleIndex);
+            }
+
+            int offset = s * planesPerSeries;
+            for (int p = 0; p < planesPerSeries; p++) {
+                if (positionX != null) {
+                    store.setPlanePositionX(positionX, s, p);
+                    store.setPlanePositionY(positionY, s, p);
+                }
+                if (!Double.isNaN(positionZ[offset + p])) {
+                    store.setPlanePositionZ(new Length(positionZ[offset + p], UNITS.METER), s, p);
+                }
+                if (!Double.isNaN(deltaT[offset + p])) {
+                    store.setPlaneDeltaT(new Time(deltaT[offset + p], UNITS.SECOND), s, p);
+                }
+                Double exposure = channels[FormatTools.getZCTCoords(DIMENSION_ORDER, core.get(s, 0).sizeZ,
+                        channels.length, core.get(s, 0).sizeT, planesPerSeries, p)[1]].exposure;
+                if (exposure != null) {
+                    store.setPlaneExposureTime(new Time(exposure, UNITS.SECOND), s, p);
+                }
+            }
+            wellSampleIndex++;
+        }
+    }
+
+    // -- Helper methods --
+
+    /**
+     * @return for each value, the rank of that value among the distinct values
+     */
+    private static int[] ranks(int[] values, int n) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+        }
+        int[] rankOf = new int[max - min + 1];
+        for (int i = 0; i < n; i++) {
+            rankOf[values[i] - min] = 1;
+        }
+        int rank = 0;
+        for (int v = 0; v < rankOf.length; v++) {
+            if (rankOf[v] != 0) rankOf[v] = ++rank;
+        }
+        int[] ranks = new int[n];
+        for (int i = 0; i < n; i++) {
+            ranks[i] = rankOf[values[i] - min] - 1;
+        }
+        return ranks;
+    }
+
+    private static int max(int[] values, int n) {
+        int max = 0;
+        for (int i = 0; i < n; i++) {
+            max = Math.max(max, values[i]);
+        }
+        return max;
+    }
+
+    private static long pack(int row, int col, int field) {
+        return ((long) row << 42) | ((long) (col & 0x1FFFFF) << 21) | (field & 0x1FFFFF);
+    }
+
+    private static int getRow(long key) {
+        return (int) (key >>> 42);
+    }
+
+    private static int getCol(long key) {
+        return (int) ((key >>> 21) & 0x1FFFFF);
+    }
+
+    private String getPlanePath(String url) {
+        return new File(imagesDir, url).getAbsolutePath();
+    }
+
+    // -- Inner classes --
+
+    /**
+     * Settings of a channel, null when they are not in the index
+     */
+    private static class ChannelInfo {
+        String name;
+        Double excitation;
+        Double emission;
+        Double magnification;
+        Double numericalAperture;
+        Double exposure;
+        /** pixel size, in m */
+        Double resolution;
+
+        static boolean isSetting(String element) {
+            switch (element) {
+                case "ChannelName":
+                case "MainExcitationWavelength":
+                case "MainEmissionWavelength":
+                case "ObjectiveMagnification":
+                case "ObjectiveNA":
+                case "ExposureTime":
+                case "ImageResolutionX":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        void set(String element, String text) {
+            switch (element) {
+                case "ChannelName":
+                    if (name == null) name = text.trim();
+                    break;
+                case "MainExcitationWavelength":
+                    if (excitation == null) excitation = parseDouble(text);
+                    break;
+                case "MainEmissionWavelength":
+                    if (emission == null) emission = parseDouble(text);
+                    break;
+                case "ObjectiveMagnification":
+                    if (magnification == null) magnification = parseDouble(text);
+                    break;
+                case "ObjectiveNA":
+                    if (numericalAperture == null) numericalAperture = parseDouble(text);
+                    break;
+                case "ExposureTime":
+                    if (exposure == null) exposure = parseDouble(text);
+                    break;
+                case "ImageResolutionX":
+                    if (resolution == null) resolution = parseDouble(text);
+                    break;
+            }
+        }
+
+        /**
+         * Take the settings of another entry of the same channel, when they are missing here
+         */
+        void complete(ChannelInfo other) {
+            if (name == null) name = other.name;
+            if (excitation == null) excitation = other.excitation;
+            if (emission == null) emission = other.emission;
+            if (magnification == null) magnification = other.magnification;
+            if (numericalAperture == null) numericalAperture = other.numericalAperture;
+            if (exposure == null) exposure = other.exposure;
+            if (resolution == null) resolution = other.resolution;
+        }
+    }
+
+    /**
+     * Streaming state: the Image entries are stored in primitive columns, the channel settings per channel id
+     */
+    private static class IndexParser {
+        final DatasetFilter filter;
+        final OpeningListener listener;
+
+        String plateName;
+        int plateRows;
+        int plateColumns;
+
+        int nImages = 0;
+        int[] row = new int[1024];
+        int[] col = new int[1024];
+        int[] field = new int[1024];
+        int[] plane = new int[1024];
+        int[] time = new int[1024];
+        int[] channel = new int[1024];
+        double[] positionX = new double[1024];
+        double[] positionY = new double[1024];
+        double[] positionZ = new double[1024];
+        double[] timeOffset = new double[1024];
+        String[] urls = new String[1024];
+
+        /** AbsTime of the first image of each row, column and field */
+        final Map<Long, String> acquisitionTimes = new HashMap<>();
+
+        /** Settings of each channel id */
+        final Map<Integer, ChannelInfo> channels = new TreeMap<>();
+
+        // element names from the root to the current element
+        String[] path = new String[16];
+        int depth = 0;
+
+        // Image entry being read
+        boolean inImage = false;
+        String absTime;
+        ChannelInfo imageChannel;
+        // Map entry being read
+        ChannelInfo entryChannel;
+        boolean plateDone = false;
+
+        // Wells section, for the plate layout and the number of images of each well
+        int[] wellRows = new int[96];
+        int[] wellCols = new int[96];
+        int[] wellImageCounts = new int[96];
+        int nWells = 0;
+        boolean layoutDone = false;
+        // images not read yet of each well, by well bit, null if the Wells section does not list the images
+        Map<Integer, Integer> remainingImages;
+        // wells with at least one image kept
+        final BitSet keptWells = new BitSet();
+        // 1-based row and column of the last image kept, 0 before the first one
+        int lastRow = 0;
+        int lastCol = 0;
+        // wells already given to the listener, each well is reported once
+        final BitSet reportedWells = new BitSet();
+        // true once a well comes back after other wells, as in kinetic indexes listed by time point
+        boolean wellsInterleaved = false;
+
+        IndexParser(DatasetFilter filter, OpeningListener listener) {
+            this.filter = filter;
+            this.listener = listener;
+        }
+
+        void parse(XMLStreamReader reader, CountingInputStream counter, long length) throws XMLStreamException {
+            int percent = 0;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    startElement(reader);
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    endElement();
+                }
+                if (listener != null && length > 0 && counter.count * 100 / length > percent) {
+                    percent = (int) (counter.count * 100 / length);
+                    listener.progress(percent / 100.0);
+                }
+            }
+            if (listener != null) {
+                endLayout();
+                // all the images are read, report the wells which were held back
+                for (int i = 0; i < nImages; i++) {
+                    reportWell(row[i] + 1, col[i] + 1);
+                }
+            }
+        }
+
+        private static int wellBit(int row, int col) {
+            return (row << 10) | col;
+        }
+
+        /**
+         * Tell the listener that the images of a well are read, unless it was already told
+         */
+        private void reportWell(int row, int col) {
+            int bit = wellBit(row, col);
+            if (!reportedWells.get(bit)) {
+                reportedWells.set(bit);
+                listener.wellRead(row, col);
+            }
+        }
+
+        /**
+         * Report the plate layout, at the end of the Wells section, or before the first image if there is none
+         */
+        private void endLayout() {
+            if (layoutDone) return;
+            layoutDone = true;
+            if (listener == null) return;
+            int maxRow = 0;
+            int maxCol = 0;
+            int[][] wells = new int[nWells][];
+            int n = 0;
+            for (int w = 0; w < nWells; w++) {
+                maxRow = Math.max(maxRow, wellRows[w]);
+                maxCol = Math.max(maxCol, wellCols[w]);
+                if (filter == null || filter.acceptsWell(wellRows[w], wellCols[w])) {
+                    wells[n++] = new int[]{wellRows[w], wellCols[w]};
+                }
+            }
+            listener.plateLayoutRead(plateName, plateRows > 0 ? plateRows : maxRow, plateColumns > 0 ? plateColumns : maxCol,
+                    Arrays.copyOf(wells, n));
+
+            // With the images of each well known, a well is complete when its last image is read, in any order
+            Map<Integer, Integer> counts = new HashMap<>(2 * nWells);
+            for (int w = 0; w < nWells; w++) {
+                if (wellImageCounts[w] == 0) return;
+                counts.merge(wellBit(wellRows[w], wellCols[w]), wellImageCounts[w], Integer::sum);
+            }
+            if (nWells > 0) remainingImages = counts;
+        }
+
+        private void startElement(XMLStreamReader reader) throws XMLStreamException {
+            String name = reader.getLocalName();
+            String parent = depth > 0 ? path[depth - 1] : null;
+            String grandParent = depth > 1 ? path[depth - 2] : null;
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, 2 * depth);
+            }
+            path[depth++] = name;
+
+            if (name.equals("Image") && "Images".equals(parent)) {
+                endLayout();
+                startImage();
+            } else if (name.equals("Well") && "Wells".equals(parent)) {
+                if (nWells == wellRows.length) {
+                    wellRows = Arrays.copyOf(wellRows, 2 * nWells);
+                    wellCols = Arrays.copyOf(wellCols, 2 * nWells);
+                    wellImageCounts = Arrays.copyOf(wellImageCounts, 2 * nWells);
+                }
+                wellRows[nWells] = 0;
+                wellCols[nWells] = 0;
+                wellImageCounts[nWells] = 0;
+            } else if (name.equals("Image") && "Well".equals(parent) && "Wells".equals(grandParent)) {
+                wellImageCounts[nWells]++;
+            } else if ("Well".equals(parent) && "Wells".equals(grandParent) && (name.equals("Row") || name.equals("Col"))) {
+                if (name.equals("Row")) {
+                    wellRows[nWells] = Integer.parseInt(readText(reader).trim());
+                } else {
+                    wellCols[nWells] = Integer.parseInt(readText(reader).trim());
+                }
+            } else if (name.equals("Entry") && "Map".equals(parent)) {
+                entryChannel = getChannel(reader.getAttributeValue(null, "ChannelID"));
+            } else if (inImage && "Image".equals(parent)) {
+                if (isImageValue(name)) setImageValue(name, readText(reader));
+            } else if (entryChannel != null && "Entry".equals(parent) && ChannelInfo.isSetting(name)) {
+                entryChannel.set(name, readText(reader));
+            } else if (!plateDone && "Plate".equals(parent) && "Plates".equals(grandParent)) {
+                switch (name) {
+                    case "Name":
+                        plateName = readText(reader).trim();
+                        break;
+                    case "PlateRows":
+                        plateRows = (int) parseDouble(readText(reader)).doubleValue();
+                        break;
+                    case "PlateColumns":
+                        plateColumns = (int) parseDouble(readText(reader)).doubleValue();
+                        break;
+                }
+            }
+        }
+
+        private void endElement() {
+            String name = path[--depth];
+            if (inImage && name.equals("Image") && depth > 0 && "Images".equals(path[depth - 1])) {
+                endImage();
+            } else if (name.equals("Entry")) {
+                entryChannel = null;
+            } else if (name.equals("Plate")) {
+                plateDone = true;
+            } else if (name.equals("Well") && depth > 0 && "Wells".equals(path[depth - 1])) {
+                nWells++;
+            } else if (name.equals("Wells")) {
+                endLayout();
+            }
+        }
+
+        /**
+         * Read the text of the current element, the reader is then on its end tag
+         */
+        private String readText(XMLStreamReader reader) throws XMLStreamException {
+            String text = reader.getElementText();
+            endElement();
+            return text;
+        }
+
+        private void startImage() {
+            if (nImages == row.length) {
+                int capacity = 2 * nImages;
+                row = Arrays.copyOf(row, capacity);
+                col = Arrays.copyOf(col, capacity);
+                field = Arrays.copyOf(field, capacity);
+                plane = Arrays.copyOf(plane, capacity);
+                time = Arrays.copyOf(time, capacity);
+                channel = Arrays.copyOf(channel, capacity);
+                positionX = Arrays.copyOf(positionX, capacity);
+                positionY = Arrays.copyOf(positionY, capacity);
+                positionZ = Arrays.copyOf(positionZ, capacity);
+                timeOffset = Arrays.copyOf(timeOffset, capacity);
+                urls = Arrays.copyOf(urls, capacity);
+            }
+            row[nImages] = 1;
+            col[nImages] = 1;
+            field[nImages] = 1;
+            plane[nImages] = 1;
+            time[nImages] = 0;
+            channel[nImages] = 1;
+            positionX[nImages] = Double.NaN;
+            positionY[nImages] = Double.NaN;
+            positionZ[nImages] = Double.NaN;
+            timeOffset[nImages] = Double.NaN;
+            urls[nImages] = null;
+            absTime = null;
+            imageChannel = new ChannelInfo();
+            inImage = true;
+        }
+
+        private static boolean isImageValue(String name) {
+            switch (name) {
+                case "URL":
+                case "Row":
+                case "Col":
+                case "FieldID":
+                case "PlaneID":
+                case "TimepointID":
+                case "ChannelID":
+                case "PositionX":
+                case "PositionY":
+                case "PositionZ":
+                case "MeasurementTimeOffset":
+                case "AbsTime":
+                    return true;
+                default:
+                    return ChannelInfo.isSetting(name);
+            }
+        }
+
+        private void setImageValue(String name, String text) {
+            int i = nImages;
+            switch (name) {
+                case "URL":
+                    urls[i] = text.trim();
+                    break;
+                case "Row":
+                    row[i] = Integer.parseInt(text.trim());
+                    break;
+                case "Col":
+                    col[i] = Integer.parseInt(text.trim());
+                    break;
+                case "FieldID":
+                    field[i] = Integer.parseInt(text.trim());
+                    break;
+                case "PlaneID":
+                    plane[i] = Integer.parseInt(text.trim());
+                    break;
+                case "TimepointID":
+                    time[i] = Integer.parseInt(text.trim());
+                    break;
+                case "ChannelID":
+                    channel[i] = Integer.parseInt(text.trim());
+                    break;
+                case "PositionX":
+                    positionX[i] = parseDouble(text);
+                    break;
+                case "PositionY":
+                    positionY[i] = parseDouble(text);
+                    break;
+                case "PositionZ":
+                    positionZ[i] = parseDouble(text);
+                    break;
+                case "MeasurementTimeOffset":
+                    timeOffset[i] = parseDouble(text);
+                    break;
+                case "AbsTime":
+                    absTime = text.trim();
+                    break;
+                default:
+                    imageChannel.set(name, text);
+            }
+        }
+
+        private void endImage() {
+            inImage = false;
+            int i = nImages;
+            // time points are 0-based in the index
+            boolean kept = filter == null || filter.accepts(row[i], col[i], field[i], time[i] + 1);
+            if (listener != null) {
+                trackWell(row[i], col[i], kept);
+            }
+            if (!kept) {
+                imageChannel = null;
+                return;
+            }
+            nImages++;
+            // rows and columns are 1-based in the index
+            row[i]--;
+            col[i]--;
+            if (absTime != null) {
+                acquisitionTimes.putIfAbsent(pack(row[i], col[i], field[i]), absTime);
+            }
+            ChannelInfo channelInfo = channels.get(channel[i]);
+            if (channelInfo == null) {
+                channels.put(channel[i], imageChannel);
+            } else {
+                channelInfo.complete(imageChannel);
+            }
+            imageChannel = null;
+        }
+
+        /**
+         * Report the well of the image just read if it is complete. When the Wells section lists the images
+         * of each well, that is when its last image is read. Otherwise the well is assumed complete when the index
+         * moves on to the next well, until a well comes back: from then on, wells are reported at the end
+         *
+         * @param row  1-based row of the image
+         * @param col  1-based column of the image
+         * @param kept false if the image is not part of the opened subset
+         */
+        private void trackWell(int row, int col, boolean kept) {
+            int bit = wellBit(row, col);
+            if (kept) keptWells.set(bit);
+
+            Integer remaining = remainingImages != null ? remainingImages.get(bit) : null;
+            if (remaining != null) {
+                if (remaining > 1) {
+                    remainingImages.put(bit, remaining - 1);
+                } else {
+                    remainingImages.remove(bit);
+                    if (keptWells.get(bit)) reportWell(row, col);
+                }
+                return;
+            }
+            // wells missing from the Wells section are reported at the end of the document
+            if (remainingImages != null || !kept) return;
+
+            if (row != lastRow || col != lastCol) {
+                if (reportedWells.get(bit)) {
+                    // the index is not sorted by well: a well is only complete at the end of the document
+                    wellsInterleaved = true;
+                } else if (lastRow > 0 && !wellsInterleaved) {
+                    reportWell(lastRow, lastCol);
+                }
+                lastRow = row;
+                lastCol = col;
+            }
+        }
+
+        private ChannelInfo getChannel(String channelId) {
+            if (channelId == null) return null;
+            int id = Integer.parseInt(channelId.trim());
+            ChannelInfo channelInfo = channels.get(id);
+            if (channelInfo == null) {
+                channelInfo = new ChannelInfo();
+                channels.put(id, channelInfo);
+            }
+            return channelInfo;
+        }
+    }
+
+    /**
+     * Counts the bytes read from the index file, for the progress
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    private static Double parseDouble(String text) {
+        try {
+            return Double.parseDouble(text.trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
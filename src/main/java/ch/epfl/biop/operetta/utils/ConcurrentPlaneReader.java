@@ -0,0 +1,58 @@
+/*-
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.operetta.utils;
+
+import loci.formats.FormatException;
+
+import java.io.IOException;
+
+/**
+ * Implemented by readers whose planes can be read from several threads at the same time, through a single
+ * reader instance. Unlike {@link loci.formats.IFormatReader#openBytes(int, byte[], int, int, int, int)}, the
+ * series is given with each call, so the current series of the reader is neither used nor changed.
+ */
+public interface ConcurrentPlaneReader {
+
+    /**
+     * @param series the series index
+     * @param no     the plane index in the series
+     * @return the path of the file holding this plane, as returned by getSeriesUsedFiles, or null if the plane
+     * is not stored in any file
+     */
+    String getPlaneFile(int series, int no);
+
+    /**
+     * Read a region of a plane. This method can be called concurrently from several threads.
+     *
+     * @param series the series index
+     * @param no     the plane index in the series
+     * @param buf    the buffer to fill, it has to hold w * h pixels
+     * @param x      the X coordinate of the upper-left corner of the region
+     * @param y      the Y coordinate of the upper-left corner of the region
+     * @param w      the width of the region
+     * @param h      the height of the region
+     * @return buf, filled with the pixels of the region
+     * @throws FormatException if there was a problem parsing the file
+     * @throws IOException     if there was a problem reading the file
+     */
+    byte[] openPlane(int series, int no, byte[] buf, int x, int y, int w, int h) throws FormatException, IOException;
+}
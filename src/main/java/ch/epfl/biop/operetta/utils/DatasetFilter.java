@@ -0,0 +1,241 @@
+/*-
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.operetta.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Subset of a dataset to open: some wells, and optionally some fields and a range of time points.
+ * <p>
+ * Readers implementing {@link SubsetReader} skip the other images while reading the index, so the metadata and
+ * the memo file only contain the subset. Rows, columns, fields and time points are 1-based, like in
+ * {@code OperettaManager.getWell(row, column)} and in the image names.
+ */
+public final class DatasetFilter {
+
+    private static final Pattern well_pattern = Pattern.compile("([A-Za-z]+)\\s*0*(\\d+)");
+
+    /** Selected wells, packed as row << 16 | column, sorted. Empty for all wells */
+    private final int[] wells;
+
+    /** Selected field ids, sorted. Empty for all fields */
+    private final int[] fields;
+
+    private final int first_timepoint;
+    private final int last_timepoint;
+
+    private DatasetFilter(int[] wells, int[] fields, int first_timepoint, int last_timepoint) {
+        this.wells = wells;
+        this.fields = fields;
+        this.first_timepoint = first_timepoint;
+        this.last_timepoint = last_timepoint;
+    }
+
+    /**
+     * @param row    the 1-based row of the well
+     * @param column the 1-based column of the well
+     * @return true if the images of this well are kept
+     */
+    public boolean acceptsWell(int row, int column) {
+        return wells.length == 0 || Arrays.binarySearch(wells, pack(row, column)) >= 0;
+    }
+
+    /**
+     * @param field the field id
+     * @return true if the images of this field are kept
+     */
+    public boolean acceptsField(int field) {
+        return fields.length == 0 || Arrays.binarySearch(fields, field) >= 0;
+    }
+
+    /**
+     * @param timepoint the 1-based time point
+     * @return true if the images of this time point are kept
+     */
+    public boolean acceptsTimepoint(int timepoint) {
+        return timepoint >= first_timepoint && timepoint <= last_timepoint;
+    }
+
+    /**
+     * @return true if the image at this well, field and time point is kept
+     */
+    public boolean accepts(int row, int column, int field, int timepoint) {
+        return acceptsTimepoint(timepoint) && acceptsField(field) && acceptsWell(row, column);
+    }
+
+    /**
+     * @return the first time point kept, 1-based
+     */
+    public int getFirstTimepoint() {
+        return first_timepoint;
+    }
+
+    /**
+     * @return the last time point kept, 1-based, {@link Integer#MAX_VALUE} if there is no upper bound
+     */
+    public int getLastTimepoint() {
+        return last_timepoint;
+    }
+
+    /**
+     * @return a short key identifying this subset, used to name its memo files
+     */
+    public String getKey() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder();
+            for (int i = 0; i < 4; i++) {
+                key.append(String.format("%02x", hash[i]));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DatasetFilter)) return false;
+        DatasetFilter other = (DatasetFilter) o;
+        return first_timepoint == other.first_timepoint && last_timepoint == other.last_timepoint
+                && Arrays.equals(wells, other.wells) && Arrays.equals(fields, other.fields);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * Arrays.hashCode(wells) + Arrays.hashCode(fields)) + 31 * first_timepoint + last_timepoint;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder("Wells: ");
+        if (wells.length == 0) s.append("all");
+        for (int i = 0; i < wells.length; i++) {
+            if (i > 0) s.append(',');
+            s.append("R").append(wells[i] >>> 16).append("-C").append(wells[i] & 0xFFFF);
+        }
+        s.append(", Fields: ").append(fields.length == 0 ? "all" : Arrays.toString(fields));
+        s.append(", Timepoints: ").append(first_timepoint).append('-');
+        s.append(last_timepoint == Integer.MAX_VALUE ? "end" : String.valueOf(last_timepoint));
+        return s.toString();
+    }
+
+    private static int pack(int row, int column) {
+        return (row << 16) | (column & 0xFFFF);
+    }
+
+    /**
+     * Builder for a {@link DatasetFilter}. Without any call, all the images are kept.
+     */
+    public static class Builder {
+        private final Set<Integer> wells = new TreeSet<>();
+        private final Set<Integer> fields = new TreeSet<>();
+        private int first_timepoint = 1;
+        private int last_timepoint = Integer.MAX_VALUE;
+
+        /**
+         * Keep a well, in addition to the ones already added
+         *
+         * @param row    the 1-based row of the well
+         * @param column the 1-based column of the well
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder addWell(int row, int column) {
+            if (row < 1 || column < 1 || row > 0x7FFF || column > 0xFFFF) {
+                throw new IllegalArgumentException("Invalid well: R" + row + "-C" + column);
+            }
+            wells.add(pack(row, column));
+            return this;
+        }
+
+        /**
+         * Keep wells given by their names, in addition to the ones already added
+         *
+         * @param well_names the wells, separated by commas or spaces, e.g. "A1, B03, P24"
+         * @return a Builder object, to continue building parameters
+         * @throws IllegalArgumentException if a well name cannot be parsed
+         */
+        public Builder addWells(String well_names) {
+            for (String name : well_names.split("[,;\\s]+")) {
+                if (name.isEmpty()) continue;
+                Matcher m = well_pattern.matcher(name);
+                if (!m.matches()) {
+                    throw new IllegalArgumentException("Invalid well name: " + name);
+                }
+                int row = 0;
+                for (char letter : m.group(1).toUpperCase().toCharArray()) {
+                    row = 26 * row + (letter - 'A' + 1);
+                }
+                addWell(row, Integer.parseInt(m.group(2)));
+            }
+            return this;
+        }
+
+        /**
+         * Keep only some fields of each well
+         *
+         * @param fields_str the field ids, e.g. "1,3,5-7"
+         * @return a Builder object, to continue building parameters
+         * @see HyperRange#parseString(String)
+         */
+        public Builder setFields(String fields_str) {
+            List<Integer> ids = HyperRange.parseString(fields_str);
+            fields.clear();
+            fields.addAll(ids);
+            return this;
+        }
+
+        /**
+         * Keep only a range of time points
+         *
+         * @param first the first time point, 1-based
+         * @param last  the last time point, included
+         * @return a Builder object, to continue building parameters
+         */
+        public Builder setTimepoints(int first, int last) {
+            if (first < 1 || last < first) {
+                throw new IllegalArgumentException("Invalid time points: " + first + "-" + last);
+            }
+            this.first_timepoint = first;
+            this.last_timepoint = last;
+            return this;
+        }
+
+        public DatasetFilter build() {
+            return new DatasetFilter(toArray(wells), toArray(fields), first_timepoint, last_timepoint);
+        }
+
+        private static int[] toArray(Set<Integer> values) {
+            return values.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+}
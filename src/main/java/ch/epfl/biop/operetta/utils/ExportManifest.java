@@ -0,0 +1,417 @@
+/*-
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.operetta.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps track of the outputs of an export, so that an interrupted export can be resumed.
+ * <p>
+ * The manifest is a text file with one record per line, each record describing one completed output
+ * (a field or well image file, or an image folder of an OME-Zarr plate): its path relative to the manifest,
+ * the hash of the export parameters, its size, modification time and checksum, as well as the information needed
+ * to describe it again in a companion file. When an export is resumed, outputs are checked against their size and
+ * modification time, which does not read them back; comparing the checksums is optional. Every line ends with its own CRC32: a record is appended and synced to disk in a single
+ * write once its output is complete, and a line cut short by a crash is simply ignored when reading the manifest back.
+ */
+public class ExportManifest {
+
+    private static final Logger log = LoggerFactory.getLogger(ExportManifest.class);
+
+    private static final String HEADER = "# Operetta export manifest v2";
+    private static final String SEPARATOR = "\t";
+
+    private final File file;
+    private final Path folder;
+    private final Map<String, Record> records = new LinkedHashMap<>();
+    private final boolean verifyChecksums;
+
+    private ExportManifest(File file, boolean verifyChecksums) {
+        this.file = file;
+        this.folder = file.getAbsoluteFile().getParentFile().toPath();
+        this.verifyChecksums = verifyChecksums;
+    }
+
+    /**
+     * Open the manifest of an export
+     *
+     * @param file   the manifest file
+     * @param resume if true, the existing records are loaded, otherwise the manifest is started anew
+     * @return the manifest
+     * @throws IOException if the manifest could not be read or created
+     */
+    public static ExportManifest open(File file, boolean resume) throws IOException {
+        return open(file, resume, false);
+    }
+
+    /**
+     * Open the manifest of an export
+     *
+     * @param file            the manifest file
+     * @param resume          if true, the existing records are loaded, otherwise the manifest is started anew
+     * @param verifyChecksums if true, the outputs of a resumed export are read back to compare their checksums,
+     *                        otherwise only their size and modification time are compared
+     * @return the manifest
+     * @throws IOException if the manifest could not be read or created
+     */
+    public static ExportManifest open(File file, boolean resume, boolean verifyChecksums) throws IOException {
+        ExportManifest manifest = new ExportManifest(file, verifyChecksums);
+        if (resume && file.exists()) {
+            manifest.load();
+        } else {
+            Files.write(file.toPath(), (HEADER + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return manifest;
+    }
+
+    private void load() throws IOException {
+        int skipped = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                Record record = Record.parse(line);
+                if (record == null) {
+                    skipped++;
+                    continue;
+                }
+                // The latest record of an output wins
+                records.put(record.name, record);
+            }
+        }
+        if (skipped > 0) {
+            log.warn("Ignored {} incomplete record(s) in manifest {}", skipped, file.getAbsolutePath());
+        }
+        log.info("Loaded {} record(s) from manifest {}", records.size(), file.getAbsolutePath());
+    }
+
+    /**
+     * @param output an output file or folder
+     * @return the record of that output, or null if there is none
+     */
+    public synchronized Record get(File output) {
+        return records.get(getName(output));
+    }
+
+    /**
+     * Check whether an output was completed with the same parameters and was not modified since: same size and
+     * modification time, and same checksum if the manifest was opened to verify them. Records written before the
+     * modification time was kept are always verified with their checksum.
+     *
+     * @param output         the output file or folder
+     * @param parametersHash the hash of the current export parameters
+     * @return true if the output can be kept as is
+     */
+    public boolean isValid(File output, String parametersHash) {
+        Record record = get(output);
+        if (record == null || !record.parametersHash.equals(parametersHash) || !output.exists()) {
+            return false;
+        }
+        try {
+            if (!verifyChecksums && record.lastModified >= 0) {
+                long[] sizeAndTime = computeSizeAndTime(output);
+                return sizeAndTime[0] == record.size && sizeAndTime[1] == record.lastModified;
+            }
+            long[] sizeAndChecksum = computeSizeAndChecksum(output);
+            return sizeAndChecksum[0] == record.size && sizeAndChecksum[1] == record.checksum;
+        } catch (IOException e) {
+            log.warn("Could not verify {}: {}", output, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Append a record to the manifest, once its output is complete
+     *
+     * @param record the record to add
+     * @throws IOException if the manifest could not be written
+     */
+    public synchronized void add(Record record) throws IOException {
+        byte[] line = (record.format() + "\n").getBytes(StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(line);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        records.put(record.name, record);
+    }
+
+    private String getName(File output) {
+        return folder.relativize(output.getAbsoluteFile().toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * For a folder, the size is the total size of the files it contains and the time is the latest modification
+     * of these files. Only the file attributes are read
+     */
+    private static long[] computeSizeAndTime(File output) throws IOException {
+        if (!output.isDirectory()) {
+            return new long[]{Files.size(output.toPath()), Files.getLastModifiedTime(output.toPath()).toMillis()};
+        }
+        long size = 0;
+        long time = 0;
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(output.toPath())) {
+            files = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for (Path path : files) {
+            size += Files.size(path);
+            time = Math.max(time, Files.getLastModifiedTime(path).toMillis());
+        }
+        return new long[]{size, time};
+    }
+
+    /**
+     * For a folder, the size is the total size of the files it contains and the checksum
+     * combines their relative paths and sizes, reading every chunk of a Zarr image back would cost as much as writing it
+     */
+    private static long[] computeSizeAndChecksum(File output) throws IOException {
+        CRC32 crc = new CRC32();
+        long size = 0;
+        if (output.isDirectory()) {
+            Path root = output.toPath();
+            List<Path> files;
+            try (Stream<Path> paths = Files.walk(root)) {
+                files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+            for (Path path : files) {
+                long fileSize = Files.size(path);
+                size += fileSize;
+                crc.update((root.relativize(path).toString() + ":" + fileSize).getBytes(StandardCharsets.UTF_8));
+            }
+        } else {
+            byte[] buffer = new byte[1 << 16];
+            try (InputStream in = Files.newInputStream(output.toPath())) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    crc.update(buffer, 0, n);
+                    size += n;
+                }
+            }
+        }
+        return new long[]{size, crc.getValue()};
+    }
+
+    /**
+     * One completed output of the export
+     */
+    public static class Record {
+        final String name;
+        final String parametersHash;
+        final long size;
+        final long checksum;
+        final long lastModified;
+        final int row;
+        final int column;
+        final int series;
+        final int sizeX;
+        final int sizeY;
+        final int sizeZ;
+        final int sizeC;
+        final int sizeT;
+        final String pixelType;
+        final double pixelWidth;
+        final double pixelHeight;
+
+        private Record(String name, String parametersHash, long size, long checksum, long lastModified,
+                       int row, int column, int series,
+                       int sizeX, int sizeY, int sizeZ, int sizeC, int sizeT,
+                       String pixelType, double pixelWidth, double pixelHeight) {
+            this.name = name;
+            this.parametersHash = parametersHash;
+            this.size = size;
+            this.checksum = checksum;
+            this.lastModified = lastModified;
+            this.row = row;
+            this.column = column;
+            this.series = series;
+            this.sizeX = sizeX;
+            this.sizeY = sizeY;
+            this.sizeZ = sizeZ;
+            this.sizeC = sizeC;
+            this.sizeT = sizeT;
+            this.pixelType = pixelType;
+            this.pixelWidth = pixelWidth;
+            this.pixelHeight = pixelHeight;
+        }
+
+        public String getName() { return name; }
+        public int getRow() { return row; }
+        public int getColumn() { return column; }
+        public int getSeries() { return series; }
+        public int getSizeX() { return sizeX; }
+        public int getSizeY() { return sizeY; }
+        public int getSizeZ() { return sizeZ; }
+        public int getSizeC() { return sizeC; }
+        public int getSizeT() { return sizeT; }
+        public String getPixelType() { return pixelType; }
+        public double getPixelWidth() { return pixelWidth; }
+        public double getPixelHeight() { return pixelHeight; }
+
+        private String format() {
+            String content = String.join(SEPARATOR,
+                    name, parametersHash, Long.toString(size), Long.toHexString(checksum),
+                    Integer.toString(row), Integer.toString(column), Integer.toString(series),
+                    Integer.toString(sizeX), Integer.toString(sizeY), Integer.toString(sizeZ),
+                    Integer.toString(sizeC), Integer.toString(sizeT),
+                    pixelType, Double.toString(pixelWidth), Double.toString(pixelHeight), Long.toString(lastModified));
+            return content + SEPARATOR + Long.toHexString(lineChecksum(content));
+        }
+
+        private static Record parse(String line) {
+            int last = line.lastIndexOf(SEPARATOR);
+            if (last < 0) return null;
+            String content = line.substring(0, last);
+            try {
+                if (Long.parseLong(line.substring(last + 1), 16) != lineChecksum(content)) return null;
+                String[] f = content.split(SEPARATOR, -1);
+                // v1 manifests have no modification time
+                if (f.length != 15 && f.length != 16) return null;
+                return new Record(f[0], f[1], Long.parseLong(f[2]), Long.parseLong(f[3], 16),
+                        f.length == 16 ? Long.parseLong(f[15]) : -1,
+                        Integer.parseInt(f[4]), Integer.parseInt(f[5]), Integer.parseInt(f[6]),
+                        Integer.parseInt(f[7]), Integer.parseInt(f[8]), Integer.parseInt(f[9]),
+                        Integer.parseInt(f[10]), Integer.parseInt(f[11]),
+                        f[12], Double.parseDouble(f[13]), Double.parseDouble(f[14]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private static long lineChecksum(String content) {
+            CRC32 crc = new CRC32();
+            crc.update(content.getBytes(StandardCharsets.UTF_8));
+            return crc.getValue();
+        }
+
+        /**
+         * Builder class for {@link Record}. The size, modification time and checksum are computed from the output
+         * when building
+         */
+        public static class Builder {
+            private final File output;
+            private final String parametersHash;
+            private int row = -1;
+            private int column = -1;
+            private int series = -1;
+            private int sizeX = -1;
+            private int sizeY = -1;
+            private int sizeZ = -1;
+            private int sizeC = -1;
+            private int sizeT = -1;
+            private String pixelType = "";
+            private double pixelWidth = 1;
+            private double pixelHeight = 1;
+
+            /**
+             * @param output         the completed output file or folder
+             * @param parametersHash the hash of the export parameters
+             */
+            public Builder(File output, String parametersHash) {
+                this.output = output;
+                this.parametersHash = parametersHash;
+            }
+
+            /**
+             * @param row    0-based row of the well
+             * @param column 0-based column of the well
+             * @return a Builder object, to continue building parameters
+             */
+            public Builder setWell(int row, int column) {
+                this.row = row;
+                this.column = column;
+                return this;
+            }
+
+            /**
+             * @param series the series id of the (first) field in the output
+             * @return a Builder object, to continue building parameters
+             */
+            public Builder setSeries(int series) {
+                this.series = series;
+                return this;
+            }
+
+            public Builder setDimensions(int sizeX, int sizeY, int sizeZ, int sizeC, int sizeT) {
+                this.sizeX = sizeX;
+                this.sizeY = sizeY;
+                this.sizeZ = sizeZ;
+                this.sizeC = sizeC;
+                this.sizeT = sizeT;
+                return this;
+            }
+
+            /**
+             * @param pixelType the pixel type, as named in OME-XML
+             * @return a Builder object, to continue building parameters
+             */
+            public Builder setPixelType(String pixelType) {
+                this.pixelType = pixelType;
+                return this;
+            }
+
+            /**
+             * @param pixelWidth  pixel width in micrometers
+             * @param pixelHeight pixel height in micrometers
+             * @return a Builder object, to continue building parameters
+             */
+            public Builder setPixelSize(double pixelWidth, double pixelHeight) {
+                this.pixelWidth = pixelWidth;
+                this.pixelHeight = pixelHeight;
+                return this;
+            }
+
+            /**
+             * @param manifest the manifest the record is created for, used to name the output
+             * @return the record
+             * @throws IOException if the output could not be read to compute its checksum
+             */
+            public Record build(ExportManifest manifest) throws IOException {
+                long[] sizeAndChecksum = computeSizeAndChecksum(output);
+                long lastModified = computeSizeAndTime(output)[1];
+                return new Record(manifest.getName(output), parametersHash, sizeAndChecksum[0], sizeAndChecksum[1],
+                        lastModified, row, column, series, sizeX, sizeY, sizeZ, sizeC, sizeT, pixelType, pixelWidth, pixelHeight);
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*-
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.operetta.utils;
+
+import java.util.Map;
+
+/**
+ * Implemented by readers which know the C, Z and T indices of each of their files without
+ * needing TiffData elements in the OME metadata, see {@link HyperRange#setFilenameToCZTMap(Map)}
+ */
+public interface FilenameToCZTProvider {
+
+    /**
+     * @param series the series index
+     * @return Map from the path of each file of the series, as returned by getSeriesUsedFiles,
+     * to int[]{c, z, t} (1-based indices)
+     */
+    Map<String, int[]> getFilenameToCZTMap(int series);
+}
@@ -0,0 +1,215 @@
+/*-
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.operetta.utils;
+
+import loci.formats.IFormatReader;
+import loci.formats.Memoizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.regex.Pattern;
+
+/**
+ * A shared directory of Bio-Formats memo files, for datasets stored on read-only shares, where the memo file
+ * cannot be written next to the dataset.
+ * <p>
+ * Memo files are stored flat in the cache directory, named after the absolute path of the dataset and its
+ * modification time, so that several workstations mounting the dataset at the same path share the same memo,
+ * and a modified dataset gets a new one. The total size of the cache is bounded: once a dataset is opened, the least
+ * recently used memo files are deleted until the cache fits again.
+ * <p>
+ * A dataset can have several memo files, one per variant, e.g. one per {@link DatasetFilter} used to open
+ * a subset of it.
+ */
+public class MemoCache {
+
+    private static final Logger log = LoggerFactory.getLogger(MemoCache.class);
+
+    private static final String MEMO_SUFFIX = ".bfmemo";
+
+    private final File directory;
+    private final long maxSize;
+
+    /**
+     * @param directory the cache directory, created if needed
+     * @param maxSize   the maximal total size of the memo files, in bytes
+     */
+    public MemoCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        if (!directory.exists() && !directory.mkdirs()) {
+            log.warn("Could not create memo cache directory {}", directory.getAbsolutePath());
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param reader the reader to memoize
+     * @return a Memoizer which reads and writes its memo file in this cache
+     */
+    public Memoizer wrap(IFormatReader reader) {
+        return wrap(reader, null);
+    }
+
+    /**
+     * @param reader  the reader to memoize
+     * @param variant a key of what is memoized, added to the memo file name, or null
+     * @return a Memoizer which reads and writes its memo file in this cache
+     */
+    public Memoizer wrap(IFormatReader reader, String variant) {
+        return new CachedMemoizer(reader, this, variant);
+    }
+
+    /**
+     * @param id the path of the dataset
+     * @return the memo file of this dataset in its current state, which may not exist yet
+     */
+    public File getMemoFile(String id) {
+        return getMemoFile(id, null);
+    }
+
+    /**
+     * @param id      the path of the dataset
+     * @param variant a key of what is memoized, or null
+     * @return the memo file of this variant of the dataset in its current state, which may not exist yet
+     */
+    public File getMemoFile(String id, String variant) {
+        File file = new File(id).getAbsoluteFile();
+        return new File(directory, getKeyPrefix(file, variant) + file.lastModified() + MEMO_SUFFIX);
+    }
+
+    /**
+     * To call once a dataset was opened through {@link #wrap(IFormatReader)}: marks its memo file as recently
+     * used, deletes the memo files of previous versions of the dataset, then evicts the least recently used memo
+     * files if the cache is too big
+     *
+     * @param id the path of the dataset
+     */
+    public synchronized void update(String id) {
+        update(id, null);
+    }
+
+    /**
+     * Same as {@link #update(String)}, for a dataset opened through {@link #wrap(IFormatReader, String)}.
+     * The memo files of the other variants are kept.
+     *
+     * @param id      the path of the dataset
+     * @param variant the key of what is memoized, or null
+     */
+    public synchronized void update(String id, String variant) {
+        File memo = getMemoFile(id, variant);
+        if (memo.exists() && !memo.setLastModified(System.currentTimeMillis())) {
+            log.debug("Could not touch memo file {}", memo);
+        }
+
+        String prefix = getKeyPrefix(new File(id).getAbsoluteFile(), variant);
+        // previous versions only: the rest of the name is the modification time
+        File[] outdated = directory.listFiles((dir, name) -> name.startsWith(prefix) && !name.equals(memo.getName())
+                && name.substring(prefix.length()).matches("\\d+" + Pattern.quote(MEMO_SUFFIX)));
+        if (outdated != null) {
+            for (File file : outdated) {
+                delete(file);
+            }
+        }
+
+        evict();
+    }
+
+    /**
+     * Delete the least recently used memo files until the cache is smaller than its maximal size.
+     * The most recently used memo file is always kept.
+     */
+    public synchronized void evict() {
+        File[] memos = directory.listFiles((dir, name) -> name.endsWith(MEMO_SUFFIX));
+        if (memos == null) return;
+        // most recently used first
+        Arrays.sort(memos, Comparator.comparingLong(File::lastModified).reversed());
+        long size = 0;
+        for (int i = 0; i < memos.length; i++) {
+            long length = memos[i].length();
+            if (i > 0 && size + length > maxSize) {
+                delete(memos[i]);
+            } else {
+                size += length;
+            }
+        }
+    }
+
+    private static void delete(File memo) {
+        if (memo.delete()) {
+            log.debug("Deleted memo file {}", memo);
+        } else {
+            // another workstation may be using or deleting it
+            log.debug("Could not delete memo file {}", memo);
+        }
+    }
+
+    /**
+     * @return the name of the dataset file, a hash of its absolute path and the variant
+     */
+    private static String getKeyPrefix(File file, String variant) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(file.getPath().getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder(file.getName()).append('-');
+            for (int i = 0; i < 8; i++) {
+                key.append(String.format("%02x", hash[i]));
+            }
+            key.append('-');
+            if (variant != null) {
+                key.append(variant).append('-');
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class CachedMemoizer extends Memoizer {
+        private final MemoCache cache;
+        private final String variant;
+
+        CachedMemoizer(IFormatReader reader, MemoCache cache, String variant) {
+            super(reader);
+            this.cache = cache;
+            this.variant = variant;
+        }
+
+        @Override
+        public File getMemoFile(String id) {
+            return cache.getMemoFile(id, variant);
+        }
+    }
+}
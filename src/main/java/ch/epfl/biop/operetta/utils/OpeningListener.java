@@ -0,0 +1,63 @@
+/*-
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.operetta.utils;
+
+/**
+ * Notified while a dataset is opened, so that the plate can be shown before the whole index is read.
+ * <p>
+ * Methods are called from the thread reading the index, and should return quickly. Rows and columns are 1-based,
+ * like in {@code OperettaManager.getWell(row, column)}. Nothing is notified when the dataset is opened from its
+ * memo file, which is fast anyway.
+ *
+ * @see ProgressiveReader
+ */
+public interface OpeningListener {
+
+    /**
+     * Called once, when the plate layout is known, before the images are read
+     *
+     * @param plateName the name of the plate, or null
+     * @param rows      the number of rows of the plate
+     * @param columns   the number of columns of the plate
+     * @param wells     the row and column of each well of the dataset
+     */
+    default void plateLayoutRead(String plateName, int rows, int columns, int[][] wells) {
+    }
+
+    /**
+     * Called once per well, when the images of the well have been read. Harmony indexes list the images of each
+     * well in their plate layout, so a well is reported with its last image, whatever the order of the images,
+     * for instance by time point. Indexes without this list report a well when they move on to the next well, so
+     * if they list the images by time point, their wells are reported after the first time point only.
+     *
+     * @param row    the row of the well
+     * @param column the column of the well
+     */
+    default void wellRead(int row, int column) {
+    }
+
+    /**
+     * @param fraction the fraction of the index read so far, between 0 and 1
+     */
+    default void progress(double fraction) {
+    }
+}
@@ -0,0 +1,40 @@
+/*-
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.operetta.utils;
+
+/**
+ * Implemented by readers which can open only a subset of a dataset. The filter has to be set before
+ * {@link loci.formats.IFormatReader#setId(String)}: the images it rejects are skipped while reading the index,
+ * and the series, metadata and memo file of the reader only cover the subset.
+ */
+public interface SubsetReader {
+
+    /**
+     * @param filter the subset to open, or null to open the whole dataset
+     */
+    void setDatasetFilter(DatasetFilter filter);
+
+    /**
+     * @return the subset opened, or null if the whole dataset is opened
+     */
+    DatasetFilter getDatasetFilter();
+}
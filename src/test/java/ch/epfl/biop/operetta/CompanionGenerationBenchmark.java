@@ -0,0 +1,127 @@
+/*-
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.operetta;
+
+import ch.epfl.biop.operetta.companion.CompanionFileGenerator;
+import ch.epfl.biop.operetta.companion.ImageCompanion;
+import ch.epfl.biop.operetta.companion.PlateCompanion;
+import ch.epfl.biop.operetta.companion.WellCompanion;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+import ome.xml.model.enums.DimensionOrder;
+import ome.xml.model.enums.NamingConvention;
+import ome.xml.model.enums.PixelType;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+
+public class CompanionGenerationBenchmark {
+    /**
+     * Generates the companion file of a synthetic plate (32 x 48 wells with 100 images each by default)
+     * and reports the time and peak heap needed to build and write it. With "journal" as fourth argument,
+     * the incremental mode is used and each well is flushed once its images are added.
+     *
+     * @param args optional: number of wells, number of images per well, output folder, "journal"
+     * @throws Exception If the companion could not be written
+     */
+    public static void main(String... args) throws Exception {
+
+        int nWells = args.length > 0 ? Integer.parseInt(args[0]) : 1536;
+        int nImagesPerWell = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        File folder = args.length > 2 ? new File(args[2]) : Files.createTempDirectory("companion-benchmark").toFile();
+        boolean journal = args.length > 3 && args[3].equals("journal");
+
+        int nColumns = 48;
+        int nRows = (nWells + nColumns - 1) / nColumns;
+
+        long start = System.nanoTime();
+
+        CompanionFileGenerator generator = new CompanionFileGenerator(nWells * nImagesPerWell);
+        generator.setPlate(new PlateCompanion.Builder()
+                .setName("Benchmark")
+                .setNRows(nRows)
+                .setNColumns(nColumns)
+                .setRowNamingConvention(NamingConvention.LETTER)
+                .setColumnNamingConvention(NamingConvention.NUMBER)
+                .build());
+        String plateAcquisitionId = generator.createPlateAcquisition("Benchmark");
+        if (journal) {
+            resetPeakUsage();
+            generator.startJournal(folder.getAbsolutePath(), "Benchmark");
+        }
+
+        for (int w = 0; w < nWells; w++) {
+            String wellId = generator.addWell(new WellCompanion.Builder()
+                    .setRow(w / nColumns)
+                    .setColumn(w % nColumns)
+                    .build());
+            for (int i = 0; i < nImagesPerWell; i++) {
+                ImageCompanion.Builder builder = new ImageCompanion.Builder()
+                        .setName("Well_" + w + "_Field_" + i + ".ome.tiff")
+                        .setSizeX(2160).setSizeY(2160).setSizeZ(5).setSizeC(4).setSizeT(1)
+                        .setPixelType(PixelType.UINT16)
+                        .setDimensionOrder(DimensionOrder.XYCZT)
+                        .setPixelSizeX(new Length(0.3, UNITS.MICROMETER))
+                        .setPixelSizeY(new Length(0.3, UNITS.MICROMETER))
+                        .addGlobalMetadata("Objective", "20x");
+                builder.addTag("Benchmark");
+                builder.addKVP("Well", Integer.toString(w), "openmicroscopy.org/omero/client/mapAnnotation");
+                generator.addImage(builder.build(), wellId, plateAcquisitionId);
+            }
+            if (journal) {
+                generator.flush();
+            }
+        }
+        long filled = System.nanoTime();
+
+        if (!journal) {
+            resetPeakUsage();
+        }
+        generator.buildCompanionFromImageFolder(folder.getAbsolutePath(), "Benchmark");
+        long written = System.nanoTime();
+
+        File companion = new File(folder, "Benchmark.companion.ome");
+        System.out.println("Wells: " + nWells + ", images: " + (nWells * nImagesPerWell) + (journal ? ", incremental" : ""));
+        System.out.println("Filling the generator: " + (filled - start) / 1_000_000 + " ms");
+        System.out.println("Building and writing the companion: " + (written - filled) / 1_000_000 + " ms");
+        System.out.println("Peak heap while writing: " + getPeakUsage() / (1024 * 1024) + " MB");
+        System.out.println("Companion size: " + companion.length() / (1024 * 1024) + " MB (" + companion.getAbsolutePath() + ")");
+    }
+
+    private static void resetPeakUsage() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    private static long getPeakUsage() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,82 @@
+/*-
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.operetta;
+
+import ch.epfl.biop.ometiff.LazyOMETiffReader;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.in.OMETiffReader;
+
+public class LazyReaderBenchmark {
+    /**
+     * Opens a companion file with the stock OMETiffReader and with the LazyOMETiffReader, then reads
+     * a small tile of each plane of the first series several times, so that the per-plane overhead
+     * of openBytes dominates over the decoding of the pixels.
+     *
+     * @param args companion.ome file, optional: number of series to read (10 by default), number of rounds (5 by default)
+     * @throws Exception If the dataset could not be read
+     */
+    public static void main(String... args) throws Exception {
+
+        String companion = args[0];
+        int nSeries = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int nRounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        // the first run warms up the JIT, only the second one is reported
+        for (int run = 0; run < 2; run++) {
+            boolean report = run == 1;
+            benchmark(new OMETiffReader(), companion, nSeries, nRounds, report);
+            LazyOMETiffReader lazy = new LazyOMETiffReader();
+            lazy.setTrustMetadata(false);
+            benchmark(lazy, companion, nSeries, nRounds, report);
+        }
+    }
+
+    private static void benchmark(IFormatReader reader, String companion, int nSeries, int nRounds, boolean report) throws Exception {
+        long start = System.nanoTime();
+        reader.setId(companion);
+        long opened = System.nanoTime();
+
+        int series = Math.min(nSeries, reader.getSeriesCount());
+        long nPlanes = 0;
+        for (int round = 0; round < nRounds; round++) {
+            for (int s = 0; s < series; s++) {
+                reader.setSeries(s);
+                int w = Math.min(16, reader.getSizeX());
+                int h = Math.min(16, reader.getSizeY());
+                byte[] buf = new byte[w * h * FormatTools.getBytesPerPixel(reader.getPixelType()) * reader.getRGBChannelCount()];
+                for (int no = 0; no < reader.getImageCount(); no++) {
+                    reader.openBytes(no, buf, 0, 0, w, h);
+                    nPlanes++;
+                }
+            }
+        }
+        long read = System.nanoTime();
+        reader.close();
+
+        if (report) {
+            System.out.println(reader.getClass().getSimpleName() + ": setId " + (opened - start) / 1_000_000 + " ms, "
+                    + nPlanes + " tiles read in " + (read - opened) / 1_000_000 + " ms ("
+                    + (read - opened) / Math.max(1, nPlanes) / 1000 + " us per tile)");
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*-
+ * #%L
+ * Hold your horses
+ * %%
+ * Copyright (C) 2019 - 2026 BIOP
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.operetta;
+
+import ch.epfl.biop.ometiff.LazyOMETiffReader;
+import ch.epfl.biop.operetta.archive.HarmonyArchiveReader;
+import loci.formats.ClassList;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.in.OMETiffReader;
+import loci.formats.in.OMEXMLReader;
+
+import java.io.File;
+
+public class ReaderCreationBenchmark {
+    /**
+     * Compares the time needed to find the reader of a dataset with all Bio-Formats readers, as done before,
+     * and with the readers selected by {@link OperettaManager.Builder#getReaderClasses(String)}, then reports the
+     * time of a complete {@link OperettaManager.Builder#createReader(String)}, memo file included.
+     *
+     * @param args Index.idx.xml, Index.xml, .companion.ome.lazy or IMAGES.sqlite file, optional: number of repetitions (20 by default)
+     * @throws Exception If the dataset could not be opened
+     */
+    public static void main(String... args) throws Exception {
+
+        String id = new File(args[0]).getAbsolutePath();
+        int nRepetitions = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        // the first round warms up the JIT and the file system cache, only the second one is reported
+        for (int round = 0; round < 2; round++) {
+            long all = 0;
+            long fast = 0;
+            String allReader = null;
+            String fastReader = null;
+            for (int i = 0; i < nRepetitions; i++) {
+                long start = System.nanoTime();
+                allReader = new ImageReader(getAllReaderClasses()).getReader(id).getClass().getSimpleName();
+                long middle = System.nanoTime();
+                fastReader = new ImageReader(OperettaManager.Builder.getReaderClasses(id)).getReader(id).getClass().getSimpleName();
+                long end = System.nanoTime();
+                all += middle - start;
+                fast += end - middle;
+            }
+            if (round == 1) {
+                System.out.println("All readers: " + allReader + " found in " + all / nRepetitions / 1000 + " us");
+                System.out.println("Selected readers: " + fastReader + " found in " + fast / nRepetitions / 1000 + " us");
+            }
+        }
+
+        long start = System.nanoTime();
+        IFormatReader reader = OperettaManager.Builder.createReader(id);
+        long end = System.nanoTime();
+        System.out.println("createReader: " + (end - start) / 1_000_000 + " ms, " + reader.getSeriesCount() + " series");
+        reader.close();
+    }
+
+    /**
+     * @return the readers which were tried for every file before the fast path
+     */
+    private static ClassList<IFormatReader> getAllReaderClasses() {
+        ClassList<IFormatReader> readers = ImageReader.getDefaultReaderClasses();
+        readers.addClass(LazyOMETiffReader.class);
+        readers.addClass(HarmonyArchiveReader.class);
+        readers.removeClass(OMETiffReader.class);
+        readers.removeClass(OMEXMLReader.class);
+        return readers;
+    }
+}